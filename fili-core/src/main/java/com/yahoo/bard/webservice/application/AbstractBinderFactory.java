@@ -2,6 +2,7 @@
 // Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
 package com.yahoo.bard.webservice.application;
 
+import static com.yahoo.bard.webservice.config.BardFeatureFlag.CACHE_WARMING;
 import static com.yahoo.bard.webservice.config.BardFeatureFlag.DRUID_COORDINATOR_METADATA;
 import static com.yahoo.bard.webservice.config.BardFeatureFlag.DRUID_DIMENSIONS_LOADER;
 import static com.yahoo.bard.webservice.config.BardFeatureFlag.DRUID_LOOKUP_METADATA;
@@ -40,11 +41,15 @@ import com.yahoo.bard.webservice.data.DruidResponseParser;
 import com.yahoo.bard.webservice.data.HttpResponseMaker;
 import com.yahoo.bard.webservice.data.PartialDataHandler;
 import com.yahoo.bard.webservice.data.PreResponseDeserializer;
+import com.yahoo.bard.webservice.data.cache.CacheValueCodec;
+import com.yahoo.bard.webservice.data.cache.CacheWarmer;
 import com.yahoo.bard.webservice.data.cache.DataCache;
 import com.yahoo.bard.webservice.data.cache.HashDataCache;
+import com.yahoo.bard.webservice.data.cache.HeapTupleDataCache;
 import com.yahoo.bard.webservice.data.cache.MemDataCache;
 import com.yahoo.bard.webservice.data.cache.MemTupleDataCache;
 import com.yahoo.bard.webservice.data.cache.StubDataCache;
+import com.yahoo.bard.webservice.data.cache.TupleDataCache;
 import com.yahoo.bard.webservice.data.config.ConfigurationLoader;
 import com.yahoo.bard.webservice.data.config.ResourceDictionaries;
 import com.yahoo.bard.webservice.data.config.dimension.DimensionConfig;
@@ -66,6 +71,7 @@ import com.yahoo.bard.webservice.druid.client.DruidClientConfigHelper;
 import com.yahoo.bard.webservice.druid.client.DruidServiceConfig;
 import com.yahoo.bard.webservice.druid.client.DruidWebService;
 import com.yahoo.bard.webservice.druid.client.impl.AsyncDruidWebServiceImpl;
+import com.yahoo.bard.webservice.druid.client.impl.LoadBalancedDruidWebService;
 import com.yahoo.bard.webservice.druid.client.impl.HeaderNestingJsonBuilderStrategy;
 import com.yahoo.bard.webservice.druid.model.query.LookbackQuery;
 import com.yahoo.bard.webservice.druid.util.FieldConverterSupplier;
@@ -83,6 +89,7 @@ import com.yahoo.bard.webservice.table.resolver.DefaultPhysicalTableResolver;
 import com.yahoo.bard.webservice.table.resolver.PhysicalTableResolver;
 import com.yahoo.bard.webservice.util.DefaultingDictionary;
 import com.yahoo.bard.webservice.util.SimplifiedIntervalList;
+import com.yahoo.bard.webservice.web.ArrowResponseWriter;
 import com.yahoo.bard.webservice.web.CsvResponseWriter;
 import com.yahoo.bard.webservice.web.apirequest.DataApiRequest;
 import com.yahoo.bard.webservice.web.DefaultResponseFormatResolver;
@@ -108,6 +115,7 @@ import com.yahoo.bard.webservice.web.apirequest.DefaultDataApiRequestFactory;
 import com.yahoo.bard.webservice.web.apirequest.DefaultHavingApiGenerator;
 import com.yahoo.bard.webservice.web.apirequest.HavingGenerator;
 import com.yahoo.bard.webservice.web.apirequest.PerRequestDictionaryHavingGenerator;
+import com.yahoo.bard.webservice.web.handlers.StaleWhileRevalidateCacheRequestHandler;
 import com.yahoo.bard.webservice.web.handlers.workflow.DruidWorkflow;
 import com.yahoo.bard.webservice.web.handlers.workflow.RequestWorkflowProvider;
 import com.yahoo.bard.webservice.web.ratelimit.DefaultRateLimiter;
@@ -132,10 +140,12 @@ import org.slf4j.LoggerFactory;
 import rx.subjects.PublishSubject;
 
 import java.io.IOException;
+import java.io.Serializable;
 import java.lang.management.ManagementFactory;
 import java.lang.reflect.Constructor;
 import java.time.Clock;
 import java.time.ZoneId;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
@@ -197,6 +207,11 @@ public abstract class AbstractBinderFactory implements BinderFactory {
     public static final String DEPRECATED_PERMISSIVE_AVAILABILITY_FLAG = SYSTEM_CONFIG.getPackageVariableName(
             "permissive_column_availability_enabled");
 
+    public static final long DRUID_CACHE_HEAP_MAX_BYTES = SYSTEM_CONFIG.getLongProperty(
+            SYSTEM_CONFIG.getPackageVariableName("druid_cache_heap_max_bytes"),
+            -1
+    );
+
     public static final int DRUID_UNCOVERED_INTERVAL_LIMIT = SYSTEM_CONFIG.getIntProperty(
             SYSTEM_CONFIG.getPackageVariableName("druid_uncovered_interval_limit"),
             0
@@ -210,6 +225,7 @@ public abstract class AbstractBinderFactory implements BinderFactory {
     private ConfigurationLoader loader;
 
     private final TaskScheduler loaderScheduler = new TaskScheduler(LOADER_SCHEDULER_THREAD_POOL_SIZE);
+    private final List<MemDataCache<?>> memcachedCaches = new ArrayList<>();
 
     /**
      * Constructor.
@@ -285,7 +301,8 @@ public abstract class AbstractBinderFactory implements BinderFactory {
                 setupHealthChecks(healthCheckRegistry, loader.getDimensionDictionary());
                 setupGauges();
 
-                bind(buildCache()).to(DataCache.class);
+                DataCache<?> dataCache = buildCache();
+                bind(dataCache).to(DataCache.class);
                 bind(QueryWeightUtil.class).to(QueryWeightUtil.class);
 
                 bind(getMappers()).to(ObjectMappersSuite.class);
@@ -321,6 +338,10 @@ public abstract class AbstractBinderFactory implements BinderFactory {
 
                 bind(querySigningService).to(QuerySigningService.class);
 
+                if (CACHE_WARMING.isOn()) {
+                    bindCacheWarmer(this, druidWebService, dataCache, querySigningService);
+                }
+
                 bind(buildJobRowBuilder()).to(JobRowBuilder.class);
 
                 bind(buildPreResponseStore(loader.getDictionaries())).to(PreResponseStore.class);
@@ -700,6 +721,51 @@ public abstract class AbstractBinderFactory implements BinderFactory {
         return new SegmentIntervalsHashIdGenerator(dataSourceMetadataService, buildSigningFunctions());
     }
 
+    /**
+     * Build the warmer which keeps the cache entries of the most frequent queries fresh when their segments change.
+     *
+     * @param webService  The web service the queries are run again on
+     * @param dataCache  The response cache
+     * @param querySigningService  The service signing queries with their segments
+     * @param mapper  The object mapper the cached values are encoded with
+     *
+     * @return A CacheWarmer
+     */
+    protected CacheWarmer buildCacheWarmer(
+            DruidWebService webService,
+            DataCache<?> dataCache,
+            QuerySigningService<?> querySigningService,
+            ObjectMapper mapper
+    ) {
+        return new CacheWarmer(
+                webService,
+                dataCache,
+                querySigningService,
+                CacheValueCodec.buildConfiguredCodec(mapper)
+        );
+    }
+
+    /**
+     * Bind the cache warmer, which hears of segment changes when the cache is keyed by segment signature.
+     *
+     * @param binder  The binder to bind the cache warmer with
+     * @param webService  The web service the queries are run again on
+     * @param dataCache  The response cache
+     * @param querySigningService  The service signing queries with their segments
+     */
+    protected void bindCacheWarmer(
+            AbstractBinder binder,
+            DruidWebService webService,
+            DataCache<?> dataCache,
+            QuerySigningService<?> querySigningService
+    ) {
+        CacheWarmer cacheWarmer = buildCacheWarmer(webService, dataCache, querySigningService, getMapper());
+        if (CacheFeatureFlag.LOCAL_SIGNATURE.isOn() || CacheFeatureFlag.BUCKET.isOn()) {
+            dataSourceMetadataService.addSegmentChangeListener(cacheWarmer);
+        }
+        binder.bind(cacheWarmer).to(CacheWarmer.class);
+    }
+
     /**
      * Build a Map of Class to Function that should be used to get requestedIntervals from the DruidQuery.
      *
@@ -849,7 +915,7 @@ public abstract class AbstractBinderFactory implements BinderFactory {
      * @return The cache instance
      */
     protected DataCache<?> buildCache() {
-        if (CacheFeatureFlag.LOCAL_SIGNATURE.isOn()) {
+        if (CacheFeatureFlag.LOCAL_SIGNATURE.isOn() || CacheFeatureFlag.BUCKET.isOn()) {
             return buildLocalSignatureCache();
         } else if (CacheFeatureFlag.TTL.isOn()) {
             return buildTtlCache();
@@ -873,8 +939,15 @@ public abstract class AbstractBinderFactory implements BinderFactory {
             );
         }
         try {
-            MemTupleDataCache<Long, String> cache = new MemTupleDataCache<>();
+            MemTupleDataCache<Long, Serializable> cache = new MemTupleDataCache<>();
+            memcachedCaches.add(cache);
             LOG.info("MemcachedClient Version 2 started {}", cache);
+            if (DRUID_CACHE_HEAP_MAX_BYTES > 0) {
+                return buildHeapTupleDataCache(
+                        cache,
+                        CacheValueCodec.buildConfiguredCodec(getMappers().getMapper())
+                );
+            }
             return cache;
         } catch (IOException e) {
             LOG.error("MemcachedClient Version 2 failed to start {}", e);
@@ -882,6 +955,23 @@ public abstract class AbstractBinderFactory implements BinderFactory {
         }
     }
 
+    /**
+     * Put an in-heap tier in front of a local signature cache.
+     *
+     * @param cache  The cache behind the heap tier
+     * @param codec  The codec the values of the cache are encoded with
+     * @param <V>  The type of the encoded values
+     *
+     * @return the heap tier
+     */
+    @SuppressWarnings("unchecked")
+    private <V extends Serializable> DataCache<?> buildHeapTupleDataCache(
+            TupleDataCache<String, Long, ? extends Serializable> cache,
+            CacheValueCodec<V> codec
+    ) {
+        return new HeapTupleDataCache<>((TupleDataCache<String, Long, V>) cache, DRUID_CACHE_HEAP_MAX_BYTES, codec);
+    }
+
     /**
      * Builds and returns an instance of TTL cache.
      *
@@ -894,7 +984,16 @@ public abstract class AbstractBinderFactory implements BinderFactory {
             );
         }
         try {
-            DataCache<String> cache = new HashDataCache<>(new MemDataCache<HashDataCache.Pair<String, String>>());
+            if (StaleWhileRevalidateCacheRequestHandler.SOFT_TTL_SECONDS > 0) {
+                // Entries are cached with the time they were written, to tell when they are past their soft TTL
+                MemTupleDataCache<Long, String> cache = new MemTupleDataCache<>();
+                memcachedCaches.add(cache);
+                LOG.info("MemcachedClient started with soft TTL {}", cache);
+                return cache;
+            }
+            MemDataCache<HashDataCache.Pair<String, String>> memDataCache = new MemDataCache<>();
+            memcachedCaches.add(memDataCache);
+            DataCache<String> cache = new HashDataCache<>(memDataCache);
             LOG.info("MemcachedClient started {}", cache);
             return cache;
         } catch (IOException e) {
@@ -911,6 +1010,7 @@ public abstract class AbstractBinderFactory implements BinderFactory {
     private DataCache<?> buildETagCahe() {
         try {
             MemTupleDataCache<String, String> cache = new MemTupleDataCache<>();
+            memcachedCaches.add(cache);
             LOG.info("MemcachedClient Version 2 started {}", cache);
             return cache;
         } catch (IOException e) {
@@ -1031,7 +1131,8 @@ public abstract class AbstractBinderFactory implements BinderFactory {
                 new FiliResponseWriterSelector(
                         new CsvResponseWriter(mappers),
                         new JsonResponseWriter(mappers),
-                        new JsonApiResponseWriter(mappers)
+                        new JsonApiResponseWriter(mappers),
+                        new ArrowResponseWriter()
                 )
         );
     }
@@ -1163,9 +1264,39 @@ public abstract class AbstractBinderFactory implements BinderFactory {
      * @return A DruidWebService
      */
     protected DruidWebService buildDruidWebService(ObjectMapper mapper) {
+        List<DruidServiceConfig> brokerConfigs = DruidClientConfigHelper.getBrokerServiceConfigs();
+        if (!brokerConfigs.isEmpty()) {
+            return buildLoadBalancedDruidWebService(brokerConfigs, mapper);
+        }
         return buildDruidWebService(DruidClientConfigHelper.getServiceConfig(), mapper);
     }
 
+    /**
+     * Create a DruidWebService which spreads requests over the individual brokers listed in {@code druid_brokers}.
+     * <p>
+     * Each broker gets its own web service from {@link #buildDruidWebService(DruidServiceConfig, ObjectMapper)}.
+     *
+     * @param brokerConfigs  Configuration for each of the brokers
+     * @param mapper shared instance of {@link com.fasterxml.jackson.databind.ObjectMapper}
+     *
+     * @return A DruidWebService
+     */
+    protected DruidWebService buildLoadBalancedDruidWebService(
+            List<DruidServiceConfig> brokerConfigs,
+            ObjectMapper mapper
+    ) {
+        DruidServiceConfig serviceConfig = new DruidServiceConfig(
+                "Broker",
+                brokerConfigs.stream().map(DruidServiceConfig::getUrl).collect(Collectors.joining(",")),
+                DruidClientConfigHelper.getDruidTimeout(),
+                DruidClientConfigHelper.getDruidPriority()
+        );
+        List<DruidWebService> brokers = brokerConfigs.stream()
+                .map(brokerConfig -> buildDruidWebService(brokerConfig, mapper))
+                .collect(Collectors.toList());
+        return new LoadBalancedDruidWebService(serviceConfig, brokers);
+    }
+
     /**
      * Create a DruidWebService for the non-UI connection.
      * <p>
@@ -1231,6 +1362,16 @@ public abstract class AbstractBinderFactory implements BinderFactory {
         // NoOp by default
     }
 
+    /**
+     * Shut down the loader scheduler, and stop the memcached caches from sending the writes they queued in write behind
+     * mode.
+     */
+    @Override
+    public void shutdown() {
+        shutdownLoaderScheduler();
+        memcachedCaches.forEach(MemDataCache::shutdown);
+    }
+
     /**
      * Allows additional app-specific binding.
      *
@@ -23,4 +23,11 @@ public interface BinderFactory {
      * @param resourceConfig  Resource config to use for accessing the configuration
      */
     void afterRegistration(ResourceConfig resourceConfig);
+
+    /**
+     * Release what the binder started, such as background threads, once the application shuts down.
+     */
+    default void shutdown() {
+        // NoOp by default
+    }
 }
@@ -14,6 +14,8 @@ import com.codahale.metrics.jersey2.InstrumentedResourceMethodApplicationListene
 import com.codahale.metrics.logback.InstrumentedAppender;
 
 import org.glassfish.hk2.utilities.Binder;
+import org.glassfish.jersey.server.spi.AbstractContainerLifecycleListener;
+import org.glassfish.jersey.server.spi.Container;
 import org.slf4j.LoggerFactory;
 
 import ch.qos.logback.classic.Logger;
@@ -50,6 +52,14 @@ public class ResourceConfig extends org.glassfish.jersey.server.ResourceConfig {
         register(binder);
         registerFilters();
 
+        // Release what the binder started when the container shuts down
+        register(new AbstractContainerLifecycleListener() {
+            @Override
+            public void onShutdown(Container container) {
+                binderFactory.shutdown();
+            }
+        });
+
         // Call post-registration hook to allow for additional registration
         binderFactory.afterRegistration(this);
     }
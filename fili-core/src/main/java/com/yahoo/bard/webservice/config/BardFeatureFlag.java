@@ -12,7 +12,14 @@ public enum BardFeatureFlag implements FeatureFlag {
     @Deprecated DRUID_CACHE("druid_cache_enabled"),
     @Deprecated DRUID_CACHE_V2("druid_cache_v2_enabled"),
     QUERY_SPLIT("query_split_enabled"),
+    QUERY_COALESCING("query_coalescing_enabled"),
+    DRUID_RESPONSE_STREAMING("druid_response_streaming_enabled"),
+    COLUMNAR_RESULT_SETS("columnar_result_sets_enabled"),
+    RESULT_SET_MAPPER_PIPELINE("result_set_mapper_pipeline_enabled"),
+    PAGINATION_PUSHDOWN("pagination_pushdown_enabled"),
+    STREAMING_RESPONSES("streaming_responses_enabled"),
     CACHE_PARTIAL_DATA("cache_partial_data"),
+    CACHE_WARMING("cache_warming_enabled"),
     TOP_N("top_n_enabled"),
     DATA_FILTER_SUBSTRING_OPERATIONS("data_filter_substring_operations_enabled"),
     INTERSECTION_REPORTING("intersection_reporting_enabled"),
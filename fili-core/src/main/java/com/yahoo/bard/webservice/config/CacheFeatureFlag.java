@@ -24,7 +24,11 @@ public enum CacheFeatureFlag implements FeatureFlag {
     /**
      * Use only etag cache.
      */
-    ETAG("ETag");
+    ETAG("ETag"),
+    /**
+     * Use only local signature cache, one time grain bucket at a time.
+     */
+    BUCKET("Bucket");
 
     private static final Logger LOG = LoggerFactory.getLogger(CacheFeatureFlag.class);
     private static final SystemConfig SYSTEM_CONFIG = SystemConfigProvider.getInstance();
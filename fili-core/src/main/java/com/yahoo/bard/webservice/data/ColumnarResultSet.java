@@ -0,0 +1,772 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.data;
+
+import com.yahoo.bard.webservice.data.dimension.DimensionColumn;
+import com.yahoo.bard.webservice.data.dimension.DimensionRow;
+import com.yahoo.bard.webservice.data.metric.MetricColumn;
+
+import org.joda.time.Chronology;
+import org.joda.time.DateTime;
+
+import java.math.BigDecimal;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * A result set held by column rather than by row.
+ * <p>
+ * Timestamps are held as a {@code long[]} of instants. Dimension columns are dictionary encoded, each row holding the
+ * index of one of the column's distinct dimension rows. Numeric metric columns are held in a {@code long[]}, each row
+ * holding either an integer or the bits of a double, with bitmaps of null and missing values. Metric columns holding
+ * values that cannot be held that way, such as strings or numbers with trailing zeros, keep their values as objects.
+ * <p>
+ * The results are read through row views, which are built as they are read and hold no values of their own, so
+ * mappers and response writers see the same results a row based result set would hold. The result set cannot be
+ * modified.
+ */
+public class ColumnarResultSet extends ResultSet {
+
+    private final int size;
+    private final long[] timestamps;
+    private final Chronology chronology;
+    private final Chronology[] chronologies;
+    private final List<DimensionColumn> dimensionColumns;
+    private final Map<DimensionColumn, Integer> dimensionIndexes;
+    private final DimensionValues[] dimensionValues;
+    private final List<MetricColumn> metricColumns;
+    private final Map<MetricColumn, Integer> metricIndexes;
+    private final MetricValues[] metricValues;
+    private final List<Result> rows = buildRows();
+
+    /**
+     * Constructor.
+     *
+     * @param builder  The builder holding the columns
+     */
+    ColumnarResultSet(Builder builder) {
+        super(builder.schema, Collections.emptyList());
+        this.size = builder.size;
+        this.timestamps = Arrays.copyOf(builder.timestamps, size);
+        this.chronology = builder.chronology;
+        this.chronologies = builder.chronologies == null ? null : Arrays.copyOf(builder.chronologies, size);
+        this.dimensionColumns = builder.dimensionColumns;
+        this.dimensionIndexes = builder.dimensionIndexes;
+        this.dimensionValues = builder.dimensionValues;
+        this.metricColumns = builder.metricColumns;
+        this.metricIndexes = builder.metricIndexes;
+        this.metricValues = builder.metricValues;
+        for (DimensionValues values : dimensionValues) {
+            values.trim(size);
+        }
+        for (MetricValues values : metricValues) {
+            values.trim(size);
+        }
+    }
+
+    /**
+     * Get the timestamp of a row as milliseconds since the epoch.
+     *
+     * @param row  The index of the row
+     *
+     * @return the timestamp of the row
+     */
+    public long getTimestampMillis(int row) {
+        checkRow(row);
+        return timestamps[row];
+    }
+
+    /**
+     * Get the dimension row of a row for a dimension column, without building a view of the row.
+     *
+     * @param row  The index of the row
+     * @param column  The dimension column
+     *
+     * @return the dimension row, or null if the row has none for the column
+     */
+    public DimensionRow getDimensionRow(int row, DimensionColumn column) {
+        checkRow(row);
+        Integer index = dimensionIndexes.get(column);
+        return index == null ? null : dimensionValues[index].get(row);
+    }
+
+    /**
+     * Get the value of a row for a metric column, without building a view of the row.
+     *
+     * @param row  The index of the row
+     * @param column  The metric column
+     *
+     * @return the metric value, or null if the row has none for the column
+     */
+    public Object getMetricValue(int row, MetricColumn column) {
+        checkRow(row);
+        Integer index = metricIndexes.get(column);
+        return index == null ? null : metricValues[index].get(row);
+    }
+
+    /**
+     * Check that a row index is within the result set.
+     *
+     * @param row  The index of the row
+     */
+    private void checkRow(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row: " + row + ", Size: " + size);
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public Result get(int index) {
+        return rows.get(index);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return rows.contains(o);
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        return rows.indexOf(o);
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        return rows.lastIndexOf(o);
+    }
+
+    @Override
+    public Object[] toArray() {
+        return rows.toArray();
+    }
+
+    @Override
+    public <T> T[] toArray(T[] a) {
+        return rows.toArray(a);
+    }
+
+    @Override
+    public Iterator<Result> iterator() {
+        return rows.iterator();
+    }
+
+    @Override
+    public ListIterator<Result> listIterator() {
+        return rows.listIterator();
+    }
+
+    @Override
+    public ListIterator<Result> listIterator(int index) {
+        return rows.listIterator(index);
+    }
+
+    @Override
+    public List<Result> subList(int fromIndex, int toIndex) {
+        return rows.subList(fromIndex, toIndex);
+    }
+
+    @Override
+    public Spliterator<Result> spliterator() {
+        return rows.spliterator();
+    }
+
+    @Override
+    public void forEach(Consumer<? super Result> action) {
+        rows.forEach(action);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return rows.equals(o);
+    }
+
+    @Override
+    public int hashCode() {
+        return rows.hashCode();
+    }
+
+    @Override
+    public Result set(int index, Result element) {
+        throw unmodifiable();
+    }
+
+    @Override
+    public boolean add(Result result) {
+        throw unmodifiable();
+    }
+
+    @Override
+    public void add(int index, Result element) {
+        throw unmodifiable();
+    }
+
+    @Override
+    public Result remove(int index) {
+        throw unmodifiable();
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        throw unmodifiable();
+    }
+
+    @Override
+    public void clear() {
+        throw unmodifiable();
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends Result> c) {
+        throw unmodifiable();
+    }
+
+    @Override
+    public boolean addAll(int index, Collection<? extends Result> c) {
+        throw unmodifiable();
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> c) {
+        throw unmodifiable();
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> c) {
+        throw unmodifiable();
+    }
+
+    @Override
+    public boolean removeIf(Predicate<? super Result> filter) {
+        throw unmodifiable();
+    }
+
+    @Override
+    public void replaceAll(UnaryOperator<Result> operator) {
+        throw unmodifiable();
+    }
+
+    @Override
+    public void sort(Comparator<? super Result> c) {
+        throw unmodifiable();
+    }
+
+    /**
+     * Build the exception thrown on attempts to modify the result set.
+     *
+     * @return the exception
+     */
+    private static UnsupportedOperationException unmodifiable() {
+        return new UnsupportedOperationException("A columnar result set cannot be modified");
+    }
+
+    /**
+     * Serialize the result set as a row based result set holding the same results.
+     *
+     * @return the row based result set
+     */
+    private Object writeReplace() {
+        return new ResultSet(getSchema(), new ArrayList<>(rows));
+    }
+
+    /**
+     * Build the results of the result set, as row views.
+     *
+     * @return the row views
+     */
+    private List<Result> buildRows() {
+        return new AbstractList<Result>() {
+            @Override
+            public Result get(int row) {
+                checkRow(row);
+                Chronology rowChronology = chronologies == null ? chronology : chronologies[row];
+                return new Result(
+                        new DimensionRowsView(row),
+                        new MetricValuesView(row),
+                        new DateTime(timestamps[row], rowChronology)
+                );
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * The dimension rows of one row, read from the dimension columns.
+     */
+    private class DimensionRowsView extends AbstractMap<DimensionColumn, DimensionRow> {
+
+        private final int row;
+
+        /**
+         * Constructor.
+         *
+         * @param row  The index of the row
+         */
+        DimensionRowsView(int row) {
+            this.row = row;
+        }
+
+        @Override
+        public DimensionRow get(Object key) {
+            Integer index = dimensionIndexes.get(key);
+            return index == null ? null : dimensionValues[index].get(row);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            Integer index = dimensionIndexes.get(key);
+            return index != null && dimensionValues[index].isPresent(row);
+        }
+
+        @Override
+        public Set<Entry<DimensionColumn, DimensionRow>> entrySet() {
+            return columnEntries(dimensionColumns, index -> dimensionValues[index].isPresent(row), this::get);
+        }
+    }
+
+    /**
+     * The metric values of one row, read from the metric columns.
+     */
+    private class MetricValuesView extends AbstractMap<MetricColumn, Object> {
+
+        private final int row;
+
+        /**
+         * Constructor.
+         *
+         * @param row  The index of the row
+         */
+        MetricValuesView(int row) {
+            this.row = row;
+        }
+
+        @Override
+        public Object get(Object key) {
+            Integer index = metricIndexes.get(key);
+            return index == null ? null : metricValues[index].get(row);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            Integer index = metricIndexes.get(key);
+            return index != null && metricValues[index].isPresent(row);
+        }
+
+        @Override
+        public Set<Entry<MetricColumn, Object>> entrySet() {
+            return columnEntries(metricColumns, index -> metricValues[index].isPresent(row), this::get);
+        }
+    }
+
+    /**
+     * Build the entries of a row view, in column order, skipping the columns the row has no value for.
+     *
+     * @param columns  The columns, in order
+     * @param present  Whether the row has a value for the column at an index
+     * @param values  The value of the row for a column
+     * @param <C>  Type of the columns
+     * @param <V>  Type of the values
+     *
+     * @return the entries of the row view
+     */
+    private static <C, V> Set<Map.Entry<C, V>> columnEntries(
+            List<C> columns,
+            IntPredicate present,
+            Function<C, V> values
+    ) {
+        return new AbstractSet<Map.Entry<C, V>>() {
+            @Override
+            public Iterator<Map.Entry<C, V>> iterator() {
+                return new Iterator<Map.Entry<C, V>>() {
+                    private int next = advance(0);
+
+                    /**
+                     * Find the next column the row has a value for.
+                     *
+                     * @param from  The index to start looking from
+                     *
+                     * @return the index of the column, or the number of columns if there is none
+                     */
+                    private int advance(int from) {
+                        int index = from;
+                        while (index < columns.size() && !present.test(index)) {
+                            index++;
+                        }
+                        return index;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < columns.size();
+                    }
+
+                    @Override
+                    public Map.Entry<C, V> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        C column = columns.get(next);
+                        next = advance(next + 1);
+                        return new AbstractMap.SimpleImmutableEntry<>(column, values.apply(column));
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                int count = 0;
+                for (int index = 0; index < columns.size(); index++) {
+                    if (present.test(index)) {
+                        count++;
+                    }
+                }
+                return count;
+            }
+        };
+    }
+
+    /**
+     * The dictionary encoded values of a dimension column.
+     */
+    private static class DimensionValues {
+
+        private static final int MISSING = -1;
+
+        private int[] codes = new int[Builder.INITIAL_CAPACITY];
+        private final List<DimensionRow> dictionary = new ArrayList<>();
+        private Map<DimensionRow, Integer> dictionaryCodes = new IdentityHashMap<>();
+
+        /**
+         * Set the value of a row.
+         *
+         * @param row  The index of the row
+         * @param present  Whether the row has a value for the column
+         * @param value  The dimension row
+         */
+        void set(int row, boolean present, DimensionRow value) {
+            if (row == codes.length) {
+                codes = Arrays.copyOf(codes, row * 2);
+            }
+            if (!present) {
+                codes[row] = MISSING;
+                return;
+            }
+            Integer code = dictionaryCodes.get(value);
+            if (code == null) {
+                code = dictionary.size();
+                dictionary.add(value);
+                dictionaryCodes.put(value, code);
+            }
+            codes[row] = code;
+        }
+
+        /**
+         * Check whether a row has a value for the column.
+         *
+         * @param row  The index of the row
+         *
+         * @return true if the row has a value
+         */
+        boolean isPresent(int row) {
+            return codes[row] != MISSING;
+        }
+
+        /**
+         * Get the value of a row.
+         *
+         * @param row  The index of the row
+         *
+         * @return the dimension row, or null if the row has none
+         */
+        DimensionRow get(int row) {
+            int code = codes[row];
+            return code == MISSING ? null : dictionary.get(code);
+        }
+
+        /**
+         * Release the room kept for more rows, and the index used to encode them.
+         *
+         * @param size  The number of rows
+         */
+        void trim(int size) {
+            codes = Arrays.copyOf(codes, size);
+            dictionaryCodes = null;
+        }
+    }
+
+    /**
+     * The values of a metric column.
+     * <p>
+     * Numbers are held in a {@code long[]} while every number of the column is either an integer or a double which
+     * converts back to the same {@link BigDecimal}. Once a value cannot be held that way, the column holds its values
+     * as objects.
+     */
+    private static class MetricValues {
+
+        private long[] numbers = new long[Builder.INITIAL_CAPACITY];
+        private final BitSet integers = new BitSet();
+        private final BitSet nulls = new BitSet();
+        private final BitSet missing = new BitSet();
+        private Object[] objects;
+        private int capacity = Builder.INITIAL_CAPACITY;
+
+        /**
+         * Set the value of a row.
+         *
+         * @param row  The index of the row
+         * @param present  Whether the row has a value for the column
+         * @param value  The metric value
+         */
+        void set(int row, boolean present, Object value) {
+            if (row == capacity) {
+                capacity = row * 2;
+                if (objects == null) {
+                    numbers = Arrays.copyOf(numbers, capacity);
+                } else {
+                    objects = Arrays.copyOf(objects, capacity);
+                }
+            }
+            if (!present) {
+                missing.set(row);
+                return;
+            }
+            if (objects != null) {
+                objects[row] = value;
+            } else if (value == null) {
+                nulls.set(row);
+            } else if (!setNumber(row, value)) {
+                Object[] values = new Object[capacity];
+                for (int i = 0; i < row; i++) {
+                    values[i] = get(i);
+                }
+                values[row] = value;
+                objects = values;
+                numbers = null;
+                integers.clear();
+                nulls.clear();
+            }
+        }
+
+        /**
+         * Hold a value as a number, if it converts back to the same value.
+         *
+         * @param row  The index of the row
+         * @param value  The metric value
+         *
+         * @return true if the value is held as a number
+         */
+        private boolean setNumber(int row, Object value) {
+            if (!(value instanceof BigDecimal)) {
+                return false;
+            }
+            BigDecimal number = (BigDecimal) value;
+            if (number.scale() == 0 && number.unscaledValue().bitLength() < Long.SIZE) {
+                numbers[row] = number.longValue();
+                integers.set(row);
+                return true;
+            }
+            double doubleValue = number.doubleValue();
+            if (!Double.isInfinite(doubleValue) && BigDecimal.valueOf(doubleValue).equals(number)) {
+                numbers[row] = Double.doubleToRawLongBits(doubleValue);
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Check whether a row has a value for the column.
+         *
+         * @param row  The index of the row
+         *
+         * @return true if the row has a value, even a null one
+         */
+        boolean isPresent(int row) {
+            return !missing.get(row);
+        }
+
+        /**
+         * Get the value of a row.
+         *
+         * @param row  The index of the row
+         *
+         * @return the metric value, or null if the row has none
+         */
+        Object get(int row) {
+            if (objects != null) {
+                return objects[row];
+            }
+            if (missing.get(row) || nulls.get(row)) {
+                return null;
+            }
+            return integers.get(row) ?
+                    BigDecimal.valueOf(numbers[row]) :
+                    BigDecimal.valueOf(Double.longBitsToDouble(numbers[row]));
+        }
+
+        /**
+         * Release the room kept for more rows.
+         *
+         * @param size  The number of rows
+         */
+        void trim(int size) {
+            if (objects == null) {
+                numbers = Arrays.copyOf(numbers, size);
+            } else {
+                objects = Arrays.copyOf(objects, size);
+            }
+            capacity = size;
+        }
+    }
+
+    /**
+     * Builds a columnar result set one result at a time, so the results need not all be held at once.
+     */
+    public static class Builder {
+
+        static final int INITIAL_CAPACITY = 16;
+
+        private final ResultSetSchema schema;
+        private final List<DimensionColumn> dimensionColumns;
+        private final Map<DimensionColumn, Integer> dimensionIndexes = new HashMap<>();
+        private final DimensionValues[] dimensionValues;
+        private final List<MetricColumn> metricColumns;
+        private final Map<MetricColumn, Integer> metricIndexes = new HashMap<>();
+        private final MetricValues[] metricValues;
+
+        private int size = 0;
+        private long[] timestamps = new long[INITIAL_CAPACITY];
+        private Chronology chronology;
+        private Chronology[] chronologies;
+        private boolean built = false;
+
+        /**
+         * Constructor.
+         *
+         * @param schema  The schema of the result set, whose dimension and metric columns the results may have
+         */
+        public Builder(ResultSetSchema schema) {
+            this.schema = schema;
+            this.dimensionColumns = Collections.unmodifiableList(
+                    new ArrayList<>(schema.getColumns(DimensionColumn.class))
+            );
+            this.metricColumns = Collections.unmodifiableList(new ArrayList<>(schema.getColumns(MetricColumn.class)));
+            this.dimensionValues = new DimensionValues[dimensionColumns.size()];
+            this.metricValues = new MetricValues[metricColumns.size()];
+            for (int i = 0; i < dimensionColumns.size(); i++) {
+                dimensionIndexes.put(dimensionColumns.get(i), i);
+                dimensionValues[i] = new DimensionValues();
+            }
+            for (int i = 0; i < metricColumns.size(); i++) {
+                metricIndexes.put(metricColumns.get(i), i);
+                metricValues[i] = new MetricValues();
+            }
+        }
+
+        /**
+         * Add a result to the result set.
+         *
+         * @param result  The result to add
+         *
+         * @return the builder
+         * @throws IllegalArgumentException if the result has a column that is not in the schema
+         */
+        public Builder add(Result result) {
+            if (built) {
+                throw new IllegalStateException("The result set has already been built");
+            }
+            Map<DimensionColumn, DimensionRow> dimensionRows = result.getDimensionRows();
+            Map<MetricColumn, Object> metrics = result.getMetricValues();
+            if (!dimensionIndexes.keySet().containsAll(dimensionRows.keySet())) {
+                throw new IllegalArgumentException("Result has dimension columns not in the schema: " + result);
+            }
+            if (!metricIndexes.keySet().containsAll(metrics.keySet())) {
+                throw new IllegalArgumentException("Result has metric columns not in the schema: " + result);
+            }
+
+            if (size == timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, size * 2);
+                if (chronologies != null) {
+                    chronologies = Arrays.copyOf(chronologies, size * 2);
+                }
+            }
+            DateTime timeStamp = result.getTimeStamp();
+            timestamps[size] = timeStamp.getMillis();
+            setChronology(timeStamp.getChronology());
+
+            for (int i = 0; i < dimensionColumns.size(); i++) {
+                DimensionColumn column = dimensionColumns.get(i);
+                dimensionValues[i].set(size, dimensionRows.containsKey(column), dimensionRows.get(column));
+            }
+            for (int i = 0; i < metricColumns.size(); i++) {
+                MetricColumn column = metricColumns.get(i);
+                metricValues[i].set(size, metrics.containsKey(column), metrics.get(column));
+            }
+            size++;
+            return this;
+        }
+
+        /**
+         * Record the chronology of the timestamp of the row being added.
+         * <p>
+         * The timestamps of a result set normally share one chronology. Chronologies are only kept by row once they
+         * differ.
+         *
+         * @param rowChronology  The chronology of the row's timestamp
+         */
+        private void setChronology(Chronology rowChronology) {
+            if (size == 0) {
+                chronology = rowChronology;
+            } else if (chronologies == null && !chronology.equals(rowChronology)) {
+                chronologies = new Chronology[timestamps.length];
+                Arrays.fill(chronologies, 0, size, chronology);
+            }
+            if (chronologies != null) {
+                chronologies[size] = rowChronology;
+            }
+        }
+
+        /**
+         * Build the result set.
+         *
+         * @return the result set
+         */
+        public ColumnarResultSet build() {
+            built = true;
+            return new ColumnarResultSet(this);
+        }
+    }
+}
@@ -4,6 +4,8 @@ package com.yahoo.bard.webservice.data;
 
 import static com.yahoo.bard.webservice.web.ErrorMessageFormat.RESULT_SET_ERROR;
 
+import com.yahoo.bard.webservice.config.BardFeatureFlag;
+import com.yahoo.bard.webservice.data.dimension.Dimension;
 import com.yahoo.bard.webservice.data.dimension.DimensionColumn;
 import com.yahoo.bard.webservice.data.dimension.DimensionRow;
 import com.yahoo.bard.webservice.data.metric.MetricColumn;
@@ -12,6 +14,9 @@ import com.yahoo.bard.webservice.druid.model.QueryType;
 import com.yahoo.bard.webservice.druid.model.query.DruidAggregationQuery;
 import com.yahoo.bard.webservice.table.Column;
 
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 
 import org.joda.time.DateTime;
@@ -19,16 +24,33 @@ import org.joda.time.DateTimeZone;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import javax.inject.Singleton;
 
 /**
  * A class for building result sets from Druid Responses.
+ * <p>
+ * Dimension rows are hydrated in a separate stage before the results are built: the distinct key values of each
+ * dimension column are collected from the whole response, resolved against their dimension in one batched call, and
+ * the results are then assembled from that per-response lookup table.
+ * <p>
+ * A response can be parsed either from a json tree or straight from a {@link JsonParser} over the response body. The
+ * streaming parse keeps only the timestamp, dimension key values and metric values of each row, so no json tree of
+ * the response is ever built.
  */
 //TODO:This class needs refactoring due to code duplication. The use of dependency injection also needs to be considered
 @Singleton
@@ -36,6 +58,9 @@ public class DruidResponseParser {
 
     private static final Logger LOG = LoggerFactory.getLogger(DruidResponseParser.class);
 
+    // Marks a metric that is missing from a streamed row, since a json null is a legitimate metric value
+    private static final Object MISSING_METRIC = new Object();
+
     /**
      * Parse Druid GroupBy result into ResultSet.
      *
@@ -86,9 +111,146 @@ public class DruidResponseParser {
         }
 
         LOG.trace("Parsed druid query {} results: {}", queryType, results);
+        if (BardFeatureFlag.COLUMNAR_RESULT_SETS.isOn()) {
+            ColumnarResultSet.Builder builder = new ColumnarResultSet.Builder(schema);
+            results.forEach(builder::add);
+            return builder.build();
+        }
         return new ResultSet(schema, results);
     }
 
+    /**
+     * Parse a Druid response into a ResultSet by streaming over its tokens, without building a json tree.
+     * <p>
+     * The result set is the same as the one {@link #parse(JsonNode, ResultSetSchema, QueryType, DateTimeZone)} builds
+     * from the tree of the same response. Metric values which are json objects or arrays are read into a tree, so the
+     * parser must have a codec if the response may contain them.
+     *
+     * @param jsonParser  Parser over the Druid response, positioned before the start of the response
+     * @param schema  Schema for results
+     * @param queryType  the type of query, note that this implementation only supports instances of
+     * {@link DefaultQueryType}
+     * @param dateTimeZone the time zone used for format the results
+     *
+     * @return the set of results
+     *
+     * @throws IOException if the response cannot be read or is not a Druid result array
+     */
+    public ResultSet parse(
+            JsonParser jsonParser,
+            ResultSetSchema schema,
+            QueryType queryType,
+            DateTimeZone dateTimeZone
+    ) throws IOException {
+        StreamedRows rows = readRows(jsonParser, schema, queryType, dateTimeZone);
+        Map<DimensionColumn, Map<String, DimensionRow>> hydratedRows = resolveDimensionRows(rows.getKeyValues());
+
+        if (BardFeatureFlag.COLUMNAR_RESULT_SETS.isOn()) {
+            // Each result is encoded into the columns as it is built, so the results are never all held at once
+            ColumnarResultSet.Builder builder = new ColumnarResultSet.Builder(schema);
+            rows.buildResults(hydratedRows, builder::add);
+            ResultSet resultSet = builder.build();
+            LOG.trace("Parsed druid query {} into {} columnar results", queryType, resultSet.size());
+            return resultSet;
+        }
+        List<Result> results = new ArrayList<>();
+        rows.buildResults(hydratedRows, results::add);
+
+        LOG.trace("Parsed druid query {} results: {}", queryType, results);
+        return new ResultSet(schema, results);
+    }
+
+    /**
+     * Parse a Druid response into a ResultSet whose results are only built as they are read.
+     * <p>
+     * The response is read and its dimension rows resolved as by
+     * {@link #parse(JsonParser, ResultSetSchema, QueryType, DateTimeZone)}, but each result is only built when the
+     * result set is asked for it, and the values it was built from are released then. The result set can only be read
+     * once.
+     *
+     * @param jsonParser  Parser over the Druid response, positioned before the start of the response
+     * @param schema  Schema for results
+     * @param queryType  the type of query, note that this implementation only supports instances of
+     * {@link DefaultQueryType}
+     * @param dateTimeZone the time zone used for format the results
+     *
+     * @return the set of results, built as they are read
+     *
+     * @throws IOException if the response cannot be read or is not a Druid result array
+     */
+    public StreamingResultSet parseLazily(
+            JsonParser jsonParser,
+            ResultSetSchema schema,
+            QueryType queryType,
+            DateTimeZone dateTimeZone
+    ) throws IOException {
+        StreamedRows rows = readRows(jsonParser, schema, queryType, dateTimeZone);
+        Map<DimensionColumn, Map<String, DimensionRow>> hydratedRows = resolveDimensionRows(rows.getKeyValues());
+
+        LOG.trace("Read druid query {} results to be built as they are read", queryType);
+        return new StreamingResultSet(schema, () -> rows.streamResults(hydratedRows));
+    }
+
+    /**
+     * Read the rows of a Druid response off its tokens.
+     *
+     * @param jsonParser  Parser over the Druid response, positioned before the start of the response
+     * @param schema  Schema for results
+     * @param queryType  the type of query, note that this implementation only supports instances of
+     * {@link DefaultQueryType}
+     * @param dateTimeZone the time zone used for format the results
+     *
+     * @return the rows read
+     *
+     * @throws IOException if the response cannot be read or is not a Druid result array
+     */
+    private StreamedRows readRows(
+            JsonParser jsonParser,
+            ResultSetSchema schema,
+            QueryType queryType,
+            DateTimeZone dateTimeZone
+    ) throws IOException {
+
+        LOG.trace("Streaming druid query {} results using schema: {}", queryType, schema);
+
+        if (!(queryType instanceof DefaultQueryType)) {
+            // Throw an exception for unsupported query types
+            unsupportedQueryType(queryType);
+        }
+        DefaultQueryType defaultQueryType = (DefaultQueryType) queryType;
+
+        /* Get dimension and metric columns */
+        List<DimensionColumn> dimensionColumns = new ArrayList<>(schema.getColumns(DimensionColumn.class));
+        List<MetricColumn> metricColumns = new ArrayList<>(schema.getColumns(MetricColumn.class));
+
+        // The field of each record holding its row (or, for topN, its array of rows)
+        String rowField = null;
+        boolean rowArray = false;
+        switch (defaultQueryType) {
+            case GROUP_BY:
+                rowField = "event";
+                break;
+            case TOP_N:
+                rowField = "result";
+                rowArray = true;
+                break;
+            case TIMESERIES:
+                rowField = "result";
+                dimensionColumns = Collections.emptyList();
+                break;
+            case LOOKBACK:
+                rowField = "result";
+                break;
+            default:
+                // Throw an exception for unsupported query types
+                unsupportedQueryType(queryType);
+        }
+
+        StreamedRows rows = new StreamedRows(dimensionColumns, metricColumns);
+        rows.readRecords(jsonParser, rowField, rowArray, dateTimeZone);
+        return rows;
+    }
+
     /**
      * Log an error message and throw an exception for an unsupported query type.
      *
@@ -118,11 +280,21 @@ public class DruidResponseParser {
     ) {
         List<Result> results = new ArrayList<>();
 
+        List<JsonNode> events = new ArrayList<>(jsonResult.size());
+        for (JsonNode record : jsonResult) {
+            events.add(record.get("event"));
+        }
+        Map<DimensionColumn, Map<String, DimensionRow>> hydratedRows = hydrateDimensionRows(dimensionColumns, events);
+
         for (JsonNode record : jsonResult) {
             DateTime timeStamp = new DateTime(record.get("timestamp").asText(), dateTimeZone);
 
             JsonNode event = record.get("event");
-            LinkedHashMap<DimensionColumn, DimensionRow> dimensionRows = extractDimensionRows(dimensionColumns, event);
+            LinkedHashMap<DimensionColumn, DimensionRow> dimensionRows = extractDimensionRows(
+                    dimensionColumns,
+                    event,
+                    hydratedRows
+            );
             LinkedHashMap<MetricColumn, Object> metricValues = extractMetricValues(metricColumns, event);
 
             results.add(new Result(dimensionRows, metricValues, timeStamp));
@@ -149,6 +321,12 @@ public class DruidResponseParser {
     ) {
         List<Result> results = new ArrayList<>();
 
+        List<JsonNode> entries = new ArrayList<>();
+        for (JsonNode record : jsonResult) {
+            record.get("result").forEach(entries::add);
+        }
+        Map<DimensionColumn, Map<String, DimensionRow>> hydratedRows = hydrateDimensionRows(dimensionColumns, entries);
+
         /* loop over all records */
         for (JsonNode record : jsonResult) {
             DateTime timeStamp = new DateTime(record.get("timestamp").asText(), dateTimeZone);
@@ -158,7 +336,8 @@ public class DruidResponseParser {
             for (final JsonNode entry : result) {
                 LinkedHashMap<DimensionColumn, DimensionRow> dimensionRows = extractDimensionRows(
                         dimensionColumns,
-                        entry
+                        entry,
+                        hydratedRows
                 );
                 LinkedHashMap<MetricColumn, Object> metricValues = extractMetricValues(metricColumns, entry);
 
@@ -216,6 +395,15 @@ public class DruidResponseParser {
     ) {
         List<Result> results = new ArrayList<>();
 
+        Map<DimensionColumn, Map<String, DimensionRow>> hydratedRows = new HashMap<>();
+        if (dimensionColumns != null) {
+            List<JsonNode> entries = new ArrayList<>(jsonResult.size());
+            for (JsonNode record : jsonResult) {
+                entries.add(record.get("result"));
+            }
+            hydratedRows = hydrateDimensionRows(dimensionColumns, entries);
+        }
+
         for (JsonNode record : jsonResult) {
             DateTime timeStamp = new DateTime(record.get("timestamp").asText(), dateTimeZone);
 
@@ -227,7 +415,7 @@ public class DruidResponseParser {
 
             dimensionRows = dimensionColumns == null ?
                     new LinkedHashMap<>() :
-                    extractDimensionRows(dimensionColumns, result);
+                    extractDimensionRows(dimensionColumns, result, hydratedRows);
 
 
             results.add(new Result(dimensionRows, metricValues, timeStamp));
@@ -235,38 +423,97 @@ public class DruidResponseParser {
         return results;
     }
 
+    /**
+     * Resolve the dimension rows for every distinct dimension key value appearing in a set of json objects.
+     * <p>
+     * Each dimension is asked for all of its distinct values in one batched call, and values that are not known to
+     * the dimension are given an empty row, so that every (column, value) pair is resolved exactly once per response.
+     *
+     * @param dimensionColumns  the set of dimension columns
+     * @param entries  the json objects holding the dimension key values
+     *
+     * @return map of dimension columns to a map of key value to dimension row
+     */
+    private Map<DimensionColumn, Map<String, DimensionRow>> hydrateDimensionRows(
+            Set<DimensionColumn> dimensionColumns,
+            Iterable<JsonNode> entries
+    ) {
+        Map<DimensionColumn, Set<String>> keyValues = new LinkedHashMap<>(dimensionColumns.size());
+        for (DimensionColumn dc : dimensionColumns) {
+            keyValues.put(dc, new LinkedHashSet<>());
+        }
+        for (JsonNode entry : entries) {
+            for (DimensionColumn dc : dimensionColumns) {
+                keyValues.get(dc).add(getKeyValue(dc, entry));
+            }
+        }
+        return resolveDimensionRows(keyValues);
+    }
+
+    /**
+     * Resolve the dimension rows for the distinct key values of each dimension column.
+     *
+     * @param keyValues  the distinct key values appearing in a response, by dimension column
+     *
+     * @return map of dimension columns to a map of key value to dimension row
+     */
+    private Map<DimensionColumn, Map<String, DimensionRow>> resolveDimensionRows(
+            Map<DimensionColumn, Set<String>> keyValues
+    ) {
+        Map<DimensionColumn, Map<String, DimensionRow>> hydratedRows = new HashMap<>(keyValues.size());
+        for (Map.Entry<DimensionColumn, Set<String>> columnValues : keyValues.entrySet()) {
+            Dimension dimension = columnValues.getKey().getDimension();
+            Set<String> values = columnValues.getValue();
+
+            Map<String, DimensionRow> rows = new HashMap<>(dimension.findAllDimensionRowsByKeyValues(values));
+            for (String value : values) {
+                if (rows.get(value) == null) {
+                    rows.put(value, dimension.createEmptyDimensionRow(value));
+                }
+            }
+            hydratedRows.put(columnValues.getKey(), rows);
+        }
+
+        return hydratedRows;
+    }
+
     /**
      * Extract the dimension rows for a json object given the set of all available dimension columns and the json
      * object.
      *
      * @param dimensionColumns  the set of dimension columns
      * @param entry  the json object
+     * @param hydratedRows  the resolved dimension rows for the response, by column and key value
      *
      * @return map of dimension columns to dimension rows
      */
     private LinkedHashMap<DimensionColumn, DimensionRow> extractDimensionRows(
             Set<DimensionColumn> dimensionColumns,
-            JsonNode entry
+            JsonNode entry,
+            Map<DimensionColumn, Map<String, DimensionRow>> hydratedRows
     ) {
         LinkedHashMap<DimensionColumn, DimensionRow> dimensionRows = new LinkedHashMap<>();
 
         for (DimensionColumn dc : dimensionColumns) {
-            JsonNode fieldNode = entry.get(dc.getName());
-            String fieldValue = "";
-            if (fieldNode != null) {
-                fieldValue = fieldNode.asText("");
-            }
-
-            DimensionRow drow = dc.getDimension().findDimensionRowByKeyValue(fieldValue);
-            if (drow == null) {
-                drow = dc.getDimension().createEmptyDimensionRow(fieldValue);
-            }
-            dimensionRows.put(dc, drow);
+            dimensionRows.put(dc, hydratedRows.get(dc).get(getKeyValue(dc, entry)));
         }
 
         return dimensionRows;
     }
 
+    /**
+     * Read the dimension key value for a dimension column out of a json object.
+     *
+     * @param dimensionColumn  the dimension column
+     * @param entry  the json object
+     *
+     * @return the key value, or the empty string if the json object has no value for the column
+     */
+    private String getKeyValue(DimensionColumn dimensionColumn, JsonNode entry) {
+        JsonNode fieldNode = entry.get(dimensionColumn.getName());
+        return fieldNode == null ? "" : fieldNode.asText("");
+    }
+
     /**
      * Extract the metric values for a json object given the set of all available metric columns and the json object.
      *
@@ -309,6 +556,258 @@ public class DruidResponseParser {
                 node;
     }
 
+    /**
+     * The rows of a Druid response read off a {@link JsonParser}, holding only the values the result set needs.
+     * <p>
+     * The distinct dimension key values are collected as the rows are read, so the dimension rows can be resolved in
+     * one batch per column before the results are built.
+     */
+    private static class StreamedRows {
+
+        private final List<DimensionColumn> dimensionColumns;
+        private final List<MetricColumn> metricColumns;
+        private final Map<String, Integer> dimensionIndexes = new HashMap<>();
+        private final Map<String, Integer> metricIndexes = new HashMap<>();
+        private final List<Set<String>> keyValues;
+
+        private final List<DateTime> timestamps = new ArrayList<>();
+        private final List<String[]> dimensionValues = new ArrayList<>();
+        private final List<Object[]> metricValues = new ArrayList<>();
+
+        /**
+         * Constructor.
+         *
+         * @param dimensionColumns  the dimension columns to read from each row
+         * @param metricColumns  the metric columns to read from each row
+         */
+        StreamedRows(List<DimensionColumn> dimensionColumns, List<MetricColumn> metricColumns) {
+            this.dimensionColumns = dimensionColumns;
+            this.metricColumns = metricColumns;
+            this.keyValues = new ArrayList<>(dimensionColumns.size());
+            for (int i = 0; i < dimensionColumns.size(); i++) {
+                dimensionIndexes.put(dimensionColumns.get(i).getName(), i);
+                keyValues.add(new LinkedHashSet<>());
+            }
+            for (int i = 0; i < metricColumns.size(); i++) {
+                metricIndexes.put(metricColumns.get(i).getName(), i);
+            }
+        }
+
+        /**
+         * Read the array of timestamped records making up a Druid response.
+         *
+         * @param parser  the parser over the response, positioned before the start of the array
+         * @param rowField  the name of the field of each record holding its row or rows
+         * @param rowArray  true if the row field holds an array of rows rather than a single row
+         * @param dateTimeZone  the time zone to apply to the timestamps
+         *
+         * @throws IOException if the response cannot be read or is not an array of records
+         */
+        void readRecords(JsonParser parser, String rowField, boolean rowArray, DateTimeZone dateTimeZone)
+                throws IOException {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new JsonParseException("Expected an array of druid result records", parser.getCurrentLocation());
+            }
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                String timestamp = null;
+                int firstRow = timestamps.size();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String fieldName = parser.getCurrentName();
+                    JsonToken token = parser.nextToken();
+                    if ("timestamp".equals(fieldName)) {
+                        timestamp = parser.getText();
+                    } else if (rowField.equals(fieldName) && rowArray && token == JsonToken.START_ARRAY) {
+                        while (parser.nextToken() == JsonToken.START_OBJECT) {
+                            readRow(parser);
+                        }
+                    } else if (rowField.equals(fieldName) && !rowArray && token == JsonToken.START_OBJECT) {
+                        readRow(parser);
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                if (timestamp == null) {
+                    throw new JsonParseException("Druid result record has no timestamp", parser.getCurrentLocation());
+                }
+                // The timestamp may follow the rows in the record, so it is filled in once the record is closed
+                DateTime timeStamp = new DateTime(timestamp, dateTimeZone);
+                for (int i = firstRow; i < timestamps.size(); i++) {
+                    timestamps.set(i, timeStamp);
+                }
+            }
+            if (parser.getCurrentToken() != JsonToken.END_ARRAY) {
+                throw new JsonParseException("Expected a druid result record", parser.getCurrentLocation());
+            }
+        }
+
+        /**
+         * Read the dimension key values and metric values of one row, skipping every other field.
+         *
+         * @param parser  the parser, positioned on the start of the row object
+         *
+         * @throws IOException if the row cannot be read
+         */
+        private void readRow(JsonParser parser) throws IOException {
+            String[] dimensions = new String[dimensionColumns.size()];
+            Arrays.fill(dimensions, "");
+            Object[] metrics = new Object[metricColumns.size()];
+            Arrays.fill(metrics, MISSING_METRIC);
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                parser.nextToken();
+                Integer index = dimensionIndexes.get(fieldName);
+                if (index != null) {
+                    dimensions[index] = readKeyValue(parser);
+                    continue;
+                }
+                index = metricIndexes.get(fieldName);
+                if (index != null) {
+                    metrics[index] = readMetricValue(parser);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+
+            for (int i = 0; i < dimensions.length; i++) {
+                keyValues.get(i).add(dimensions[i]);
+            }
+            timestamps.add(null);
+            dimensionValues.add(dimensions);
+            metricValues.add(metrics);
+        }
+
+        /**
+         * Read a dimension key value, as {@link JsonNode#asText(String)} with an empty default reads it from a tree.
+         *
+         * @param parser  the parser, positioned on the value
+         *
+         * @return the key value
+         *
+         * @throws IOException if the value cannot be read
+         */
+        private String readKeyValue(JsonParser parser) throws IOException {
+            switch (parser.getCurrentToken()) {
+                case VALUE_STRING:
+                    return parser.getText();
+                case VALUE_NUMBER_INT:
+                    return parser.getNumberType() == JsonParser.NumberType.BIG_INTEGER ?
+                            parser.getBigIntegerValue().toString() :
+                            String.valueOf(parser.getLongValue());
+                case VALUE_NUMBER_FLOAT:
+                    return String.valueOf(parser.getDoubleValue());
+                case VALUE_TRUE:
+                    return "true";
+                case VALUE_FALSE:
+                    return "false";
+                default:
+                    parser.skipChildren();
+                    return "";
+            }
+        }
+
+        /**
+         * Read a metric value, with the same type the tree based parse gives it.
+         *
+         * @param parser  the parser, positioned on the value
+         *
+         * @return the value as a BigDecimal if it is a number, as a String if it is textual, as a boolean if it is a
+         * boolean, null if it is null, and as a json tree otherwise
+         *
+         * @throws IOException if the value cannot be read
+         */
+        private Object readMetricValue(JsonParser parser) throws IOException {
+            switch (parser.getCurrentToken()) {
+                case VALUE_NUMBER_INT:
+                    return parser.getNumberType() == JsonParser.NumberType.BIG_INTEGER ?
+                            new BigDecimal(parser.getBigIntegerValue()) :
+                            BigDecimal.valueOf(parser.getLongValue());
+                case VALUE_NUMBER_FLOAT:
+                    // A json tree holds floats as doubles, so convert through double to get the same scale
+                    return BigDecimal.valueOf(parser.getDoubleValue());
+                case VALUE_STRING:
+                    return parser.getText();
+                case VALUE_TRUE:
+                    return true;
+                case VALUE_FALSE:
+                    return false;
+                case VALUE_NULL:
+                    return null;
+                default:
+                    return parser.readValueAsTree();
+            }
+        }
+
+        /**
+         * Get the distinct key values read for each dimension column.
+         *
+         * @return map of dimension columns to their distinct key values
+         */
+        Map<DimensionColumn, Set<String>> getKeyValues() {
+            Map<DimensionColumn, Set<String>> columnValues = new LinkedHashMap<>(dimensionColumns.size());
+            for (int i = 0; i < dimensionColumns.size(); i++) {
+                columnValues.put(dimensionColumns.get(i), keyValues.get(i));
+            }
+            return columnValues;
+        }
+
+        /**
+         * Build the results from the rows read, releasing each row once its result is built.
+         *
+         * @param hydratedRows  the resolved dimension rows for the response, by column and key value
+         * @param results  receives each result as it is built
+         */
+        void buildResults(
+                Map<DimensionColumn, Map<String, DimensionRow>> hydratedRows,
+                Consumer<Result> results
+        ) {
+            for (int row = 0; row < timestamps.size(); row++) {
+                results.accept(buildResult(row, hydratedRows));
+            }
+        }
+
+        /**
+         * Stream the results of the rows read, building each result and releasing its row as the result is read.
+         *
+         * @param hydratedRows  the resolved dimension rows for the response, by column and key value
+         *
+         * @return the stream of results
+         */
+        Stream<Result> streamResults(Map<DimensionColumn, Map<String, DimensionRow>> hydratedRows) {
+            return IntStream.range(0, timestamps.size()).mapToObj(row -> buildResult(row, hydratedRows));
+        }
+
+        /**
+         * Build the result of a row read, releasing the row.
+         *
+         * @param row  the index of the row
+         * @param hydratedRows  the resolved dimension rows for the response, by column and key value
+         *
+         * @return the result
+         */
+        private Result buildResult(int row, Map<DimensionColumn, Map<String, DimensionRow>> hydratedRows) {
+            String[] dimensions = dimensionValues.set(row, null);
+            LinkedHashMap<DimensionColumn, DimensionRow> dimensionRows = new LinkedHashMap<>();
+            for (int i = 0; i < dimensions.length; i++) {
+                DimensionColumn dc = dimensionColumns.get(i);
+                dimensionRows.put(dc, hydratedRows.get(dc).get(dimensions[i]));
+            }
+
+            Object[] metrics = metricValues.set(row, null);
+            LinkedHashMap<MetricColumn, Object> metricValueMap = new LinkedHashMap<>();
+            for (int i = 0; i < metrics.length; i++) {
+                MetricColumn mc = metricColumns.get(i);
+                if (metrics[i] == MISSING_METRIC) {
+                    LOG.warn("Found null node for metric column {}", mc.getName());
+                } else {
+                    metricValueMap.put(mc, metrics[i]);
+                }
+            }
+
+            return new Result(dimensionRows, metricValueMap, timestamps.get(row));
+        }
+    }
+
     /**
      * Produce the schema-defining columns for a given druid query.
      *
@@ -47,6 +47,11 @@ import javax.ws.rs.core.StreamingOutput;
 @Singleton
 public class HttpResponseMaker {
 
+    /**
+     * The media type of the Apache Arrow IPC streaming format.
+     */
+    public static final String ARROW_STREAM_MEDIA_TYPE = "application/vnd.apache.arrow.stream";
+
     protected final ObjectMappersSuite objectMappers;
     protected final DimensionDictionary dimensionDictionary;
     protected final ResponseWriter responseWriter;
@@ -171,6 +176,8 @@ public class HttpResponseMaker {
                                 HttpHeaders.CONTENT_DISPOSITION,
                                 ResponseFormat.getCsvContentDispositionValue(apiRequest.getUriInfo())
                         );
+            case ARROW:
+                return rspBuilder.header(HttpHeaders.CONTENT_TYPE, ARROW_STREAM_MEDIA_TYPE);
             case JSON:
                 // Fall-through: Default is JSON
             default:
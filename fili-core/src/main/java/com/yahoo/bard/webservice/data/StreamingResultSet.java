@@ -0,0 +1,218 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.data;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+
+/**
+ * A result set whose results are built as they are read, and which can only be read once.
+ * <p>
+ * The stream of results is only opened when the result set is first iterated or streamed, so the work of building
+ * and mapping each result is done by whoever reads it, such as a response writer encoding the results onto the
+ * response as they come. No result is held once it has been read.
+ * <p>
+ * Since the results are not held, the result set does not know its size and cannot be indexed into, compared or
+ * modified. It can only be read once, in order, by iterating or streaming it.
+ */
+public class StreamingResultSet extends ResultSet {
+
+    private Supplier<Stream<Result>> results;
+
+    /**
+     * Constructor.
+     *
+     * @param schema  The associated schema
+     * @param results  Opens the stream of results, which is done at most once
+     */
+    public StreamingResultSet(ResultSetSchema schema, Supplier<Stream<Result>> results) {
+        super(schema, Collections.emptyList());
+        this.results = results;
+    }
+
+    /**
+     * Open the stream of results.
+     *
+     * @return the stream of results
+     *
+     * @throws IllegalStateException if the results have already been read
+     */
+    @Override
+    public synchronized Stream<Result> stream() {
+        if (results == null) {
+            throw new IllegalStateException("A streaming result set can only be read once");
+        }
+        Stream<Result> stream = results.get();
+        results = null;
+        return stream;
+    }
+
+    @Override
+    public Iterator<Result> iterator() {
+        return stream().iterator();
+    }
+
+    @Override
+    public Spliterator<Result> spliterator() {
+        return stream().spliterator();
+    }
+
+    @Override
+    public void forEach(Consumer<? super Result> action) {
+        stream().forEachOrdered(action);
+    }
+
+    @Override
+    public int size() {
+        throw unsupported();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        throw unsupported();
+    }
+
+    @Override
+    public Result get(int index) {
+        throw unsupported();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        throw unsupported();
+    }
+
+    @Override
+    public boolean containsAll(Collection<?> c) {
+        throw unsupported();
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        throw unsupported();
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        throw unsupported();
+    }
+
+    @Override
+    public Object[] toArray() {
+        throw unsupported();
+    }
+
+    @Override
+    public <T> T[] toArray(T[] a) {
+        throw unsupported();
+    }
+
+    @Override
+    public ListIterator<Result> listIterator() {
+        throw unsupported();
+    }
+
+    @Override
+    public ListIterator<Result> listIterator(int index) {
+        throw unsupported();
+    }
+
+    @Override
+    public List<Result> subList(int fromIndex, int toIndex) {
+        throw unsupported();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(this);
+    }
+
+    @Override
+    public Result set(int index, Result element) {
+        throw unsupported();
+    }
+
+    @Override
+    public boolean add(Result result) {
+        throw unsupported();
+    }
+
+    @Override
+    public void add(int index, Result element) {
+        throw unsupported();
+    }
+
+    @Override
+    public Result remove(int index) {
+        throw unsupported();
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        throw unsupported();
+    }
+
+    @Override
+    public void clear() {
+        throw unsupported();
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends Result> c) {
+        throw unsupported();
+    }
+
+    @Override
+    public boolean addAll(int index, Collection<? extends Result> c) {
+        throw unsupported();
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> c) {
+        throw unsupported();
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> c) {
+        throw unsupported();
+    }
+
+    @Override
+    public boolean removeIf(Predicate<? super Result> filter) {
+        throw unsupported();
+    }
+
+    @Override
+    public void replaceAll(UnaryOperator<Result> operator) {
+        throw unsupported();
+    }
+
+    @Override
+    public void sort(Comparator<? super Result> c) {
+        throw unsupported();
+    }
+
+    /**
+     * Build the exception thrown on attempts to do anything but read the results in order.
+     *
+     * @return the exception
+     */
+    private static UnsupportedOperationException unsupported() {
+        return new UnsupportedOperationException("A streaming result set can only be read once, in order");
+    }
+}
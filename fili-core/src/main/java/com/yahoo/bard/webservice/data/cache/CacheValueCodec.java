@@ -0,0 +1,86 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.data.cache;
+
+import com.yahoo.bard.webservice.config.SystemConfig;
+import com.yahoo.bard.webservice.config.SystemConfigException;
+import com.yahoo.bard.webservice.config.SystemConfigProvider;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Locale;
+
+/**
+ * Encodes Druid responses into the values stored in a data cache, and decodes them back.
+ *
+ * @param <V>  The type of the encoded values
+ */
+public interface CacheValueCodec<V extends Serializable> {
+
+    String ENCODING_KEY = SystemConfigProvider.getInstance().getPackageVariableName("druid_cache_value_encoding");
+    String JSON_ENCODING = "json";
+    String SMILE_ENCODING = "smile";
+
+    /**
+     * Encode a response for the cache.
+     *
+     * @param json  The response to encode
+     *
+     * @return the encoded value
+     * @throws IOException if the response cannot be encoded
+     */
+    V encode(JsonNode json) throws IOException;
+
+    /**
+     * Decode a value read from the cache.
+     *
+     * @param value  The encoded value
+     *
+     * @return the response
+     * @throws IOException if the value cannot be decoded
+     */
+    JsonNode decode(V value) throws IOException;
+
+    /**
+     * Get the length of an encoded value, which is what is compared against the largest response allowed in the
+     * cache.
+     *
+     * @param value  The encoded value
+     *
+     * @return the length of the value
+     */
+    long getLength(V value);
+
+    /**
+     * Estimate how many bytes of heap the decoded form of a value takes up.
+     *
+     * @param value  The encoded value
+     *
+     * @return the estimated size of the decoded response in bytes
+     */
+    long estimateDecodedSize(V value);
+
+    /**
+     * Build the codec selected by the {@code druid_cache_value_encoding} setting, {@code json} (the default) or
+     * {@code smile}.
+     *
+     * @param mapper  The mapper used for json processing
+     *
+     * @return the configured codec
+     */
+    static CacheValueCodec<? extends Serializable> buildConfiguredCodec(ObjectMapper mapper) {
+        SystemConfig systemConfig = SystemConfigProvider.getInstance();
+        String encoding = systemConfig.getStringProperty(ENCODING_KEY, JSON_ENCODING);
+        switch (encoding.trim().toLowerCase(Locale.ENGLISH)) {
+            case JSON_ENCODING:
+                return new JsonCacheValueCodec(mapper);
+            case SMILE_ENCODING:
+                return new SmileCacheValueCodec();
+            default:
+                throw new SystemConfigException("Unknown druid_cache_value_encoding: " + encoding);
+        }
+    }
+}
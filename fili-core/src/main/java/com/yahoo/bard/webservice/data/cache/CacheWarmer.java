@@ -0,0 +1,460 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.data.cache;
+
+import static com.yahoo.bard.webservice.web.handlers.workflow.DruidWorkflow.REQUEST_WORKFLOW_TIMER;
+
+import com.yahoo.bard.webservice.application.MetricRegistryFactory;
+import com.yahoo.bard.webservice.config.SystemConfig;
+import com.yahoo.bard.webservice.config.SystemConfigProvider;
+import com.yahoo.bard.webservice.data.PartialDataHandler;
+import com.yahoo.bard.webservice.data.config.names.DataSourceName;
+import com.yahoo.bard.webservice.druid.client.DruidWebService;
+import com.yahoo.bard.webservice.druid.model.query.DruidAggregationQuery;
+import com.yahoo.bard.webservice.druid.model.query.QueryContext;
+import com.yahoo.bard.webservice.logging.RequestLog;
+import com.yahoo.bard.webservice.metadata.QuerySigningService;
+import com.yahoo.bard.webservice.metadata.SegmentChangeListener;
+import com.yahoo.bard.webservice.table.ConstrainedTable;
+import com.yahoo.bard.webservice.table.PhysicalTable;
+import com.yahoo.bard.webservice.util.SimplifiedIntervalList;
+import com.yahoo.bard.webservice.web.handlers.RequestContext;
+import com.yahoo.bard.webservice.web.responseprocessors.DruidJsonResponseContentKeys;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import org.joda.time.Interval;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+import javax.validation.constraints.NotNull;
+
+/**
+ * Keeps the cache entries of the most frequent queries fresh, by running them again when their segments change.
+ * <p>
+ * The cache request handlers record the key and query of every request they check the cache for. How often each key
+ * is requested is estimated by a {@link FrequencySketch}, and the {@code cache_warming_hot_queries} most frequent keys
+ * are kept with their queries. Recording a request only touches concurrent maps: keys frequent enough to be hot are
+ * set aside as candidates, and take the place of colder hot keys when the segments change. When the segments of a data
+ * source change, the hot queries on that data source whose intervals overlap the changed segments are run again at the
+ * {@code cache_warming_priority} Druid priority, and their responses are cached under their new segment signature, so
+ * that the next user of a popular dashboard finds them.
+ * <p>
+ * Only entries which are in the cache with a stale signature are refreshed. A query whose entry is missing, maybe
+ * because its response was partial or volatile, or whose entry is already current, is skipped. So is a query which
+ * would still read partial data, and the response of a query for which Druid reports uncovered intervals is not
+ * cached. At most
+ * {@code cache_warming_max_in_flight} queries are warmed at once, the others wait their turn.
+ */
+public class CacheWarmer implements SegmentChangeListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CacheWarmer.class);
+    private static final SystemConfig SYSTEM_CONFIG = SystemConfigProvider.getInstance();
+    private static final MetricRegistry REGISTRY = MetricRegistryFactory.getRegistry();
+
+    public static final int HOT_QUERIES = SYSTEM_CONFIG.getIntProperty(
+            SYSTEM_CONFIG.getPackageVariableName("cache_warming_hot_queries"),
+            100
+    );
+
+    public static final int MAX_IN_FLIGHT = SYSTEM_CONFIG.getIntProperty(
+            SYSTEM_CONFIG.getPackageVariableName("cache_warming_max_in_flight"),
+            2
+    );
+
+    public static final int PRIORITY = SYSTEM_CONFIG.getIntProperty(
+            SYSTEM_CONFIG.getPackageVariableName("cache_warming_priority"),
+            -10
+    );
+
+    public static final Meter WARMED = REGISTRY.meter("queries.meter.cache_warming.warmed");
+    public static final Meter SKIPPED = REGISTRY.meter("queries.meter.cache_warming.skipped");
+    public static final Meter FAILED = REGISTRY.meter("queries.meter.cache_warming.failed");
+    public static final Counter IN_FLIGHT = REGISTRY.counter("queries.count.cache_warming.in_flight");
+    public static final Counter PENDING = REGISTRY.counter("queries.count.cache_warming.pending");
+
+    private final long maxDruidResponseLengthToCache = SYSTEM_CONFIG.getLongProperty(
+            SYSTEM_CONFIG.getPackageVariableName(
+                    "druid_max_response_length_to_cache"
+            ),
+            Long.MAX_VALUE
+    );
+
+    private final int druidUncoveredIntervalLimit = SYSTEM_CONFIG.getIntProperty(
+            SYSTEM_CONFIG.getPackageVariableName("druid_uncovered_interval_limit"),
+            0
+    );
+
+    private final @NotNull DruidWebService webService;
+    private final TupleDataCache<String, Long, Serializable> dataCache;
+    private final @NotNull QuerySigningService<Long> querySigningService;
+    private final @NotNull CacheValueCodec<Serializable> valueCodec;
+    private final int maxHotQueries;
+    private final int priority;
+
+    private final PartialDataHandler partialDataHandler = new PartialDataHandler();
+    private final FrequencySketch sketch;
+    private final Map<String, DruidAggregationQuery<?>> hotQueries = new ConcurrentHashMap<>();
+    private final Map<String, DruidAggregationQuery<?>> candidates = new ConcurrentHashMap<>();
+    // A key seen only once never displaces a hot key
+    private volatile int admissionEstimate = 2;
+    private final Map<String, DruidAggregationQuery<?>> pending = new LinkedHashMap<>();
+    private final Semaphore permits;
+
+    /**
+     * Build a cache warmer configured by the {@code cache_warming} settings.
+     *
+     * @param webService  The web service the queries are run again on
+     * @param dataCache  The local signature cache to keep fresh
+     * @param querySigningService  The service to sign the queries with their segments
+     * @param valueCodec  The codec the cached values are encoded with
+     */
+    public CacheWarmer(
+            DruidWebService webService,
+            DataCache<?> dataCache,
+            QuerySigningService<?> querySigningService,
+            CacheValueCodec<? extends Serializable> valueCodec
+    ) {
+        this(webService, dataCache, querySigningService, valueCodec, HOT_QUERIES, MAX_IN_FLIGHT, PRIORITY);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param webService  The web service the queries are run again on
+     * @param dataCache  The local signature cache to keep fresh, other caches are not warmed
+     * @param querySigningService  The service to sign the queries with their segments
+     * @param valueCodec  The codec the cached values are encoded with
+     * @param maxHotQueries  How many of the most frequent queries are kept fresh
+     * @param maxInFlight  How many queries are warmed at once
+     * @param priority  The Druid priority the queries are run again at
+     */
+    @SuppressWarnings("unchecked")
+    public CacheWarmer(
+            DruidWebService webService,
+            DataCache<?> dataCache,
+            QuerySigningService<?> querySigningService,
+            CacheValueCodec<? extends Serializable> valueCodec,
+            int maxHotQueries,
+            int maxInFlight,
+            int priority
+    ) {
+        this.webService = webService;
+        this.dataCache = dataCache instanceof TupleDataCache ?
+                (TupleDataCache<String, Long, Serializable>) dataCache :
+                null;
+        this.querySigningService = (QuerySigningService<Long>) querySigningService;
+        this.valueCodec = (CacheValueCodec<Serializable>) valueCodec;
+        this.maxHotQueries = maxHotQueries;
+        this.priority = priority;
+        // Enough counters that the hot queries rarely collide with each other
+        this.sketch = new FrequencySketch(16 * Math.max(maxHotQueries, 1));
+        this.permits = new Semaphore(Math.max(maxInFlight, 1));
+    }
+
+    /**
+     * Record a request for a cache entry, and the query that fills it.
+     * <p>
+     * If the key is among the most frequently requested, its query is kept to warm the entry with later. Once the hot
+     * keys are full, a key requested more often than the least frequent of them becomes a candidate, which takes the
+     * place of the least frequent hot key the next time the hot keys are promoted.
+     *
+     * @param cacheKey  The cache key requested
+     * @param druidQuery  The query whose response is cached under the key
+     */
+    public void record(String cacheKey, DruidAggregationQuery<?> druidQuery) {
+        int estimate = sketch.increment(cacheKey);
+        if (hotQueries.replace(cacheKey, druidQuery) != null) {
+            return;
+        }
+        if (hotQueries.size() < maxHotQueries) {
+            hotQueries.putIfAbsent(cacheKey, druidQuery);
+        } else if (estimate >= admissionEstimate && candidates.size() < maxHotQueries) {
+            candidates.put(cacheKey, druidQuery);
+        }
+    }
+
+    /**
+     * Get the keys of the hot queries.
+     *
+     * @return a copy of the keys of the queries currently kept fresh
+     */
+    public List<String> getHotKeys() {
+        promoteCandidates();
+        return new ArrayList<>(hotQueries.keySet());
+    }
+
+    /**
+     * Let the candidates more frequent than the least frequent hot keys take their places.
+     * <p>
+     * The hot keys are kept in a heap by their estimated frequency, so that each candidate is compared to the least
+     * frequent of them. The frequency a key needs to become a candidate is raised to beat the least frequent hot key.
+     */
+    private synchronized void promoteCandidates() {
+        PriorityQueue<Map.Entry<String, Integer>> coldest = new PriorityQueue<>(Map.Entry.comparingByValue());
+        hotQueries.keySet().forEach(hotKey -> coldest.add(
+                new AbstractMap.SimpleImmutableEntry<>(hotKey, sketch.estimate(hotKey))
+        ));
+        // Requests racing for the last free places may have overfilled the hot keys
+        while (coldest.size() > maxHotQueries) {
+            hotQueries.remove(coldest.poll().getKey());
+        }
+
+        Iterator<Map.Entry<String, DruidAggregationQuery<?>>> iterator = candidates.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, DruidAggregationQuery<?>> candidate = iterator.next();
+            iterator.remove();
+            String cacheKey = candidate.getKey();
+            if (hotQueries.containsKey(cacheKey)) {
+                continue;
+            }
+            int estimate = sketch.estimate(cacheKey);
+            if (coldest.size() >= maxHotQueries) {
+                if (coldest.isEmpty() || estimate <= coldest.peek().getValue()) {
+                    continue;
+                }
+                hotQueries.remove(coldest.poll().getKey());
+            }
+            hotQueries.put(cacheKey, candidate.getValue());
+            coldest.add(new AbstractMap.SimpleImmutableEntry<>(cacheKey, estimate));
+        }
+
+        admissionEstimate = coldest.size() < maxHotQueries ? 2 : Math.max(2, coldest.peek().getValue() + 1);
+    }
+
+    @Override
+    public void segmentsChanged(DataSourceName dataSourceName, SimplifiedIntervalList changedIntervals) {
+        if (dataCache == null) {
+            return;
+        }
+        promoteCandidates();
+        Map<String, DruidAggregationQuery<?>> affected = new LinkedHashMap<>();
+        hotQueries.forEach((cacheKey, druidQuery) -> {
+            if (isAffected(druidQuery, dataSourceName, changedIntervals)) {
+                affected.put(cacheKey, druidQuery);
+            }
+        });
+        if (affected.isEmpty()) {
+            return;
+        }
+        LOG.debug("Warming {} hot queries after the segments of {} changed", affected.size(), dataSourceName.asName());
+        synchronized (pending) {
+            affected.forEach((cacheKey, druidQuery) -> {
+                if (pending.putIfAbsent(cacheKey, druidQuery) == null) {
+                    PENDING.inc();
+                }
+            });
+        }
+        dispatch();
+    }
+
+    /**
+     * Whether a query reads the changed segments of a data source.
+     *
+     * @param druidQuery  The query
+     * @param dataSourceName  The data source whose segments changed
+     * @param changedIntervals  The intervals of the changed segments
+     *
+     * @return true if the query is on the data source and overlaps a changed interval
+     */
+    protected boolean isAffected(
+            DruidAggregationQuery<?> druidQuery,
+            DataSourceName dataSourceName,
+            SimplifiedIntervalList changedIntervals
+    ) {
+        DruidAggregationQuery<?> innermostQuery = druidQuery.getInnermostQuery();
+        if (!innermostQuery.getDataSource().getPhysicalTable().getDataSourceNames().contains(dataSourceName)) {
+            return false;
+        }
+        for (Interval interval : innermostQuery.getIntervals()) {
+            if (changedIntervals.stream().anyMatch(interval::overlaps)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Start warming pending queries while there are permits for them.
+     */
+    private void dispatch() {
+        while (permits.tryAcquire()) {
+            Map.Entry<String, DruidAggregationQuery<?>> next;
+            synchronized (pending) {
+                Iterator<Map.Entry<String, DruidAggregationQuery<?>>> iterator = pending.entrySet().iterator();
+                next = iterator.hasNext() ? iterator.next() : null;
+                if (next != null) {
+                    iterator.remove();
+                    PENDING.dec();
+                }
+            }
+            if (next == null) {
+                permits.release();
+                return;
+            }
+            IN_FLIGHT.inc();
+            warm(next.getKey(), next.getValue());
+        }
+    }
+
+    /**
+     * Run a query again and cache its response, if its cache entry is stale and its data is complete.
+     * <p>
+     * The query is sent under a request log of its own, which times its workflow as it would for a request.
+     *
+     * @param cacheKey  The cache key of the query
+     * @param druidQuery  The query
+     */
+    protected void warm(String cacheKey, DruidAggregationQuery<?> druidQuery) {
+        try {
+            Long signature = querySigningService.getSegmentSetId(druidQuery).orElse(null);
+            TupleDataCache.DataEntry<String, Long, Serializable> entry = signature == null ?
+                    null :
+                    dataCache.get(cacheKey);
+            if (entry == null || Objects.equals(entry.getMeta(), signature) || isPartial(druidQuery)) {
+                SKIPPED.mark();
+                complete();
+                return;
+            }
+
+            QueryContext warmingContext = druidQuery.getContext().withPriority(priority);
+            if (druidUncoveredIntervalLimit > 0) {
+                warmingContext = warmingContext.withUncoveredIntervalsLimit(druidUncoveredIntervalLimit);
+            }
+            DruidAggregationQuery<?> warmingQuery = druidQuery.withContext(warmingContext);
+            RequestLog callerLog = RequestLog.dump();
+            try {
+                RequestLog.startTiming(REQUEST_WORKFLOW_TIMER);
+                webService.postDruidQuery(
+                        new RequestContext(null, false),
+                        json -> {
+                            if (isUncovered(json)) {
+                                SKIPPED.mark();
+                            } else {
+                                cache(cacheKey, signature, unwrap(json));
+                            }
+                            complete();
+                        },
+                        (statusCode, reasonPhrase, responseBody) -> {
+                            LOG.debug("Warming query failed with {} {}: {}", statusCode, reasonPhrase, responseBody);
+                            FAILED.mark();
+                            complete();
+                        },
+                        error -> {
+                            LOG.debug("Warming query failed", error);
+                            FAILED.mark();
+                            complete();
+                        },
+                        warmingQuery
+                );
+            } finally {
+                RequestLog.dump();
+                RequestLog.restore(callerLog);
+            }
+        } catch (RuntimeException e) {
+            LOG.warn("Unable to warm cache entry", e);
+            FAILED.mark();
+            complete();
+        }
+    }
+
+    /**
+     * Whether a query reads intervals missing from the current availability of its table, at the query's granularity.
+     * <p>
+     * The response to such a query is partial, and the cache request handlers would not have cached it.
+     *
+     * @param druidQuery  The query
+     *
+     * @return true if some of the data of the query is missing
+     */
+    protected boolean isPartial(DruidAggregationQuery<?> druidQuery) {
+        DruidAggregationQuery<?> innermostQuery = druidQuery.getInnermostQuery();
+        PhysicalTable table = innermostQuery.getDataSource().getPhysicalTable();
+        // A constrained table only knows the availability it was built with, so read the current one from its source
+        SimplifiedIntervalList availableIntervals = table instanceof ConstrainedTable ?
+                ((ConstrainedTable) table).getSourceTable().getAvailableIntervals(
+                        ((ConstrainedTable) table).getConstraint()
+                ) :
+                table.getAvailableIntervals();
+        return !partialDataHandler.findMissingTimeGrainIntervals(
+                availableIntervals,
+                new SimplifiedIntervalList(innermostQuery.getIntervals()),
+                druidQuery.getGranularity()
+        ).isEmpty();
+    }
+
+    /**
+     * Whether Druid reports intervals of a response as uncovered, or too many of them to tell.
+     *
+     * @param json  The response, with the Druid response context if uncovered intervals were asked for
+     *
+     * @return true if the response is missing data
+     */
+    private static boolean isUncovered(JsonNode json) {
+        JsonNode responseContext = json.get(DruidJsonResponseContentKeys.DRUID_RESPONSE_CONTEXT.getName());
+        if (responseContext == null) {
+            return false;
+        }
+        JsonNode uncoveredIntervals = responseContext.get(DruidJsonResponseContentKeys.UNCOVERED_INTERVALS.getName());
+        return (uncoveredIntervals != null && uncoveredIntervals.size() > 0) ||
+                responseContext.path(DruidJsonResponseContentKeys.UNCOVERED_INTERVALS_OVERFLOWED.getName()).asBoolean();
+    }
+
+    /**
+     * Get the results of a response, without the Druid response context if there is one.
+     *
+     * @param json  The response
+     *
+     * @return the results, as the cache request handlers cache them
+     */
+    private static JsonNode unwrap(JsonNode json) {
+        JsonNode results = json.get(DruidJsonResponseContentKeys.RESPONSE.getName());
+        return json.isObject() && results != null ? results : json;
+    }
+
+    /**
+     * Cache the response of a warmed query.
+     *
+     * @param cacheKey  The cache key of the query
+     * @param signature  The segment signature of the query
+     * @param json  The response
+     */
+    private void cache(String cacheKey, Long signature, JsonNode json) {
+        try {
+            Serializable value = valueCodec.encode(json);
+            if (valueCodec.getLength(value) <= maxDruidResponseLengthToCache) {
+                dataCache.set(cacheKey, signature, value);
+                WARMED.mark();
+            } else {
+                SKIPPED.mark();
+            }
+        } catch (Exception e) {
+            LOG.warn("Unable to cache warmed response", e);
+            FAILED.mark();
+        }
+    }
+
+    /**
+     * Release the permit of a finished query and start the next one.
+     */
+    private void complete() {
+        IN_FLIGHT.dec();
+        permits.release();
+        dispatch();
+    }
+}
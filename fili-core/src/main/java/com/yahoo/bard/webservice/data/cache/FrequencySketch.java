@@ -0,0 +1,111 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.data.cache;
+
+/**
+ * A count-min sketch estimating how often keys are seen, in a fixed amount of memory.
+ * <p>
+ * Each key is counted in one counter of each of a few rows, picked by hashing the key, and its estimate is the
+ * smallest of those counters. Estimates may be too high when keys collide, but never too low. Once ten times as many
+ * keys as the sketch has counters in a row have been counted, every counter is halved, so that the estimates follow
+ * what has been seen recently rather than since startup.
+ */
+public class FrequencySketch {
+
+    private static final int DEPTH = 4;
+    private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+    private final int[][] counters;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * Constructor.
+     *
+     * @param width  The number of counters in each row, rounded up to a power of two
+     */
+    public FrequencySketch(int width) {
+        int roundedWidth = Integer.highestOneBit(Math.max(width, 2) - 1) << 1;
+        this.counters = new int[DEPTH][roundedWidth];
+        this.mask = roundedWidth - 1;
+        this.sampleSize = 10 * roundedWidth;
+    }
+
+    /**
+     * Count a key.
+     *
+     * @param key  The key seen
+     *
+     * @return the estimated number of times the key has been seen, including this time
+     */
+    public synchronized int increment(Object key) {
+        int hash = spread(key.hashCode());
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            int[] counts = counters[row];
+            int index = indexOf(hash, row);
+            if (counts[index] < Integer.MAX_VALUE) {
+                counts[index]++;
+            }
+            estimate = Math.min(estimate, counts[index]);
+        }
+        if (++additions >= sampleSize) {
+            age();
+        }
+        return estimate;
+    }
+
+    /**
+     * Estimate how many times a key has been seen.
+     *
+     * @param key  The key
+     *
+     * @return the estimated number of times it has been seen
+     */
+    public synchronized int estimate(Object key) {
+        int hash = spread(key.hashCode());
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            estimate = Math.min(estimate, counters[row][indexOf(hash, row)]);
+        }
+        return estimate;
+    }
+
+    /**
+     * Halve every counter.
+     */
+    private void age() {
+        for (int[] counts : counters) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] >>>= 1;
+            }
+        }
+        additions /= 2;
+    }
+
+    /**
+     * Pick the counter of a row for a hash.
+     *
+     * @param hash  The spread hash of the key
+     * @param row  The row
+     *
+     * @return the index of the counter in the row
+     */
+    private int indexOf(int hash, int row) {
+        int h = hash * SEEDS[row];
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * Mix the bits of a hash code, so that keys whose hash codes differ only in their high bits spread out.
+     *
+     * @param hashCode  The hash code of a key
+     *
+     * @return the mixed hash
+     */
+    private static int spread(int hashCode) {
+        int h = hashCode * 0x45D9F3B;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,228 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.data.cache;
+
+import com.yahoo.bard.webservice.application.MetricRegistryFactory;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+import javax.validation.constraints.NotNull;
+
+/**
+ * An in-heap tier in front of another tuple data cache, holding responses already parsed into json trees.
+ * <p>
+ * Reads are answered from the heap when possible, and otherwise from the wrapped cache, in which case the entry is
+ * kept on the heap for next time. Writes go to both. Entries keep the metadata (the segment set signature) they were
+ * written with, so a caller validating the metadata against the current segment set sees a heap entry go stale
+ * exactly when the wrapped cache's entry would; the heap entry is then replaced by the fresh response the caller
+ * writes back.
+ * <p>
+ * The heap tier is bounded by an estimate of the bytes its entries take up, evicting the least recently used entries
+ * once the bound is reached. A heap entry decodes its value the first time it is asked for json, and keeps only the
+ * decoded tree after that. The decoded trees are shared between requests, so they must not be modified.
+ *
+ * @param <M>  The metadata type of the cache
+ * @param <V>  The encoded value type of the cache
+ */
+public class HeapTupleDataCache<M extends Serializable, V extends Serializable>
+        implements TupleDataCache<String, M, V> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HeapTupleDataCache.class);
+    private static final MetricRegistry REGISTRY = MetricRegistryFactory.getRegistry();
+
+    public static final Meter HEAP_HITS = REGISTRY.meter("queries.meter.cache.heap.hits");
+    public static final Meter HEAP_MISSES = REGISTRY.meter("queries.meter.cache.heap.misses");
+
+    // Rough per entry bookkeeping cost of the cache and the entry object, in bytes
+    private static final int ENTRY_OVERHEAD_BYTES = 128;
+
+    private final TupleDataCache<String, M, V> delegate;
+    private final CacheValueCodec<V> codec;
+    private final Cache<String, ParsedDataEntry<M, V>> heap;
+
+    /**
+     * Constructor.
+     *
+     * @param delegate  The cache behind the heap tier
+     * @param maxBytes  The estimated number of bytes the heap tier may hold
+     * @param codec  The codec the cached values are encoded with
+     */
+    public HeapTupleDataCache(
+            @NotNull TupleDataCache<String, M, V> delegate,
+            long maxBytes,
+            @NotNull CacheValueCodec<V> codec
+    ) {
+        this.delegate = delegate;
+        this.codec = codec;
+        this.heap = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((String key, ParsedDataEntry<M, V> entry) -> entry.getWeight())
+                .build();
+    }
+
+    @Override
+    public DataEntry<String, M, V> get(String key) {
+        ParsedDataEntry<M, V> entry = heap.getIfPresent(key);
+        if (entry != null) {
+            HEAP_HITS.mark();
+            return entry;
+        }
+        HEAP_MISSES.mark();
+
+        DataEntry<String, M, V> delegateEntry = delegate.get(key);
+        if (delegateEntry == null || delegateEntry.getValue() == null) {
+            return delegateEntry;
+        }
+        entry = new ParsedDataEntry<>(key, delegateEntry.getMeta(), delegateEntry.getValue(), codec);
+        heap.put(key, entry);
+        return entry;
+    }
+
+    @Override
+    public V getDataValue(String key) {
+        DataEntry<String, M, V> entry = get(key);
+        return entry == null ? null : entry.getValue();
+    }
+
+    @Override
+    public boolean set(String key, M meta, V value) {
+        if (value == null) {
+            heap.invalidate(key);
+        } else {
+            heap.put(key, new ParsedDataEntry<>(key, meta, value, codec));
+        }
+        return delegate.set(key, meta, value);
+    }
+
+    @Override
+    public boolean set(String key, DataEntry<String, M, V> value) throws IllegalStateException {
+        return set(key, value.getMeta(), value.getValue());
+    }
+
+    @Override
+    public void clear() {
+        heap.invalidateAll();
+        delegate.clear();
+    }
+
+    /**
+     * Get the estimated number of bytes held by the heap tier.
+     *
+     * @return the estimated size of the heap tier in bytes
+     */
+    public long getHeapBytes() {
+        return heap.asMap().values().stream().mapToLong(ParsedDataEntry::getWeight).sum();
+    }
+
+    /**
+     * A heap tier entry, which decodes its value into a json tree on first use and then keeps only the tree.
+     * <p>
+     * Entries only live on the heap, so the codec and decoded tree are not serialized.
+     *
+     * @param <M>  The metadata type of the cache
+     * @param <V>  The encoded value type of the cache
+     */
+    public static class ParsedDataEntry<M extends Serializable, V extends Serializable>
+            implements DataEntry<String, M, V> {
+        private static final long serialVersionUID = -1757323530473006453L;
+
+        private final String key;
+        private final M meta;
+        private final int weight;
+        private final transient CacheValueCodec<V> codec;
+        private volatile V value;
+        private transient volatile JsonNode json;
+
+        /**
+         * Constructor.
+         *
+         * @param key  The key of the entry
+         * @param meta  The metadata of the entry
+         * @param value  The encoded value of the entry
+         * @param codec  The codec used to decode and encode the value
+         */
+        ParsedDataEntry(String key, M meta, V value, CacheValueCodec<V> codec) {
+            this.key = key;
+            this.meta = meta;
+            this.value = value;
+            this.codec = codec;
+            long estimate = ENTRY_OVERHEAD_BYTES + 2L * key.length() + codec.estimateDecodedSize(value);
+            this.weight = (int) Math.min(Integer.MAX_VALUE, estimate);
+        }
+
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public M getMeta() {
+            return meta;
+        }
+
+        /**
+         * Get the encoded value of the entry.
+         * <p>
+         * Once the value has been decoded this encodes the decoded tree again, so callers which can take the tree
+         * should use {@link #getJsonValue()} instead.
+         *
+         * @return the encoded value
+         */
+        @Override
+        public V getValue() {
+            V encoded = value;
+            if (encoded != null) {
+                return encoded;
+            }
+            try {
+                return codec.encode(json);
+            } catch (IOException e) {
+                LOG.warn("Unable to encode cached value for key {}", key, e);
+                return null;
+            }
+        }
+
+        /**
+         * Get the value of the entry as a json tree, decoding it if this is the first time it is asked for.
+         * <p>
+         * The tree is shared by every reader of the entry and must not be modified.
+         *
+         * @return the decoded value
+         *
+         * @throws IOException if the value cannot be decoded
+         */
+        public JsonNode getJsonValue() throws IOException {
+            JsonNode parsed = json;
+            if (parsed == null) {
+                synchronized (this) {
+                    parsed = json;
+                    if (parsed == null) {
+                        parsed = codec.decode(value);
+                        json = parsed;
+                        value = null;
+                    }
+                }
+            }
+            return parsed;
+        }
+
+        /**
+         * Get the estimated number of bytes the entry takes up once its value has been decoded.
+         *
+         * @return the estimated size of the entry in bytes
+         */
+        int getWeight() {
+            return weight;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.data.cache;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.IOException;
+
+/**
+ * Stores Druid responses in the cache as json strings.
+ */
+public class JsonCacheValueCodec implements CacheValueCodec<String> {
+
+    // A parsed json tree takes up about twice the memory of its serialized UTF-16 string
+    private static final int DECODED_BYTES_PER_CHAR = 4;
+
+    private final ObjectMapper mapper;
+    private final ObjectWriter writer;
+
+    /**
+     * Constructor.
+     *
+     * @param mapper  The mapper used to serialize and parse the responses
+     */
+    public JsonCacheValueCodec(ObjectMapper mapper) {
+        this.mapper = mapper;
+        this.writer = mapper.writer();
+    }
+
+    @Override
+    public String encode(JsonNode json) throws IOException {
+        return writer.writeValueAsString(json);
+    }
+
+    @Override
+    public JsonNode decode(String value) throws IOException {
+        return mapper.readTree(value);
+    }
+
+    @Override
+    public long getLength(String value) {
+        return value.length();
+    }
+
+    @Override
+    public long estimateDecodedSize(String value) {
+        return (long) DECODED_BYTES_PER_CHAR * value.length();
+    }
+}
@@ -22,6 +22,11 @@ import javax.validation.constraints.NotNull;
 
 /**
  * MemCached client implementation of DataCache.  Internally uses hashed key to keep under 250 character limit.
+ * <p>
+ * If {@code memcached_write_behind_queue_size} is positive, writes are handed to a {@link MemcachedWriteBehindQueue} of
+ * that size instead of waiting for memcached to acknowledge them, and writes that do not fit in the queue are dropped.
+ * The queue sends writes until the cache is {@link #shutdown() shut down}.
+ *
  * @param <T> Type of data
  */
 @Singleton
@@ -44,7 +49,14 @@ public class MemDataCache<T extends Serializable> implements DataCache<T> {
     private static final int EXPIRATION_DEFAULT_VALUE = 3600;
     private static final int EXPIRATION = SYSTEM_CONFIG.getIntProperty(EXPIRATION_KEY, EXPIRATION_DEFAULT_VALUE);
 
+    public static final int WRITE_BEHIND_DISABLED = -1;
+    private static final int WRITE_BEHIND_QUEUE_SIZE = SYSTEM_CONFIG.getIntProperty(
+            SYSTEM_CONFIG.getPackageVariableName("memcached_write_behind_queue_size"),
+            WRITE_BEHIND_DISABLED
+    );
+
     final private MemcachedClient client;
+    final private MemcachedWriteBehindQueue writeBehindQueue;
 
     /**
      * Constructor using a default Memcached Client.
@@ -62,11 +74,25 @@ public class MemDataCache<T extends Serializable> implements DataCache<T> {
      * @param client  The Memcached client to support this cache
      */
     public MemDataCache(MemcachedClient client) {
+        this(client, WRITE_BEHIND_QUEUE_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param client  The Memcached client to support this cache
+     * @param writeBehindQueueSize  The number of writes that may wait to be sent to memcached, or zero or less (such as
+     * {@link #WRITE_BEHIND_DISABLED}) to wait for memcached to acknowledge every write
+     */
+    public MemDataCache(MemcachedClient client, int writeBehindQueueSize) {
         // validate expiration value
         if (EXPIRATION > EXPIRATION_MAX_VALUE) {
             throw new SystemConfigException("memcached_expiration_seconds exceeds " + EXPIRATION_MAX_VALUE);
         }
         this.client = client;
+        this.writeBehindQueue = writeBehindQueueSize <= 0
+                ? null
+                : new MemcachedWriteBehindQueue(client, EXPIRATION, writeBehindQueueSize);
     }
 
     @Override
@@ -81,8 +107,22 @@ public class MemDataCache<T extends Serializable> implements DataCache<T> {
         }
     }
 
+    /**
+     * Put a value on a key in memcached.
+     * <p>
+     * In write behind mode this only queues the write, and returns false without writing if the queue is full.
+     *
+     * @param key  the key under which this object should be added.
+     * @param value  the object to store
+     *
+     * @return a boolean representing success of this operation, or of queueing it in write behind mode
+     * @throws IllegalStateException if a synchronous write fails
+     */
     @Override
     public boolean set(String key, T value) throws IllegalStateException {
+        if (writeBehindQueue != null) {
+            return writeBehindQueue.offer(key, value);
+        }
         try {
             // Omitting null checking for key since it should be rare.
             // An exception will be thrown by the memcached client.
@@ -97,4 +137,15 @@ public class MemDataCache<T extends Serializable> implements DataCache<T> {
     public void clear() {
         client.flush();
     }
+
+    /**
+     * Stop sending queued writes in write behind mode, discarding those still waiting. Later writes are dropped.
+     * <p>
+     * Synchronous writes are not affected.
+     */
+    public void shutdown() {
+        if (writeBehindQueue != null) {
+            writeBehindQueue.shutdown();
+        }
+    }
 }
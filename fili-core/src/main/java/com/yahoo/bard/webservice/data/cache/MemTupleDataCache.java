@@ -65,6 +65,17 @@ public class MemTupleDataCache<T extends Serializable, V extends Serializable>
         super(client);
     }
 
+    /**
+     * Constructor.
+     *
+     * @param client  The memcached client to support this cache.
+     * @param writeBehindQueueSize  The number of writes that may wait to be sent to memcached, or
+     * {@link #WRITE_BEHIND_DISABLED} to wait for memcached to acknowledge every write.
+     */
+    public MemTupleDataCache(MemcachedClient client, int writeBehindQueueSize) {
+        super(client, writeBehindQueueSize);
+    }
+
     /**
      * Get the hash encoding of a key string.
      *
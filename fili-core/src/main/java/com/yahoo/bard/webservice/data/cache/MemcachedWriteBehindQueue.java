@@ -0,0 +1,168 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.data.cache;
+
+import com.yahoo.bard.webservice.application.MetricRegistryFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.internal.OperationFuture;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded queue of memcached writes, sent to memcached by a background thread.
+ * <p>
+ * Callers hand writes over without waiting for memcached, so a thread delivering a Druid response is not held up by
+ * the cache write. When the queue is full the write is dropped, which for a cache only costs a later miss. The writer
+ * thread does not wait for memcached to acknowledge a write before sending the next one either; acknowledgements are
+ * picked up by listeners on the client's futures.
+ * <p>
+ * The queue depth, dropped and failed writes, and the time from a write being queued to memcached acknowledging it
+ * are reported as metrics.
+ */
+public class MemcachedWriteBehindQueue {
+    private static final Logger LOG = LoggerFactory.getLogger(MemcachedWriteBehindQueue.class);
+    private static final MetricRegistry REGISTRY = MetricRegistryFactory.getRegistry();
+
+    public static final Counter QUEUE_DEPTH = REGISTRY.counter("queries.count.cache.write_behind.queued");
+    public static final Meter DROPPED = REGISTRY.meter("queries.meter.cache.write_behind.dropped");
+    public static final Meter FAILED = REGISTRY.meter("queries.meter.cache.write_behind.failed");
+    public static final Timer LATENCY = REGISTRY.timer("queries.timer.cache.write_behind.latency");
+
+    private final MemcachedClient client;
+    private final int expiration;
+    private final BlockingQueue<PendingWrite> queue;
+    private final Thread writer;
+    private volatile boolean shutdown;
+
+    /**
+     * Constructor.
+     * <p>
+     * Starts the daemon thread that sends the queued writes to memcached.
+     *
+     * @param client  The memcached client to write through
+     * @param expiration  The expiration, in memcached's terms, to write every entry with
+     * @param capacity  The maximum number of writes waiting to be sent
+     */
+    public MemcachedWriteBehindQueue(MemcachedClient client, int expiration, int capacity) {
+        this.client = client;
+        this.expiration = expiration;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.writer = new Thread(this::sendWrites, "memcached-write-behind");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queue a write, without waiting for it to be sent.
+     *
+     * @param key  The key to write
+     * @param value  The value to write
+     *
+     * @return true if the write was queued, false if it was dropped because the queue is full or shut down
+     */
+    public boolean offer(String key, Object value) {
+        if (shutdown) {
+            DROPPED.mark();
+            LOG.debug("Memcached write behind queue is shut down, dropped write of {}", key);
+            return false;
+        }
+        QUEUE_DEPTH.inc();
+        if (!queue.offer(new PendingWrite(key, value))) {
+            QUEUE_DEPTH.dec();
+            DROPPED.mark();
+            LOG.debug("Memcached write behind queue is full, dropped write of {}", key);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Get the number of writes waiting to be sent.
+     *
+     * @return the queue depth
+     */
+    public int size() {
+        return queue.size();
+    }
+
+    /**
+     * Stop sending writes. Writes still in the queue are discarded, and later writes are dropped.
+     */
+    public void shutdown() {
+        shutdown = true;
+        writer.interrupt();
+        int discarded = queue.size();
+        queue.clear();
+        QUEUE_DEPTH.dec(discarded);
+    }
+
+    /**
+     * Send queued writes to memcached until the writer thread is interrupted.
+     */
+    private void sendWrites() {
+        while (!Thread.currentThread().isInterrupted()) {
+            PendingWrite write;
+            try {
+                write = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            QUEUE_DEPTH.dec();
+            send(write);
+        }
+    }
+
+    /**
+     * Send one write to memcached and record its outcome once memcached acknowledges it.
+     *
+     * @param write  The write to send
+     */
+    private void send(PendingWrite write) {
+        try {
+            OperationFuture<Boolean> future = client.set(write.key, expiration, write.value);
+            future.addListener(completed -> {
+                LATENCY.update(System.nanoTime() - write.queuedNanos, TimeUnit.NANOSECONDS);
+                if (!completed.getStatus().isSuccess()) {
+                    FAILED.mark();
+                    LOG.warn("set failed {} {}", write.key, completed.getStatus().getMessage());
+                }
+            });
+        } catch (RuntimeException e) {
+            FAILED.mark();
+            LOG.warn("set failed {} {}", write.key, e.toString());
+        }
+    }
+
+    /**
+     * A write waiting to be sent, along with when it was queued.
+     */
+    private static class PendingWrite {
+        private final String key;
+        private final Object value;
+        private final long queuedNanos;
+
+        /**
+         * Constructor.
+         *
+         * @param key  The key to write
+         * @param value  The value to write
+         */
+        PendingWrite(String key, Object value) {
+            this.key = key;
+            this.value = value;
+            this.queuedNanos = System.nanoTime();
+        }
+    }
+}
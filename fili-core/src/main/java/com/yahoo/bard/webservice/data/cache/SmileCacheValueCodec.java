@@ -0,0 +1,88 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.data.cache;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Stores Druid responses in the cache as deflate compressed Smile, Jackson's binary json format.
+ * <p>
+ * Each value is the length of the uncompressed Smile document as a 4 byte big endian int, followed by the compressed
+ * document. Responses are written to and read from the compressed form as a stream, without building the json text.
+ */
+public class SmileCacheValueCodec implements CacheValueCodec<byte[]> {
+
+    private static final int HEADER_LENGTH = Integer.BYTES;
+    // A parsed json tree takes up about five times the size of its Smile encoding
+    private static final int DECODED_BYTES_PER_BYTE = 5;
+
+    private final ObjectMapper smileMapper;
+    private final int compressionLevel;
+
+    /**
+     * Constructor using the fastest compression level.
+     */
+    public SmileCacheValueCodec() {
+        this(Deflater.BEST_SPEED);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param compressionLevel  The deflate compression level, from 0 to 9
+     */
+    public SmileCacheValueCodec(int compressionLevel) {
+        this.smileMapper = new ObjectMapper(new SmileFactory());
+        this.compressionLevel = compressionLevel;
+    }
+
+    @Override
+    public byte[] encode(JsonNode json) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(new byte[HEADER_LENGTH]);
+        Deflater deflater = new Deflater(compressionLevel);
+        try {
+            // Writing the value closes, and so finishes, the compressing stream
+            smileMapper.writeValue(new DeflaterOutputStream(out, deflater), json);
+            byte[] value = out.toByteArray();
+            ByteBuffer.wrap(value).putInt((int) Math.min(Integer.MAX_VALUE, deflater.getBytesRead()));
+            return value;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public JsonNode decode(byte[] value) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            return smileMapper.readTree(new InflaterInputStream(
+                    new ByteArrayInputStream(value, HEADER_LENGTH, value.length - HEADER_LENGTH),
+                    inflater
+            ));
+        } finally {
+            inflater.end();
+        }
+    }
+
+    @Override
+    public long getLength(byte[] value) {
+        return value.length;
+    }
+
+    @Override
+    public long estimateDecodedSize(byte[] value) {
+        return (long) DECODED_BYTES_PER_BYTE * ByteBuffer.wrap(value).getInt();
+    }
+}
@@ -9,6 +9,8 @@ import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 
 import org.joda.time.DateTime;
 
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
@@ -111,6 +113,30 @@ public interface Dimension {
      */
     DimensionRow findDimensionRowByKeyValue(String value);
 
+    /**
+     * Get the dimension rows for a collection of ids.
+     * <p>
+     * The default implementation performs one lookup per distinct value. Implementations backed by a store that
+     * supports bulk reads should override this to resolve all of the values in a single pass.
+     *
+     * @param values  key values to look up
+     *
+     * @return a map of key value to dimension row, containing only the values for which a row was found
+     */
+    default Map<String, DimensionRow> findAllDimensionRowsByKeyValues(Collection<String> values) {
+        Map<String, DimensionRow> dimensionRows = new LinkedHashMap<>(values.size());
+        for (String value : values) {
+            if (dimensionRows.containsKey(value)) {
+                continue;
+            }
+            DimensionRow dimensionRow = findDimensionRowByKeyValue(value);
+            if (dimensionRow != null) {
+                dimensionRows.put(value, dimensionRow);
+            }
+        }
+        return dimensionRows;
+    }
+
     /**
      * Get primary key field for this dimension.
      *
@@ -7,10 +7,16 @@ import org.slf4j.LoggerFactory;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 import redis.clients.jedis.exceptions.JedisException;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -22,6 +28,11 @@ import javax.validation.constraints.NotNull;
 public class RedisStore implements KeyValueStore {
     private static final Logger LOG = LoggerFactory.getLogger(RedisStore.class);
 
+    /**
+     * Maximum number of keys sent in a single MGET command, so that very large bulk reads don't block Redis.
+     */
+    private static final int MGET_BATCH_SIZE = 1000;
+
     private boolean redisIsHealthy;
     private final JedisPool pool;
     private final String storeName;
@@ -105,6 +116,40 @@ public class RedisStore implements KeyValueStore {
         }
     }
 
+    @Override
+    public Map<String, String> getAll(@NotNull Collection<String> keys) {
+        if (keys == null) {
+            throw new IllegalArgumentException("Cannot get null keys");
+        }
+
+        List<String> keyList = new ArrayList<>(keys);
+        List<String> rKeys = new ArrayList<>(keyList.size());
+        for (String key : keyList) {
+            if (key == null) {
+                throw new IllegalArgumentException("Cannot get null key");
+            }
+            rKeys.add(redisKey(storeName, key));
+        }
+
+        try (Jedis jedis = pool.getResource()) {
+            List<String> rValues = multiGet(jedis, rKeys);
+
+            Map<String, String> values = new LinkedHashMap<>(keyList.size());
+            for (int i = 0; i < keyList.size(); i++) {
+                String value = rValues.get(i);
+                if (value != null) {
+                    values.put(keyList.get(i), value);
+                }
+            }
+            return values;
+        } catch (JedisException e) {
+            redisIsHealthy = false;
+            String msg = String.format("Unable to get %d keys from Redis", keyList.size());
+            LOG.error(msg);
+            throw new RuntimeException(msg, e);
+        }
+    }
+
     @Override
     public boolean isHealthy() {
         // If we know we're not healthy, don't bother pinging.
@@ -127,33 +172,47 @@ public class RedisStore implements KeyValueStore {
             throw new IllegalArgumentException("Cannot set null entries");
         }
 
+        List<String> keys = new ArrayList<>(entries.keySet());
+        List<String> rKeys = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            if (key == null) {
+                throw new IllegalArgumentException("Cannot set null key");
+            }
+            rKeys.add(redisKey(storeName, key));
+        }
+
         try (Jedis jedis = pool.getResource()) {
+            // Read all of the previous values in one go, then send all of the writes in a single pipeline
+            List<String> oldRValues = multiGet(jedis, rKeys);
 
             Map<String, String> oldValues = new HashMap<>(entries.size());
-            for (String key : entries.keySet()) {
-                if (key == null) {
-                    throw new IllegalArgumentException("Cannot set null key");
-                }
-
-                String rKey = redisKey(storeName, key);
+            List<Response<String>> setResults = new ArrayList<>(keys.size());
+            Pipeline pipeline = jedis.pipelined();
+            for (int i = 0; i < keys.size(); i++) {
+                String key = keys.get(i);
+                String rKey = rKeys.get(i);
 
-                String oldValue = jedis.get(rKey);
+                String oldValue = oldRValues.get(i);
                 String newValue = entries.get(key);
 
                 oldValues.put(key, oldValue);
 
                 if (newValue == null) {
                     if (oldValue != null) {
-                        jedis.del(rKey);
+                        pipeline.del(rKey);
                     }
                 } else {
-                    String result = jedis.set(rKey, entries.get(key));
-                    if (!"OK".equals(result)) {
-                        redisIsHealthy = false;
-                        String msg = "Redis failed to store key";
-                        LOG.error(msg);
-                        throw new RuntimeException(msg);
-                    }
+                    setResults.add(pipeline.set(rKey, newValue));
+                }
+            }
+            pipeline.sync();
+
+            for (Response<String> result : setResults) {
+                if (!"OK".equals(result.get())) {
+                    redisIsHealthy = false;
+                    String msg = "Redis failed to store key";
+                    LOG.error(msg);
+                    throw new RuntimeException(msg);
                 }
             }
             return oldValues;
@@ -166,6 +225,36 @@ public class RedisStore implements KeyValueStore {
         }
     }
 
+    /**
+     * Read the values of many Redis keys using pipelined MGET commands of at most {@link #MGET_BATCH_SIZE} keys each.
+     *
+     * @param jedis  The connection to read with
+     * @param rKeys  The (already prefixed) Redis keys to read
+     *
+     * @return the values of the keys, in the same order as the keys, with null for keys that are not set
+     */
+    private List<String> multiGet(Jedis jedis, List<String> rKeys) {
+        List<String> values = new ArrayList<>(rKeys.size());
+
+        // Jedis crashes when passed an empty array, so only run mget if there are actually keys to read.
+        if (rKeys.isEmpty()) {
+            return values;
+        }
+
+        Pipeline pipeline = jedis.pipelined();
+        List<Response<List<String>>> batches = new ArrayList<>(rKeys.size() / MGET_BATCH_SIZE + 1);
+        for (int start = 0; start < rKeys.size(); start += MGET_BATCH_SIZE) {
+            List<String> batch = rKeys.subList(start, Math.min(start + MGET_BATCH_SIZE, rKeys.size()));
+            batches.add(pipeline.mget(batch.toArray(new String[batch.size()])));
+        }
+        pipeline.sync();
+
+        for (Response<List<String>> batch : batches) {
+            values.addAll(batch.get());
+        }
+        return values;
+    }
+
     /**
      * Ping the Redis server and update redisIsHealthy.
      */
@@ -23,6 +23,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -437,6 +438,15 @@ public class KeyValueStoreDimension implements Dimension {
         Map<String, String> storeRows = new LinkedHashMap<>(dimensionRows.size());
         Map<String, Pair<DimensionRow, DimensionRow>> indexRows = new LinkedHashMap<>(dimensionRows.size());
 
+        // Read all the rows that already exist in the store in one pass
+        Map<String, String> existingRows = keyValueStore.getAll(
+                dimensionRows.stream()
+                        .map(dimensionRow -> dimensionRow.get(getKey()))
+                        .filter(Objects::nonNull)
+                        .map(keyValue -> DimensionStoreKeyUtils.getRowKey(getKey().getName(), keyValue))
+                        .collect(Collectors.toCollection(LinkedHashSet::new))
+        );
+
         for (DimensionRow dimensionRow : dimensionRows) {
             try {
                 if (dimensionRow.isEmpty()) {
@@ -452,7 +462,7 @@ public class KeyValueStoreDimension implements Dimension {
 
                 // check if the dimension row already exists in store
                 DimensionRow dimensionRowOld = null;
-                String row = keyValueStore.get(rowIdKey);
+                String row = existingRows.get(rowIdKey);
                 if (row != null) {
                     LinkedHashMap<String, String> fieldNameValueMap = objectMapper.readValue(
                             row,
@@ -524,6 +534,29 @@ public class KeyValueStoreDimension implements Dimension {
         return drByKey;
     }
 
+    @Override
+    public Map<String, DimensionRow> findAllDimensionRowsByKeyValues(Collection<String> values) {
+        Map<String, String> rowKeyToValue = new LinkedHashMap<>(values.size());
+        for (String value : values) {
+            rowKeyToValue.put(DimensionStoreKeyUtils.getRowKey(getKey().getName(), value), value);
+        }
+
+        Map<String, DimensionRow> dimensionRows = new LinkedHashMap<>(rowKeyToValue.size());
+        try {
+            for (Map.Entry<String, String> row : keyValueStore.getAll(rowKeyToValue.keySet()).entrySet()) {
+                Map<String, String> dimensionRowMap = objectMapper.readValue(
+                        row.getValue(),
+                        new TypeReference<LinkedHashMap<String, String>>() { }
+                );
+                dimensionRows.put(rowKeyToValue.get(row.getKey()), parseDimensionRow(dimensionRowMap));
+            }
+        } catch (IOException e) {
+            LOG.error("Cannot map string to DimensionRow object. {}", e);
+            throw new RuntimeException(e);
+        }
+        return dimensionRows;
+    }
+
 
     /**
      * Internal method for cleaning the dimension rows.
@@ -537,11 +570,12 @@ public class KeyValueStoreDimension implements Dimension {
 
             String[] keys = objectMapper.readValue(dimRowIndexes, String[].class);
 
-            LinkedHashSet<String> dimRowKeys = new LinkedHashSet<>(Arrays.asList(keys));
-
-            for (String dimRowKey : dimRowKeys) {
-                keyValueStore.remove(dimRowKey);
+            // Putting a null value removes the key, so all rows can be removed with one bulk write
+            Map<String, String> removedRows = new LinkedHashMap<>(keys.length);
+            for (String dimRowKey : new LinkedHashSet<>(Arrays.asList(keys))) {
+                removedRows.put(dimRowKey, null);
             }
+            keyValueStore.putAll(removedRows);
             searchProvider.setKeyValueStore(keyValueStore);
 
             // Reset cardinality to 0
@@ -28,7 +28,6 @@ import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.stream.Collectors;
@@ -367,9 +366,7 @@ public class ScanSearchProvider implements SearchProvider, FilterDimensionRows {
      * @return  All ordered dimension rows that belongs to a requested page
      */
     private TreeSet<DimensionRow> getAllOrderedDimensionRows() {
-        return getDimRowIndexes().stream()
-                .map(keyValueStore::get)
-                .filter(Objects::nonNull)
+        return keyValueStore.getAll(getDimRowIndexes()).values().stream()
                 .map(dimRowJson -> readValue(new TypeReference<Map<String, String>>() { }, dimRowJson))
                 .map(dimension::parseDimensionRow)
                 .collect(Collectors.toCollection(TreeSet::new));
@@ -15,6 +15,11 @@ public class NoOpResultSetMapper extends ResultSetMapper implements ColumnMapper
         return resultSet;
     }
 
+    @Override
+    protected boolean isRowWise() {
+        return true;
+    }
+
     @Override
     protected Result map(Result result, ResultSetSchema schema) {
         return result;
@@ -7,10 +7,16 @@ import com.yahoo.bard.webservice.data.ResultSet;
 import com.yahoo.bard.webservice.data.ResultSetSchema;
 import com.yahoo.bard.webservice.util.AllPagesPagination;
 import com.yahoo.bard.webservice.util.Pagination;
+import com.yahoo.bard.webservice.util.SinglePagePagination;
 import com.yahoo.bard.webservice.web.AbstractResponse;
 import com.yahoo.bard.webservice.web.responseprocessors.MappingResponseProcessor;
 import com.yahoo.bard.webservice.web.util.PaginationParameters;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.OptionalInt;
+
 import javax.ws.rs.core.UriBuilder;
 
 /**
@@ -22,6 +28,7 @@ public class PaginationMapper extends ResultSetMapper {
     private final PaginationParameters paginationParameters;
     private final MappingResponseProcessor responseProcessor;
     private final UriBuilder uriBuilder;
+    private final OptionalInt numResults;
 
     /**
      * Constructor.
@@ -34,10 +41,46 @@ public class PaginationMapper extends ResultSetMapper {
             PaginationParameters paginationParameters,
             MappingResponseProcessor responseProcessor,
             UriBuilder uriBuilder
+    ) {
+        this(paginationParameters, responseProcessor, uriBuilder, OptionalInt.empty());
+    }
+
+    /**
+     * Constructor for results which are already just the page requested, such as when Druid was asked for only that
+     * page.
+     *
+     * @param paginationParameters  The parameters needed for pagination
+     * @param responseProcessor  The API response to which we can add the header links.
+     * @param uriBuilder  The builder for creating the pagination links.
+     * @param numResults  The number of results on all the pages
+     */
+    public PaginationMapper(
+            PaginationParameters paginationParameters,
+            MappingResponseProcessor responseProcessor,
+            UriBuilder uriBuilder,
+            int numResults
+    ) {
+        this(paginationParameters, responseProcessor, uriBuilder, OptionalInt.of(numResults));
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param paginationParameters  The parameters needed for pagination
+     * @param responseProcessor  The API response to which we can add the header links.
+     * @param uriBuilder  The builder for creating the pagination links.
+     * @param numResults  The number of results on all the pages, if the results are already just the page requested
+     */
+    private PaginationMapper(
+            PaginationParameters paginationParameters,
+            MappingResponseProcessor responseProcessor,
+            UriBuilder uriBuilder,
+            OptionalInt numResults
     ) {
         this.paginationParameters = paginationParameters;
         this.responseProcessor = responseProcessor;
         this.uriBuilder = uriBuilder;
+        this.numResults = numResults;
     }
 
     /**
@@ -49,12 +92,35 @@ public class PaginationMapper extends ResultSetMapper {
      */
     @Override
     public ResultSet map(ResultSet resultSet) {
-        Pagination<Result> pages = new AllPagesPagination<>(resultSet, paginationParameters);
+        Pagination<Result> pages = numResults.isPresent() ?
+                new SinglePagePagination<>(resultSet, paginationParameters, numResults.getAsInt()) :
+                new AllPagesPagination<>(resultSet, paginationParameters);
         AbstractResponse.addLinks(pages, uriBuilder, responseProcessor);
         //uses map for additional flexibility and robustness, even though it is currently a no-op.
         return new ResultSet(map(resultSet.getSchema()), pages.getPageOfData());
     }
 
+    /**
+     * Cuts a stream of rows down to just the page requested, keeping no more than a page of rows at a time.
+     * <p>
+     * Every row is still read, so that the total number of results behind the page links is right.
+     *
+     * @param schema  The schema of the rows
+     * @param results  The rows to be cut down
+     *
+     * @return The page of results desired.
+     */
+    public ResultSet map(ResultSetSchema schema, Iterator<Result> results) {
+        if (numResults.isPresent()) {
+            List<Result> page = new ArrayList<>();
+            results.forEachRemaining(page::add);
+            return map(new ResultSet(schema, page));
+        }
+        Pagination<Result> pages = AllPagesPagination.ofIterator(results, paginationParameters);
+        AbstractResponse.addLinks(pages, uriBuilder, responseProcessor);
+        return new ResultSet(map(schema), pages.getPageOfData());
+    }
+
     @Override
     protected Result map(Result result, ResultSetSchema schema) {
         //Not needed, because this mapper overrides map(ResultSet). So it is just a no-op.
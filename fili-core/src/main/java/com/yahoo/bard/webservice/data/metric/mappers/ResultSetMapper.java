@@ -19,6 +19,17 @@ abstract public class ResultSetMapper {
 
     private static final Logger LOG = LoggerFactory.getLogger(ResultSetMapper.class);
 
+    private static final ClassValue<Boolean> ROW_WISE = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            try {
+                return type.getMethod("map", ResultSet.class).getDeclaringClass() == ResultSetMapper.class;
+            } catch (NoSuchMethodException e) {
+                return false;
+            }
+        }
+    };
+
     /**
      * Take a complete result set and replace it with one altered according to the rules of the concrete mapper.
      *
@@ -64,6 +75,18 @@ abstract public class ResultSetMapper {
      */
     abstract protected ResultSetSchema map(ResultSetSchema schema);
 
+    /**
+     * Whether this mapper maps each row on its own, seeing nothing of the result set but the row and the schema.
+     * <p>
+     * Row-wise mappers can be fused with their neighbours into a single pass over the rows by a
+     * {@link ResultSetMapperPipeline}. By default a mapper is row-wise unless it overrides {@link #map(ResultSet)}.
+     *
+     * @return true if the mapper maps rows independently of one another
+     */
+    protected boolean isRowWise() {
+        return ROW_WISE.get(getClass());
+    }
+
     /**
      * Since a ResultSetMapper has no state associated with it, we consider two ResultSetMappers to be the same iff
      * they are of the same class.
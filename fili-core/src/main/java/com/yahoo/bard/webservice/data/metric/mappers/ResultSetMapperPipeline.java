@@ -0,0 +1,130 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.data.metric.mappers;
+
+import com.yahoo.bard.webservice.data.Result;
+import com.yahoo.bard.webservice.data.ResultSet;
+import com.yahoo.bard.webservice.data.ResultSetSchema;
+import com.yahoo.bard.webservice.data.StreamingResultSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Applies a list of ResultSetMappers to a result set, fusing the row-wise ones into single passes over the rows.
+ * <p>
+ * Applying mappers one after another builds a whole new result set for each of them. A pipeline instead runs each
+ * run of consecutive row-wise mappers as one lazy pass, in which a row goes through every mapper of the run before
+ * the next row is read. Only the mappers which need the whole result set, such as sorting, get one built for them.
+ * <p>
+ * Pagination needs the number of rows before it, but not the rows themselves: rows streaming into it are counted and
+ * dropped unless they are on the page requested, and the mappers after it only see the page.
+ * <p>
+ * A pipeline made only of row-wise mappers can also map a result set lazily, into a {@link StreamingResultSet} whose
+ * results are only mapped as they are read.
+ */
+public class ResultSetMapperPipeline {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ResultSetMapperPipeline.class);
+
+    private final List<ResultSetMapper> mappers;
+
+    /**
+     * Constructor.
+     *
+     * @param mappers  The mappers to apply, in order
+     */
+    public ResultSetMapperPipeline(List<ResultSetMapper> mappers) {
+        this.mappers = new ArrayList<>(mappers);
+    }
+
+    /**
+     * Map a result set through every mapper of the pipeline.
+     *
+     * @param resultSet  The unmapped result set
+     *
+     * @return The mapped result set
+     */
+    public ResultSet map(ResultSet resultSet) {
+        ResultSet mapped = resultSet;
+        ResultSetSchema schema = resultSet.getSchema();
+        Stream<Result> rows = null;
+
+        for (ResultSetMapper mapper : mappers) {
+            if (mapper.isRowWise()) {
+                if (rows == null) {
+                    rows = mapped.stream();
+                }
+                ResultSetSchema rowSchema = schema;
+                rows = rows.map(result -> mapper.map(result, rowSchema)).filter(Objects::nonNull);
+                schema = mapper.map(schema);
+            } else {
+                if (rows == null) {
+                    mapped = mapper.map(mapped);
+                } else if (mapper instanceof PaginationMapper) {
+                    mapped = ((PaginationMapper) mapper).map(schema, rows.iterator());
+                } else {
+                    mapped = new ResultSet(schema, rows.collect(Collectors.toList()));
+                    mapped = mapper.map(mapped);
+                }
+                rows = null;
+                schema = mapped.getSchema();
+            }
+        }
+
+        if (rows != null) {
+            mapped = new ResultSet(schema, rows.collect(Collectors.toList()));
+        }
+        LOG.trace("Mapped resultSet: {} to new resultSet {}", resultSet, mapped);
+        return mapped;
+    }
+
+    /**
+     * Whether every mapper of the pipeline maps results one at a time, so that the pipeline can map lazily.
+     *
+     * @return true if no mapper of the pipeline needs the whole result set
+     */
+    public boolean isRowWise() {
+        return mappers.stream().allMatch(ResultSetMapper::isRowWise);
+    }
+
+    /**
+     * Map a result set through every mapper of the pipeline as its results are read.
+     * <p>
+     * Nothing is read from the result set until the mapped result set is read, and each result is read and mapped
+     * when the mapped result set is asked for its next result. Only the schema is mapped up front.
+     *
+     * @param resultSet  The unmapped result set
+     *
+     * @return the mapped result set, which can only be read once
+     *
+     * @throws IllegalStateException if a mapper of the pipeline needs the whole result set
+     */
+    public StreamingResultSet mapLazily(ResultSet resultSet) {
+        if (!isRowWise()) {
+            throw new IllegalStateException("Only a pipeline of row-wise mappers can map a result set lazily");
+        }
+        List<ResultSetSchema> schemas = new ArrayList<>(mappers.size());
+        ResultSetSchema schema = resultSet.getSchema();
+        for (ResultSetMapper mapper : mappers) {
+            schemas.add(schema);
+            schema = mapper.map(schema);
+        }
+
+        return new StreamingResultSet(schema, () -> {
+            Stream<Result> rows = resultSet.stream();
+            for (int i = 0; i < mappers.size(); i++) {
+                ResultSetMapper mapper = mappers.get(i);
+                ResultSetSchema rowSchema = schemas.get(i);
+                rows = rows.map(result -> mapper.map(result, rowSchema)).filter(Objects::nonNull);
+            }
+            return rows;
+        });
+    }
+}
@@ -11,6 +11,9 @@ import org.slf4j.LoggerFactory;
 
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -57,6 +60,12 @@ public class DruidClientConfigHelper {
     private static final String DRUID_BROKER_URL_KEY =
             SYSTEM_CONFIG.getPackageVariableName("druid_broker");
 
+    /**
+     * The urls of the individual brokers which serve all queries, when requests are spread over them by Fili.
+     */
+    private static final String DRUID_BROKER_URLS_KEY =
+            SYSTEM_CONFIG.getPackageVariableName("druid_brokers");
+
     /**
      * The url for the coordinator vip which serves low latency queries.
      */
@@ -182,6 +191,17 @@ public class DruidClientConfigHelper {
         return url;
     }
 
+    /**
+     * Fetches the URLs of the individual druid brokers.
+     *
+     * @return druid broker URLs, empty if requests are not spread over individual brokers
+     */
+    public static List<String> getDruidBrokerUrls() {
+        List<String> urls = SYSTEM_CONFIG.getListProperty(DRUID_BROKER_URLS_KEY, Collections.emptyList());
+        urls.forEach(DruidClientConfigHelper::validateUrl);
+        return urls;
+    }
+
     /**
      * Fetches the URL of the druid coordinator.
      *
@@ -265,6 +285,22 @@ public class DruidClientConfigHelper {
         return new DruidServiceConfig("Broker", getDruidUrl(), getDruidTimeout(), getDruidPriority());
     }
 
+    /**
+     * Create a druid service configuration object for each of the individual brokers.
+     * <p>
+     * The brokers are named {@code Broker0}, {@code Broker1} and so on, in the order their URLs are configured.
+     *
+     * @return the druid service configuration objects, empty if requests are not spread over individual brokers
+     */
+    public static List<DruidServiceConfig> getBrokerServiceConfigs() {
+        List<String> urls = getDruidBrokerUrls();
+        List<DruidServiceConfig> configs = new ArrayList<>(urls.size());
+        for (int i = 0; i < urls.size(); i++) {
+            configs.add(new DruidServiceConfig("Broker" + i, urls.get(i), getDruidTimeout(), getDruidPriority()));
+        }
+        return configs;
+    }
+
     /**
      * Create a druid service configuration object for the metadata service.
      *
@@ -0,0 +1,25 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.druid.client;
+
+import com.fasterxml.jackson.core.JsonParser;
+
+import java.io.IOException;
+
+/**
+ * Callback from the async HTTP client on success, which can read the response body as a stream of json tokens.
+ * <p>
+ * Web services which support streaming hand the callback a parser over the response body, so the response never has
+ * to be built into a json tree. Web services which do not support it call {@link SuccessCallback#invoke} with the
+ * tree as usual.
+ */
+public interface StreamingSuccessCallback extends SuccessCallback {
+    /**
+     * Invoke the success callback code on the response body.
+     *
+     * @param parser  Parser over the response body, positioned before its first token
+     *
+     * @throws IOException if the response body cannot be read
+     */
+    void invoke(JsonParser parser) throws IOException;
+}
@@ -0,0 +1,432 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.druid.client.impl;
+
+import com.yahoo.bard.webservice.application.MetricRegistryFactory;
+import com.yahoo.bard.webservice.config.SystemConfig;
+import com.yahoo.bard.webservice.config.SystemConfigProvider;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Bounds the number of outstanding requests to a druid service, adapting the bound to the service's latency.
+ * <p>
+ * The limit follows an AIMD (additive increase, multiplicative decrease) scheme. A request answered without sign of
+ * overload, while at least half of the limit is in use, raises the limit by one. A request that times out, is answered
+ * with a 429 or 5xx, or takes more than {@code druid_concurrency_limit_latency_tolerance} times the service's no-load
+ * latency (the lowest recent latency) lowers the limit by a tenth. The limit stays between
+ * {@code druid_concurrency_limit_min} and {@code druid_concurrency_limit_max}.
+ * <p>
+ * Requests over the limit wait, in order, in a queue of at most {@code druid_concurrency_limit_max_queued} requests.
+ * A request is shed (rejected) when the queue is full, or when its timeout would pass before it could be answered,
+ * judging by the service's recent latency.
+ * <p>
+ * The limit, the number of requests in flight and queued, and the shed requests are metered under
+ * {@code druid.limiter.<service name>}.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AdaptiveConcurrencyLimiter.class);
+    private static final SystemConfig SYSTEM_CONFIG = SystemConfigProvider.getInstance();
+    private static final MetricRegistry REGISTRY = MetricRegistryFactory.getRegistry();
+
+    public static final int DISABLED = -1;
+
+    public static final long NO_SAMPLE = -1;
+
+    public static final int MAX_LIMIT = SYSTEM_CONFIG.getIntProperty(
+            SYSTEM_CONFIG.getPackageVariableName("druid_concurrency_limit_max"),
+            DISABLED
+    );
+
+    public static final int MIN_LIMIT = SYSTEM_CONFIG.getIntProperty(
+            SYSTEM_CONFIG.getPackageVariableName("druid_concurrency_limit_min"),
+            1
+    );
+
+    public static final int INITIAL_LIMIT = SYSTEM_CONFIG.getIntProperty(
+            SYSTEM_CONFIG.getPackageVariableName("druid_concurrency_limit_initial"),
+            20
+    );
+
+    public static final int MAX_QUEUED = SYSTEM_CONFIG.getIntProperty(
+            SYSTEM_CONFIG.getPackageVariableName("druid_concurrency_limit_max_queued"),
+            1000
+    );
+
+    public static final double LATENCY_TOLERANCE = SYSTEM_CONFIG.getDoubleProperty(
+            SYSTEM_CONFIG.getPackageVariableName("druid_concurrency_limit_latency_tolerance"),
+            2.0
+    );
+
+    private static final String QUEUE_FULL = "too many requests are waiting for it";
+    private static final String DEADLINE = "the request would time out waiting for it";
+
+    // Factor the limit is multiplied by on a sign of overload
+    private static final double BACKOFF_RATIO = 0.9;
+
+    // Weight of the newest sample in the moving average latency
+    private static final double LATENCY_DECAY = 0.1;
+
+    // Number of samples needed before latency is used to judge overload and deadlines
+    private static final int LATENCY_MIN_SAMPLES = 20;
+
+    // Number of samples after which the no-load latency is measured afresh, so it can follow the service upwards
+    private static final int LATENCY_WINDOW = 1000;
+
+    private final String name;
+    private final int minLimit;
+    private final int maxLimit;
+    private final int maxQueued;
+    private final double latencyTolerance;
+    private final Meter shed;
+
+    // Guarded by this
+    private final Deque<LimitedRequest> queue = new ArrayDeque<>();
+    private double limit;
+    private int inFlight = 0;
+    private double latency = 0;
+    private long noLoadLatency = Long.MAX_VALUE;
+    private long windowMinLatency = Long.MAX_VALUE;
+    private long latencySamples = 0;
+
+    /**
+     * Constructor, using the configured limits.
+     *
+     * @param name  The name of the druid service, for metrics and logging
+     */
+    public AdaptiveConcurrencyLimiter(String name) {
+        this(name, INITIAL_LIMIT, MIN_LIMIT, MAX_LIMIT, MAX_QUEUED, LATENCY_TOLERANCE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param name  The name of the druid service, for metrics and logging
+     * @param initialLimit  The limit to start with
+     * @param minLimit  The lowest the limit may go
+     * @param maxLimit  The highest the limit may go
+     * @param maxQueued  The most requests that may wait for the limit
+     * @param latencyTolerance  How many times the no-load latency a request may take before it signals overload
+     */
+    public AdaptiveConcurrencyLimiter(
+            String name,
+            int initialLimit,
+            int minLimit,
+            int maxLimit,
+            int maxQueued,
+            double latencyTolerance
+    ) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            String message = String.format(
+                    "Invalid concurrency limits for druid service %s: min %d, max %d",
+                    name,
+                    minLimit,
+                    maxLimit
+            );
+            LOG.error(message);
+            throw new IllegalArgumentException(message);
+        }
+        this.name = name;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.maxQueued = maxQueued;
+        this.latencyTolerance = latencyTolerance;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+
+        String prefix = "druid.limiter." + name + ".";
+        this.shed = REGISTRY.meter(prefix + "shed");
+        // A rebuilt service replaces the gauges of the one it replaces
+        registerGauge(prefix + "limit", this::getLimit);
+        registerGauge(prefix + "in_flight", this::getInFlight);
+        registerGauge(prefix + "queued", this::getQueued);
+    }
+
+    /**
+     * Check whether concurrency limits are configured for druid services.
+     *
+     * @return true if druid services should limit their outstanding requests
+     */
+    public static boolean isConfigured() {
+        return MAX_LIMIT != DISABLED;
+    }
+
+    /**
+     * Send a request as soon as the limit allows, or shed it.
+     * <p>
+     * The request is sent at once if the limit allows, otherwise it waits in the queue and is sent by the thread that
+     * frees up room for it. The permit handed to the request must be released once its outcome is known. A shed request
+     * is never sent.
+     *
+     * @param timeoutNanos  How long the request may take in all, including the time it waits
+     * @param send  Sends the request, holding a permit
+     * @param reject  Handles the request being shed, given the reason
+     *
+     * @return the request, which may be cancelled while it waits
+     */
+    public LimitedRequest submit(long timeoutNanos, Consumer<Permit> send, Consumer<String> reject) {
+        LimitedRequest request = new LimitedRequest(timeoutNanos, send, reject);
+        List<LimitedRequest> rejected = new ArrayList<>();
+        String reason = null;
+        boolean admitted = false;
+        synchronized (this) {
+            long now = System.nanoTime();
+            expire(now, rejected);
+            if (queue.isEmpty() && inFlight < getLimit()) {
+                inFlight++;
+                admitted = true;
+            } else if (queue.size() >= maxQueued) {
+                reason = QUEUE_FULL;
+            } else if (!canMeetDeadline(request, now)) {
+                reason = DEADLINE;
+            } else {
+                queue.addLast(request);
+            }
+        }
+
+        rejected.forEach(expired -> expired.shed(DEADLINE));
+        if (admitted) {
+            request.send();
+        } else if (reason != null) {
+            request.shed(reason);
+        }
+        return request;
+    }
+
+    /**
+     * Get the current limit on outstanding requests.
+     *
+     * @return the limit
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * Get the number of requests sent and not yet released.
+     *
+     * @return the number of requests in flight
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Get the number of requests waiting for the limit.
+     *
+     * @return the number of queued requests
+     */
+    public synchronized int getQueued() {
+        return queue.size();
+    }
+
+    /**
+     * Return a request's permit, adjust the limit by its outcome, and send the waiting requests that now fit.
+     *
+     * @param latencyNanos  How long the request took to answer, or {@link #NO_SAMPLE}
+     * @param overloaded  Whether the outcome signals that the service is overloaded
+     */
+    private void release(long latencyNanos, boolean overloaded) {
+        List<LimitedRequest> admitted = new ArrayList<>();
+        List<LimitedRequest> rejected = new ArrayList<>();
+        synchronized (this) {
+            int used = inFlight;
+            inFlight--;
+            adjustLimit(latencyNanos, overloaded, used);
+
+            long now = System.nanoTime();
+            while (inFlight < getLimit() && !queue.isEmpty()) {
+                LimitedRequest request = queue.pollFirst();
+                if (canMeetDeadline(request, now)) {
+                    inFlight++;
+                    admitted.add(request);
+                } else {
+                    rejected.add(request);
+                }
+            }
+        }
+
+        rejected.forEach(expired -> expired.shed(DEADLINE));
+        for (LimitedRequest request : admitted) {
+            try {
+                request.send();
+            } catch (RuntimeException e) {
+                // The request's own error handling failed, which must not stop the other waiting requests
+                LOG.error("Unable to send queued request to druid service {}", name, e);
+            }
+        }
+    }
+
+    /**
+     * Adjust the limit by the outcome of a request.
+     *
+     * @param latencyNanos  How long the request took to answer, or {@link #NO_SAMPLE}
+     * @param overloaded  Whether the outcome signals that the service is overloaded
+     * @param used  The number of requests in flight when the request completed, including itself
+     */
+    private void adjustLimit(long latencyNanos, boolean overloaded, int used) {
+        boolean sampled = latencyNanos != NO_SAMPLE;
+        if (sampled) {
+            recordLatency(latencyNanos);
+        }
+        boolean slow = sampled
+                && latencySamples >= LATENCY_MIN_SAMPLES
+                && latencyNanos > latencyTolerance * noLoadLatency;
+
+        if (overloaded || slow) {
+            limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+        } else if (sampled && used * 2 >= limit) {
+            limit = Math.min(maxLimit, limit + 1);
+        }
+    }
+
+    /**
+     * Fold a latency sample into the moving average and no-load latencies.
+     *
+     * @param latencyNanos  How long a request took to answer
+     */
+    private void recordLatency(long latencyNanos) {
+        latency = latencySamples == 0 ? latencyNanos : latency + LATENCY_DECAY * (latencyNanos - latency);
+        latencySamples++;
+        noLoadLatency = Math.min(noLoadLatency, latencyNanos);
+        windowMinLatency = Math.min(windowMinLatency, latencyNanos);
+        if (latencySamples % LATENCY_WINDOW == 0) {
+            noLoadLatency = windowMinLatency;
+            windowMinLatency = Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Check whether a request could still be answered within its timeout if it were sent now.
+     *
+     * @param request  The request to check
+     * @param now  The current time in nanoseconds
+     *
+     * @return true if the request's deadline can be met
+     */
+    private boolean canMeetDeadline(LimitedRequest request, long now) {
+        long expected = latencySamples >= LATENCY_MIN_SAMPLES ? (long) latency : 0;
+        return now - request.submitted + expected <= request.timeoutNanos;
+    }
+
+    /**
+     * Take the requests at the head of the queue whose deadlines can no longer be met out of the queue.
+     *
+     * @param now  The current time in nanoseconds
+     * @param rejected  Collects the requests taken out of the queue
+     */
+    private void expire(long now, List<LimitedRequest> rejected) {
+        while (!queue.isEmpty() && !canMeetDeadline(queue.peekFirst(), now)) {
+            rejected.add(queue.pollFirst());
+        }
+    }
+
+    /**
+     * Register a gauge, replacing any gauge already registered under the name.
+     *
+     * @param metricName  The name of the gauge
+     * @param gauge  The gauge
+     */
+    private static void registerGauge(String metricName, Gauge<Integer> gauge) {
+        REGISTRY.remove(metricName);
+        REGISTRY.register(metricName, gauge);
+    }
+
+    /**
+     * A request admitted by the limiter, which must be released exactly once when its outcome is known.
+     */
+    public final class Permit {
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        /**
+         * Constructor.
+         */
+        private Permit() {
+        }
+
+        /**
+         * Return the permit, reporting the outcome of the request.
+         * <p>
+         * Only the first release of a permit has any effect.
+         *
+         * @param latencyNanos  How long the request took to answer, or {@link #NO_SAMPLE} if it says nothing about
+         * the service's latency
+         * @param overloaded  Whether the outcome signals that the service is overloaded
+         */
+        public void release(long latencyNanos, boolean overloaded) {
+            if (released.compareAndSet(false, true)) {
+                AdaptiveConcurrencyLimiter.this.release(latencyNanos, overloaded);
+            }
+        }
+    }
+
+    /**
+     * A request submitted to the limiter.
+     */
+    public final class LimitedRequest {
+        private final long submitted = System.nanoTime();
+        private final long timeoutNanos;
+        private final Consumer<Permit> sender;
+        private final Consumer<String> rejecter;
+
+        /**
+         * Constructor.
+         *
+         * @param timeoutNanos  How long the request may take in all
+         * @param sender  Sends the request
+         * @param rejecter  Handles the request being shed
+         */
+        private LimitedRequest(long timeoutNanos, Consumer<Permit> sender, Consumer<String> rejecter) {
+            this.timeoutNanos = timeoutNanos;
+            this.sender = sender;
+            this.rejecter = rejecter;
+        }
+
+        /**
+         * Take the request out of the queue, if it is still waiting.
+         *
+         * @return true if the request was waiting, and will now never be sent
+         */
+        public boolean cancel() {
+            synchronized (AdaptiveConcurrencyLimiter.this) {
+                return queue.remove(this);
+            }
+        }
+
+        /**
+         * Send the request, holding a permit.
+         */
+        private void send() {
+            Permit permit = new Permit();
+            try {
+                sender.accept(permit);
+            } catch (RuntimeException e) {
+                permit.release(NO_SAMPLE, false);
+                throw e;
+            }
+        }
+
+        /**
+         * Shed the request.
+         *
+         * @param reason  Why the request is shed
+         */
+        private void shed(String reason) {
+            shed.mark();
+            LOG.warn("Shedding request to druid service {} since {}", name, reason);
+            rejecter.accept(String.format("Druid service %s is at its concurrency limit and %s", name, reason));
+        }
+    }
+}
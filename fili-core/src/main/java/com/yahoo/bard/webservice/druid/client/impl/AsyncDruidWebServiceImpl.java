@@ -12,9 +12,11 @@ import com.yahoo.bard.webservice.druid.client.DruidServiceConfig;
 import com.yahoo.bard.webservice.druid.client.DruidWebService;
 import com.yahoo.bard.webservice.druid.client.FailureCallback;
 import com.yahoo.bard.webservice.druid.client.HttpErrorCallback;
+import com.yahoo.bard.webservice.druid.client.StreamingSuccessCallback;
 import com.yahoo.bard.webservice.druid.client.SuccessCallback;
 import com.yahoo.bard.webservice.druid.model.query.DruidQuery;
 import com.yahoo.bard.webservice.druid.model.query.WeightEvaluationQuery;
+import com.yahoo.bard.webservice.druid.serializers.SerializedQuery;
 import com.yahoo.bard.webservice.logging.RequestLog;
 import com.yahoo.bard.webservice.logging.blocks.DruidResponse;
 import com.yahoo.bard.webservice.util.CompletedFuture;
@@ -22,9 +24,10 @@ import com.yahoo.bard.webservice.web.handlers.RequestContext;
 
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
-import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.MappingJsonFactory;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectWriter;
 
@@ -34,14 +37,20 @@ import org.asynchttpclient.AsyncHttpClientConfig;
 import org.asynchttpclient.BoundRequestBuilder;
 import org.asynchttpclient.DefaultAsyncHttpClient;
 import org.asynchttpclient.DefaultAsyncHttpClientConfig;
+import org.asynchttpclient.ListenableFuture;
 import org.asynchttpclient.Response;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 import java.util.function.Supplier;
@@ -59,6 +68,7 @@ public class AsyncDruidWebServiceImpl implements DruidWebService {
     private final ObjectWriter writer;
     private final Meter httpErrorMeter;
     private final Meter exceptionMeter;
+    private final Meter cancelledMeter;
 
     public static final String DRUID_TIMER = "DruidProcessing";
     public static final String DRUID_QUERY_TIMER = DRUID_TIMER + "_Q_";
@@ -69,14 +79,16 @@ public class AsyncDruidWebServiceImpl implements DruidWebService {
 
     /**
      * The default JSON builder puts only response body in the JSON response.
+     * <p>
+     * The body is decoded according to the response's content type and encoding, as sent by {@link DruidTransport}.
      */
     public static final Function<Response, JsonNode> DEFAULT_JSON_NODE_BUILDER_STRATEGY =
             new Function<Response, JsonNode>() {
 
         @Override
         public JsonNode apply(Response response) {
-            try {
-                return new MappingJsonFactory().createParser(response.getResponseBodyAsStream()).readValueAsTree();
+            try (JsonParser parser = DruidTransport.createParser(response)) {
+                return parser.readValueAsTree();
             } catch (IOException ioe) {
                 throw new IllegalStateException(ioe);
             }
@@ -87,6 +99,9 @@ public class AsyncDruidWebServiceImpl implements DruidWebService {
     private final DruidServiceConfig serviceConfig;
 
     private final Function<Response, JsonNode> jsonNodeBuilderStrategy;
+    private final JsonFactory jsonFactory;
+    private final AdaptiveConcurrencyLimiter concurrencyLimiter;
+    private final DruidTransport transport;
 
     /**
      * Friendly non-DI constructor useful for manual tests.
@@ -208,6 +223,58 @@ public class AsyncDruidWebServiceImpl implements DruidWebService {
             ObjectMapper mapper,
             Supplier<Map<String, String>> headersToAppend,
             Function<Response, JsonNode> jsonNodeBuilderStrategy
+    ) {
+        this(config, asyncHttpClient, mapper, headersToAppend, jsonNodeBuilderStrategy, DruidTransport.getConfigured());
+    }
+
+    /**
+     * IOC constructor.
+     *
+     * @param config  the configuration for this druid service
+     * @param asyncHttpClient  the HTTP client
+     * @param mapper  A shared jackson object mapper resource
+     * @param headersToAppend Supplier for map of headers for Druid requests
+     * @param jsonNodeBuilderStrategy A function to build JSON nodes from the response
+     * @param transport  The format queries and responses travel in
+     */
+    public AsyncDruidWebServiceImpl(
+            DruidServiceConfig config,
+            AsyncHttpClient asyncHttpClient,
+            ObjectMapper mapper,
+            Supplier<Map<String, String>> headersToAppend,
+            Function<Response, JsonNode> jsonNodeBuilderStrategy,
+            DruidTransport transport
+    ) {
+        this(
+                config,
+                asyncHttpClient,
+                mapper,
+                headersToAppend,
+                jsonNodeBuilderStrategy,
+                transport,
+                AdaptiveConcurrencyLimiter.isConfigured() ? new AdaptiveConcurrencyLimiter(config.getName()) : null
+        );
+    }
+
+    /**
+     * IOC constructor.
+     *
+     * @param config  the configuration for this druid service
+     * @param asyncHttpClient  the HTTP client
+     * @param mapper  A shared jackson object mapper resource
+     * @param headersToAppend Supplier for map of headers for Druid requests
+     * @param jsonNodeBuilderStrategy A function to build JSON nodes from the response
+     * @param transport  The format queries and responses travel in
+     * @param concurrencyLimiter  The limiter of requests in flight to the service, or null for no limit
+     */
+    public AsyncDruidWebServiceImpl(
+            DruidServiceConfig config,
+            AsyncHttpClient asyncHttpClient,
+            ObjectMapper mapper,
+            Supplier<Map<String, String>> headersToAppend,
+            Function<Response, JsonNode> jsonNodeBuilderStrategy,
+            DruidTransport transport,
+            AdaptiveConcurrencyLimiter concurrencyLimiter
     ) {
         this.serviceConfig = config;
 
@@ -217,14 +284,18 @@ public class AsyncDruidWebServiceImpl implements DruidWebService {
             throw new IllegalStateException(msg);
         }
 
-        LOG.info("Configured with druid server config: {}", config.toString());
+        LOG.info("Configured with druid server config: {} and {} transport", config.toString(), transport);
         this.headersToAppend = headersToAppend;
         this.webClient = asyncHttpClient;
         this.writer = mapper.writer();
         this.httpErrorMeter = REGISTRY.meter("druid.errors.http");
         this.exceptionMeter = REGISTRY.meter("druid.errors.exceptions");
+        this.cancelledMeter = REGISTRY.meter("druid.queries.cancelled");
 
         this.jsonNodeBuilderStrategy = jsonNodeBuilderStrategy;
+        this.jsonFactory = mapper.getFactory();
+        this.transport = transport;
+        this.concurrencyLimiter = concurrencyLimiter;
     }
 
     /**
@@ -253,7 +324,7 @@ public class AsyncDruidWebServiceImpl implements DruidWebService {
 
 
     /**
-     * Serializes the provided query and invokes a request on the druid broker.
+     * Serializes the provided query and invokes a request on the druid broker, within the service's timeout.
      *
      * @param success  callback for handling successful requests.
      * @param error  callback for handling http errors.
@@ -271,14 +342,91 @@ public class AsyncDruidWebServiceImpl implements DruidWebService {
             final BoundRequestBuilder requestBuilder,
             final String timerName,
             final AtomicLong outstanding
+    ) {
+        return sendRequest(success, error, failure, requestBuilder, timerName, outstanding, serviceConfig.getTimeout());
+    }
+
+    /**
+     * Serializes the provided query and invokes a request on the druid broker.
+     * <p>
+     * When concurrency limits are configured, a request over the service's limit waits for room, and is answered with
+     * a 503 error if it is shed instead.
+     *
+     * @param success  callback for handling successful requests.
+     * @param error  callback for handling http errors.
+     * @param failure  callback for handling exception failures.
+     * @param requestBuilder  The bound request builder for the request to be sent.
+     * @param timerName  The name that distinguishes this request as part of a druid query or segment metadata request
+     * @param outstanding  The counter that keeps track of the outstanding (in flight) requests for the top level query
+     * @param timeout  How long the request may take in all, in milliseconds, or null for no limit
+     *
+     * @return a future response for the query being sent
+     */
+    protected Future<Response> sendRequest(
+            final SuccessCallback success,
+            final HttpErrorCallback error,
+            final FailureCallback failure,
+            final BoundRequestBuilder requestBuilder,
+            final String timerName,
+            final AtomicLong outstanding,
+            final Integer timeout
     ) {
         RequestLog.startTiming(timerName);
         final RequestLog logCtx = RequestLog.dump();
+        if (concurrencyLimiter == null) {
+            return execute(success, error, failure, requestBuilder, timerName, outstanding, logCtx, null);
+        }
+
+        LimitedResponse limitedResponse = new LimitedResponse(
+                () -> withdraw(failure, timerName, outstanding, logCtx)
+        );
+        limitedResponse.request = concurrencyLimiter.submit(
+                timeout == null ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(timeout),
+                permit -> limitedResponse.sent(
+                        execute(success, error, failure, requestBuilder, timerName, outstanding, logCtx, permit)
+                ),
+                reason -> {
+                    shed(reason, error, timerName, outstanding, logCtx);
+                    limitedResponse.complete(null);
+                }
+        );
+        return limitedResponse;
+    }
+
+    /**
+     * Send a request to druid and hand its outcome to the callbacks.
+     *
+     * @param success  callback for handling successful requests.
+     * @param error  callback for handling http errors.
+     * @param failure  callback for handling exception failures.
+     * @param requestBuilder  The bound request builder for the request to be sent.
+     * @param timerName  The name that distinguishes this request as part of a druid query or segment metadata request
+     * @param outstanding  The counter that keeps track of the outstanding (in flight) requests for the top level query
+     * @param logCtx  The request log of the thread the request was made on
+     * @param permit  The concurrency limiter's permit to release once the outcome is known, or null
+     *
+     * @return a future response for the query being sent
+     */
+    private Future<Response> execute(
+            final SuccessCallback success,
+            final HttpErrorCallback error,
+            final FailureCallback failure,
+            final BoundRequestBuilder requestBuilder,
+            final String timerName,
+            final AtomicLong outstanding,
+            final RequestLog logCtx,
+            final AdaptiveConcurrencyLimiter.Permit permit
+    ) {
+        final long start = System.nanoTime();
         try {
             return requestBuilder.execute(
                 new AsyncCompletionHandler<Response>() {
                     @Override
                     public Response onCompleted(Response response) {
+                        if (permit != null) {
+                            int statusCode = response.getStatusCode();
+                            permit.release(System.nanoTime() - start, statusCode == 429 || statusCode >= 500);
+                        }
                         String druidQueryId = response.getHeader("X-Druid-Query-Id");
                         Status status = Status.fromStatusCode(response.getStatusCode());
                         logRequest(logCtx, timerName, outstanding, druidQueryId, status);
@@ -287,7 +435,11 @@ public class AsyncDruidWebServiceImpl implements DruidWebService {
                             markError(status, response, druidQueryId, error);
                         } else {
                             try {
-                                success.invoke(jsonNodeBuilderStrategy.apply(response));
+                                if (isStreamable(success)) {
+                                    streamResponse((StreamingSuccessCallback) success, response);
+                                } else {
+                                    success.invoke(jsonNodeBuilderStrategy.apply(response));
+                                }
                             } catch (RuntimeException e) {
                                 failure.invoke(e);
                             }
@@ -300,17 +452,30 @@ public class AsyncDruidWebServiceImpl implements DruidWebService {
 
                     @Override
                     public void onThrowable(Throwable t) {
+                        if (permit != null) {
+                            // A request cancelled on this side says nothing about the service's load
+                            permit.release(AdaptiveConcurrencyLimiter.NO_SAMPLE, !(t instanceof CancellationException));
+                        }
                         RequestLog.restore(logCtx);
                         RequestLog.stopTiming(timerName);
                         if (outstanding.decrementAndGet() == 0) {
                             RequestLog.startTiming(RESPONSE_WORKFLOW_TIMER);
                         }
-                        exceptionMeter.mark();
-                        LOG.error("druid {} request failed:", serviceConfig.getNameAndUrl(), t);
+                        if (t instanceof CancellationException) {
+                            // Cancelled on purpose, such as the losing copy of a hedged query or a client abort
+                            cancelledMeter.mark();
+                            LOG.debug("druid {} request cancelled", serviceConfig.getNameAndUrl());
+                        } else {
+                            exceptionMeter.mark();
+                            LOG.error("druid {} request failed:", serviceConfig.getNameAndUrl(), t);
+                        }
                         failure.invoke(t);
                     }
                 });
         } catch (RuntimeException t) {
+            if (permit != null) {
+                permit.release(AdaptiveConcurrencyLimiter.NO_SAMPLE, false);
+            }
             RequestLog.restore(logCtx);
             RequestLog.stopTiming(timerName);
             if (outstanding.decrementAndGet() == 0) {
@@ -322,6 +487,96 @@ public class AsyncDruidWebServiceImpl implements DruidWebService {
         }
     }
 
+    /**
+     * Answer a request shed by the concurrency limiter with a 503 error.
+     * <p>
+     * This may run on a thread answering another request, so that thread's own request log is put back afterwards.
+     *
+     * @param reason  Why the request was shed
+     * @param error  callback for handling http errors.
+     * @param timerName  The name that distinguishes this request as part of a druid query or segment metadata request
+     * @param outstanding  The counter that keeps track of the outstanding (in flight) requests for the top level query
+     * @param logCtx  The request log of the thread the request was made on
+     */
+    private void shed(
+            String reason,
+            HttpErrorCallback error,
+            String timerName,
+            AtomicLong outstanding,
+            RequestLog logCtx
+    ) {
+        RequestLog threadLog = RequestLog.dump();
+        RequestLog.restore(logCtx);
+        try {
+            RequestLog.stopTiming(timerName);
+            if (outstanding.decrementAndGet() == 0) {
+                RequestLog.startTiming(RESPONSE_WORKFLOW_TIMER);
+            }
+            getHttpErrorMeter().mark();
+            Status status = Status.SERVICE_UNAVAILABLE;
+            error.invoke(status.getStatusCode(), status.getReasonPhrase(), reason);
+        } finally {
+            RequestLog.restore(threadLog);
+        }
+    }
+
+    /**
+     * Fail a request which was cancelled while it waited for the concurrency limiter, and so was never sent.
+     * <p>
+     * This may run on a thread answering another request, so that thread's own request log is put back afterwards.
+     *
+     * @param failure  callback for handling exception failures.
+     * @param timerName  The name that distinguishes this request as part of a druid query or segment metadata request
+     * @param outstanding  The counter that keeps track of the outstanding (in flight) requests for the top level query
+     * @param logCtx  The request log of the thread the request was made on
+     */
+    private void withdraw(FailureCallback failure, String timerName, AtomicLong outstanding, RequestLog logCtx) {
+        RequestLog threadLog = RequestLog.dump();
+        RequestLog.restore(logCtx);
+        try {
+            RequestLog.stopTiming(timerName);
+            if (outstanding.decrementAndGet() == 0) {
+                RequestLog.startTiming(RESPONSE_WORKFLOW_TIMER);
+            }
+            cancelledMeter.mark();
+            failure.invoke(new CancellationException(String.format(
+                    "Request to druid %s cancelled while waiting for the concurrency limiter",
+                    serviceConfig.getNameAndUrl()
+            )));
+        } finally {
+            RequestLog.restore(threadLog);
+        }
+    }
+
+    /**
+     * Check whether a success callback can be handed the response body as a stream of json tokens.
+     * <p>
+     * Only the default json builder puts the response body alone in the json, so a custom builder (which may add
+     * response headers, for instance) always gets to build the tree.
+     *
+     * @param success  The callback for handling the successful request
+     *
+     * @return true if the response should be streamed to the callback
+     */
+    protected boolean isStreamable(SuccessCallback success) {
+        return success instanceof StreamingSuccessCallback
+                && jsonNodeBuilderStrategy == DEFAULT_JSON_NODE_BUILDER_STRATEGY;
+    }
+
+    /**
+     * Hand the body of a response to a streaming success callback as a json parser.
+     *
+     * @param success  The callback for handling the successful request
+     * @param response  The response whose body is streamed
+     */
+    protected void streamResponse(StreamingSuccessCallback success, Response response) {
+        try (JsonParser parser = DruidTransport.createParser(response, jsonFactory)) {
+            success.invoke(parser);
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe);
+        }
+    }
+
     @Override
     public Future<Response> getJsonObject(
             SuccessCallback success,
@@ -352,12 +607,25 @@ public class AsyncDruidWebServiceImpl implements DruidWebService {
             FailureCallback failure,
             DruidQuery<?> druidQuery
     ) {
+        String queryId = druidQuery.getContext().getQueryId();
+        if (context != null && context.isCancelled()) {
+            // Nobody will read the response, so don't spend the broker's time on it
+            CancellationException cancelled = new CancellationException(
+                    String.format("Request cancelled before druid query %s was sent", queryId)
+            );
+            failure.invoke(cancelled);
+            return CompletedFuture.throwing(cancelled);
+        }
+
         long seqNum = druidQuery.getContext().getSequenceNumber();
-        String entityBody;
+        SerializedQuery serializedQuery;
+        byte[] entityBody;
         RequestLog.startTiming("DruidQuerySerializationSeq" + seqNum);
         try {
-            entityBody = writer.writeValueAsString(druidQuery);
-        } catch (JsonProcessingException e) {
+            // The cache key for the query was most likely written from the same serialization
+            serializedQuery = SerializedQuery.of(druidQuery, writer);
+            entityBody = transport.isSmile() ? writeSmile(serializedQuery) : serializedQuery.getBody();
+        } catch (IOException e) {
             throw new IllegalStateException(e);
         } finally {
             RequestLog.stopTiming("DruidQuerySerializationSeq" + seqNum);
@@ -380,20 +648,117 @@ public class AsyncDruidWebServiceImpl implements DruidWebService {
         }
 
         BoundRequestBuilder requestBuilder = webClient.preparePost(serviceConfig.getUrl())
-                .setBody(entityBody)
-                .addHeader("Content-Type", "application/json; charset=UTF-8");
+                .addHeader("Content-Type", transport.getContentType())
+                .setBody(entityBody);
+        if (transport.isSmile()) {
+            requestBuilder.addHeader("Accept", DruidTransport.SMILE_CONTENT_TYPE);
+        }
+        if (transport.isGzip()) {
+            requestBuilder.addHeader("Accept-Encoding", DruidTransport.GZIP_ENCODING);
+        }
 
         headersToAppend.get().forEach(requestBuilder::addHeader);
 
-        LOG.debug("druid json request: {}", entityBody);
-        return sendRequest(
+        Integer timeout = druidQuery.getContext().getTimeout();
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("druid json request: {}", new String(serializedQuery.getBody(), StandardCharsets.UTF_8));
+        }
+        Future<Response> response = sendRequest(
                 success,
                 error,
                 failure,
                 requestBuilder,
                 timerName,
-                outstanding
+                outstanding,
+                timeout == null ? serviceConfig.getTimeout() : timeout
         );
+
+        // Cancel the query if the request is cancelled while it is in flight
+        if (context != null) {
+            Runnable cancel = () -> cancelQuery(response, queryId);
+            context.addCancelAction(cancel);
+            whenDone(response, () -> context.removeCancelAction(cancel));
+        }
+        return response;
+    }
+
+    /**
+     * Write a serialized query as Smile.
+     * <p>
+     * The query is copied from its json serialization, so it is sent exactly as it would be as json.
+     *
+     * @param serializedQuery  The query to write
+     *
+     * @return the query as Smile
+     * @throws IOException if the query cannot be written
+     */
+    protected byte[] writeSmile(SerializedQuery serializedQuery) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonGenerator generator = DruidTransport.getSmileFactory().createGenerator(out)) {
+            serializedQuery.writeTo(generator);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Cancel a druid query in flight, both on this side and on the broker.
+     * <p>
+     * Cancelling the future hands a {@link CancellationException} to the query's failure callback: the http client
+     * fails a request in flight with one, and a request still waiting for the concurrency limiter is withdrawn with
+     * one. Either way the request is metered as cancelled rather than failed. The broker is told to stop working on the
+     * query with a {@code DELETE} of the query id, whose outcome is only logged.
+     *
+     * @param response  The future response to the query
+     * @param queryId  The druid query id of the query
+     */
+    protected void cancelQuery(Future<Response> response, String queryId) {
+        if (response.isDone() || !response.cancel(true)) {
+            return;
+        }
+        LOG.debug("Cancelling druid {} query {}", serviceConfig.getNameAndUrl(), queryId);
+
+        String url = String.format("%s/%s", serviceConfig.getUrl().replaceAll("/+$", ""), queryId);
+        BoundRequestBuilder requestBuilder = webClient.prepareDelete(url);
+        headersToAppend.get().forEach(requestBuilder::addHeader);
+        try {
+            requestBuilder.execute(
+                    new AsyncCompletionHandler<Response>() {
+                        @Override
+                        public Response onCompleted(Response deleteResponse) {
+                            LOG.debug(
+                                    "druid {} answered cancel of query {} with {}",
+                                    serviceConfig.getNameAndUrl(),
+                                    queryId,
+                                    deleteResponse.getStatusCode()
+                            );
+                            return null;
+                        }
+
+                        @Override
+                        public void onThrowable(Throwable t) {
+                            LOG.warn("Unable to cancel druid {} query {}", serviceConfig.getNameAndUrl(), queryId, t);
+                        }
+                    }
+            );
+        } catch (RuntimeException e) {
+            LOG.warn("Unable to cancel druid {} query {}", serviceConfig.getNameAndUrl(), queryId, e);
+        }
+    }
+
+    /**
+     * Run an action once a future response is done, whichever kind of future it is.
+     *
+     * @param response  The future response
+     * @param action  The action to run
+     */
+    private static void whenDone(Future<Response> response, Runnable action) {
+        if (response instanceof ListenableFuture) {
+            ((ListenableFuture<Response>) response).addListener(action, Runnable::run);
+        } else if (response instanceof CompletableFuture) {
+            ((CompletableFuture<Response>) response).whenComplete((ignored, throwable) -> action.run());
+        } else if (response.isDone()) {
+            action.run();
+        }
     }
 
     @Override
@@ -414,6 +779,10 @@ public class AsyncDruidWebServiceImpl implements DruidWebService {
         return exceptionMeter;
     }
 
+    protected Meter getCancelledMeter() {
+        return cancelledMeter;
+    }
+
     protected DruidServiceConfig getDruidServiceConfig() {
         return serviceConfig;
     }
@@ -483,19 +852,87 @@ public class AsyncDruidWebServiceImpl implements DruidWebService {
      */
     private void markError(Status status, Response response, String druidQueryId, HttpErrorCallback error) {
         getHttpErrorMeter().mark();
+        String body = DruidTransport.getResponseBodyAsString(response);
         LOG.debug(
                 "druid {} error: {} {} {} and druid query id: {}",
                 getServiceConfig().getNameAndUrl(),
                 status.getStatusCode(),
                 status.getReasonPhrase(),
-                response.getResponseBody(),
+                body,
                 druidQueryId
         );
 
         error.invoke(
                 status.getStatusCode(),
                 status.getReasonPhrase(),
-                response.getResponseBody()
+                body
         );
     }
+
+    /**
+     * The future response to a request which may wait for the concurrency limiter.
+     * <p>
+     * Cancelling it takes a waiting request out of the limiter's queue, and fails it since it will never be sent, or
+     * cancels the request once it has been sent.
+     */
+    private static class LimitedResponse extends CompletableFuture<Response> {
+        private final Runnable withdrawn;
+        private volatile AdaptiveConcurrencyLimiter.LimitedRequest request;
+        private volatile Future<Response> sent;
+
+        /**
+         * Constructor.
+         *
+         * @param withdrawn  Fails the request if it is cancelled while waiting
+         */
+        LimitedResponse(Runnable withdrawn) {
+            this.withdrawn = withdrawn;
+        }
+
+        /**
+         * Follow the future of the request once it has been sent.
+         *
+         * @param future  The future response to the sent request
+         */
+        void sent(Future<Response> future) {
+            sent = future;
+            if (isCancelled()) {
+                future.cancel(true);
+            } else if (future instanceof ListenableFuture) {
+                ((ListenableFuture<Response>) future).toCompletableFuture().whenComplete(this::follow);
+            } else if (future instanceof CompletableFuture) {
+                ((CompletableFuture<Response>) future).whenComplete(this::follow);
+            }
+        }
+
+        /**
+         * Complete this future the way the sent request's future completed.
+         *
+         * @param response  The response, if the request completed normally
+         * @param throwable  The cause of failure, if the request failed
+         */
+        private void follow(Response response, Throwable throwable) {
+            if (throwable == null) {
+                complete(response);
+            } else {
+                completeExceptionally(throwable);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                AdaptiveConcurrencyLimiter.LimitedRequest waiting = request;
+                if (waiting != null && waiting.cancel()) {
+                    withdrawn.run();
+                }
+                Future<Response> future = sent;
+                if (future != null) {
+                    future.cancel(mayInterruptIfRunning);
+                }
+            }
+            return cancelled;
+        }
+    }
 }
@@ -0,0 +1,187 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.druid.client.impl;
+
+import com.yahoo.bard.webservice.config.SystemConfig;
+import com.yahoo.bard.webservice.config.SystemConfigException;
+import com.yahoo.bard.webservice.config.SystemConfigProvider;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingJsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import org.asynchttpclient.Response;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The format queries and responses travel in between Fili and druid.
+ * <p>
+ * Queries are sent as json or as Smile, jackson's binary json format, and the response is asked for in the same format.
+ * The gzip transports also ask druid to gzip its responses, which shrinks large groupBy responses several times over.
+ * Responses are decoded by their own {@code Content-Type} and {@code Content-Encoding} headers, so a broker that
+ * ignores what it was asked for is still understood.
+ * <p>
+ * The transport is chosen with {@code druid_transport}: {@code json} (the default), {@code json_gzip}, {@code smile} or
+ * {@code smile_gzip}.
+ */
+public enum DruidTransport {
+    JSON(false, false),
+    JSON_GZIP(false, true),
+    SMILE(true, false),
+    SMILE_GZIP(true, true);
+
+    public static final String TRANSPORT_KEY = SystemConfigProvider.getInstance()
+            .getPackageVariableName("druid_transport");
+
+    public static final String JSON_CONTENT_TYPE = "application/json; charset=UTF-8";
+    public static final String SMILE_CONTENT_TYPE = "application/x-jackson-smile";
+    public static final String GZIP_ENCODING = "gzip";
+
+    private static final JsonFactory DEFAULT_JSON_FACTORY = new MappingJsonFactory();
+    private static final JsonFactory SMILE_FACTORY = new ObjectMapper(new SmileFactory()).getFactory();
+
+    private final boolean smile;
+    private final boolean gzip;
+
+    /**
+     * Constructor.
+     *
+     * @param smile  Whether queries and responses are Smile rather than json
+     * @param gzip  Whether responses are asked for gzipped
+     */
+    DruidTransport(boolean smile, boolean gzip) {
+        this.smile = smile;
+        this.gzip = gzip;
+    }
+
+    public boolean isSmile() {
+        return smile;
+    }
+
+    public boolean isGzip() {
+        return gzip;
+    }
+
+    /**
+     * Get the content type of the queries sent with this transport.
+     *
+     * @return the content type
+     */
+    public String getContentType() {
+        return smile ? SMILE_CONTENT_TYPE : JSON_CONTENT_TYPE;
+    }
+
+    /**
+     * Get the factory for generators writing queries, and parsers reading responses, in Smile.
+     *
+     * @return the Smile factory
+     */
+    public static JsonFactory getSmileFactory() {
+        return SMILE_FACTORY;
+    }
+
+    /**
+     * Get the transport selected by the {@code druid_transport} setting.
+     *
+     * @return the configured transport
+     */
+    public static DruidTransport getConfigured() {
+        SystemConfig systemConfig = SystemConfigProvider.getInstance();
+        String transport = systemConfig.getStringProperty(TRANSPORT_KEY, JSON.name());
+        try {
+            return valueOf(transport.trim().toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            throw new SystemConfigException("Unknown druid_transport: " + transport, e);
+        }
+    }
+
+    /**
+     * Get the body of a response, unzipping it if it was gzipped.
+     *
+     * @param response  The response to read
+     *
+     * @return a stream of the response body
+     * @throws IOException if the gzip header of the body cannot be read
+     */
+    public static InputStream getResponseBody(Response response) throws IOException {
+        InputStream body = response.getResponseBodyAsStream();
+        return isGzipped(response) ? new GZIPInputStream(body) : body;
+    }
+
+    /**
+     * Get the body of a response as text, such as for reporting an error, decoding it if it was gzipped or Smile.
+     * <p>
+     * A body which cannot be decoded is returned as it came.
+     *
+     * @param response  The response to read
+     *
+     * @return the response body as text
+     */
+    public static String getResponseBodyAsString(Response response) {
+        if (!isSmile(response) && !isGzipped(response)) {
+            return response.getResponseBody();
+        }
+        try (JsonParser parser = createParser(response)) {
+            JsonNode body = parser.readValueAsTree();
+            return body == null ? "" : body.toString();
+        } catch (IOException e) {
+            return response.getResponseBody();
+        }
+    }
+
+    /**
+     * Create a parser over the body of a response, in whichever format it was sent.
+     *
+     * @param response  The response to parse
+     *
+     * @return a parser over the response body
+     * @throws IOException if the body cannot be read
+     */
+    public static JsonParser createParser(Response response) throws IOException {
+        return createParser(response, DEFAULT_JSON_FACTORY);
+    }
+
+    /**
+     * Create a parser over the body of a response, in whichever format it was sent.
+     *
+     * @param response  The response to parse
+     * @param jsonFactory  The factory for parsers of json responses
+     *
+     * @return a parser over the response body
+     * @throws IOException if the body cannot be read
+     */
+    public static JsonParser createParser(Response response, JsonFactory jsonFactory) throws IOException {
+        return (isSmile(response) ? SMILE_FACTORY : jsonFactory).createParser(getResponseBody(response));
+    }
+
+    /**
+     * Check whether a response body is Smile.
+     *
+     * @param response  The response to check
+     *
+     * @return true if the response's content type is Smile
+     */
+    private static boolean isSmile(Response response) {
+        String contentType = response.getContentType();
+        return contentType != null && contentType.toLowerCase(Locale.ENGLISH).contains(SMILE_CONTENT_TYPE);
+    }
+
+    /**
+     * Check whether a response body is gzipped.
+     *
+     * @param response  The response to check
+     *
+     * @return true if the response's content encoding is gzip
+     */
+    private static boolean isGzipped(Response response) {
+        String encoding = response.getHeader("Content-Encoding");
+        return encoding != null && encoding.toLowerCase(Locale.ENGLISH).contains(GZIP_ENCODING);
+    }
+}
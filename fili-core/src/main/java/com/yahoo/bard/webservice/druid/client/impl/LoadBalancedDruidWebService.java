@@ -0,0 +1,1060 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.druid.client.impl;
+
+import com.yahoo.bard.webservice.application.MetricRegistryFactory;
+import com.yahoo.bard.webservice.config.SystemConfig;
+import com.yahoo.bard.webservice.config.SystemConfigProvider;
+import com.yahoo.bard.webservice.druid.client.DruidServiceConfig;
+import com.yahoo.bard.webservice.druid.client.DruidWebService;
+import com.yahoo.bard.webservice.druid.client.FailureCallback;
+import com.yahoo.bard.webservice.druid.client.HttpErrorCallback;
+import com.yahoo.bard.webservice.druid.client.StreamingSuccessCallback;
+import com.yahoo.bard.webservice.druid.client.SuccessCallback;
+import com.yahoo.bard.webservice.druid.model.query.DruidAggregationQuery;
+import com.yahoo.bard.webservice.druid.model.query.DruidQuery;
+import com.yahoo.bard.webservice.logging.RequestLog;
+import com.yahoo.bard.webservice.web.handlers.RequestContext;
+import com.yahoo.bard.webservice.web.handlers.SharedQueryRequestContext;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import org.asynchttpclient.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import javax.validation.constraints.NotNull;
+
+/**
+ * A druid web service that spreads requests over several brokers.
+ * <p>
+ * Each request goes to the available broker with the fewest outstanding requests, ties going round robin. A broker is
+ * ejected for {@code druid_broker_ejection_cool_off_ms} when {@code druid_broker_ejection_consecutive_errors} requests
+ * in a row fail (with an exception or a 5xx response), or when its moving average latency grows past
+ * {@code druid_broker_ejection_latency_factor} times the average of the other available brokers. An ejected broker is
+ * re-admitted with a clean slate once its cool off has passed. The last available broker is never ejected, and if no
+ * broker is available requests are spread over all of them.
+ * <p>
+ * Requests, errors, latency, outstanding requests, ejections and re-admissions are metered per broker, under
+ * {@code druid.broker.<broker name>}.
+ * <p>
+ * When {@code druid_hedge_latency_percentile} is set, an aggregation query which has not been answered within that
+ * percentile of recent query latency is sent again to a second broker (a hedged request). Whichever copy answers first
+ * wins and the other is cancelled, both here and on its broker, so the success callback still runs once. An error
+ * from one copy is held back while the other copy may still succeed. Hedges are limited to
+ * {@code druid_hedge_budget_percent} of the queries sent, and are metered under {@code druid.hedge}.
+ */
+public class LoadBalancedDruidWebService implements DruidWebService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LoadBalancedDruidWebService.class);
+    private static final SystemConfig SYSTEM_CONFIG = SystemConfigProvider.getInstance();
+    private static final MetricRegistry REGISTRY = MetricRegistryFactory.getRegistry();
+
+    public static final int DISABLED = -1;
+
+    public static final int EJECTION_CONSECUTIVE_ERRORS = SYSTEM_CONFIG.getIntProperty(
+            SYSTEM_CONFIG.getPackageVariableName("druid_broker_ejection_consecutive_errors"),
+            5
+    );
+
+    public static final double EJECTION_LATENCY_FACTOR = SYSTEM_CONFIG.getDoubleProperty(
+            SYSTEM_CONFIG.getPackageVariableName("druid_broker_ejection_latency_factor"),
+            3.0
+    );
+
+    public static final long EJECTION_COOL_OFF_MS = SYSTEM_CONFIG.getLongProperty(
+            SYSTEM_CONFIG.getPackageVariableName("druid_broker_ejection_cool_off_ms"),
+            TimeUnit.SECONDS.toMillis(30)
+    );
+
+    public static final double HEDGE_LATENCY_PERCENTILE = SYSTEM_CONFIG.getDoubleProperty(
+            SYSTEM_CONFIG.getPackageVariableName("druid_hedge_latency_percentile"),
+            DISABLED
+    );
+
+    public static final double HEDGE_BUDGET_PERCENT = SYSTEM_CONFIG.getDoubleProperty(
+            SYSTEM_CONFIG.getPackageVariableName("druid_hedge_budget_percent"),
+            5.0
+    );
+
+    public static final Meter HEDGES_SENT = REGISTRY.meter("druid.hedge.sent");
+    public static final Meter HEDGES_WON = REGISTRY.meter("druid.hedge.won");
+    public static final Meter HEDGES_OVER_BUDGET = REGISTRY.meter("druid.hedge.over_budget");
+
+    // Number of answered queries needed before the latency percentile is trusted enough to hedge on
+    private static final int HEDGE_MIN_SAMPLES = 100;
+
+    // How often the hedge delay is recomputed from the latency percentile
+    private static final long HEDGE_DELAY_REFRESH_MS = 1000;
+
+    // The most hedges the budget can save up, so a quiet spell is not followed by a burst of hedges
+    private static final double HEDGE_MAX_TOKENS = 10;
+
+    // Weight of the newest sample in a broker's moving average latency
+    private static final double LATENCY_DECAY = 0.1;
+
+    // Number of samples a broker's moving average latency needs before it is compared to the other brokers'
+    private static final int LATENCY_MIN_SAMPLES = 20;
+
+    private final DruidServiceConfig serviceConfig;
+    private final List<Broker> brokers;
+    private final int ejectionConsecutiveErrors;
+    private final double ejectionLatencyFactor;
+    private final long ejectionCoolOffMillis;
+    private final Clock clock;
+    private final AtomicInteger nextBroker = new AtomicInteger();
+
+    private final double hedgeLatencyPercentile;
+    private final double hedgeBudgetRatio;
+    private final ScheduledExecutorService hedgeScheduler;
+    private final Histogram hedgeLatencies = new Histogram(new ExponentiallyDecayingReservoir());
+    private final Object hedgeLock = new Object();
+    private double hedgeTokens = 0;
+    private long hedgeDelayNanos = DISABLED;
+    private long hedgeDelayComputedAt = -HEDGE_DELAY_REFRESH_MS;
+
+    /**
+     * Constructor, using the configured ejection thresholds and hedging.
+     *
+     * @param serviceConfig  The configuration of the service as a whole
+     * @param brokers  The web services of the individual brokers, each with a distinctly named configuration
+     */
+    public LoadBalancedDruidWebService(DruidServiceConfig serviceConfig, List<DruidWebService> brokers) {
+        this(
+                serviceConfig,
+                brokers,
+                EJECTION_CONSECUTIVE_ERRORS,
+                EJECTION_LATENCY_FACTOR,
+                EJECTION_COOL_OFF_MS,
+                Clock.systemUTC(),
+                HEDGE_LATENCY_PERCENTILE,
+                HEDGE_BUDGET_PERCENT,
+                HEDGE_LATENCY_PERCENTILE == DISABLED ? null : buildHedgeScheduler()
+        );
+    }
+
+    /**
+     * Constructor, without hedging.
+     *
+     * @param serviceConfig  The configuration of the service as a whole
+     * @param brokers  The web services of the individual brokers, each with a distinctly named configuration
+     * @param ejectionConsecutiveErrors  The number of errors in a row that eject a broker, or {@link #DISABLED}
+     * @param ejectionLatencyFactor  How many times slower than the other brokers a broker must be to be ejected, or
+     * {@link #DISABLED}
+     * @param ejectionCoolOffMillis  How long an ejected broker stays out of rotation
+     * @param clock  The clock timing ejections
+     */
+    public LoadBalancedDruidWebService(
+            DruidServiceConfig serviceConfig,
+            @NotNull List<DruidWebService> brokers,
+            int ejectionConsecutiveErrors,
+            double ejectionLatencyFactor,
+            long ejectionCoolOffMillis,
+            Clock clock
+    ) {
+        this(
+                serviceConfig,
+                brokers,
+                ejectionConsecutiveErrors,
+                ejectionLatencyFactor,
+                ejectionCoolOffMillis,
+                clock,
+                DISABLED,
+                0,
+                null
+        );
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param serviceConfig  The configuration of the service as a whole
+     * @param brokers  The web services of the individual brokers, each with a distinctly named configuration
+     * @param ejectionConsecutiveErrors  The number of errors in a row that eject a broker, or {@link #DISABLED}
+     * @param ejectionLatencyFactor  How many times slower than the other brokers a broker must be to be ejected, or
+     * {@link #DISABLED}
+     * @param ejectionCoolOffMillis  How long an ejected broker stays out of rotation
+     * @param clock  The clock timing ejections and hedge delay refreshes
+     * @param hedgeLatencyPercentile  The percentile of recent query latency after which a query is hedged, or
+     * {@link #DISABLED}
+     * @param hedgeBudgetPercent  The most hedges to send, as a percentage of the queries sent
+     * @param hedgeScheduler  The scheduler sending hedges, which may be null if hedging is disabled
+     */
+    public LoadBalancedDruidWebService(
+            DruidServiceConfig serviceConfig,
+            @NotNull List<DruidWebService> brokers,
+            int ejectionConsecutiveErrors,
+            double ejectionLatencyFactor,
+            long ejectionCoolOffMillis,
+            Clock clock,
+            double hedgeLatencyPercentile,
+            double hedgeBudgetPercent,
+            ScheduledExecutorService hedgeScheduler
+    ) {
+        if (brokers.isEmpty()) {
+            String message = "A load balanced druid web service needs at least one broker";
+            LOG.error(message);
+            throw new IllegalArgumentException(message);
+        }
+        this.serviceConfig = serviceConfig;
+        this.ejectionConsecutiveErrors = ejectionConsecutiveErrors;
+        this.ejectionLatencyFactor = ejectionLatencyFactor;
+        this.ejectionCoolOffMillis = ejectionCoolOffMillis;
+        this.clock = clock;
+        this.hedgeLatencyPercentile = hedgeLatencyPercentile;
+        this.hedgeBudgetRatio = hedgeBudgetPercent / 100;
+        this.hedgeScheduler = hedgeScheduler;
+
+        List<Broker> brokerList = new ArrayList<>(brokers.size());
+        for (DruidWebService webService : brokers) {
+            brokerList.add(new Broker(webService));
+        }
+        this.brokers = Collections.unmodifiableList(brokerList);
+        LOG.info("Configured {} over {} brokers", serviceConfig.getNameAndUrl(), brokers.size());
+    }
+
+    @Override
+    public Future<Response> postDruidQuery(
+            RequestContext context,
+            SuccessCallback success,
+            HttpErrorCallback error,
+            FailureCallback failure,
+            DruidQuery<?> query
+    ) {
+        if (isHedging() && query instanceof DruidAggregationQuery) {
+            return new HedgedQuery(context, success, error, failure, query).send();
+        }
+        return send(
+                selectBroker(),
+                (Broker broker, Outcome outcome) -> broker.webService.postDruidQuery(
+                        context,
+                        outcome.wrap(success),
+                        outcome.wrap(error),
+                        outcome.wrap(failure),
+                        query
+                )
+        );
+    }
+
+    @Override
+    public Future<Response> getJsonObject(
+            SuccessCallback success,
+            HttpErrorCallback error,
+            FailureCallback failure,
+            String resourcePath
+    ) {
+        return send(
+                selectBroker(),
+                (Broker broker, Outcome outcome) -> broker.webService.getJsonObject(
+                        outcome.wrap(success),
+                        outcome.wrap(error),
+                        outcome.wrap(failure),
+                        resourcePath
+                )
+        );
+    }
+
+    @Override
+    public DruidServiceConfig getServiceConfig() {
+        return serviceConfig;
+    }
+
+    @Override
+    public Integer getTimeout() {
+        return serviceConfig.getTimeout();
+    }
+
+    /**
+     * Get the web services of the brokers which are currently in rotation.
+     *
+     * @return the available brokers' web services
+     */
+    public List<DruidWebService> getAvailableBrokers() {
+        long now = clock.millis();
+        List<DruidWebService> available = new ArrayList<>(brokers.size());
+        for (Broker broker : brokers) {
+            if (broker.isAvailable(now)) {
+                available.add(broker.webService);
+            }
+        }
+        return available;
+    }
+
+    /**
+     * Check whether queries may be hedged.
+     *
+     * @return true if hedging is enabled and there is a second broker to hedge to
+     */
+    private boolean isHedging() {
+        return hedgeLatencyPercentile != DISABLED && hedgeScheduler != null && brokers.size() > 1;
+    }
+
+    /**
+     * Get how long to wait for an answer before hedging a query.
+     * <p>
+     * The delay is the configured percentile of recent query latency, recomputed at most once a second. Until enough
+     * queries have been answered there is no delay to go by, and queries are not hedged.
+     *
+     * @return the delay in nanoseconds, or {@link #DISABLED}
+     */
+    private long getHedgeDelayNanos() {
+        long now = clock.millis();
+        synchronized (hedgeLock) {
+            if (now - hedgeDelayComputedAt >= HEDGE_DELAY_REFRESH_MS) {
+                hedgeDelayComputedAt = now;
+                hedgeDelayNanos = hedgeLatencies.getCount() < HEDGE_MIN_SAMPLES ?
+                        DISABLED :
+                        (long) hedgeLatencies.getSnapshot().getValue(hedgeLatencyPercentile / 100);
+            }
+            return hedgeDelayNanos;
+        }
+    }
+
+    /**
+     * Add a query's share of the hedge budget.
+     */
+    private void depositHedgeBudget() {
+        synchronized (hedgeLock) {
+            hedgeTokens = Math.min(HEDGE_MAX_TOKENS, hedgeTokens + hedgeBudgetRatio);
+        }
+    }
+
+    /**
+     * Take the cost of one hedge out of the hedge budget.
+     *
+     * @return true if the budget allows a hedge
+     */
+    private boolean withdrawHedgeBudget() {
+        synchronized (hedgeLock) {
+            if (hedgeTokens < 1) {
+                return false;
+            }
+            hedgeTokens--;
+            return true;
+        }
+    }
+
+    /**
+     * Build the scheduler which sends hedges, running on a single daemon thread.
+     *
+     * @return the hedge scheduler
+     */
+    private static ScheduledExecutorService buildHedgeScheduler() {
+        return Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "druid-hedge");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Wrap a success callback so it only runs if a check allows it.
+     * <p>
+     * A streaming callback stays a streaming callback, so wrapping does not force the response into a json tree.
+     *
+     * @param success  The callback to wrap
+     * @param proceed  Runs before the callback, and says whether the callback should run
+     *
+     * @return the wrapped callback
+     */
+    private static SuccessCallback onSuccess(SuccessCallback success, BooleanSupplier proceed) {
+        if (success instanceof StreamingSuccessCallback) {
+            StreamingSuccessCallback streaming = (StreamingSuccessCallback) success;
+            return new StreamingSuccessCallback() {
+                @Override
+                public void invoke(JsonParser parser) throws IOException {
+                    if (proceed.getAsBoolean()) {
+                        streaming.invoke(parser);
+                    }
+                }
+
+                @Override
+                public void invoke(JsonNode rootNode) {
+                    if (proceed.getAsBoolean()) {
+                        streaming.invoke(rootNode);
+                    }
+                }
+            };
+        }
+        return rootNode -> {
+            if (proceed.getAsBoolean()) {
+                success.invoke(rootNode);
+            }
+        };
+    }
+
+    /**
+     * Send a request to a broker, tracking it as outstanding until its outcome is known.
+     *
+     * @param broker  The broker to send the request to
+     * @param request  Sends the request to the broker, with callbacks wrapped to report the outcome
+     *
+     * @return a future response to the request
+     */
+    private Future<Response> send(Broker broker, BrokerRequest request) {
+        Outcome outcome = new Outcome(broker);
+        try {
+            return request.apply(broker, outcome);
+        } catch (RuntimeException e) {
+            // The request never went out, so it says nothing about the broker's health
+            outcome.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Pick the available broker with the fewest outstanding requests.
+     * <p>
+     * The search starts at a rotating position, so brokers with equally few outstanding requests take turns.
+     *
+     * @return the broker to send the next request to
+     */
+    private Broker selectBroker() {
+        long now = clock.millis();
+        int size = brokers.size();
+        int start = Math.floorMod(nextBroker.getAndIncrement(), size);
+
+        Broker selected = null;
+        for (int i = 0; i < size; i++) {
+            Broker broker = brokers.get((start + i) % size);
+            if (broker.isAvailable(now) && (selected == null || broker.outstanding() < selected.outstanding())) {
+                selected = broker;
+            }
+        }
+        if (selected != null) {
+            return selected;
+        }
+
+        // Every broker is ejected, so fall back to spreading over all of them
+        LOG.warn("All brokers of {} are ejected, routing to all of them", serviceConfig.getNameAndUrl());
+        for (int i = 0; i < size; i++) {
+            Broker broker = brokers.get((start + i) % size);
+            if (selected == null || broker.outstanding() < selected.outstanding()) {
+                selected = broker;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Pick the available broker, other than the one a query was first sent to, with the fewest outstanding requests.
+     *
+     * @param primary  The broker the query was first sent to
+     *
+     * @return the broker to send a hedge to, or null if there is no other available broker
+     */
+    private Broker selectHedgeBroker(Broker primary) {
+        long now = clock.millis();
+        Broker selected = null;
+        for (Broker broker : brokers) {
+            if (broker != primary
+                    && broker.isAvailable(now)
+                    && (selected == null || broker.outstanding() < selected.outstanding())) {
+                selected = broker;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Eject a broker if its moving average latency has grown too far past the other available brokers' average.
+     *
+     * @param slow  The broker whose latency was just updated
+     */
+    private void checkLatency(Broker slow) {
+        if (ejectionLatencyFactor == DISABLED || slow.getLatencySamples() < LATENCY_MIN_SAMPLES) {
+            return;
+        }
+        long now = clock.millis();
+        double total = 0;
+        int compared = 0;
+        for (Broker broker : brokers) {
+            if (broker != slow && broker.isAvailable(now) && broker.getLatencySamples() >= LATENCY_MIN_SAMPLES) {
+                total += broker.getLatency();
+                compared++;
+            }
+        }
+        if (compared > 0 && slow.getLatency() > ejectionLatencyFactor * total / compared) {
+            eject(slow, "its latency is too high");
+        }
+    }
+
+    /**
+     * Take a broker out of rotation for the cool off period, unless it is the last available broker.
+     *
+     * @param broker  The broker to eject
+     * @param reason  Why the broker is ejected, for the log
+     */
+    private void eject(Broker broker, String reason) {
+        long now = clock.millis();
+        if (!broker.isAvailable(now)) {
+            return;
+        }
+        for (Broker other : brokers) {
+            if (other != broker && other.isAvailable(now)) {
+                broker.ejectUntil(now + ejectionCoolOffMillis);
+                LOG.warn(
+                        "Ejecting druid broker {} for {}ms since {}",
+                        broker.webService.getServiceConfig().getNameAndUrl(),
+                        ejectionCoolOffMillis,
+                        reason
+                );
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sends a request to a broker.
+     */
+    @FunctionalInterface
+    private interface BrokerRequest {
+        /**
+         * Send the request.
+         *
+         * @param broker  The broker to send the request to
+         * @param outcome  The outcome of the request, which wraps the request's callbacks
+         *
+         * @return a future response to the request
+         */
+        Future<Response> apply(Broker broker, Outcome outcome);
+    }
+
+    /**
+     * The state of one broker.
+     */
+    private class Broker {
+        private final DruidWebService webService;
+        private final AtomicInteger consecutiveErrors = new AtomicInteger();
+        private final AtomicLong outstandingRequests = new AtomicLong();
+        private final Counter outstanding;
+        private final Meter requests;
+        private final Meter errors;
+        private final Timer latencyTimer;
+        private final Meter ejections;
+        private final Meter readmissions;
+
+        private volatile long ejectedUntil = 0;
+        private double latency = 0;
+        private int latencySamples = 0;
+
+        /**
+         * Constructor.
+         *
+         * @param webService  The web service of the broker
+         */
+        Broker(DruidWebService webService) {
+            this.webService = webService;
+            String prefix = "druid.broker." + webService.getServiceConfig().getName() + ".";
+            this.outstanding = REGISTRY.counter(prefix + "outstanding");
+            this.requests = REGISTRY.meter(prefix + "requests");
+            this.errors = REGISTRY.meter(prefix + "errors");
+            this.latencyTimer = REGISTRY.timer(prefix + "latency");
+            this.ejections = REGISTRY.meter(prefix + "ejections");
+            this.readmissions = REGISTRY.meter(prefix + "readmissions");
+        }
+
+        /**
+         * Check whether the broker is in rotation, re-admitting it if its cool off has passed.
+         *
+         * @param now  The current time in milliseconds
+         *
+         * @return true if the broker is in rotation
+         */
+        boolean isAvailable(long now) {
+            long until = ejectedUntil;
+            if (until == 0) {
+                return true;
+            }
+            if (now < until) {
+                return false;
+            }
+            synchronized (this) {
+                if (ejectedUntil != 0 && now >= ejectedUntil) {
+                    ejectedUntil = 0;
+                    consecutiveErrors.set(0);
+                    latency = 0;
+                    latencySamples = 0;
+                    readmissions.mark();
+                    LOG.info("Re-admitting druid broker {}", webService.getServiceConfig().getNameAndUrl());
+                }
+            }
+            return ejectedUntil == 0;
+        }
+
+        /**
+         * Take the broker out of rotation.
+         *
+         * @param until  The time in milliseconds until which the broker is out of rotation
+         */
+        synchronized void ejectUntil(long until) {
+            ejectedUntil = until;
+            ejections.mark();
+        }
+
+        /**
+         * Get the number of requests sent to the broker by this service which have not completed.
+         * <p>
+         * The count is kept apart from the outstanding metric, which every service sending to a broker of the same
+         * name adds to.
+         *
+         * @return the number of outstanding requests
+         */
+        long outstanding() {
+            return outstandingRequests.get();
+        }
+
+        /**
+         * Record a request which the broker answered.
+         *
+         * @param nanos  How long the broker took to answer
+         * @param timed  Whether the answer counts towards the broker's latency
+         */
+        void answered(long nanos, boolean timed) {
+            consecutiveErrors.set(0);
+            if (!timed) {
+                return;
+            }
+            latencyTimer.update(nanos, TimeUnit.NANOSECONDS);
+            synchronized (this) {
+                latency = latencySamples == 0 ? nanos : latency + LATENCY_DECAY * (nanos - latency);
+                latencySamples++;
+            }
+            checkLatency(this);
+        }
+
+        /**
+         * Record a request which failed or which the broker answered with a server error.
+         */
+        void failed() {
+            errors.mark();
+            if (ejectionConsecutiveErrors != DISABLED
+                    && consecutiveErrors.incrementAndGet() >= ejectionConsecutiveErrors) {
+                LoadBalancedDruidWebService.this.eject(this, "too many requests in a row failed");
+            }
+        }
+
+        /**
+         * Get the broker's moving average latency.
+         *
+         * @return the moving average latency in nanoseconds
+         */
+        synchronized double getLatency() {
+            return latency;
+        }
+
+        /**
+         * Get the number of latency samples taken since the broker was last admitted.
+         *
+         * @return the number of samples
+         */
+        synchronized int getLatencySamples() {
+            return latencySamples;
+        }
+    }
+
+    /**
+     * The outcome of one request to a broker, reported once by whichever of the request's callbacks runs first.
+     */
+    private class Outcome {
+        private final Broker broker;
+        private final long start = System.nanoTime();
+        private final AtomicBoolean done = new AtomicBoolean(false);
+
+        /**
+         * Constructor.
+         *
+         * @param broker  The broker the request is sent to
+         */
+        Outcome(Broker broker) {
+            this.broker = broker;
+            broker.outstandingRequests.incrementAndGet();
+            broker.outstanding.inc();
+            broker.requests.mark();
+        }
+
+        /**
+         * Stop tracking the request as outstanding.
+         *
+         * @return true if this is the first time the request's outcome is known
+         */
+        boolean release() {
+            if (!done.compareAndSet(false, true)) {
+                return false;
+            }
+            broker.outstandingRequests.decrementAndGet();
+            broker.outstanding.dec();
+            return true;
+        }
+
+        /**
+         * Record that the broker answered the request.
+         *
+         * @param timed  Whether the answer counts towards the broker's latency
+         */
+        void answered(boolean timed) {
+            if (release()) {
+                broker.answered(System.nanoTime() - start, timed);
+            }
+        }
+
+        /**
+         * Record that the request failed.
+         */
+        void failed() {
+            if (release()) {
+                broker.failed();
+            }
+        }
+
+        /**
+         * Wrap a success callback to record the outcome before handing over the response.
+         *
+         * @param success  The callback to wrap
+         *
+         * @return the wrapped callback
+         */
+        SuccessCallback wrap(SuccessCallback success) {
+            return onSuccess(success, () -> {
+                answered(true);
+                return true;
+            });
+        }
+
+        /**
+         * Wrap an error callback to record the outcome before handing over the error response.
+         * <p>
+         * Server errors count against the broker. Other error responses, such as a bad query, are answers from a
+         * healthy broker, but are not timed since they are usually much faster than a real answer.
+         *
+         * @param error  The callback to wrap
+         *
+         * @return the wrapped callback
+         */
+        HttpErrorCallback wrap(HttpErrorCallback error) {
+            return (statusCode, reasonPhrase, responseBody) -> {
+                if (statusCode >= 500) {
+                    failed();
+                } else {
+                    answered(false);
+                }
+                error.invoke(statusCode, reasonPhrase, responseBody);
+            };
+        }
+
+        /**
+         * Wrap a failure callback to record the outcome before handing over the failure.
+         * <p>
+         * A request cancelled by this side, such as the losing copy of a hedged query, does not count against the
+         * broker.
+         *
+         * @param failure  The callback to wrap
+         *
+         * @return the wrapped callback
+         */
+        FailureCallback wrap(FailureCallback failure) {
+            return throwable -> {
+                if (throwable instanceof CancellationException) {
+                    release();
+                } else {
+                    failed();
+                }
+                failure.invoke(throwable);
+            };
+        }
+    }
+
+    /**
+     * A query which may be sent to a second broker if the first one is slow to answer.
+     * <p>
+     * The first copy to answer successfully wins: its response goes to the success callback and the other copy is
+     * cancelled. Each copy is sent with a context of its own, which is cancelled with the request, so that the losing
+     * copy can be cancelled alone and its broker told to stop working on it. An error from one copy is held back while
+     * the other copy is still outstanding, and only the first error is delivered if both copies fail. Failures reported
+     * by the winning copy after its success, such as an error processing the response, are passed on as they would be
+     * without hedging.
+     */
+    private class HedgedQuery {
+        private final RequestContext context;
+        private final SuccessCallback success;
+        private final HttpErrorCallback error;
+        private final FailureCallback failure;
+        private final DruidQuery<?> query;
+        private final RequestLog logCtx = RequestLog.copy();
+        private final Attempt primary = new Attempt(false);
+
+        // Guarded by this
+        private Attempt hedge;
+        private Attempt winner;
+        private Future<?> hedgeTimer;
+        private Runnable heldError;
+        private boolean done = false;
+
+        /**
+         * Constructor.
+         *
+         * @param context  The context of the request
+         * @param success  The callback for a successful response
+         * @param error  The callback for an error response
+         * @param failure  The callback for a failure
+         * @param query  The query to send
+         */
+        HedgedQuery(
+                RequestContext context,
+                SuccessCallback success,
+                HttpErrorCallback error,
+                FailureCallback failure,
+                DruidQuery<?> query
+        ) {
+            this.context = context;
+            this.success = success;
+            this.error = error;
+            this.failure = failure;
+            this.query = query;
+        }
+
+        /**
+         * Send the query to the best broker, and schedule a hedge if there is a hedge delay to go by.
+         *
+         * @return a future response from the first broker
+         */
+        Future<Response> send() {
+            depositHedgeBudget();
+            Future<Response> future = primary.send(selectBroker(), cancellableCopy(context));
+            long delay = getHedgeDelayNanos();
+            if (delay != DISABLED) {
+                synchronized (this) {
+                    if (!done) {
+                        hedgeTimer = hedgeScheduler.schedule(this::sendHedge, delay, TimeUnit.NANOSECONDS);
+                    }
+                }
+            }
+            return future;
+        }
+
+        /**
+         * Send the query to a second broker, if the first one is still working on it and the budget allows.
+         * <p>
+         * Runs on the hedge scheduler's thread, under a copy of the request log taken when the query was first sent.
+         */
+        private void sendHedge() {
+            Broker target;
+            Attempt attempt;
+            synchronized (this) {
+                if (done || !primary.pending) {
+                    return;
+                }
+                target = selectHedgeBroker(primary.broker);
+                if (target == null) {
+                    return;
+                }
+                if (!withdrawHedgeBudget()) {
+                    HEDGES_OVER_BUDGET.mark();
+                    return;
+                }
+                attempt = new Attempt(true);
+                hedge = attempt;
+            }
+
+            RequestLog threadLog = RequestLog.dump();
+            RequestLog.restore(logCtx);
+            try {
+                attempt.send(target, cancellableCopy(context.forDuplicateQuery()));
+                HEDGES_SENT.mark();
+            } catch (RuntimeException e) {
+                LOG.warn("Unable to send hedged query to {}", target.webService.getServiceConfig().getNameAndUrl(), e);
+            } finally {
+                RequestLog.restore(threadLog);
+            }
+        }
+
+        /**
+         * Claim the win for a copy of the query which was answered successfully.
+         *
+         * @param attempt  The copy which was answered
+         *
+         * @return true if the copy won, and its response should go to the success callback
+         */
+        private boolean succeeded(Attempt attempt) {
+            Attempt loser;
+            synchronized (this) {
+                attempt.pending = false;
+                if (done) {
+                    return false;
+                }
+                done = true;
+                winner = attempt;
+                if (hedgeTimer != null) {
+                    hedgeTimer.cancel(false);
+                }
+                Attempt other = attempt == primary ? hedge : primary;
+                loser = other != null && other.pending ? other : null;
+            }
+            hedgeLatencies.update(System.nanoTime() - attempt.start);
+            if (attempt.hedge) {
+                HEDGES_WON.mark();
+            }
+            if (loser != null) {
+                loser.cancel();
+            }
+            return true;
+        }
+
+        /**
+         * Build a context for one copy of the query, which is cancelled with the given context but can also be
+         * cancelled alone.
+         *
+         * @param requestContext  The context the copy is sent for
+         *
+         * @return the context of the copy
+         */
+        private RequestContext cancellableCopy(RequestContext requestContext) {
+            SharedQueryRequestContext copyContext = new SharedQueryRequestContext(requestContext);
+            copyContext.share(requestContext);
+            return copyContext;
+        }
+
+        /**
+         * Deliver, hold back or drop an error from a copy of the query.
+         *
+         * @param attempt  The copy which failed
+         * @param deliver  Hands the error to its callback, or null if there is nothing to hand over
+         */
+        private void failed(Attempt attempt, Runnable deliver) {
+            Runnable delivered;
+            synchronized (this) {
+                attempt.pending = false;
+                if (done) {
+                    delivered = attempt == winner ? deliver : null;
+                } else {
+                    if (hedgeTimer != null) {
+                        hedgeTimer.cancel(false);
+                    }
+                    Attempt other = attempt == primary ? hedge : primary;
+                    if (other != null && other.pending) {
+                        heldError = heldError == null ? deliver : heldError;
+                        return;
+                    }
+                    done = true;
+                    delivered = heldError == null ? deliver : heldError;
+                }
+            }
+            if (delivered != null) {
+                delivered.run();
+            }
+        }
+
+        /**
+         * One copy of the query, sent to one broker.
+         */
+        private class Attempt {
+            private final boolean hedge;
+            private Broker broker;
+            private RequestContext sentContext;
+            private long start;
+
+            // Guarded by the hedged query
+            private Future<Response> future;
+            private boolean pending = false;
+
+            /**
+             * Constructor.
+             *
+             * @param hedge  Whether this is the second copy of the query
+             */
+            Attempt(boolean hedge) {
+                this.hedge = hedge;
+            }
+
+            /**
+             * Send this copy of the query.
+             *
+             * @param target  The broker to send to
+             * @param attemptContext  The request context to send with
+             *
+             * @return a future response from the broker
+             */
+            Future<Response> send(Broker target, RequestContext attemptContext) {
+                broker = target;
+                sentContext = attemptContext;
+                start = System.nanoTime();
+                synchronized (HedgedQuery.this) {
+                    pending = true;
+                }
+
+                Future<Response> sent;
+                try {
+                    sent = LoadBalancedDruidWebService.this.send(
+                            target,
+                            (Broker b, Outcome outcome) -> b.webService.postDruidQuery(
+                                    attemptContext,
+                                    outcome.wrap(onSuccess(success, () -> succeeded(this))),
+                                    outcome.wrap((HttpErrorCallback) (statusCode, reasonPhrase, responseBody) ->
+                                            failed(this, () -> error.invoke(statusCode, reasonPhrase, responseBody))
+                                    ),
+                                    outcome.wrap((FailureCallback) throwable ->
+                                            failed(this, () -> failure.invoke(throwable))
+                                    ),
+                                    query
+                            )
+                    );
+                } catch (RuntimeException e) {
+                    failed(this, null);
+                    throw e;
+                }
+
+                boolean lost;
+                synchronized (HedgedQuery.this) {
+                    future = sent;
+                    lost = done && winner != this && pending;
+                }
+                if (lost) {
+                    cancel();
+                }
+                return sent;
+            }
+
+            /**
+             * Cancel this copy of the query, which has lost.
+             * <p>
+             * Cancelling its context runs the cancel actions the broker's web service registered for it, which tell
+             * the broker to stop working on the query. The future is cancelled as well, for web services which register
+             * none.
+             */
+            void cancel() {
+                RequestContext cancelled;
+                Future<Response> sent;
+                synchronized (HedgedQuery.this) {
+                    cancelled = sentContext;
+                    sent = future;
+                }
+                cancelled.cancel();
+                if (sent != null) {
+                    sent.cancel(true);
+                }
+            }
+        }
+    }
+}
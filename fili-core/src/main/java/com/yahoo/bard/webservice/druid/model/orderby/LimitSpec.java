@@ -15,6 +15,7 @@ public class LimitSpec {
 
     private final String type;
     private final OptionalInt limit;
+    private final OptionalInt offset;
     private final LinkedHashSet<OrderByColumn> columns;
 
     /**
@@ -33,10 +34,23 @@ public class LimitSpec {
      * @param limit  The number of result rows
      */
     public LimitSpec(LinkedHashSet<OrderByColumn> sortColumns, OptionalInt limit) {
+        this(sortColumns, limit, OptionalInt.empty());
+    }
+
+    /**
+     * Constructor. Specifies a sorting method, a limit upon the number of results and a number of leading results to
+     * skip before the limit is applied.
+     *
+     * @param sortColumns  The set of columns
+     * @param limit  The number of result rows
+     * @param offset  The number of leading result rows to skip
+     */
+    public LimitSpec(LinkedHashSet<OrderByColumn> sortColumns, OptionalInt limit, OptionalInt offset) {
         //As of Jul 2014, druid supports only "default" limitSpec, we may have other types in future
         this.type = "default";
         this.columns = sortColumns;
         this.limit = limit;
+        this.offset = offset;
     }
 
     /**
@@ -58,6 +72,16 @@ public class LimitSpec {
         return limit;
     }
 
+    /**
+     * Getter for offset.
+     *
+     * @return offset
+     */
+    @JsonInclude(JsonInclude.Include.NON_ABSENT)
+    public OptionalInt getOffset() {
+        return offset;
+    }
+
     /**
      * Getter for columns.
      *
@@ -69,11 +93,15 @@ public class LimitSpec {
 
     // CHECKSTYLE:OFF
     public LimitSpec withColumns(LinkedHashSet<OrderByColumn> sortColumns) {
-        return new LimitSpec(sortColumns, limit);
+        return new LimitSpec(sortColumns, limit, offset);
     }
 
     public LimitSpec withLimit(OptionalInt limit) {
-        return new LimitSpec(columns, limit);
+        return new LimitSpec(columns, limit, offset);
+    }
+
+    public LimitSpec withOffset(OptionalInt offset) {
+        return new LimitSpec(columns, limit, offset);
     }
     // CHECKSTYLE:ON
 
@@ -87,11 +115,12 @@ public class LimitSpec {
         return
                 Objects.equals(type, limitSpec.type) &&
                 Objects.equals(limit, limitSpec.limit) &&
+                Objects.equals(offset, limitSpec.offset) &&
                 Objects.equals(columns, limitSpec.columns);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(type, limit, columns);
+        return Objects.hash(type, limit, offset, columns);
     }
 }
@@ -0,0 +1,63 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.druid.model.query;
+
+import com.yahoo.bard.webservice.data.dimension.Dimension;
+import com.yahoo.bard.webservice.data.time.AllGranularity;
+import com.yahoo.bard.webservice.druid.model.aggregation.Aggregation;
+import com.yahoo.bard.webservice.druid.model.aggregation.CountAggregation;
+import com.yahoo.bard.webservice.druid.model.datasource.QueryDataSource;
+import com.yahoo.bard.webservice.druid.model.filter.Filter;
+import com.yahoo.bard.webservice.druid.model.having.Having;
+import com.yahoo.bard.webservice.druid.model.orderby.LimitSpec;
+import com.yahoo.bard.webservice.druid.model.postaggregation.PostAggregation;
+
+import java.util.Collections;
+
+/**
+ * Query counting the rows a groupBy query returns, without returning them.
+ * <p>
+ * The counted query is run without its limit spec as the data source of a query with granularity all and no
+ * dimensions, which counts its rows <pre><code>
+ *  {
+ *    "queryType": "groupBy",
+ *    "dataSource": {
+ *      "query": { ...the counted query... },
+ *      "type": "query"
+ *    },
+ *    "dimensions": [],
+ *    "aggregations": [
+ *      {
+ *        "name": "count",
+ *        "type": "count"
+ *      }
+ *    ],
+ *    "postAggregations": [],
+ *    "intervals": [ ...the intervals of the counted query... ],
+ *    "granularity": "all"
+ *  }
+ * </code></pre>
+ */
+public class RowCountQuery extends GroupByQuery {
+
+    public static final String COUNT = "count";
+
+    /**
+     * Build a query counting the rows of a groupBy query.
+     *
+     * @param query  Query to count the rows of
+     */
+    public RowCountQuery(GroupByQuery query) {
+        super(
+                new QueryDataSource(query.withLimitSpec((LimitSpec) null)),
+                AllGranularity.INSTANCE,
+                Collections.<Dimension>emptyList(),
+                (Filter) null,
+                (Having) null,
+                Collections.<Aggregation>singletonList(new CountAggregation(COUNT)),
+                Collections.<PostAggregation>emptyList(),
+                query.getIntervals(),
+                (LimitSpec) null
+        );
+    }
+}
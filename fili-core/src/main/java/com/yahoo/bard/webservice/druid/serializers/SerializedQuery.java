@@ -0,0 +1,291 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.druid.serializers;
+
+import com.yahoo.bard.webservice.druid.model.query.DruidFactQuery;
+import com.yahoo.bard.webservice.druid.model.query.DruidQuery;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.SegmentedStringWriter;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import org.joda.time.Interval;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A druid query serialized once, from which both the body sent to druid and the cache key are written.
+ * <p>
+ * A query is serialized into a buffer of json tokens the first time it is asked for, and the serialization is kept for
+ * as long as the query object is in use, so the handlers building cache keys and the web service sending the query all
+ * share it. The serialization is made with the writer of whoever asks first, so everyone asking must agree on how
+ * queries are written, as the writers of one object mapper do.
+ * <p>
+ * A query may also be registered as derived from a template query it differs from only in intervals and context, as
+ * the sub-queries of a split query are. Its serialization is then copied from the template's, with only those values
+ * written anew.
+ */
+public final class SerializedQuery {
+
+    private static final String CONTEXT = "context";
+    private static final String INTERVALS = "intervals";
+    private static final String DATA_SOURCE = "dataSource";
+    private static final String QUERY = "query";
+
+    private static final Cache<DruidQuery<?>, SerializedQuery> SERIALIZED = CacheBuilder.newBuilder()
+            .weakKeys()
+            .build();
+    private static final Cache<DruidQuery<?>, DruidQuery<?>> TEMPLATES = CacheBuilder.newBuilder()
+            .weakKeys()
+            .build();
+
+    private final TokenBuffer tokens;
+    private final JsonFactory jsonFactory;
+    private volatile byte[] body;
+    private volatile String key;
+
+    /**
+     * Constructor.
+     *
+     * @param tokens  The serialized query
+     * @param jsonFactory  The factory for generators writing the query as json
+     */
+    private SerializedQuery(TokenBuffer tokens, JsonFactory jsonFactory) {
+        this.tokens = tokens;
+        this.jsonFactory = jsonFactory;
+    }
+
+    /**
+     * Get the serialization of a query, serializing it if it has not been serialized yet.
+     *
+     * @param query  The query to serialize
+     * @param writer  The writer to serialize the query with
+     *
+     * @return the serialized query
+     * @throws JsonProcessingException if the query cannot be serialized
+     */
+    public static SerializedQuery of(DruidQuery<?> query, ObjectWriter writer) throws JsonProcessingException {
+        try {
+            return SERIALIZED.get(query, () -> serialize(query, writer));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof JsonProcessingException) {
+                throw (JsonProcessingException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Register a query as differing from a template query only in its intervals and contexts, at every level of
+     * nesting. Deriving a query forks the contexts of its inner queries, so their query ids differ from the template's.
+     * <p>
+     * The query is then serialized by copying the template's serialization, which is much cheaper than serializing
+     * its aggregations, filters and dimensions again. The template is serialized itself the first time one of its
+     * derived queries is.
+     *
+     * @param query  The query derived from the template
+     * @param template  The template query
+     */
+    public static void registerTemplate(DruidQuery<?> query, DruidQuery<?> template) {
+        if (query != template && (query.getContext() == null) == (template.getContext() == null)) {
+            TEMPLATES.put(query, template);
+        }
+    }
+
+    /**
+     * Write the query to a generator, such as one writing Smile.
+     *
+     * @param generator  The generator to write the query to
+     *
+     * @throws IOException if the generator cannot write the query
+     */
+    public void writeTo(JsonGenerator generator) throws IOException {
+        tokens.serialize(generator);
+    }
+
+    /**
+     * Get the query as UTF-8 json, ready to be sent to druid.
+     * <p>
+     * The json is written through the json factory's recycled buffers.
+     *
+     * @return the query as json
+     */
+    public byte[] getBody() {
+        byte[] result = body;
+        if (result == null) {
+            ByteArrayBuilder out = new ByteArrayBuilder(jsonFactory._getBufferRecycler());
+            try (JsonGenerator generator = jsonFactory.createGenerator(out)) {
+                writeTo(generator);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            result = out.toByteArray();
+            out.release();
+            body = result;
+        }
+        return result;
+    }
+
+    /**
+     * Get a key identifying the query by everything but its contexts, so that queries asking Druid for the same data
+     * get the same key.
+     *
+     * @return the key
+     */
+    public String getKey() {
+        String result = key;
+        if (result == null) {
+            SegmentedStringWriter out = new SegmentedStringWriter(jsonFactory._getBufferRecycler());
+            try (
+                    JsonParser parser = tokens.asParser();
+                    JsonGenerator generator = jsonFactory.createGenerator(out)
+            ) {
+                while (parser.nextToken() != null) {
+                    if (parser.getCurrentToken() == JsonToken.FIELD_NAME && CONTEXT.equals(parser.getCurrentName())) {
+                        generator.writeFieldName(CONTEXT);
+                        parser.nextToken();
+                        parser.skipChildren();
+                        generator.writeStartObject();
+                        generator.writeEndObject();
+                    } else {
+                        generator.copyCurrentEvent(parser);
+                    }
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            result = out.getAndClear();
+            key = result;
+        }
+        return result;
+    }
+
+    /**
+     * Serialize a query, copying the serialization of its template if it has one.
+     *
+     * @param query  The query to serialize
+     * @param writer  The writer to serialize the query with
+     *
+     * @return the serialized query
+     * @throws IOException if the query cannot be serialized
+     */
+    private static SerializedQuery serialize(DruidQuery<?> query, ObjectWriter writer) throws IOException {
+        DruidQuery<?> template = TEMPLATES.getIfPresent(query);
+        TokenBuffer tokens = new TokenBuffer(null, false);
+        if (template != null) {
+            try (JsonParser parser = of(template, writer).tokens.asParser()) {
+                parser.nextToken();
+                copyQuery(parser, tokens, query, writer);
+            }
+        } else {
+            writer.writeValue(tokens, query);
+        }
+        return new SerializedQuery(tokens, writer.getFactory());
+    }
+
+    /**
+     * Copy the serialization of a template query, writing the intervals and context of the derived query instead.
+     * <p>
+     * The intervals and context of each nested query are written anew as well.
+     *
+     * @param parser  The parser over the template's serialization, on the start of the query object
+     * @param generator  The generator to copy to
+     * @param query  The derived query, or the query nested at this level of it
+     * @param writer  The writer to serialize the context with
+     *
+     * @throws IOException if the query cannot be copied
+     */
+    private static void copyQuery(
+            JsonParser parser,
+            JsonGenerator generator,
+            DruidQuery<?> query,
+            ObjectWriter writer
+    ) throws IOException {
+        Optional<? extends DruidQuery> innerQuery = query.getInnerQuery();
+        generator.writeStartObject();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            generator.writeFieldName(name);
+            parser.nextToken();
+            if (INTERVALS.equals(name) && query instanceof DruidFactQuery) {
+                parser.skipChildren();
+                writeIntervals(generator, ((DruidFactQuery<?>) query).getIntervals());
+            } else if (CONTEXT.equals(name)) {
+                parser.skipChildren();
+                writer.writeValue(generator, query.getContext());
+            } else if (
+                    DATA_SOURCE.equals(name) &&
+                    innerQuery.isPresent() &&
+                    parser.getCurrentToken() == JsonToken.START_OBJECT
+            ) {
+                copyDataSource(parser, generator, innerQuery.get(), writer);
+            } else {
+                generator.copyCurrentStructure(parser);
+            }
+        }
+        generator.writeEndObject();
+    }
+
+    /**
+     * Copy the serialization of a query data source, copying its query as a derived query.
+     *
+     * @param parser  The parser over the template's serialization, on the start of the data source object
+     * @param generator  The generator to copy to
+     * @param innerQuery  The query of the derived data source
+     * @param writer  The writer to serialize contexts with
+     *
+     * @throws IOException if the data source cannot be copied
+     */
+    private static void copyDataSource(
+            JsonParser parser,
+            JsonGenerator generator,
+            DruidQuery<?> innerQuery,
+            ObjectWriter writer
+    ) throws IOException {
+        generator.writeStartObject();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            generator.writeFieldName(name);
+            parser.nextToken();
+            if (QUERY.equals(name) && parser.getCurrentToken() == JsonToken.START_OBJECT) {
+                copyQuery(parser, generator, innerQuery, writer);
+            } else {
+                generator.copyCurrentStructure(parser);
+            }
+        }
+        generator.writeEndObject();
+    }
+
+    /**
+     * Write intervals the way a query serializes them.
+     *
+     * @param generator  The generator to write to
+     * @param intervals  The intervals to write
+     *
+     * @throws IOException if the intervals cannot be written
+     */
+    private static void writeIntervals(JsonGenerator generator, List<Interval> intervals) throws IOException {
+        if (intervals == null) {
+            generator.writeNull();
+            return;
+        }
+        generator.writeStartArray();
+        for (Interval interval : intervals) {
+            generator.writeString(Objects.toString(interval));
+        }
+        generator.writeEndArray();
+    }
+}
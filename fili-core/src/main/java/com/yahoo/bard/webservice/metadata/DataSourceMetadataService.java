@@ -15,17 +15,22 @@ import org.slf4j.LoggerFactory;
 
 import io.druid.timeline.DataSegment;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collector;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import javax.inject.Singleton;
 
@@ -44,6 +49,16 @@ public class DataSourceMetadataService {
     private final Map<DataSourceName, AtomicReference<ImmutableMap<String, SimplifiedIntervalList>>>
             allSegmentsByColumn;
 
+    /**
+     * The signature index of the segments of every table, built when its segment metadata is updated.
+     */
+    private final Map<DataSourceName, AtomicReference<SegmentSignatureIndex>> segmentSignatureIndexes;
+
+    /**
+     * The listeners told about the intervals whose segments change when the segment metadata is updated.
+     */
+    private final Set<SegmentChangeListener> segmentChangeListeners;
+
     /**
      * The collector that accumulates partitions of a segment.
      */
@@ -55,6 +70,19 @@ public class DataSourceMetadataService {
     public DataSourceMetadataService() {
         this.allSegmentsByTime = new ConcurrentHashMap<>();
         this.allSegmentsByColumn = new ConcurrentHashMap<>();
+        this.segmentSignatureIndexes = new ConcurrentHashMap<>();
+        this.segmentChangeListeners = new CopyOnWriteArraySet<>();
+    }
+
+    /**
+     * Add a listener to be told about the intervals whose segments change when a data source is updated.
+     * <p>
+     * Listeners are called on the thread doing the update, so they should hand any slow work off.
+     *
+     * @param listener  The listener
+     */
+    public void addSegmentChangeListener(SegmentChangeListener listener) {
+        segmentChangeListeners.add(listener);
     }
 
     /**
@@ -72,6 +100,50 @@ public class DataSourceMetadataService {
                 .collect(Collectors.toSet());
     }
 
+    /**
+     * Get the signature indexes of the segments of the given Set of data source names.
+     * <p>
+     * The index of a data source is normally built when its segment metadata is updated. If its segments have been
+     * replaced in some other way since, the index is rebuilt from the current segments.
+     *
+     * @param dataSourceNames  A Set of physical data source names
+     *
+     * @return The signature indexes of the segments of the data sources which have segment metadata
+     */
+    public Set<SegmentSignatureIndex> getSegmentSignatureIndexes(Set<DataSourceName> dataSourceNames) {
+        return dataSourceNames.stream()
+                .map(this::getSegmentSignatureIndex)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * Get the signature index of the current segments of a data source.
+     *
+     * @param dataSourceName  The physical data source name
+     *
+     * @return The signature index, or null if the data source has no segment metadata
+     */
+    private SegmentSignatureIndex getSegmentSignatureIndex(DataSourceName dataSourceName) {
+        AtomicReference<ConcurrentSkipListMap<DateTime, Map<String, SegmentInfo>>> segmentsReference =
+                allSegmentsByTime.get(dataSourceName);
+        if (segmentsReference == null) {
+            return null;
+        }
+        ConcurrentSkipListMap<DateTime, Map<String, SegmentInfo>> segments = segmentsReference.get();
+
+        AtomicReference<SegmentSignatureIndex> indexReference = segmentSignatureIndexes.computeIfAbsent(
+                dataSourceName,
+                ignored -> new AtomicReference<>()
+        );
+        SegmentSignatureIndex index = indexReference.get();
+        if (index == null || !index.isIndexOf(segments)) {
+            index = new SegmentSignatureIndex(segments);
+            indexReference.set(index);
+        }
+        return index;
+    }
+
     /**
      * Get a set of intervals available for each column in the data source.
      *
@@ -107,7 +179,8 @@ public class DataSourceMetadataService {
 
     /**
      * Update the information with respect to the segment metadata of a particular data source.
-     * This operation update both segment mappings for the dataSourceName.
+     * This operation update both segment mappings for the dataSourceName, and the signature index of its segments.
+     * If the segments of some intervals changed since the previous update, the segment change listeners are told.
      *
      * @param dataSourceName  The data source to which the metadata refer.
      * @param metadata  The updated datasource metadata.
@@ -120,10 +193,59 @@ public class DataSourceMetadataService {
         // Group segment interval by every column present in the segment
         Map<String, SimplifiedIntervalList> currentByColumn = groupIntervalByColumn(metadata);
 
-        allSegmentsByTime.computeIfAbsent(dataSourceName, ignored -> new AtomicReference<>())
-                .set(currentByTime);
+        // Index the segment hashes now, so that signing queries does not have to hash the segments
+        SegmentSignatureIndex currentIndex = new SegmentSignatureIndex(currentByTime);
+
+        ConcurrentSkipListMap<DateTime, Map<String, SegmentInfo>> previousByTime = allSegmentsByTime
+                .computeIfAbsent(dataSourceName, ignored -> new AtomicReference<>())
+                .getAndSet(currentByTime);
+        segmentSignatureIndexes.computeIfAbsent(dataSourceName, ignored -> new AtomicReference<>())
+                .set(currentIndex);
         allSegmentsByColumn.computeIfAbsent(dataSourceName, ignored -> new AtomicReference<>())
                 .set(ImmutableMap.copyOf(currentByColumn));
+
+        if (previousByTime != null && !segmentChangeListeners.isEmpty()) {
+            SimplifiedIntervalList changedIntervals = getChangedIntervals(previousByTime, currentByTime);
+            if (!changedIntervals.isEmpty()) {
+                for (SegmentChangeListener listener : segmentChangeListeners) {
+                    try {
+                        listener.segmentsChanged(dataSourceName, changedIntervals);
+                    } catch (RuntimeException e) {
+                        LOG.warn("Segment change listener failed for {}", dataSourceName.asName(), e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the intervals whose segments differ between two groupings of segments by time.
+     * <p>
+     * Segments are compared by identifier, which includes their version and partition, so reprocessed segments count
+     * as changed.
+     *
+     * @param previous  The segments before, grouped by the start of their interval
+     * @param current  The segments after, grouped by the start of their interval
+     *
+     * @return the intervals of the segments which were added, removed or replaced
+     */
+    protected static SimplifiedIntervalList getChangedIntervals(
+            SortedMap<DateTime, Map<String, SegmentInfo>> previous,
+            SortedMap<DateTime, Map<String, SegmentInfo>> current
+    ) {
+        Set<DateTime> starts = new HashSet<>(previous.keySet());
+        starts.addAll(current.keySet());
+        List<Interval> changedIntervals = new ArrayList<>();
+        for (DateTime start : starts) {
+            Map<String, SegmentInfo> before = previous.getOrDefault(start, Collections.emptyMap());
+            Map<String, SegmentInfo> after = current.getOrDefault(start, Collections.emptyMap());
+            if (!before.keySet().equals(after.keySet())) {
+                Stream.concat(before.values().stream(), after.values().stream())
+                        .map(SegmentInfo::getInterval)
+                        .forEach(changedIntervals::add);
+            }
+        }
+        return new SimplifiedIntervalList(changedIntervals);
     }
 
     /**
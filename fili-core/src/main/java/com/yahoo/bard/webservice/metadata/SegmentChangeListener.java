@@ -0,0 +1,21 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.metadata;
+
+import com.yahoo.bard.webservice.data.config.names.DataSourceName;
+import com.yahoo.bard.webservice.util.SimplifiedIntervalList;
+
+/**
+ * Listens for changes to the segments of a data source, as seen by the {@link DataSourceMetadataService}.
+ */
+@FunctionalInterface
+public interface SegmentChangeListener {
+
+    /**
+     * Called after the segment metadata of a data source is updated, if the segments of some intervals have changed.
+     *
+     * @param dataSourceName  The data source whose segments changed
+     * @param changedIntervals  The intervals of the segments which were added, removed or replaced
+     */
+    void segmentsChanged(DataSourceName dataSourceName, SimplifiedIntervalList changedIntervals);
+}
@@ -24,6 +24,9 @@ import java.util.stream.Stream;
 /**
  * An implementation of the QuerySigningService that generates segment id for requested interval.
  * It uses the sum of segment hashes to create a segment id.
+ * <p>
+ * The segment hashes are read off the {@link SegmentSignatureIndex} of each data source, so signing a query takes
+ * logarithmic time in the number of segments for each requested interval.
  */
 public class SegmentIntervalsHashIdGenerator implements QuerySigningService<Long> {
 
@@ -115,23 +118,27 @@ public class SegmentIntervalsHashIdGenerator implements QuerySigningService<Long
                 .stream()
                 .collect(Collectors.toSet());
 
-        // Get all the segments for the data sources of the query's physical tables
-        Set<SortedMap<DateTime, Map<String, SegmentInfo>>> tableSegments = dataSourceMetadataService.getSegments(
+        // Get the signature indexes of the segments of the data sources of the query's physical tables
+        Set<SegmentSignatureIndex> signatureIndexes = dataSourceMetadataService.getSegmentSignatureIndexes(
                 dataSourceNames
         );
 
         // Check if we have no tables with segments
-        if (tableSegments.isEmpty()) {
+        if (signatureIndexes.isEmpty()) {
             LOG.warn(DRUID_METADATA_SEGMENTS_MISSING.logFormat(dataSourceNames));
             return Optional.empty();
         }
 
-        // Get requested intervals, then their segments, and sum their hash codes into a long
-        return getSegmentHash(
-                requestedIntervalsQueryExtractionFunctions.get(query.getClass()).apply(query).stream()
-                        .flatMap(interval -> tableSegments.stream()
-                                .map(segments -> segments.subMap(interval.getStart(), interval.getEnd()))
-                        )
+        // Get requested intervals, then sum the hash codes of their segments into a long
+        SimplifiedIntervalList requestedIntervals = requestedIntervalsQueryExtractionFunctions.get(query.getClass())
+                .apply(query);
+        if (requestedIntervals.isEmpty()) {
+            return Optional.empty();
+        }
+        return Optional.of(
+                signatureIndexes.stream()
+                        .mapToLong(signatureIndex -> signatureIndex.getSignature(requestedIntervals))
+                        .sum()
         );
     }
 
@@ -0,0 +1,124 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.metadata;
+
+import org.joda.time.DateTime;
+import org.joda.time.Interval;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+
+/**
+ * A precomputed index over the segments of a data source, giving the hash of the segments in an interval in
+ * logarithmic time.
+ * <p>
+ * The index keeps the start instants of the segment buckets in order, together with the running sum of the hash codes
+ * of their entries. The hash of the buckets in an interval is then the difference of two running sums, found by binary
+ * search, rather than a walk over every bucket in the interval. Since a map's hash code is the sum of its entries' hash
+ * codes, that difference is exactly the {@link Map#hashCode()} of the {@link SortedMap#subMap} holding the same
+ * buckets, so signatures read off the index match those computed from the segment map itself.
+ * <p>
+ * An index is immutable, and describes the segment map it was built from for as long as that map is not modified.
+ */
+public class SegmentSignatureIndex {
+
+    private final SortedMap<DateTime, Map<String, SegmentInfo>> segments;
+
+    // Start instant of each bucket, in order
+    private final long[] startMillis;
+
+    // Sum of the entry hash codes of the buckets before each position, wrapping like Map::hashCode does
+    private final int[] prefixHashes;
+
+    /**
+     * Build the index of a segment map.
+     *
+     * @param segments  The segments of a data source, grouped by the start of their interval
+     */
+    public SegmentSignatureIndex(SortedMap<DateTime, Map<String, SegmentInfo>> segments) {
+        this.segments = segments;
+
+        @SuppressWarnings("unchecked")
+        Map.Entry<DateTime, Map<String, SegmentInfo>>[] buckets = segments.entrySet().toArray(new Map.Entry[0]);
+        startMillis = new long[buckets.length];
+        prefixHashes = new int[buckets.length + 1];
+        for (int i = 0; i < buckets.length; i++) {
+            startMillis[i] = buckets[i].getKey().getMillis();
+            prefixHashes[i + 1] = prefixHashes[i] + buckets[i].hashCode();
+        }
+    }
+
+    /**
+     * Check whether this is the index of a given segment map.
+     *
+     * @param segments  The segment map
+     *
+     * @return true if the index was built from exactly this segment map
+     */
+    public boolean isIndexOf(SortedMap<DateTime, Map<String, SegmentInfo>> segments) {
+        return this.segments == segments;
+    }
+
+    /**
+     * Get the number of segment buckets in the index.
+     *
+     * @return the number of buckets
+     */
+    public int size() {
+        return startMillis.length;
+    }
+
+    /**
+     * Get the hash of the segment buckets starting in an interval.
+     * <p>
+     * This is the hash code of the sub map of the segments from the start of the interval (inclusive) to its end
+     * (exclusive).
+     *
+     * @param interval  The interval
+     *
+     * @return the hash of the buckets in the interval
+     */
+    public int getHash(Interval interval) {
+        return prefixHashes[position(interval.getEndMillis())] - prefixHashes[position(interval.getStartMillis())];
+    }
+
+    /**
+     * Get the signature of the segments in a collection of intervals.
+     * <p>
+     * The signature is the sum of the hashes of the intervals' buckets, where intervals holding exactly the same
+     * buckets are counted once.
+     *
+     * @param intervals  The intervals
+     *
+     * @return the signature of the segments in the intervals
+     */
+    public long getSignature(Collection<Interval> intervals) {
+        Set<Long> ranges = new HashSet<>();
+        long signature = 0;
+        for (Interval interval : intervals) {
+            int from = position(interval.getStartMillis());
+            int to = position(interval.getEndMillis());
+            // An empty range hashes to zero, so only non-empty ranges need to be told apart
+            if (from < to && ranges.add(((long) from << Integer.SIZE) | to)) {
+                signature += prefixHashes[to] - prefixHashes[from];
+            }
+        }
+        return signature;
+    }
+
+    /**
+     * Find the position of the first bucket starting at or after an instant.
+     *
+     * @param instant  The instant, in milliseconds
+     *
+     * @return the position of the first bucket at or after the instant, or the number of buckets if there is none
+     */
+    private int position(long instant) {
+        int position = Arrays.binarySearch(startMillis, instant);
+        return position >= 0 ? position : -position - 1;
+    }
+}
@@ -87,7 +87,12 @@ public class ConstrainedTable implements PhysicalTable {
         );
     }
 
-    private DataSourceConstraint getConstraint() {
+    /**
+     * Get the constraint narrowing the source table.
+     *
+     * @return the constraint applied to the source table
+     */
+    public DataSourceConstraint getConstraint() {
         return constraint;
     }
 
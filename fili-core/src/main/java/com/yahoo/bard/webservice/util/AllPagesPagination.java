@@ -5,8 +5,10 @@ package com.yahoo.bard.webservice.util;
 import com.yahoo.bard.webservice.web.PageNotFoundException;
 import com.yahoo.bard.webservice.web.util.PaginationParameters;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.OptionalInt;
 import java.util.stream.Collectors;
@@ -58,6 +60,74 @@ public class AllPagesPagination<T> implements Pagination<T> {
         );
     }
 
+    /**
+     * Constructor for a page already cut out of the results.
+     *
+     * @param pageOfData  The entries of the page
+     * @param collectionSize  The number of entries in all pages
+     * @param pageToFetch  The page the entries are on
+     * @param countPerPage  The number of entries per page
+     *
+     * @throws PageNotFoundException if pageToFetch is greater than the number of pages.
+     */
+    private AllPagesPagination(List<T> pageOfData, int collectionSize, int pageToFetch, int countPerPage)
+            throws PageNotFoundException {
+        this.collectionSize = collectionSize;
+        this.pageToFetch = pageToFetch;
+        this.countPerPage = countPerPage;
+        this.lastPage = (collectionSize > countPerPage) ? (collectionSize - 1) / countPerPage + 1 : 1;
+
+        if (this.pageToFetch > this.lastPage || this.pageToFetch < FIRST_PAGE) {
+            throw new PageNotFoundException(this.pageToFetch, this.countPerPage, lastPage);
+        }
+
+        this.pageOfData = Collections.unmodifiableList(pageOfData);
+    }
+
+    /**
+     * Paginate results read one at a time, of which only the page to fetch is kept.
+     * <p>
+     * Every entry is read, to count them, but no more than a page of entries is held at once.
+     *
+     * @param entireCollection  Iterator over the entries to be paginated, in the order they are paginated in.
+     * @param paginationParameters  The parameters needed for pagination.
+     * @param <T>  The type of the entries
+     *
+     * @return the pagination of the entries
+     * @throws PageNotFoundException if pageToFetch is greater than the number of pages.
+     */
+    public static <T> AllPagesPagination<T> ofIterator(
+            Iterator<T> entireCollection,
+            PaginationParameters paginationParameters
+    ) throws PageNotFoundException {
+        int countPerPage = paginationParameters.getPerPage();
+
+        List<T> page = new ArrayList<>();
+        int size = 0;
+        if (paginationParameters.isLastPage()) {
+            // The last page is whatever follows the last page boundary, so start over at each boundary
+            while (entireCollection.hasNext()) {
+                T entry = entireCollection.next();
+                if (size++ % countPerPage == 0) {
+                    page.clear();
+                }
+                page.add(entry);
+            }
+        } else {
+            long first = (paginationParameters.getPage(0) - 1L) * countPerPage;
+            long end = first + countPerPage;
+            while (entireCollection.hasNext()) {
+                T entry = entireCollection.next();
+                if (first <= size && size < end) {
+                    page.add(entry);
+                }
+                size++;
+            }
+        }
+
+        return new AllPagesPagination<>(page, size, paginationParameters.getPage(size), countPerPage);
+    }
+
     @Override
     public int getPage() {
         return pageToFetch;
@@ -0,0 +1,213 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.web;
+
+import com.yahoo.bard.webservice.config.SystemConfig;
+import com.yahoo.bard.webservice.config.SystemConfigProvider;
+import com.yahoo.bard.webservice.data.Result;
+import com.yahoo.bard.webservice.data.dimension.Dimension;
+import com.yahoo.bard.webservice.data.dimension.DimensionColumn;
+import com.yahoo.bard.webservice.data.dimension.DimensionField;
+import com.yahoo.bard.webservice.data.dimension.DimensionRow;
+import com.yahoo.bard.webservice.data.metric.MetricColumn;
+import com.yahoo.bard.webservice.web.apirequest.ApiRequest;
+import com.yahoo.bard.webservice.web.util.ArrowStreamWriter;
+
+import org.joda.time.DateTimeZone;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serializer for the Apache Arrow IPC streaming format.
+ * <p>
+ * The response has the columns of the CSV format: a {@code dateTime} timestamp column in milliseconds, in the time
+ * zone of the results, a string column for each requested dimension field, named {@code dimension|field}, and a
+ * column for each requested metric. The rows are written in record batches as they are read from the result set.
+ * <p>
+ * The type of a metric column is chosen from the values of the first batch: a double column if they are all numbers,
+ * a boolean column if they are all booleans, and a string column otherwise. Since the schema leads the stream, a column
+ * cannot be widened once it is written, so a later value which does not fit the type of its column fails the request
+ * rather than being lost.
+ */
+public class ArrowResponseWriter implements ResponseWriter {
+
+    private static final SystemConfig SYSTEM_CONFIG = SystemConfigProvider.getInstance();
+
+    private static final int DEFAULT_BATCH_SIZE = SYSTEM_CONFIG.getIntProperty(
+            SYSTEM_CONFIG.getPackageVariableName("arrow_record_batch_size"),
+            4096
+    );
+
+    private final int batchSize;
+
+    /**
+     * Constructor, writing record batches of the configured size.
+     */
+    public ArrowResponseWriter() {
+        this(DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param batchSize  The greatest number of rows in a record batch, which must be positive
+     */
+    public ArrowResponseWriter(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Arrow record batch size must be positive, but was " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public void write(
+            ApiRequest request,
+            ResponseData responseData,
+            OutputStream os
+    ) throws IOException {
+        Map<Dimension, DimensionColumn> dimensionColumns = new HashMap<>();
+        for (DimensionColumn column : responseData.getResultSet().getSchema().getColumns(DimensionColumn.class)) {
+            dimensionColumns.put(column.getDimension(), column);
+        }
+        List<DimensionColumn> fieldColumns = new ArrayList<>();
+        List<DimensionField> fields = new ArrayList<>();
+        List<String> fieldNames = new ArrayList<>();
+        for (Map.Entry<Dimension, LinkedHashSet<DimensionField>> entry :
+                responseData.getRequestedApiDimensionFields().entrySet()) {
+            for (DimensionField field : entry.getValue()) {
+                fieldColumns.add(dimensionColumns.get(entry.getKey()));
+                fields.add(field);
+                fieldNames.add(ResponseData.getDimensionColumnName(entry.getKey(), field));
+            }
+        }
+        List<MetricColumn> metricColumns = new ArrayList<>(responseData.getApiMetricColumns());
+
+        ArrowStreamWriter writer = new ArrowStreamWriter(os);
+        List<ArrowStreamWriter.Field> schema = null;
+        Iterator<Result> results = responseData.getResultSet().iterator();
+        List<Result> batch = new ArrayList<>(batchSize);
+        do {
+            batch.clear();
+            while (batch.size() < batchSize && results.hasNext()) {
+                batch.add(results.next());
+            }
+
+            int columnCount = 1 + fields.size() + metricColumns.size();
+            List<Object[]> columns = new ArrayList<>(columnCount);
+            for (int i = 0; i < columnCount; i++) {
+                columns.add(new Object[batch.size()]);
+            }
+            for (int row = 0; row < batch.size(); row++) {
+                Result result = batch.get(row);
+                columns.get(0)[row] = result.getTimeStamp().getMillis();
+                for (int i = 0; i < fields.size(); i++) {
+                    DimensionRow dimensionRow = fieldColumns.get(i) == null ?
+                            null :
+                            result.getDimensionRow(fieldColumns.get(i));
+                    columns.get(1 + i)[row] = dimensionRow == null ? null : dimensionRow.get(fields.get(i));
+                }
+                for (int i = 0; i < metricColumns.size(); i++) {
+                    columns.get(1 + fields.size() + i)[row] = result.getMetricValue(metricColumns.get(i));
+                }
+            }
+
+            if (schema == null) {
+                schema = buildSchema(batch, fieldNames, metricColumns, columns);
+                writer.writeSchema(schema);
+            }
+            if (!batch.isEmpty()) {
+                for (int i = 1 + fields.size(); i < columnCount; i++) {
+                    checkValues(columns.get(i), schema.get(i));
+                }
+                writer.writeBatch(batch.size(), columns);
+            }
+        } while (results.hasNext());
+        writer.writeEnd();
+    }
+
+    /**
+     * Build the columns of the stream, typing the metric columns from the values of the first batch.
+     *
+     * @param firstBatch  The first batch of results
+     * @param fieldNames  The names of the dimension field columns
+     * @param metricColumns  The metric columns
+     * @param columns  The values of the first batch, by column
+     *
+     * @return the columns of the stream
+     */
+    private List<ArrowStreamWriter.Field> buildSchema(
+            List<Result> firstBatch,
+            List<String> fieldNames,
+            List<MetricColumn> metricColumns,
+            List<Object[]> columns
+    ) {
+        DateTimeZone timeZone = firstBatch.isEmpty() ? DateTimeZone.UTC : firstBatch.get(0).getTimeStamp().getZone();
+        List<ArrowStreamWriter.Field> schema = new ArrayList<>(columns.size());
+        schema.add(new ArrowStreamWriter.Field("dateTime", ArrowStreamWriter.Type.TIMESTAMP, timeZone.getID()));
+        for (String fieldName : fieldNames) {
+            schema.add(new ArrowStreamWriter.Field(fieldName, ArrowStreamWriter.Type.UTF8));
+        }
+        for (int i = 0; i < metricColumns.size(); i++) {
+            Object[] values = columns.get(1 + fieldNames.size() + i);
+            schema.add(new ArrowStreamWriter.Field(metricColumns.get(i).getName(), typeOf(values)));
+        }
+        return schema;
+    }
+
+    /**
+     * Choose the type of a metric column from some of its values.
+     *
+     * @param values  The values
+     *
+     * @return double if all the values are numbers, boolean if all are booleans, and string otherwise
+     */
+    private static ArrowStreamWriter.Type typeOf(Object[] values) {
+        boolean numbers = values.length > 0;
+        boolean booleans = values.length > 0;
+        boolean nonNull = false;
+        for (Object value : values) {
+            if (value != null) {
+                nonNull = true;
+                numbers &= value instanceof Number;
+                booleans &= value instanceof Boolean;
+            }
+        }
+        if (nonNull && numbers) {
+            return ArrowStreamWriter.Type.FLOAT64;
+        }
+        return nonNull && booleans ? ArrowStreamWriter.Type.BOOL : ArrowStreamWriter.Type.UTF8;
+    }
+
+    /**
+     * Check that the values of a metric column all fit its type.
+     *
+     * @param values  The values of the column
+     * @param field  The column
+     *
+     * @throws IOException if a value does not fit the type of the column
+     */
+    private static void checkValues(Object[] values, ArrowStreamWriter.Field field) throws IOException {
+        ArrowStreamWriter.Type type = field.getType();
+        for (Object value : values) {
+            boolean fits = value == null
+                    || type == ArrowStreamWriter.Type.UTF8
+                    || (type == ArrowStreamWriter.Type.FLOAT64 && value instanceof Number)
+                    || (type == ArrowStreamWriter.Type.BOOL && value instanceof Boolean);
+            if (!fits) {
+                throw new IOException(String.format(
+                        "Metric %s value %s does not fit the %s type of its column, chosen from the first record batch",
+                        field.getName(),
+                        value,
+                        type
+                ));
+            }
+        }
+    }
+}
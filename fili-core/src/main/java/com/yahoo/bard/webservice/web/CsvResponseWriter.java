@@ -3,10 +3,12 @@
 package com.yahoo.bard.webservice.web;
 
 import com.yahoo.bard.webservice.application.ObjectMappersSuite;
+import com.yahoo.bard.webservice.data.Result;
+import com.yahoo.bard.webservice.data.StreamingResultSet;
 import com.yahoo.bard.webservice.data.metric.MetricColumn;
 import com.yahoo.bard.webservice.web.apirequest.ApiRequest;
 
-import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.dataformat.csv.CsvMapper;
 import com.fasterxml.jackson.dataformat.csv.CsvSchema;
 
@@ -20,6 +22,10 @@ import java.util.stream.Stream;
 
 /**
  * Serializer for CSV format.
+ * <p>
+ * When the results are streamed, the header is flushed before the first result is read, so clients see the response
+ * start while the results are still being built. The rows are written through a single generator by a
+ * {@link ResultRowEncoder}, without building a map for each of them.
  */
 public class CsvResponseWriter implements ResponseWriter {
 
@@ -45,25 +51,19 @@ public class CsvResponseWriter implements ResponseWriter {
         CsvMapper csvMapper = objectMappers.getCsvMapper();
         csvMapper.writer().with(schema.withSkipFirstDataRow(true))
                 .writeValue(outputStream, Collections.emptyMap());
+        if (responseData.getResultSet() instanceof StreamingResultSet) {
+            outputStream.flush();
+        }
 
-        ObjectWriter writer = csvMapper.writer().with(schema.withoutHeader());
-
-        try {
-            responseData.getResultSet().stream()
-                    .map(responseData::buildResultRow)
-                    .forEachOrdered(
-                            row -> {
-                                try {
-                                    writer.writeValue(outputStream, row);
-                                } catch (IOException ioe) {
-                                    String msg = String.format("Unable to write CSV data row: %s", row);
-                                    LOG.error(msg, ioe);
-                                    throw new RuntimeException(msg, ioe);
-                                }
-                            }
-                    );
-        } catch (RuntimeException re) {
-            throw new IOException(re);
+        ResultRowEncoder encoder = new ResultRowEncoder(responseData);
+        try (JsonGenerator generator = csvMapper.getFactory().createGenerator(outputStream)) {
+            generator.setSchema(schema.withoutHeader());
+            for (Result result : responseData.getResultSet()) {
+                encoder.writeRow(result, generator);
+            }
+        } catch (IOException ioe) {
+            LOG.error("Unable to write CSV data rows: {}", ioe.toString());
+            throw ioe;
         }
     }
 
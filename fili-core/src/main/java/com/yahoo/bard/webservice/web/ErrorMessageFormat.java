@@ -75,7 +75,7 @@ public enum ErrorMessageFormat implements MessageFormatter {
 
     DATE_TIME_SORT_VALUE_INVALID("dateTime should be the first field in the sort list"),
 
-    ACCEPT_FORMAT_INVALID("Format '%s' is unknown. Choose from 'csv', 'json'."),
+    ACCEPT_FORMAT_INVALID("Format '%s' is unknown. Choose from 'csv', 'json', 'jsonapi', 'arrow'."),
 
     FILTER_INVALID("Filter expression '%s' is invalid."),
     FILTER_ERROR("Filter expression '%s' resulted in the following error: %s."),
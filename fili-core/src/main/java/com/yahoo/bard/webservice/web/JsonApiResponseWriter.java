@@ -4,6 +4,7 @@ package com.yahoo.bard.webservice.web;
 
 import com.yahoo.bard.webservice.application.ObjectMappersSuite;
 import com.yahoo.bard.webservice.data.Result;
+import com.yahoo.bard.webservice.data.StreamingResultSet;
 import com.yahoo.bard.webservice.data.dimension.Dimension;
 import com.yahoo.bard.webservice.data.dimension.DimensionColumn;
 import com.yahoo.bard.webservice.data.dimension.DimensionField;
@@ -123,6 +124,9 @@ public class JsonApiResponseWriter extends JsonAndJsonApiResponseWriter {
 
             // Write the data rows and extract the dimension rows for the sidecars
             generator.writeArrayFieldStart("rows");
+            if (responseData.getResultSet() instanceof StreamingResultSet) {
+                generator.flush();
+            }
             for (Result result : responseData.getResultSet()) {
                 generator.writeObject(responseData.buildResultRowWithSidecars(result, sidecars));
             }
@@ -4,6 +4,7 @@ package com.yahoo.bard.webservice.web;
 
 import com.yahoo.bard.webservice.application.ObjectMappersSuite;
 import com.yahoo.bard.webservice.data.Result;
+import com.yahoo.bard.webservice.data.StreamingResultSet;
 import com.yahoo.bard.webservice.web.apirequest.ApiRequest;
 
 import com.fasterxml.jackson.core.JsonFactory;
@@ -39,6 +40,10 @@ import java.io.OutputStream;
  *
  * Where "linkName1" ... "linkNameN" are the N keys in paginationLinks, and "http://uri1" ... "http://uriN" are the
  * associated URI's.
+ *
+ * When the results are streamed, the start of the response is flushed before the first result is read, so clients
+ * see the response start while the results are still being built. The rows are written by a {@link ResultRowEncoder},
+ * without building a map for each of them.
  */
 public class JsonResponseWriter extends JsonAndJsonApiResponseWriter {
 
@@ -76,8 +81,12 @@ public class JsonResponseWriter extends JsonAndJsonApiResponseWriter {
             g.writeStartObject();
 
             g.writeArrayFieldStart("rows");
+            if (responseData.getResultSet() instanceof StreamingResultSet) {
+                g.flush();
+            }
+            ResultRowEncoder encoder = new ResultRowEncoder(responseData);
             for (Result result : responseData.getResultSet()) {
-                g.writeObject(responseData.buildResultRow(result));
+                encoder.writeRow(result, g);
             }
             g.writeEndArray();
 
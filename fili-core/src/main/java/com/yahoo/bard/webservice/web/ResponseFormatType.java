@@ -11,7 +11,8 @@ public enum ResponseFormatType {
     JSON,
     CSV,
     DEBUG,
-    JSONAPI;
+    JSONAPI,
+    ARROW;
 
     @Override
     public String toString() {
@@ -0,0 +1,170 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.web;
+
+import com.yahoo.bard.webservice.data.Result;
+import com.yahoo.bard.webservice.data.dimension.Dimension;
+import com.yahoo.bard.webservice.data.dimension.DimensionColumn;
+import com.yahoo.bard.webservice.data.dimension.DimensionField;
+import com.yahoo.bard.webservice.data.dimension.DimensionRow;
+import com.yahoo.bard.webservice.data.metric.MetricColumn;
+import com.yahoo.bard.webservice.util.DateTimeFormatterFactory;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormatter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes the rows {@link ResponseData#buildResultRow(Result)} builds straight to a generator, without building them.
+ * <p>
+ * The encoder is compiled once for a response: the column names are encoded up front, and the dimension fields to
+ * write are looked up once per dimension. Each distinct timestamp is only formatted once, since the results of a time
+ * bucket share it. Rows are written as objects, so it writes to JSON generators, and to CSV generators whose schema
+ * has the columns of the response.
+ * <p>
+ * If the response data builds its rows differently, by overriding {@code buildResultRow}, the encoder writes the rows
+ * it builds instead. So it does if two columns of the response share a name, such as a metric named {@code dateTime},
+ * where the row keeps the last value written under the name.
+ */
+public class ResultRowEncoder {
+
+    private static final SerializableString DATE_TIME = new SerializedString("dateTime");
+
+    private static final ClassValue<Boolean> BUILDS_DEFAULT_ROWS = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            try {
+                return type.getMethod("buildResultRow", Result.class).getDeclaringClass() == ResponseData.class;
+            } catch (NoSuchMethodException e) {
+                return false;
+            }
+        }
+    };
+
+    private final ResponseData responseData;
+    private final boolean compiled;
+    private final Map<Dimension, DimensionFields> dimensionFields = new HashMap<>();
+    private final List<MetricColumn> metricColumns;
+    private final List<SerializableString> metricNames;
+    private final DateTimeFormatter dateTimeFormatter = DateTimeFormatterFactory.getOutputFormatter();
+    private final Map<DateTime, String> formattedDateTimes = new HashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param responseData  The response data whose rows are written
+     */
+    public ResultRowEncoder(ResponseData responseData) {
+        this.responseData = responseData;
+
+        Set<String> columnNames = new HashSet<>();
+        boolean distinctNames = columnNames.add(DATE_TIME.getValue());
+        for (Map.Entry<Dimension, LinkedHashSet<DimensionField>> entry :
+                responseData.getRequestedApiDimensionFields().entrySet()) {
+            if (entry.getValue() != null && !entry.getValue().isEmpty()) {
+                DimensionFields fields = new DimensionFields(entry.getKey(), entry.getValue());
+                dimensionFields.put(entry.getKey(), fields);
+                for (SerializableString name : fields.names) {
+                    distinctNames &= columnNames.add(name.getValue());
+                }
+            }
+        }
+        metricColumns = new ArrayList<>(responseData.getApiMetricColumns());
+        metricNames = new ArrayList<>(metricColumns.size());
+        for (MetricColumn metricColumn : metricColumns) {
+            metricNames.add(new SerializedString(metricColumn.getName()));
+            distinctNames &= columnNames.add(metricColumn.getName());
+        }
+
+        // Columns sharing a name are written once, as the map of the row keeps them
+        this.compiled = distinctNames && BUILDS_DEFAULT_ROWS.get(responseData.getClass());
+    }
+
+    /**
+     * Write the row of a result as an object.
+     *
+     * @param result  The result to write
+     * @param generator  The generator to write it to
+     *
+     * @throws IOException if the row cannot be written
+     */
+    public void writeRow(Result result, JsonGenerator generator) throws IOException {
+        if (!compiled) {
+            generator.writeObject(responseData.buildResultRow(result));
+            return;
+        }
+
+        generator.writeStartObject();
+        generator.writeFieldName(DATE_TIME);
+        generator.writeString(formatDateTime(result.getTimeStamp()));
+
+        for (Map.Entry<DimensionColumn, DimensionRow> entry : result.getDimensionRows().entrySet()) {
+            DimensionFields fields = dimensionFields.get(entry.getKey().getDimension());
+            if (fields == null) {
+                continue;
+            }
+            DimensionRow dimensionRow = entry.getValue();
+            for (int i = 0; i < fields.fields.size(); i++) {
+                generator.writeFieldName(fields.names.get(i));
+                String value = dimensionRow == null ? null : dimensionRow.get(fields.fields.get(i));
+                if (value == null) {
+                    generator.writeNull();
+                } else {
+                    generator.writeString(value);
+                }
+            }
+        }
+
+        for (int i = 0; i < metricColumns.size(); i++) {
+            generator.writeFieldName(metricNames.get(i));
+            generator.writeObject(result.getMetricValue(metricColumns.get(i)));
+        }
+        generator.writeEndObject();
+    }
+
+    /**
+     * Format a timestamp for output, formatting each distinct timestamp only once.
+     *
+     * @param dateTime  The timestamp
+     *
+     * @return the formatted timestamp
+     */
+    protected String formatDateTime(DateTime dateTime) {
+        return formattedDateTimes.computeIfAbsent(dateTime, dateTimeFormatter::print);
+    }
+
+    /**
+     * The fields to write for a dimension, with their encoded column names.
+     */
+    private static class DimensionFields {
+
+        private final List<DimensionField> fields;
+        private final List<SerializableString> names;
+
+        /**
+         * Constructor.
+         *
+         * @param dimension  The dimension
+         * @param fields  The fields of the dimension requested
+         */
+        DimensionFields(Dimension dimension, LinkedHashSet<DimensionField> fields) {
+            this.fields = new ArrayList<>(fields);
+            this.names = new ArrayList<>(fields.size());
+            for (DimensionField field : fields) {
+                names.add(new SerializedString(ResponseData.getDimensionColumnName(dimension, field)));
+            }
+        }
+    }
+}
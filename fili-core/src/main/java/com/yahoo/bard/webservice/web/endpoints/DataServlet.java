@@ -57,6 +57,7 @@ import com.yahoo.bard.webservice.web.responseprocessors.ResponseProcessor;
 import com.yahoo.bard.webservice.web.responseprocessors.ResponseProcessorFactory;
 import com.yahoo.bard.webservice.web.util.BardConfigResources;
 
+import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.annotation.Timed;
 import com.fasterxml.jackson.core.JsonProcessingException;
@@ -87,6 +88,7 @@ import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.ConnectionCallback;
 import javax.ws.rs.container.ContainerRequestContext;
 import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Context;
@@ -105,6 +107,8 @@ public class DataServlet extends CORSPreflightServlet implements BardConfigResou
 
     private static final MetricRegistry REGISTRY = MetricRegistryFactory.getRegistry();
 
+    public static final Meter ABANDONED_REQUESTS = REGISTRY.meter("request.abandoned");
+
     private final ResourceDictionaries resourceDictionaries;
     private final DruidQueryBuilder druidQueryBuilder;
     private final TemplateDruidQueryMerger templateDruidQueryMerger;
@@ -421,6 +425,7 @@ public class DataServlet extends CORSPreflightServlet implements BardConfigResou
             try (TimedPhase timer = RequestLog.startTiming("BuildRequestContext")) {
                 context = new RequestContext(containerRequestContext, readCache);
             }
+            cancelWhenAbandoned(asyncResponse, context);
 
             Subject<PreResponse, PreResponse> queryResultsEmitter = PublishSubject.create();
 
@@ -466,6 +471,27 @@ public class DataServlet extends CORSPreflightServlet implements BardConfigResou
         }
     }
 
+    /**
+     * Cancel the work done for a request, including its druid queries, once the client disconnects before the response
+     * is sent.
+     * <p>
+     * Druid queries in flight, or waiting to be sent, fail with a {@link java.util.concurrent.CancellationException},
+     * and queries not sent yet are not sent at all. A druid query shared with other requests is only cancelled once
+     * they are all cancelled. A request that has turned into an asynchronous job has been answered with the job's
+     * metadata, so it keeps running for the job.
+     *
+     * @param asyncResponse  The channel over which the response will be sent
+     * @param context  The context of the request to cancel
+     */
+    private void cancelWhenAbandoned(AsyncResponse asyncResponse, RequestContext context) {
+        asyncResponse.register((ConnectionCallback) disconnected -> {
+            if (context.cancel()) {
+                ABANDONED_REQUESTS.mark();
+                LOG.debug("Client disconnected, cancelling request");
+            }
+        });
+    }
+
     /**
      * Builds the asynchronous workflows, and subscribes the appropriate channels to the appropriate workflows.
      *
@@ -2,9 +2,11 @@
 // Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
 package com.yahoo.bard.webservice.web.handlers;
 
+import com.yahoo.bard.webservice.config.BardFeatureFlag;
 import com.yahoo.bard.webservice.druid.client.DruidWebService;
 import com.yahoo.bard.webservice.druid.client.FailureCallback;
 import com.yahoo.bard.webservice.druid.client.HttpErrorCallback;
+import com.yahoo.bard.webservice.druid.client.StreamingSuccessCallback;
 import com.yahoo.bard.webservice.druid.client.SuccessCallback;
 import com.yahoo.bard.webservice.druid.model.query.DruidAggregationQuery;
 import com.yahoo.bard.webservice.logging.RequestLog;
@@ -12,14 +14,22 @@ import com.yahoo.bard.webservice.logging.blocks.BardQueryInfo;
 import com.yahoo.bard.webservice.web.apirequest.DataApiRequest;
 import com.yahoo.bard.webservice.web.responseprocessors.LoggingContext;
 import com.yahoo.bard.webservice.web.responseprocessors.ResponseProcessor;
+import com.yahoo.bard.webservice.web.responseprocessors.ResultSetProcessor;
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import java.io.IOException;
+
 import javax.validation.constraints.NotNull;
 
 /**
  * Request handler to submit the response to the druid web service.
+ * <p>
+ * When {@link BardFeatureFlag#DRUID_RESPONSE_STREAMING} is on and the response processor builds a result set itself
+ * (so that nothing between this handler and the result set needs the response json), the druid response is streamed
+ * straight into a result set rather than first being built into a json tree.
  */
 public class AsyncWebServiceRequestHandler extends BaseDataRequestHandler {
 
@@ -43,12 +53,15 @@ public class AsyncWebServiceRequestHandler extends BaseDataRequestHandler {
             final DruidAggregationQuery<?> druidQuery,
             final ResponseProcessor response
     ) {
-        SuccessCallback success = new SuccessCallback() {
-            @Override
-            public void invoke(JsonNode rootNode) {
-                response.processResponse(rootNode, druidQuery, new LoggingContext(RequestLog.copy()));
-            }
-        };
+        boolean streaming = BardFeatureFlag.DRUID_RESPONSE_STREAMING.isOn() && response instanceof ResultSetProcessor;
+        SuccessCallback success = streaming ?
+                buildStreamingSuccessCallback(request, druidQuery, (ResultSetProcessor) response) :
+                new SuccessCallback() {
+                    @Override
+                    public void invoke(JsonNode rootNode) {
+                        response.processResponse(rootNode, druidQuery, new LoggingContext(RequestLog.copy()));
+                    }
+                };
         HttpErrorCallback error = response.getErrorCallback(druidQuery);
         FailureCallback failure = response.getFailureCallback(druidQuery);
 
@@ -56,4 +69,36 @@ public class AsyncWebServiceRequestHandler extends BaseDataRequestHandler {
         druidWebService.postDruidQuery(context, success, error, failure, druidQuery);
         return true;
     }
+
+    /**
+     * Build a success callback which streams the druid response into a result set for the response processor.
+     *
+     * @param request  The request being processed
+     * @param druidQuery  The query being sent to druid
+     * @param response  The response processor, which builds the result set
+     *
+     * @return the success callback
+     */
+    protected SuccessCallback buildStreamingSuccessCallback(
+            DataApiRequest request,
+            DruidAggregationQuery<?> druidQuery,
+            ResultSetProcessor response
+    ) {
+        return new StreamingSuccessCallback() {
+            @Override
+            public void invoke(JsonParser parser) throws IOException {
+                response.processStreamedResponse(
+                        parser,
+                        druidQuery,
+                        request.getTimeZone(),
+                        new LoggingContext(RequestLog.copy())
+                );
+            }
+
+            @Override
+            public void invoke(JsonNode rootNode) {
+                response.processResponse(rootNode, druidQuery, new LoggingContext(RequestLog.copy()));
+            }
+        };
+    }
 }
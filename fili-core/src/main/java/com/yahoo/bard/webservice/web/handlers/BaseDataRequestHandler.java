@@ -2,6 +2,10 @@
 // Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
 package com.yahoo.bard.webservice.web.handlers;
 
+import com.yahoo.bard.webservice.druid.model.query.DruidAggregationQuery;
+import com.yahoo.bard.webservice.druid.serializers.SerializedQuery;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectWriter;
 
@@ -24,4 +28,19 @@ public abstract class BaseDataRequestHandler implements DataRequestHandler {
         this.mapper = mapper;
         this.writer = mapper.writer();
     }
+
+    /**
+     * Build a key identifying a druid query by everything but its context, so that queries asking Druid for the same
+     * data get the same key.
+     * <p>
+     * The key is written from the query's shared {@link SerializedQuery}, so the query is not serialized again.
+     *
+     * @param druidQuery  The druid query.
+     *
+     * @return The key as a String.
+     * @throws JsonProcessingException if the druid query cannot be serialized to JSON
+     */
+    protected String getQueryKey(DruidAggregationQuery<?> druidQuery) throws JsonProcessingException {
+        return SerializedQuery.of(druidQuery, writer).getKey();
+    }
 }
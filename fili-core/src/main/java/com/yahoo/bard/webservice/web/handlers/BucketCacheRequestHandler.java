@@ -0,0 +1,280 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.web.handlers;
+
+import static com.yahoo.bard.webservice.web.handlers.VolatileDataRequestHandler.getVolatileIntervalsWithDefault;
+import static com.yahoo.bard.webservice.web.handlers.workflow.DruidWorkflow.REQUEST_WORKFLOW_TIMER;
+import static com.yahoo.bard.webservice.web.handlers.workflow.DruidWorkflow.RESPONSE_WORKFLOW_TIMER;
+
+import com.yahoo.bard.webservice.application.MetricRegistryFactory;
+import com.yahoo.bard.webservice.data.cache.CacheValueCodec;
+import com.yahoo.bard.webservice.data.cache.CacheWarmer;
+import com.yahoo.bard.webservice.data.cache.DataCache;
+import com.yahoo.bard.webservice.data.cache.TupleDataCache;
+import com.yahoo.bard.webservice.data.time.AllGranularity;
+import com.yahoo.bard.webservice.druid.model.orderby.LimitSpec;
+import com.yahoo.bard.webservice.druid.model.query.DruidAggregationQuery;
+import com.yahoo.bard.webservice.druid.model.query.GroupByQuery;
+import com.yahoo.bard.webservice.druid.model.query.LookbackQuery;
+import com.yahoo.bard.webservice.druid.model.query.RowCountQuery;
+import com.yahoo.bard.webservice.druid.model.query.WeightEvaluationQuery;
+import com.yahoo.bard.webservice.logging.RequestLog;
+import com.yahoo.bard.webservice.logging.blocks.BardQueryInfo;
+import com.yahoo.bard.webservice.metadata.QuerySigningService;
+import com.yahoo.bard.webservice.util.IntervalUtils;
+import com.yahoo.bard.webservice.util.SimplifiedIntervalList;
+import com.yahoo.bard.webservice.web.apirequest.DataApiRequest;
+import com.yahoo.bard.webservice.web.responseprocessors.BucketCacheResponseProcessor;
+import com.yahoo.bard.webservice.web.responseprocessors.BucketCacheResponseProcessor.Bucket;
+import com.yahoo.bard.webservice.web.responseprocessors.LoggingContext;
+import com.yahoo.bard.webservice.web.responseprocessors.ResponseProcessor;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+
+import org.joda.time.Interval;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import javax.validation.constraints.NotNull;
+
+/**
+ * Request handler which caches the responses of queries one time grain bucket at a time, and only asks Druid for the
+ * buckets which are not cached.
+ * <p>
+ * Each bucket is keyed by the query for that bucket alone, and is valid as long as the segment signature of that
+ * bucket is unchanged. A request over a rolling window therefore reuses the buckets it shares with earlier requests,
+ * and only queries the buckets that are new, have been reprocessed, or are volatile. Volatile buckets are never read
+ * from the cache. The buckets which are not cached are fetched with a single query for their intervals, whose
+ * response is stitched together with the cached buckets by a {@link BucketCacheResponseProcessor}.
+ * <p>
+ * Queries whose buckets cannot be computed independently, such as queries for all time, lookback queries, and
+ * queries whose limit spec limits or pages the rows of all buckets together, are cached whole, as the local signature
+ * cache does.
+ */
+public class BucketCacheRequestHandler extends CacheV2RequestHandler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BucketCacheRequestHandler.class);
+    private static final MetricRegistry REGISTRY = MetricRegistryFactory.getRegistry();
+    public static final Meter BUCKET_HITS = REGISTRY.meter("queries.meter.bucket_cache.hits");
+    public static final Meter BUCKET_MISSES = REGISTRY.meter("queries.meter.bucket_cache.misses");
+    public static final Meter DELTA_QUERIES = REGISTRY.meter("queries.meter.bucket_cache.delta_queries");
+
+    /**
+     * Build a bucket cache request handler, with cache values encoded as set by {@code druid_cache_value_encoding}.
+     *
+     * @param next  The next handler in the chain
+     * @param dataCache  The cache instance
+     * @param querySigningService The service to generate query signatures
+     * @param mapper  The mapper for all JSON processing
+     */
+    public BucketCacheRequestHandler(
+            DataRequestHandler next,
+            @NotNull DataCache<?> dataCache,
+            QuerySigningService<?> querySigningService,
+            ObjectMapper mapper
+    ) {
+        super(next, dataCache, querySigningService, mapper);
+    }
+
+    /**
+     * Build a bucket cache request handler.
+     *
+     * @param next  The next handler in the chain
+     * @param dataCache  The cache instance
+     * @param querySigningService The service to generate query signatures
+     * @param mapper  The mapper for all JSON processing
+     * @param valueCodec  The codec the cached values are encoded with
+     */
+    public BucketCacheRequestHandler(
+            DataRequestHandler next,
+            @NotNull DataCache<?> dataCache,
+            QuerySigningService<?> querySigningService,
+            ObjectMapper mapper,
+            CacheValueCodec<? extends Serializable> valueCodec
+    ) {
+        super(next, dataCache, querySigningService, mapper, valueCodec);
+    }
+
+    /**
+     * Build a bucket cache request handler which records the requested buckets with a cache warmer.
+     *
+     * @param next  The next handler in the chain
+     * @param dataCache  The cache instance
+     * @param querySigningService The service to generate query signatures
+     * @param mapper  The mapper for all JSON processing
+     * @param valueCodec  The codec the cached values are encoded with
+     * @param cacheWarmer  The cache warmer keeping the hot buckets fresh, or null if the cache is not warmed
+     */
+    public BucketCacheRequestHandler(
+            DataRequestHandler next,
+            @NotNull DataCache<?> dataCache,
+            QuerySigningService<?> querySigningService,
+            ObjectMapper mapper,
+            CacheValueCodec<? extends Serializable> valueCodec,
+            CacheWarmer cacheWarmer
+    ) {
+        super(next, dataCache, querySigningService, mapper, valueCodec, cacheWarmer);
+    }
+
+    @Override
+    public boolean handleRequest(
+            final RequestContext context,
+            final DataApiRequest request,
+            final DruidAggregationQuery<?> druidQuery,
+            final ResponseProcessor response
+    ) {
+        if (!isBucketable(druidQuery)) {
+            return super.handleRequest(context, request, druidQuery, response);
+        }
+
+        List<Bucket> buckets;
+        try {
+            buckets = readBuckets(context, druidQuery, getVolatileIntervalsWithDefault(response.getResponseContext()));
+        } catch (Exception e) {
+            LOG.warn("Bucket cache keys cannot be built: ", e);
+            return next.handleRequest(context, request, druidQuery, response);
+        }
+        if (buckets.isEmpty()) {
+            return next.handleRequest(context, request, druidQuery, response);
+        }
+
+        List<Interval> missingBuckets = new ArrayList<>();
+        for (Bucket bucket : buckets) {
+            if (!bucket.isCached()) {
+                missingBuckets.add(bucket.getInterval());
+            }
+        }
+        BUCKET_HITS.mark(buckets.size() - missingBuckets.size());
+        BUCKET_MISSES.mark(missingBuckets.size());
+
+        if (missingBuckets.isEmpty()) {
+            if (context.getNumberOfOutgoing().decrementAndGet() == 0) {
+                RequestLog.stopTiming(REQUEST_WORKFLOW_TIMER);
+            }
+
+            if (context.getNumberOfIncoming().decrementAndGet() == 0) {
+                RequestLog.startTiming(RESPONSE_WORKFLOW_TIMER);
+            }
+            CACHE_HITS.mark(1);
+            BardQueryInfo.getBardQueryInfo().incrementCountCacheHits();
+            ArrayNode stitched = mapper.createArrayNode();
+            buckets.forEach(bucket -> stitched.addAll((ArrayNode) bucket.getRows()));
+            RequestLog logCtx = RequestLog.dump();
+            response.processResponse(stitched, druidQuery, new LoggingContext(logCtx));
+            return true;
+        }
+
+        // Only the buckets which are not cached are asked for, as contiguous intervals
+        CACHE_MISSES.mark(1);
+        DruidAggregationQuery<?> deltaQuery = druidQuery;
+        if (missingBuckets.size() < buckets.size()) {
+            DELTA_QUERIES.mark(1);
+            deltaQuery = druidQuery.withAllIntervals(new SimplifiedIntervalList(missingBuckets));
+        }
+
+        ResponseProcessor nextResponse = new BucketCacheResponseProcessor(
+                response,
+                druidQuery,
+                buckets,
+                dataCache,
+                valueCodec,
+                mapper
+        );
+        return next.handleRequest(context, request, deltaQuery, nextResponse);
+    }
+
+    /**
+     * Split a query into its buckets, reading each bucket from the cache if a valid entry for it is there.
+     *
+     * @param context  The context of the request
+     * @param druidQuery  The query
+     * @param volatileIntervals  The volatile intervals of the request, whose buckets are not read from the cache
+     *
+     * @return the buckets of the query, in time order
+     * @throws Exception if a bucket cache key cannot be built
+     */
+    protected List<Bucket> readBuckets(
+            RequestContext context,
+            DruidAggregationQuery<?> druidQuery,
+            SimplifiedIntervalList volatileIntervals
+    ) throws Exception {
+        List<Bucket> buckets = new ArrayList<>();
+        for (Interval interval : IntervalUtils.getSlicedIntervals(
+                druidQuery.getIntervals(),
+                druidQuery.getGranularity()
+        ).keySet()) {
+            DruidAggregationQuery<?> bucketQuery = druidQuery.withAllIntervals(Collections.singletonList(interval));
+            String cacheKey = getKey(bucketQuery);
+            if (cacheWarmer != null) {
+                cacheWarmer.record(cacheKey, bucketQuery);
+            }
+            Long signature = querySigningService.getSegmentSetId(bucketQuery).orElse(null);
+
+            JsonNode rows = null;
+            boolean isVolatile = volatileIntervals.stream().anyMatch(interval::overlaps);
+            if (context.isReadCache() && signature != null && !isVolatile) {
+                TupleDataCache.DataEntry<String, Long, Serializable> cacheEntry = dataCache.get(cacheKey);
+                if (cacheEntry != null && Objects.equals(cacheEntry.getMeta(), signature)) {
+                    rows = readCachedRows(cacheEntry);
+                } else if (cacheEntry != null) {
+                    CACHE_POTENTIAL_HITS.mark(1);
+                }
+            }
+            buckets.add(new Bucket(interval, cacheKey, signature, rows));
+        }
+        CACHE_REQUESTS.mark(1);
+        return buckets;
+    }
+
+    /**
+     * Read the rows of a bucket held by a cache entry.
+     *
+     * @param cacheEntry  The cache entry
+     *
+     * @return the rows of the bucket, or null if they cannot be read
+     */
+    private JsonNode readCachedRows(TupleDataCache.DataEntry<String, Long, Serializable> cacheEntry) {
+        try {
+            JsonNode rows = readCachedJson(cacheEntry);
+            if (rows.isArray()) {
+                return rows;
+            }
+            LOG.warn("Cached bucket {} is not an array of rows", cacheEntry.getKey());
+        } catch (IOException e) {
+            LOG.warn("Error processing cached bucket: ", e);
+        }
+        return null;
+    }
+
+    /**
+     * Whether the rows of each bucket of a query are the rows the query for that bucket alone would get.
+     *
+     * @param druidQuery  The query
+     *
+     * @return true if the query can be answered bucket by bucket
+     */
+    protected boolean isBucketable(DruidAggregationQuery<?> druidQuery) {
+        if (druidQuery.getGranularity() instanceof AllGranularity || druidQuery instanceof LookbackQuery) {
+            return false;
+        }
+        if (druidQuery instanceof RowCountQuery || druidQuery instanceof WeightEvaluationQuery) {
+            return false;
+        }
+        if (druidQuery instanceof GroupByQuery) {
+            LimitSpec limitSpec = ((GroupByQuery) druidQuery).getLimitSpec();
+            return limitSpec == null || (!limitSpec.getLimit().isPresent() && !limitSpec.getOffset().isPresent());
+        }
+        return true;
+    }
+}
@@ -10,7 +10,6 @@ import com.yahoo.bard.webservice.data.cache.DataCache;
 import com.yahoo.bard.webservice.druid.model.query.DruidAggregationQuery;
 import com.yahoo.bard.webservice.logging.RequestLog;
 import com.yahoo.bard.webservice.logging.blocks.BardQueryInfo;
-import com.yahoo.bard.webservice.util.Utils;
 import com.yahoo.bard.webservice.web.apirequest.DataApiRequest;
 import com.yahoo.bard.webservice.web.responseprocessors.CachingResponseProcessor;
 import com.yahoo.bard.webservice.web.responseprocessors.LoggingContext;
@@ -19,7 +18,6 @@ import com.yahoo.bard.webservice.web.responseprocessors.ResponseProcessor;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import org.slf4j.Logger;
@@ -83,21 +81,7 @@ public class CacheRequestHandler extends BaseDataRequestHandler {
 
                 if (jsonResult != null) {
                     try {
-                        if (context.getNumberOfOutgoing().decrementAndGet() == 0) {
-                            RequestLog.stopTiming(REQUEST_WORKFLOW_TIMER);
-                        }
-
-                        if (context.getNumberOfIncoming().decrementAndGet() == 0) {
-                            RequestLog.startTiming(RESPONSE_WORKFLOW_TIMER);
-                        }
-                        CACHE_HITS.mark(1);
-                        BardQueryInfo.getBardQueryInfo().incrementCountCacheHits();
-                        RequestLog logCtx = RequestLog.dump();
-                        nextResponse.processResponse(
-                                mapper.readTree(jsonResult),
-                                druidQuery,
-                                new LoggingContext(logCtx)
-                        );
+                        processCachedResponse(context, druidQuery, nextResponse, jsonResult);
                         return true;
                     } catch (IOException e) {
                         LOG.warn("Error processing cached value: ", e);
@@ -121,6 +105,35 @@ public class CacheRequestHandler extends BaseDataRequestHandler {
         return next.handleRequest(context, request, druidQuery, nextResponse);
     }
 
+    /**
+     * Answer a request with a cached response.
+     *
+     * @param context  The context of the request
+     * @param druidQuery  The query the response answers
+     * @param response  The response processor to hand the cached response to
+     * @param cachedValue  The cached response, as json text
+     *
+     * @throws IOException if the cached response is not valid json
+     */
+    protected void processCachedResponse(
+            RequestContext context,
+            DruidAggregationQuery<?> druidQuery,
+            ResponseProcessor response,
+            String cachedValue
+    ) throws IOException {
+        if (context.getNumberOfOutgoing().decrementAndGet() == 0) {
+            RequestLog.stopTiming(REQUEST_WORKFLOW_TIMER);
+        }
+
+        if (context.getNumberOfIncoming().decrementAndGet() == 0) {
+            RequestLog.startTiming(RESPONSE_WORKFLOW_TIMER);
+        }
+        CACHE_HITS.mark(1);
+        BardQueryInfo.getBardQueryInfo().incrementCountCacheHits();
+        RequestLog logCtx = RequestLog.dump();
+        response.processResponse(mapper.readTree(cachedValue), druidQuery, new LoggingContext(logCtx));
+    }
+
     /**
      * Construct the cache key.
      * Current implementation includes all the fields of the druidQuery besides the context.
@@ -131,8 +144,6 @@ public class CacheRequestHandler extends BaseDataRequestHandler {
      * @throws JsonProcessingException if the druid query cannot be mapped to Json
      */
     protected String getKey(DruidAggregationQuery<?> druidQuery) throws JsonProcessingException {
-        JsonNode root = mapper.valueToTree(druidQuery);
-        Utils.omitField(root, "context", mapper);
-        return writer.writeValueAsString(root);
+        return getQueryKey(druidQuery);
     }
 }
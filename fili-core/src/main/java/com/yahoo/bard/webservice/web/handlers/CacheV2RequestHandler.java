@@ -7,13 +7,15 @@ import static com.yahoo.bard.webservice.web.handlers.workflow.DruidWorkflow.REQU
 import static com.yahoo.bard.webservice.web.handlers.workflow.DruidWorkflow.RESPONSE_WORKFLOW_TIMER;
 
 import com.yahoo.bard.webservice.application.MetricRegistryFactory;
+import com.yahoo.bard.webservice.data.cache.CacheValueCodec;
+import com.yahoo.bard.webservice.data.cache.CacheWarmer;
 import com.yahoo.bard.webservice.data.cache.DataCache;
+import com.yahoo.bard.webservice.data.cache.HeapTupleDataCache;
 import com.yahoo.bard.webservice.data.cache.TupleDataCache;
 import com.yahoo.bard.webservice.druid.model.query.DruidAggregationQuery;
 import com.yahoo.bard.webservice.logging.RequestLog;
 import com.yahoo.bard.webservice.logging.blocks.BardQueryInfo;
 import com.yahoo.bard.webservice.metadata.QuerySigningService;
-import com.yahoo.bard.webservice.util.Utils;
 import com.yahoo.bard.webservice.web.apirequest.DataApiRequest;
 import com.yahoo.bard.webservice.web.responseprocessors.CacheV2ResponseProcessor;
 import com.yahoo.bard.webservice.web.responseprocessors.LoggingContext;
@@ -29,6 +31,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.Serializable;
 import java.util.Objects;
 
 import javax.validation.constraints.NotNull;
@@ -49,8 +52,27 @@ public class CacheV2RequestHandler extends BaseDataRequestHandler {
     public static final Meter CACHE_REQUESTS = REGISTRY.meter("queries.meter.cache.total");
 
     protected final @NotNull DataRequestHandler next;
-    protected final @NotNull TupleDataCache<String, Long, String> dataCache;
+    protected final @NotNull TupleDataCache<String, Long, Serializable> dataCache;
     protected final @NotNull QuerySigningService<Long> querySigningService;
+    protected final @NotNull CacheValueCodec<Serializable> valueCodec;
+    protected final CacheWarmer cacheWarmer;
+
+    /**
+     * Build a Cache request handler, with cache values encoded as set by {@code druid_cache_value_encoding}.
+     *
+     * @param next  The next handler in the chain
+     * @param dataCache  The cache instance
+     * @param querySigningService The service to generate query signatures
+     * @param mapper  The mapper for all JSON processing
+     */
+    public CacheV2RequestHandler(
+            DataRequestHandler next,
+            @NotNull DataCache<?> dataCache,
+            QuerySigningService<?> querySigningService,
+            ObjectMapper mapper
+    ) {
+        this(next, dataCache, querySigningService, mapper, CacheValueCodec.buildConfiguredCodec(mapper));
+    }
 
     /**
      * Build a Cache request handler.
@@ -59,18 +81,43 @@ public class CacheV2RequestHandler extends BaseDataRequestHandler {
      * @param dataCache  The cache instance
      * @param querySigningService The service to generate query signatures
      * @param mapper  The mapper for all JSON processing
+     * @param valueCodec  The codec the cached values are encoded with
+     */
+    public CacheV2RequestHandler(
+            DataRequestHandler next,
+            @NotNull DataCache<?> dataCache,
+            QuerySigningService<?> querySigningService,
+            ObjectMapper mapper,
+            CacheValueCodec<? extends Serializable> valueCodec
+    ) {
+        this(next, dataCache, querySigningService, mapper, valueCodec, null);
+    }
+
+    /**
+     * Build a Cache request handler which records the requested keys with a cache warmer.
+     *
+     * @param next  The next handler in the chain
+     * @param dataCache  The cache instance
+     * @param querySigningService The service to generate query signatures
+     * @param mapper  The mapper for all JSON processing
+     * @param valueCodec  The codec the cached values are encoded with
+     * @param cacheWarmer  The cache warmer keeping the hot entries fresh, or null if the cache is not warmed
      */
     @SuppressWarnings("unchecked")
     public CacheV2RequestHandler(
             DataRequestHandler next,
             @NotNull DataCache<?> dataCache,
             QuerySigningService<?> querySigningService,
-            ObjectMapper mapper
+            ObjectMapper mapper,
+            CacheValueCodec<? extends Serializable> valueCodec,
+            CacheWarmer cacheWarmer
     ) {
         super(mapper);
         this.next = next;
-        this.dataCache = (TupleDataCache<String, Long, String>) dataCache;
+        this.dataCache = (TupleDataCache<String, Long, Serializable>) dataCache;
         this.querySigningService = (QuerySigningService<Long>) querySigningService;
+        this.valueCodec = (CacheValueCodec<Serializable>) valueCodec;
+        this.cacheWarmer = cacheWarmer;
     }
 
     @Override
@@ -85,9 +132,12 @@ public class CacheV2RequestHandler extends BaseDataRequestHandler {
         String cacheKey = null;
         try {
             cacheKey = getKey(druidQuery);
+            if (cacheWarmer != null) {
+                cacheWarmer.record(cacheKey, druidQuery);
+            }
 
             if (context.isReadCache()) {
-                final TupleDataCache.DataEntry<String, Long, String> cacheEntry = dataCache.get(cacheKey);
+                final TupleDataCache.DataEntry<String, Long, Serializable> cacheEntry = dataCache.get(cacheKey);
                 CACHE_REQUESTS.mark(1);
 
                 if (cacheEntry != null) {
@@ -99,6 +149,9 @@ public class CacheV2RequestHandler extends BaseDataRequestHandler {
                                     .orElse(false)
                     ) {
                         try {
+                            // Decode before any hit bookkeeping, so that an entry which cannot be read is a miss
+                            JsonNode cachedJson = readCachedJson(cacheEntry);
+
                             if (context.getNumberOfOutgoing().decrementAndGet() == 0) {
                                 RequestLog.stopTiming(REQUEST_WORKFLOW_TIMER);
                             }
@@ -109,16 +162,13 @@ public class CacheV2RequestHandler extends BaseDataRequestHandler {
                             CACHE_HITS.mark(1);
                             BardQueryInfo.getBardQueryInfo().incrementCountCacheHits();
                             RequestLog logCtx = RequestLog.dump();
-                            nextResponse.processResponse(
-                                    mapper.readTree(cacheEntry.getValue()),
-                                    druidQuery,
-                                    new LoggingContext(logCtx)
-                            );
+                            nextResponse.processResponse(cachedJson, druidQuery, new LoggingContext(logCtx));
 
                             return true;
 
                         } catch (IOException e) {
                             LOG.warn("Error processing cached value: ", e);
+                            CACHE_MISSES.mark(1);
                         }
                     } else {
                         LOG.debug("Cache entry present but invalid for query with id: {}", RequestLog.getId());
@@ -139,6 +189,7 @@ public class CacheV2RequestHandler extends BaseDataRequestHandler {
                 cacheKey,
                 dataCache,
                 querySigningService,
+                valueCodec,
                 mapper
         );
 
@@ -155,8 +206,29 @@ public class CacheV2RequestHandler extends BaseDataRequestHandler {
      * @throws JsonProcessingException if the druid query cannot be serialized to JSON
      */
     protected String getKey(DruidAggregationQuery<?> druidQuery) throws JsonProcessingException {
-        JsonNode root = mapper.valueToTree(druidQuery);
-        Utils.omitField(root, "context", mapper);
-        return writer.writeValueAsString(root);
+        return getQueryKey(druidQuery);
+    }
+
+    /**
+     * Read the json response held by a cache entry.
+     * <p>
+     * Entries from a {@link HeapTupleDataCache} may already hold the decoded response, which is then used as is.
+     *
+     * @param cacheEntry  The cache entry
+     *
+     * @return the cached json response
+     * @throws IOException if the cached value cannot be decoded
+     */
+    protected JsonNode readCachedJson(TupleDataCache.DataEntry<String, Long, Serializable> cacheEntry)
+            throws IOException {
+        if (cacheEntry instanceof HeapTupleDataCache.ParsedDataEntry) {
+            return ((HeapTupleDataCache.ParsedDataEntry<?, ?>) cacheEntry).getJsonValue();
+        }
+        try {
+            return valueCodec.decode(cacheEntry.getValue());
+        } catch (ClassCastException e) {
+            // The entry was written with a different encoding
+            throw new IOException("Cached value is not encoded with " + valueCodec.getClass().getSimpleName(), e);
+        }
     }
 }
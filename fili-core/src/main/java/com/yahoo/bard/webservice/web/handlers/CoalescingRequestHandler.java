@@ -0,0 +1,104 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.web.handlers;
+
+import com.yahoo.bard.webservice.application.MetricRegistryFactory;
+import com.yahoo.bard.webservice.druid.model.query.DruidAggregationQuery;
+import com.yahoo.bard.webservice.web.apirequest.DataApiRequest;
+import com.yahoo.bard.webservice.web.responseprocessors.CoalescingResponseProcessor;
+import com.yahoo.bard.webservice.web.responseprocessors.ResponseProcessor;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.validation.constraints.NotNull;
+
+/**
+ * Request handler which sends only one of any number of identical, concurrent Druid queries.
+ * <p>
+ * Queries are identified by everything but their context, as for the cache. A query identical to one which has been
+ * sent but not answered yet is not sent again: its request joins the outstanding query and gets its response (or its
+ * error) through a {@link CoalescingResponseProcessor} once it arrives. The outstanding query is only cancelled once
+ * every request waiting for it is cancelled.
+ */
+public class CoalescingRequestHandler extends BaseDataRequestHandler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CoalescingRequestHandler.class);
+    private static final MetricRegistry REGISTRY = MetricRegistryFactory.getRegistry();
+    public static final Meter COALESCED_QUERIES = REGISTRY.meter("queries.meter.coalesced");
+
+    protected final @NotNull DataRequestHandler next;
+    private final ConcurrentMap<String, CoalescingResponseProcessor> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Build a coalescing request handler.
+     *
+     * @param next  The next handler in the chain
+     * @param mapper  The mapper for all JSON processing
+     */
+    public CoalescingRequestHandler(DataRequestHandler next, ObjectMapper mapper) {
+        super(mapper);
+        this.next = next;
+    }
+
+    @Override
+    public boolean handleRequest(
+            final RequestContext context,
+            final DataApiRequest request,
+            final DruidAggregationQuery<?> druidQuery,
+            final ResponseProcessor response
+    ) {
+        String key;
+        try {
+            key = getQueryKey(druidQuery);
+        } catch (JsonProcessingException e) {
+            LOG.warn("Query key cannot be built, sending query without coalescing: ", e);
+            return next.handleRequest(context, request, druidQuery, response);
+        }
+
+        SharedQueryRequestContext sharedContext = new SharedQueryRequestContext(context);
+        CoalescingResponseProcessor candidate = new CoalescingResponseProcessor(response, inFlight, key, sharedContext);
+        while (true) {
+            CoalescingResponseProcessor outstanding = inFlight.putIfAbsent(key, candidate);
+            if (outstanding == null) {
+                break;
+            }
+            if (outstanding.join(context, druidQuery, response)) {
+                COALESCED_QUERIES.mark();
+                return true;
+            }
+            // The outstanding query completed, or was cancelled, while we looked at it
+            inFlight.remove(key, outstanding);
+        }
+
+        sharedContext.share(context);
+        boolean handled;
+        try {
+            handled = next.handleRequest(sharedContext, request, druidQuery, candidate);
+        } catch (RuntimeException e) {
+            candidate.abandon(e);
+            throw e;
+        }
+        if (!handled) {
+            candidate.abandon(new IllegalStateException("Coalesced druid query was not sent"));
+        }
+        return handled;
+    }
+
+    /**
+     * Get the number of distinct queries which have been sent and not answered yet.
+     *
+     * @return the number of in flight queries
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+}
@@ -2,13 +2,35 @@
 // Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
 package com.yahoo.bard.webservice.web.handlers;
 
+import com.yahoo.bard.webservice.config.BardFeatureFlag;
+import com.yahoo.bard.webservice.data.dimension.Dimension;
+import com.yahoo.bard.webservice.data.metric.mappers.NoOpResultSetMapper;
 import com.yahoo.bard.webservice.data.metric.mappers.PaginationMapper;
+import com.yahoo.bard.webservice.data.metric.mappers.ResultSetMapper;
+import com.yahoo.bard.webservice.data.metric.mappers.SketchRoundUpMapper;
+import com.yahoo.bard.webservice.druid.model.orderby.LimitSpec;
+import com.yahoo.bard.webservice.druid.model.orderby.OrderByColumn;
+import com.yahoo.bard.webservice.druid.model.orderby.SortDirection;
 import com.yahoo.bard.webservice.druid.model.query.DruidAggregationQuery;
+import com.yahoo.bard.webservice.druid.model.query.GroupByQuery;
+import com.yahoo.bard.webservice.druid.model.query.RowCountQuery;
 import com.yahoo.bard.webservice.web.apirequest.DataApiRequest;
+import com.yahoo.bard.webservice.web.responseprocessors.LoggingContext;
 import com.yahoo.bard.webservice.web.responseprocessors.MappingResponseProcessor;
 import com.yahoo.bard.webservice.web.responseprocessors.ResponseProcessor;
+import com.yahoo.bard.webservice.web.responseprocessors.WeightCheckResponseProcessor;
 import com.yahoo.bard.webservice.web.util.PaginationParameters;
 
+import com.fasterxml.jackson.databind.JsonNode;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashSet;
+import java.util.OptionalInt;
+import java.util.Set;
+import java.util.stream.Collectors;
+
 import javax.validation.constraints.NotNull;
 
 /**
@@ -16,9 +38,19 @@ import javax.validation.constraints.NotNull;
  * The pagination mapper should be one of the last mappers to execute on the result set (in particular, it should
  * execute _after_ any mappers that delete or add rows). Therefore, the PaginationRequestHandler should be one of the
  * last handlers added to the handler chain.
+ * <p>
+ * With {@code pagination_pushdown_enabled}, in a workflow sending its queries to Druid, a groupBy query for a page
+ * other than the last one is rewritten to ask Druid for only that page, with an offset and a limit in its limit spec.
+ * To keep pages from overlapping, the sort is made total by breaking ties on every grouping dimension, and a
+ * {@link RowCountQuery} is first sent down the rest of the workflow, to be weight checked and cached like any other
+ * query, to count the results behind the page links. Pages are only pushed down when no mapper before pagination may
+ * drop or add rows, and not for top N requests or requests limited by count.
  */
 public class PaginationRequestHandler implements DataRequestHandler {
+    private static final Logger LOG = LoggerFactory.getLogger(PaginationRequestHandler.class);
+
     private final @NotNull DataRequestHandler next;
+    private final boolean pushDownEnabled;
 
     /**
      * Constructor.
@@ -26,7 +58,18 @@ public class PaginationRequestHandler implements DataRequestHandler {
      * @param next  Next Handler in the chain
      */
     public PaginationRequestHandler(DataRequestHandler next) {
+        this(next, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param next  Next Handler in the chain
+     * @param pushDownEnabled  Whether the next handlers send queries to Druid, which can then be asked for a page
+     */
+    public PaginationRequestHandler(DataRequestHandler next, boolean pushDownEnabled) {
         this.next = next;
+        this.pushDownEnabled = pushDownEnabled;
     }
 
     @Override
@@ -42,6 +85,9 @@ public class PaginationRequestHandler implements DataRequestHandler {
         MappingResponseProcessor mappingResponse = (MappingResponseProcessor) response;
         if (request.getPaginationParameters().isPresent()) {
             PaginationParameters paginationParameters = request.getPaginationParameters().get();
+            if (canPushDown(request, druidQuery, mappingResponse)) {
+                return pushDown(context, request, (GroupByQuery) druidQuery, mappingResponse, paginationParameters);
+            }
             mappingResponse.getMappers().add(
                     new PaginationMapper(
                             paginationParameters,
@@ -52,4 +98,129 @@ public class PaginationRequestHandler implements DataRequestHandler {
         }
         return next.handleRequest(context, request, druidQuery, mappingResponse);
     }
+
+    /**
+     * Determine whether the requested page can be asked of Druid, rather than cut from all the results.
+     *
+     * @param request  The request asking for a page
+     * @param druidQuery  The query for the request
+     * @param response  The response, with the mappers to run before pagination
+     *
+     * @return true if Druid can be asked for only the page
+     */
+    protected boolean canPushDown(
+            DataApiRequest request,
+            DruidAggregationQuery<?> druidQuery,
+            MappingResponseProcessor response
+    ) {
+        return BardFeatureFlag.PAGINATION_PUSHDOWN.isOn() &&
+                pushDownEnabled &&
+                !request.getPaginationParameters().get().isLastPage() &&
+                !request.getTopN().isPresent() &&
+                !request.getCount().isPresent() &&
+                druidQuery instanceof GroupByQuery &&
+                response.getMappers().stream().allMatch(PaginationRequestHandler::keepsEveryRow);
+    }
+
+    /**
+     * Ask Druid for only the page requested, after counting the results of the query.
+     *
+     * @param context  The context of the request
+     * @param request  The request asking for a page
+     * @param groupByQuery  The query for the request
+     * @param response  The response
+     * @param paginationParameters  The page requested
+     *
+     * @return whether the next handler accepted the count query, which sends the page query once answered
+     */
+    protected boolean pushDown(
+            RequestContext context,
+            DataApiRequest request,
+            GroupByQuery groupByQuery,
+            MappingResponseProcessor response,
+            PaginationParameters paginationParameters
+    ) {
+        int perPage = paginationParameters.getPerPage();
+        long offset = (paginationParameters.getPage(0) - 1L) * perPage;
+        if (offset > Integer.MAX_VALUE) {
+            // No page this far in can exist, so let the pagination mapper report it as not found
+            offset = Integer.MAX_VALUE;
+        }
+        GroupByQuery pageQuery = groupByQuery.withLimitSpec(
+                new LimitSpec(totalSort(groupByQuery), OptionalInt.of(perPage), OptionalInt.of((int) offset))
+        );
+        RowCountQuery countQuery = new RowCountQuery(groupByQuery);
+
+        // The count and the page are both sent for the request, but only the page answers it
+        context.getNumberOfOutgoing().incrementAndGet();
+        context.getNumberOfIncoming().incrementAndGet();
+        return next.handleRequest(
+                context,
+                request,
+                countQuery,
+                new WeightCheckResponseProcessor(response) {
+                    @Override
+                    public void processResponse(
+                            JsonNode json,
+                            DruidAggregationQuery<?> druidQuery,
+                            LoggingContext metadata
+                    ) {
+                        try {
+                            // The result has one row with the count, or none if the query matches no rows
+                            JsonNode row = json.get(0);
+                            int numResults = row == null ? 0 : row.get("event").get(RowCountQuery.COUNT).asInt();
+                            LOG.debug("Paginating {} results in Druid", numResults);
+                            response.getMappers().add(
+                                    new PaginationMapper(
+                                            paginationParameters,
+                                            response,
+                                            request.getUriInfo().getRequestUriBuilder(),
+                                            numResults
+                                    )
+                            );
+                            next.handleRequest(context, request, pageQuery, response);
+                        } catch (Throwable e) {
+                            LOG.info("Exception processing druid call in success", e);
+                            getFailureCallback(groupByQuery).dispatch(e);
+                        }
+                    }
+                }
+        );
+    }
+
+    /**
+     * Build the sort of a query, followed by every grouping dimension it does not already sort on, so that no two
+     * result rows tie and every page of the results is cut from the same order.
+     * <p>
+     * Druid orders the rows of each time bucket by the sort, so the rows are told apart by their bucket and
+     * dimension values.
+     *
+     * @param groupByQuery  The query to sort
+     *
+     * @return the columns of the total sort
+     */
+    protected LinkedHashSet<OrderByColumn> totalSort(GroupByQuery groupByQuery) {
+        LinkedHashSet<OrderByColumn> columns = new LinkedHashSet<>();
+        if (groupByQuery.getLimitSpec() != null) {
+            columns.addAll(groupByQuery.getLimitSpec().getColumns());
+        }
+        Set<String> sorted = columns.stream().map(OrderByColumn::getDimension).collect(Collectors.toSet());
+        groupByQuery.getDimensions().stream()
+                .map(Dimension::getApiName)
+                .filter(name -> !sorted.contains(name))
+                .forEach(name -> columns.add(new OrderByColumn(name, SortDirection.ASC)));
+        return columns;
+    }
+
+    /**
+     * Whether a mapper maps every row to exactly one row, so that pages cut before it hold the rows they would hold
+     * if cut after it.
+     *
+     * @param mapper  The mapper to check
+     *
+     * @return true if the mapper neither drops nor adds rows
+     */
+    private static boolean keepsEveryRow(ResultSetMapper mapper) {
+        return mapper instanceof NoOpResultSetMapper || mapper instanceof SketchRoundUpMapper;
+    }
 }
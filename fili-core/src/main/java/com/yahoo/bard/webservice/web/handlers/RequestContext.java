@@ -4,6 +4,12 @@ package com.yahoo.bard.webservice.web.handlers;
 
 import com.yahoo.bard.webservice.util.Utils;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.ws.rs.container.ContainerRequestContext;
@@ -16,11 +22,15 @@ import javax.ws.rs.core.SecurityContext;
  */
 public class RequestContext {
 
+    private static final Logger LOG = LoggerFactory.getLogger(RequestContext.class);
+
     protected final ContainerRequestContext containerRequestContext;
     protected final boolean readCache;
     protected final MultivaluedMap<String, String> searchableHeaders;
     protected final AtomicLong numberOfIncoming = new AtomicLong(1);
     protected final AtomicLong numberOfOutgoing = new AtomicLong(1);
+    protected final Set<Runnable> cancelActions;
+    protected final AtomicBoolean cancelled;
 
     /**
      * Build a context for a request.
@@ -34,6 +44,32 @@ public class RequestContext {
         this.searchableHeaders = containerRequestContext != null ?
                 Utils.headersToLowerCase(containerRequestContext.getHeaders()) :
                 new MultivaluedHashMap<>();
+        this.cancelActions = ConcurrentHashMap.newKeySet();
+        this.cancelled = new AtomicBoolean(false);
+    }
+
+    /**
+     * Build a context sharing the request and the cancellation of another context, with fresh query counts.
+     *
+     * @param original  The context to share the request and cancellation of
+     */
+    protected RequestContext(RequestContext original) {
+        this(original, original.cancelActions, original.cancelled);
+    }
+
+    /**
+     * Build a context sharing the request of another context, with fresh query counts and the given cancellation.
+     *
+     * @param original  The context to share the request of
+     * @param cancelActions  The actions to run when the context is cancelled
+     * @param cancelled  Whether the context has been cancelled
+     */
+    protected RequestContext(RequestContext original, Set<Runnable> cancelActions, AtomicBoolean cancelled) {
+        this.containerRequestContext = original.containerRequestContext;
+        this.readCache = original.readCache;
+        this.searchableHeaders = original.searchableHeaders;
+        this.cancelActions = cancelActions;
+        this.cancelled = cancelled;
     }
 
     public MultivaluedMap<String, String> getHeaders() {
@@ -73,4 +109,80 @@ public class RequestContext {
     public AtomicLong getNumberOfOutgoing() {
         return numberOfOutgoing;
     }
+
+    /**
+     * Build a context for sending a second copy of a druid query which is already in flight.
+     * <p>
+     * The duplicate shares the container request, but keeps its own counts of outgoing and incoming druid queries so
+     * that sending it and hearing back from it leaves the bookkeeping of the original request alone. It has no
+     * outgoing queries left to count, since the original query was already sent. Cancelling either context cancels
+     * both.
+     *
+     * @return a context for the duplicate query
+     */
+    public RequestContext forDuplicateQuery() {
+        RequestContext duplicate = new RequestContext(this);
+        duplicate.numberOfOutgoing.set(0);
+        return duplicate;
+    }
+
+    /**
+     * Register an action that stops work done for the request, such as a druid query in flight, to run if the request
+     * is cancelled.
+     * <p>
+     * If the request has already been cancelled, the action runs at once.
+     *
+     * @param action  The action to run on cancellation
+     */
+    public void addCancelAction(Runnable action) {
+        cancelActions.add(action);
+        if (cancelled.get() && cancelActions.remove(action)) {
+            runCancelAction(action);
+        }
+    }
+
+    /**
+     * Unregister a cancel action, typically because the work it would stop has completed.
+     *
+     * @param action  The action to unregister
+     */
+    public void removeCancelAction(Runnable action) {
+        cancelActions.remove(action);
+    }
+
+    /**
+     * Cancel the request, running every registered cancel action once.
+     * <p>
+     * Cancelling is for requests whose results nobody will read, such as when the client has gone away.
+     *
+     * @return true if this call cancelled the request, false if it was already cancelled
+     */
+    public boolean cancel() {
+        if (!cancelled.compareAndSet(false, true)) {
+            return false;
+        }
+        for (Runnable action : cancelActions) {
+            if (cancelActions.remove(action)) {
+                runCancelAction(action);
+            }
+        }
+        return true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled.get();
+    }
+
+    /**
+     * Run a cancel action, so that one failing action does not stop the others.
+     *
+     * @param action  The action to run
+     */
+    private static void runCancelAction(Runnable action) {
+        try {
+            action.run();
+        } catch (RuntimeException e) {
+            LOG.warn("Unable to cancel work for a request", e);
+        }
+    }
 }
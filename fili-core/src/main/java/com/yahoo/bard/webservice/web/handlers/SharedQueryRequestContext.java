@@ -0,0 +1,55 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.web.handlers;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The context of a druid query sent on behalf of several requests, which is cancelled once all of them are cancelled.
+ * <p>
+ * The query is sent with the request and the query counts of the request which sends it. Every request sharing the
+ * query, the sending one included, registers with {@link #share(RequestContext)}. Cancelling the sending request
+ * alone does not cancel the query while other requests sharing it still wait for its response.
+ */
+public class SharedQueryRequestContext extends RequestContext {
+
+    private final RequestContext sender;
+    private final AtomicInteger uncancelled = new AtomicInteger();
+
+    /**
+     * Constructor.
+     *
+     * @param sender  The context of the request sending the query
+     */
+    public SharedQueryRequestContext(RequestContext sender) {
+        super(sender, ConcurrentHashMap.newKeySet(), new AtomicBoolean(false));
+        this.sender = sender;
+    }
+
+    /**
+     * Let another request share the query, which is then only cancelled once that request is cancelled as well.
+     *
+     * @param context  The context of the request sharing the query
+     */
+    public void share(RequestContext context) {
+        uncancelled.incrementAndGet();
+        context.addCancelAction(() -> {
+            if (uncancelled.decrementAndGet() == 0) {
+                cancel();
+            }
+        });
+    }
+
+    @Override
+    public AtomicLong getNumberOfIncoming() {
+        return sender.getNumberOfIncoming();
+    }
+
+    @Override
+    public AtomicLong getNumberOfOutgoing() {
+        return sender.getNumberOfOutgoing();
+    }
+}
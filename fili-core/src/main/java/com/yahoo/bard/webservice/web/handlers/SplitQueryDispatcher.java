@@ -0,0 +1,289 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.web.handlers;
+
+import com.yahoo.bard.webservice.application.MetricRegistryFactory;
+import com.yahoo.bard.webservice.config.SystemConfig;
+import com.yahoo.bard.webservice.config.SystemConfigProvider;
+import com.yahoo.bard.webservice.druid.model.query.DruidAggregationQuery;
+import com.yahoo.bard.webservice.logging.RequestLog;
+import com.yahoo.bard.webservice.web.apirequest.DataApiRequest;
+import com.yahoo.bard.webservice.web.responseprocessors.ResponseProcessor;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+import org.joda.time.Interval;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.validation.constraints.NotNull;
+
+/**
+ * Sends the sub-queries of a split request down the handler chain, bounding how many of them are in flight.
+ * <p>
+ * Sub-queries are sent in the order they are given (bucket order). At most
+ * {@code split_query_max_in_flight_per_request} sub-queries of a request, and at most
+ * {@code split_query_max_in_flight} sub-queries across all requests in the process, are outstanding at any time. The
+ * remaining sub-queries wait until an outstanding one completes. A limit of {@link #DISABLED_LIMIT}, or any other limit
+ * which is not positive, means no limit.
+ * <p>
+ * The response processor collecting the sub-query responses must call {@link #complete(Interval)} exactly once per
+ * sub-query interval it hears back about, and {@link #cancel()} once the request has failed so that sub-queries that
+ * have not been sent yet are dropped.
+ */
+public class SplitQueryDispatcher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SplitQueryDispatcher.class);
+    private static final SystemConfig SYSTEM_CONFIG = SystemConfigProvider.getInstance();
+    private static final MetricRegistry REGISTRY = MetricRegistryFactory.getRegistry();
+
+    public static final int DISABLED_LIMIT = -1;
+
+    public static final int MAX_IN_FLIGHT_PER_REQUEST = SYSTEM_CONFIG.getIntProperty(
+            SYSTEM_CONFIG.getPackageVariableName("split_query_max_in_flight_per_request"),
+            DISABLED_LIMIT
+    );
+
+    public static final int MAX_IN_FLIGHT = SYSTEM_CONFIG.getIntProperty(
+            SYSTEM_CONFIG.getPackageVariableName("split_query_max_in_flight"),
+            DISABLED_LIMIT
+    );
+
+    public static final Counter IN_FLIGHT = REGISTRY.counter("queries.count.split_queries.in_flight");
+    public static final Counter PENDING = REGISTRY.counter("queries.count.split_queries.pending");
+    public static final Meter CANCELLED = REGISTRY.meter("queries.meter.split_queries.cancelled");
+
+    // Process wide permits, and the dispatchers waiting for one of them to free up
+    private static final boolean GLOBAL_LIMITED = isLimit(MAX_IN_FLIGHT);
+    private static final Semaphore GLOBAL_PERMITS = new Semaphore(GLOBAL_LIMITED ? MAX_IN_FLIGHT : 0);
+    private static final Queue<SplitQueryDispatcher> WAITING_FOR_PERMIT = new ConcurrentLinkedQueue<>();
+
+    private final DataRequestHandler next;
+    private final RequestContext context;
+    private final DataApiRequest request;
+    private final RequestLog logCtx;
+    private final int maxInFlight;
+
+    private final Queue<DruidAggregationQuery<?>> pending;
+    private final Set<Interval> inFlight = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean cancelled = new AtomicBoolean(false);
+    private final AtomicBoolean waitingForPermit = new AtomicBoolean(false);
+    private final AtomicInteger workInProgress = new AtomicInteger();
+
+    private volatile ResponseProcessor response;
+
+    /**
+     * Constructor.
+     *
+     * @param next  The next handler in the chain, which each sub-query is sent to
+     * @param context  The context for the request
+     * @param request  The request being split
+     * @param queries  The sub-queries, in the order they should be sent
+     * @param logCtx  The request log to restore before sending each sub-query
+     * @param maxInFlight  The maximum number of sub-queries of this request in flight at once, or
+     * {@link #DISABLED_LIMIT} (or any other value which is not positive) for no limit
+     */
+    public SplitQueryDispatcher(
+            @NotNull DataRequestHandler next,
+            RequestContext context,
+            DataApiRequest request,
+            List<DruidAggregationQuery<?>> queries,
+            RequestLog logCtx,
+            int maxInFlight
+    ) {
+        this.next = next;
+        this.context = context;
+        this.request = request;
+        this.logCtx = logCtx;
+        this.maxInFlight = maxInFlight;
+        this.pending = new ConcurrentLinkedQueue<>(queries);
+        PENDING.inc(queries.size());
+    }
+
+    /**
+     * Start sending sub-queries, delivering their responses to the given response processor.
+     *
+     * @param response  The response processor that collects the sub-query responses
+     */
+    public void dispatch(ResponseProcessor response) {
+        this.response = response;
+        drain();
+    }
+
+    /**
+     * Record that the sub-query for an interval has completed, freeing its slot for a pending sub-query.
+     * <p>
+     * Completing an interval that is not in flight has no effect, so repeated completions are harmless.
+     *
+     * @param interval  The interval of the sub-query that completed
+     */
+    public void complete(Interval interval) {
+        if (!inFlight.remove(interval)) {
+            return;
+        }
+        IN_FLIGHT.dec();
+        releaseGlobalPermit();
+        drain();
+    }
+
+    /**
+     * Drop all sub-queries that have not been sent yet.
+     */
+    public void cancel() {
+        if (!cancelled.compareAndSet(false, true)) {
+            return;
+        }
+        int dropped = 0;
+        while (pending.poll() != null) {
+            dropped++;
+        }
+        if (dropped > 0) {
+            PENDING.dec(dropped);
+            CANCELLED.mark(dropped);
+            LOG.debug("Cancelled {} split sub-queries which were not sent yet", dropped);
+        }
+    }
+
+    /**
+     * Get the number of sub-queries that have not been sent yet.
+     *
+     * @return the number of pending sub-queries
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Get the number of sub-queries that have been sent but have not completed.
+     *
+     * @return the number of in flight sub-queries
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * Send as many pending sub-queries as the limits allow.
+     * <p>
+     * Only one thread drains at a time. A call made while another thread (or a re-entrant call from a sub-query that
+     * completes synchronously) is draining is recorded and picked up by the draining thread, so the stack does not grow
+     * with the number of sub-queries.
+     */
+    private void drain() {
+        if (response == null || workInProgress.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            while (!cancelled.get() && !pending.isEmpty()) {
+                if (isLimit(maxInFlight) && inFlight.size() >= maxInFlight) {
+                    break;
+                }
+                if (!tryAcquireGlobalPermit()) {
+                    waitForGlobalPermit();
+                    break;
+                }
+                DruidAggregationQuery<?> query = pending.poll();
+                if (query == null) {
+                    releaseGlobalPermit();
+                    break;
+                }
+                PENDING.dec();
+                send(query);
+            }
+            missed = workInProgress.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    /**
+     * Send one sub-query to the next handler under the request's log context.
+     * <p>
+     * This may run on the thread that delivered another sub-query's response, so that thread's own request log is put
+     * back afterwards. Failures while sending are reported through the response processor like any other sub-query
+     * failure.
+     *
+     * @param query  The sub-query to send
+     */
+    private void send(DruidAggregationQuery<?> query) {
+        Interval interval = query.getIntervals().get(0);
+        inFlight.add(interval);
+        IN_FLIGHT.inc();
+
+        RequestLog threadLog = RequestLog.dump();
+        RequestLog.restore(logCtx);
+        try {
+            next.handleRequest(context, request, query, response);
+        } catch (RuntimeException e) {
+            LOG.error("Unable to send split sub-query for interval {}", interval, e);
+            response.getFailureCallback(query).invoke(e);
+        } finally {
+            RequestLog.restore(threadLog);
+        }
+    }
+
+    /**
+     * Whether a configured in flight limit bounds anything.
+     * <p>
+     * A limit of zero would never let a sub-query be sent, so like {@link #DISABLED_LIMIT} it means no limit.
+     *
+     * @param limit  The configured limit
+     *
+     * @return true if the limit is positive
+     */
+    private static boolean isLimit(int limit) {
+        return limit > 0;
+    }
+
+    /**
+     * Park this dispatcher until a process wide permit is released.
+     */
+    private void waitForGlobalPermit() {
+        if (waitingForPermit.compareAndSet(false, true)) {
+            WAITING_FOR_PERMIT.add(this);
+        }
+        // A permit may have been released between the failed acquire and joining the queue
+        wakeWaitingDispatchers();
+    }
+
+    /**
+     * Try to take a process wide permit to send a sub-query.
+     *
+     * @return true if a permit was taken or there is no process wide limit
+     */
+    private static boolean tryAcquireGlobalPermit() {
+        return !GLOBAL_LIMITED || GLOBAL_PERMITS.tryAcquire();
+    }
+
+    /**
+     * Give back a process wide permit and let a waiting dispatcher use it.
+     */
+    private static void releaseGlobalPermit() {
+        if (!GLOBAL_LIMITED) {
+            return;
+        }
+        GLOBAL_PERMITS.release();
+        wakeWaitingDispatchers();
+    }
+
+    /**
+     * Resume waiting dispatchers, longest waiting first, for as long as there are free process wide permits.
+     */
+    private static void wakeWaitingDispatchers() {
+        SplitQueryDispatcher waiting;
+        while (GLOBAL_PERMITS.availablePermits() > 0 && (waiting = WAITING_FOR_PERMIT.poll()) != null) {
+            waiting.waitingForPermit.set(false);
+            waiting.drain();
+        }
+    }
+}
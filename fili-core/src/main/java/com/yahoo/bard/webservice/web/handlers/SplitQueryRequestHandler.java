@@ -5,8 +5,14 @@ package com.yahoo.bard.webservice.web.handlers;
 import static com.yahoo.bard.webservice.web.ErrorMessageFormat.EMPTY_INTERVAL_FORMAT;
 
 import com.yahoo.bard.webservice.application.MetricRegistryFactory;
+import com.yahoo.bard.webservice.config.SystemConfig;
+import com.yahoo.bard.webservice.config.SystemConfigProvider;
 import com.yahoo.bard.webservice.data.time.AllGranularity;
+import com.yahoo.bard.webservice.druid.model.orderby.LimitSpec;
 import com.yahoo.bard.webservice.druid.model.query.DruidAggregationQuery;
+import com.yahoo.bard.webservice.druid.model.query.GroupByQuery;
+import com.yahoo.bard.webservice.druid.model.query.QueryContext;
+import com.yahoo.bard.webservice.druid.serializers.SerializedQuery;
 import com.yahoo.bard.webservice.data.time.Granularity;
 import com.yahoo.bard.webservice.logging.RequestLog;
 import com.yahoo.bard.webservice.util.IntervalUtils;
@@ -35,15 +41,27 @@ import javax.ws.rs.core.Response;
  * <p>
  * It creates a common response processor which serves as an accumulator to receive all replies before delegating to the
  * result set processing.
+ * <p>
+ * The sub-queries are sent through a {@link SplitQueryDispatcher}, which bounds how many of them are in flight. When
+ * {@code split_query_priority_spread} is positive, the Druid priority of the sub-queries is lowered by up to that
+ * amount from the earliest bucket to the latest, so that Druid finishes the earliest buckets first.
+ * <p>
+ * Queries for a page of results, with an offset in their limit spec, are not split, since the page is cut from the
+ * results of every bucket together.
  */
 public class SplitQueryRequestHandler implements DataRequestHandler {
 
     private static final Logger LOG = LoggerFactory.getLogger(SplitQueryRequestHandler.class);
+    private static final SystemConfig SYSTEM_CONFIG = SystemConfigProvider.getInstance();
     private static final MetricRegistry REGISTRY = MetricRegistryFactory.getRegistry();
     public static final Meter SPLIT_QUERIES = REGISTRY.meter("queries.meter.split_queries.sub_queries");
     public static final Meter SPLITS = REGISTRY.meter("queries.meter.split_queries.splits");
 
+    private static final int DEFAULT_PRIORITY = 0;
+
     protected final @NotNull DataRequestHandler next;
+    protected final int maxInFlightPerRequest;
+    protected final int prioritySpread;
 
     /**
      * Build a Split Query Request Handler.
@@ -51,7 +69,26 @@ public class SplitQueryRequestHandler implements DataRequestHandler {
      * @param next  The next handler in the chain
      */
     public SplitQueryRequestHandler(DataRequestHandler next) {
+        this(
+                next,
+                SplitQueryDispatcher.MAX_IN_FLIGHT_PER_REQUEST,
+                SYSTEM_CONFIG.getIntProperty(SYSTEM_CONFIG.getPackageVariableName("split_query_priority_spread"), 0)
+        );
+    }
+
+    /**
+     * Build a Split Query Request Handler.
+     *
+     * @param next  The next handler in the chain
+     * @param maxInFlightPerRequest  The maximum number of sub-queries of one request in flight at once, or
+     * {@link SplitQueryDispatcher#DISABLED_LIMIT} (or any other value which is not positive) for no limit
+     * @param prioritySpread  How far the Druid priority of the latest bucket is lowered below that of the earliest
+     * bucket, or 0 to leave the priorities alone
+     */
+    public SplitQueryRequestHandler(DataRequestHandler next, int maxInFlightPerRequest, int prioritySpread) {
         this.next = next;
+        this.maxInFlightPerRequest = maxInFlightPerRequest;
+        this.prioritySpread = prioritySpread;
     }
 
     @Override
@@ -69,6 +106,10 @@ public class SplitQueryRequestHandler implements DataRequestHandler {
            return next.handleRequest(context, request, druidQuery, response);
         }
 
+        if (isPage(druidQuery)) {
+            return next.handleRequest(context, request, druidQuery, response);
+        }
+
         Map<Interval, AtomicInteger> expectedIntervals = Collections.unmodifiableMap(
                 IntervalUtils.getSlicedIntervals(queryIntervals, granularity)
         );
@@ -101,27 +142,78 @@ public class SplitQueryRequestHandler implements DataRequestHandler {
         expectedIntervals.keySet()
                 .stream()
                 .forEachOrdered(interval -> queries.add(
-                        druidQuery.withAllIntervals(Collections.singletonList(interval)))
-                );
+                        withBucketPriority(
+                                druidQuery.withAllIntervals(Collections.singletonList(interval)),
+                                queries.size(),
+                                numberOfIntervals
+                        )
+                ));
+
+        // The sub-queries differ only in intervals and priority, so they are serialized from the query as a template
+        if (numberOfIntervals > 1) {
+            queries.forEach(subQuery -> SerializedQuery.registerTemplate(subQuery, druidQuery));
+        }
 
         // Save RequestLog up to here
         final RequestLog logCtx = RequestLog.dump();
 
+        final SplitQueryDispatcher dispatcher =
+                new SplitQueryDispatcher(next, context, request, queries, logCtx, maxInFlightPerRequest);
+
         final SplitQueryResponseProcessor mergingResponse =
-                new SplitQueryResponseProcessor(response, request, druidQuery, expectedIntervals, logCtx);
+                new SplitQueryResponseProcessor(response, request, druidQuery, expectedIntervals, logCtx, dispatcher);
+
+        // Sub-queries in flight are cancelled by the web service, the ones not sent yet are dropped here
+        context.addCancelAction(dispatcher::cancel);
 
         if (numberOfIntervals > 1) {
             SPLITS.mark(1);
             SPLIT_QUERIES.mark(numberOfIntervals);
         }
 
-        queries.stream().forEach(
-                q -> {
-                    RequestLog.restore(logCtx);
-                    next.handleRequest(context, request, q, mergingResponse);
-                }
-        );
+        dispatcher.dispatch(mergingResponse);
 
         return true;
     }
+
+    /**
+     * Lower the Druid priority of a sub-query according to how late its bucket is.
+     * <p>
+     * The earliest bucket keeps the priority of the query, and the latest bucket gets that priority minus the priority
+     * spread, with the buckets in between spaced evenly.
+     *
+     * @param subQuery  The sub-query for a bucket
+     * @param bucketIndex  The position of the bucket, starting with 0 for the earliest bucket
+     * @param numberOfBuckets  The total number of buckets
+     *
+     * @return the sub-query with its priority set, or the sub-query unchanged if priorities are not being spread
+     */
+    protected DruidAggregationQuery<?> withBucketPriority(
+            DruidAggregationQuery<?> subQuery,
+            int bucketIndex,
+            int numberOfBuckets
+    ) {
+        if (prioritySpread <= 0 || numberOfBuckets < 2) {
+            return subQuery;
+        }
+        QueryContext queryContext = subQuery.getContext();
+        int basePriority = queryContext.getPriority() == null ? DEFAULT_PRIORITY : queryContext.getPriority();
+        int priority = basePriority - (int) ((long) bucketIndex * prioritySpread / (numberOfBuckets - 1));
+        return subQuery.withContext(queryContext.withPriority(priority));
+    }
+
+    /**
+     * Whether a query asks for a page of its results, skipping some of them.
+     *
+     * @param druidQuery  The query to check
+     *
+     * @return true if the query has an offset in its limit spec
+     */
+    private static boolean isPage(DruidAggregationQuery<?> druidQuery) {
+        if (!(druidQuery instanceof GroupByQuery)) {
+            return false;
+        }
+        LimitSpec limitSpec = ((GroupByQuery) druidQuery).getLimitSpec();
+        return limitSpec != null && limitSpec.getOffset().isPresent();
+    }
 }
@@ -0,0 +1,258 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.web.handlers;
+
+import static com.yahoo.bard.webservice.web.handlers.PartialDataRequestHandler.getPartialIntervalsWithDefault;
+import static com.yahoo.bard.webservice.web.handlers.VolatileDataRequestHandler.getVolatileIntervalsWithDefault;
+import static com.yahoo.bard.webservice.web.handlers.workflow.DruidWorkflow.REQUEST_WORKFLOW_TIMER;
+
+import com.yahoo.bard.webservice.application.MetricRegistryFactory;
+import com.yahoo.bard.webservice.config.SystemConfig;
+import com.yahoo.bard.webservice.config.SystemConfigProvider;
+import com.yahoo.bard.webservice.data.cache.DataCache;
+import com.yahoo.bard.webservice.data.cache.TupleDataCache;
+import com.yahoo.bard.webservice.druid.client.FailureCallback;
+import com.yahoo.bard.webservice.druid.client.HttpErrorCallback;
+import com.yahoo.bard.webservice.druid.model.query.DruidAggregationQuery;
+import com.yahoo.bard.webservice.logging.RequestLog;
+import com.yahoo.bard.webservice.web.apirequest.DataApiRequest;
+import com.yahoo.bard.webservice.web.responseprocessors.LoggingContext;
+import com.yahoo.bard.webservice.web.responseprocessors.ResponseContext;
+import com.yahoo.bard.webservice.web.responseprocessors.ResponseProcessor;
+import com.yahoo.bard.webservice.web.responseprocessors.TimestampedCachingResponseProcessor;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.validation.constraints.NotNull;
+
+/**
+ * TTL cache request handler which serves entries past their soft TTL while refreshing them in the background.
+ * <p>
+ * Entries are cached with the time they were written. An entry younger than {@code druid_cache_soft_ttl_seconds} is
+ * served as is. An older entry is still served right away, and a single refresh of it is sent down the rest of the
+ * workflow, whose response replaces the entry. Requests for an entry which is already being refreshed do not send
+ * another refresh. Entries are dropped by the cache at the hard TTL, {@code memcached_expiration_seconds}, after which
+ * requests wait for Druid as on any other miss.
+ * <p>
+ * A stale entry is only served if the response to the request could be cached, that is if the request covers neither
+ * partial nor volatile data. Otherwise the request waits for a fresh response.
+ */
+public class StaleWhileRevalidateCacheRequestHandler extends CacheRequestHandler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StaleWhileRevalidateCacheRequestHandler.class);
+    private static final SystemConfig SYSTEM_CONFIG = SystemConfigProvider.getInstance();
+    private static final MetricRegistry REGISTRY = MetricRegistryFactory.getRegistry();
+    public static final Meter STALE_HITS = REGISTRY.meter("queries.meter.cache.stale_hits");
+    public static final Meter REFRESHES = REGISTRY.meter("queries.meter.cache.refreshes");
+    public static final Meter REFRESHES_DEDUPLICATED = REGISTRY.meter("queries.meter.cache.refreshes_deduplicated");
+    public static final Meter REFRESH_FAILURES = REGISTRY.meter("queries.meter.cache.refresh_failures");
+
+    public static final long SOFT_TTL_DISABLED = -1;
+    public static final long SOFT_TTL_SECONDS = SYSTEM_CONFIG.getLongProperty(
+            SYSTEM_CONFIG.getPackageVariableName("druid_cache_soft_ttl_seconds"),
+            SOFT_TTL_DISABLED
+    );
+
+    protected final @NotNull TupleDataCache<String, Long, String> timestampedCache;
+    private final long softTtlMillis;
+    private final Clock clock;
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Build a stale while revalidate cache request handler, whose soft TTL is {@code druid_cache_soft_ttl_seconds}.
+     *
+     * @param next  The next handler in the chain
+     * @param dataCache  The cache instance, holding entries with the time they were written
+     * @param mapper  The mapper for all JSON processing
+     */
+    public StaleWhileRevalidateCacheRequestHandler(
+            DataRequestHandler next,
+            @NotNull DataCache<?> dataCache,
+            ObjectMapper mapper
+    ) {
+        this(next, dataCache, mapper, SOFT_TTL_SECONDS, Clock.systemUTC());
+    }
+
+    /**
+     * Build a stale while revalidate cache request handler.
+     *
+     * @param next  The next handler in the chain
+     * @param dataCache  The cache instance, holding entries with the time they were written
+     * @param mapper  The mapper for all JSON processing
+     * @param softTtlSeconds  The age in seconds past which entries are refreshed
+     * @param clock  The clock telling the age of entries
+     */
+    @SuppressWarnings("unchecked")
+    public StaleWhileRevalidateCacheRequestHandler(
+            DataRequestHandler next,
+            @NotNull DataCache<?> dataCache,
+            ObjectMapper mapper,
+            long softTtlSeconds,
+            Clock clock
+    ) {
+        super(next, dataCache, mapper);
+        this.timestampedCache = (TupleDataCache<String, Long, String>) dataCache;
+        this.softTtlMillis = TimeUnit.SECONDS.toMillis(softTtlSeconds);
+        this.clock = clock;
+    }
+
+    @Override
+    public boolean handleRequest(
+            final RequestContext context,
+            final DataApiRequest request,
+            final DruidAggregationQuery<?> druidQuery,
+            final ResponseProcessor response
+    ) {
+        String cacheKey = null;
+        try {
+            cacheKey = getKey(druidQuery);
+
+            if (context.isReadCache()) {
+                TupleDataCache.DataEntry<String, Long, String> cacheEntry = timestampedCache.get(cacheKey);
+                CACHE_REQUESTS.mark(1);
+
+                boolean isStale = cacheEntry != null && clock.millis() - cacheEntry.getMeta() > softTtlMillis;
+                if (cacheEntry != null && (!isStale || isCacheable(response))) {
+                    try {
+                        processCachedResponse(context, druidQuery, response, cacheEntry.getValue());
+                        if (isStale) {
+                            STALE_HITS.mark(1);
+                            refresh(cacheKey, request, druidQuery);
+                        }
+                        return true;
+                    } catch (IOException e) {
+                        LOG.warn("Error processing cached value: ", e);
+                    }
+                } else {
+                    CACHE_MISSES.mark(1);
+                }
+            }
+        } catch (Exception e) {
+            LOG.warn("Cache key cannot be built: ", e);
+        }
+
+        // Cached value either doesn't exist, is invalid, or is stale and can't be refreshed
+        ResponseProcessor nextResponse = new TimestampedCachingResponseProcessor(
+                response,
+                cacheKey,
+                timestampedCache,
+                mapper,
+                clock
+        );
+
+        return next.handleRequest(context, request, druidQuery, nextResponse);
+    }
+
+    /**
+     * Send a query down the rest of the workflow to refresh its cache entry, unless it is being refreshed already.
+     * <p>
+     * The refresh has its own request context and request log, so that it does not count towards the request that
+     * triggered it. Its request log times the workflow of the refresh, as it would for a request.
+     *
+     * @param cacheKey  The key of the stale entry
+     * @param request  The request which found the entry stale
+     * @param druidQuery  The query whose response is cached in the entry
+     */
+    protected void refresh(String cacheKey, DataApiRequest request, DruidAggregationQuery<?> druidQuery) {
+        if (!refreshing.add(cacheKey)) {
+            REFRESHES_DEDUPLICATED.mark(1);
+            return;
+        }
+
+        ResponseProcessor refreshResponse = new TimestampedCachingResponseProcessor(
+                new RefreshResponseProcessor(cacheKey),
+                cacheKey,
+                timestampedCache,
+                mapper,
+                clock
+        );
+        RequestLog callerLog = RequestLog.dump();
+        try {
+            RequestLog.startTiming(REQUEST_WORKFLOW_TIMER);
+            if (!next.handleRequest(new RequestContext(null, false), request, druidQuery, refreshResponse)) {
+                LOG.warn("No request handler accepted the refresh of a stale cache entry");
+                REFRESH_FAILURES.mark(1);
+                refreshing.remove(cacheKey);
+            }
+        } catch (RuntimeException e) {
+            LOG.warn("Unable to refresh stale cache entry", e);
+            REFRESH_FAILURES.mark(1);
+            refreshing.remove(cacheKey);
+        } finally {
+            RequestLog.dump();
+            RequestLog.restore(callerLog);
+        }
+    }
+
+    /**
+     * A response can be cached if it covers neither partial nor volatile data.
+     *
+     * @param response  The response processor of the request
+     *
+     * @return whether the response to the request could be cached
+     */
+    private static boolean isCacheable(ResponseProcessor response) {
+        ResponseContext responseContext = response.getResponseContext();
+        return getPartialIntervalsWithDefault(responseContext).isEmpty() &&
+                getVolatileIntervalsWithDefault(responseContext).isEmpty();
+    }
+
+    /**
+     * The end of the response chain of a refresh, which lets the entry be refreshed again once the refresh is done.
+     */
+    private class RefreshResponseProcessor implements ResponseProcessor {
+
+        private final String cacheKey;
+        private final ResponseContext responseContext = new ResponseContext();
+
+        /**
+         * Constructor.
+         *
+         * @param cacheKey  The key of the entry being refreshed
+         */
+        RefreshResponseProcessor(String cacheKey) {
+            this.cacheKey = cacheKey;
+        }
+
+        @Override
+        public ResponseContext getResponseContext() {
+            return responseContext;
+        }
+
+        @Override
+        public FailureCallback getFailureCallback(DruidAggregationQuery<?> druidQuery) {
+            return error -> {
+                LOG.debug("Refresh of stale cache entry failed", error);
+                REFRESH_FAILURES.mark(1);
+                refreshing.remove(cacheKey);
+            };
+        }
+
+        @Override
+        public HttpErrorCallback getErrorCallback(DruidAggregationQuery<?> druidQuery) {
+            return (statusCode, reasonPhrase, responseBody) -> {
+                LOG.debug("Refresh of stale cache entry failed with {} {}: {}", statusCode, reasonPhrase, responseBody);
+                REFRESH_FAILURES.mark(1);
+                refreshing.remove(cacheKey);
+            };
+        }
+
+        @Override
+        public void processResponse(JsonNode json, DruidAggregationQuery<?> query, LoggingContext metadata) {
+            REFRESHES.mark(1);
+            refreshing.remove(cacheKey);
+        }
+    }
+}
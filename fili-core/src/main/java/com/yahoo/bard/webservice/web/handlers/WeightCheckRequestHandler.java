@@ -7,6 +7,7 @@ import com.yahoo.bard.webservice.druid.client.FailureCallback;
 import com.yahoo.bard.webservice.druid.client.HttpErrorCallback;
 import com.yahoo.bard.webservice.druid.client.SuccessCallback;
 import com.yahoo.bard.webservice.druid.model.query.DruidAggregationQuery;
+import com.yahoo.bard.webservice.druid.serializers.SerializedQuery;
 import com.yahoo.bard.webservice.data.time.Granularity;
 import com.yahoo.bard.webservice.logging.blocks.BardQueryInfo;
 import com.yahoo.bard.webservice.web.apirequest.DataApiRequest;
@@ -22,6 +23,8 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.charset.StandardCharsets;
+
 import javax.validation.constraints.NotNull;
 
 /**
@@ -79,7 +82,11 @@ public class WeightCheckRequestHandler extends BaseDataRequestHandler {
         final long queryRowLimit = queryWeightUtil.getQueryWeightThreshold(granularity);
 
         try {
-            LOG.debug("Weight query {}", writer.writeValueAsString(weightEvaluationQuery));
+            // Serialized once, and sent later from the same serialization
+            SerializedQuery serializedQuery = SerializedQuery.of(weightEvaluationQuery, writer);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Weight query {}", new String(serializedQuery.getBody(), StandardCharsets.UTF_8));
+            }
         } catch (JsonProcessingException e) {
             LOG.warn("Weight Query json exception:", e);
         }
@@ -7,6 +7,8 @@ import com.yahoo.bard.webservice.config.CacheFeatureFlag;
 import com.yahoo.bard.webservice.config.SystemConfig;
 import com.yahoo.bard.webservice.config.SystemConfigProvider;
 import com.yahoo.bard.webservice.data.PartialDataHandler;
+import com.yahoo.bard.webservice.data.cache.CacheValueCodec;
+import com.yahoo.bard.webservice.data.cache.CacheWarmer;
 import com.yahoo.bard.webservice.data.cache.DataCache;
 import com.yahoo.bard.webservice.data.cache.TupleDataCache;
 import com.yahoo.bard.webservice.data.volatility.VolatileIntervalsService;
@@ -14,8 +16,10 @@ import com.yahoo.bard.webservice.druid.client.DruidWebService;
 import com.yahoo.bard.webservice.metadata.QuerySigningService;
 import com.yahoo.bard.webservice.table.PhysicalTableDictionary;
 import com.yahoo.bard.webservice.web.handlers.AsyncWebServiceRequestHandler;
+import com.yahoo.bard.webservice.web.handlers.BucketCacheRequestHandler;
 import com.yahoo.bard.webservice.web.handlers.CacheRequestHandler;
 import com.yahoo.bard.webservice.web.handlers.CacheV2RequestHandler;
+import com.yahoo.bard.webservice.web.handlers.CoalescingRequestHandler;
 import com.yahoo.bard.webservice.web.handlers.DataRequestHandler;
 import com.yahoo.bard.webservice.web.handlers.DebugRequestHandler;
 import com.yahoo.bard.webservice.web.handlers.DruidPartialDataRequestHandler;
@@ -23,6 +27,7 @@ import com.yahoo.bard.webservice.web.handlers.EtagCacheRequestHandler;
 import com.yahoo.bard.webservice.web.handlers.PaginationRequestHandler;
 import com.yahoo.bard.webservice.web.handlers.PartialDataRequestHandler;
 import com.yahoo.bard.webservice.web.handlers.SplitQueryRequestHandler;
+import com.yahoo.bard.webservice.web.handlers.StaleWhileRevalidateCacheRequestHandler;
 import com.yahoo.bard.webservice.web.handlers.DateTimeSortRequestHandler;
 import com.yahoo.bard.webservice.web.handlers.TopNMapperRequestHandler;
 import com.yahoo.bard.webservice.web.handlers.VolatileDataRequestHandler;
@@ -32,6 +37,8 @@ import com.yahoo.bard.webservice.web.util.QueryWeightUtil;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import org.jvnet.hk2.annotations.Optional;
+
 import javax.inject.Inject;
 import javax.inject.Singleton;
 import javax.validation.constraints.NotNull;
@@ -66,6 +73,7 @@ public class DruidWorkflow implements RequestWorkflowProvider {
     protected final @NotNull QuerySigningService<?> querySigningService;
     protected final @NotNull ObjectMapper mapper;
     protected final @NotNull VolatileIntervalsService volatileIntervalsService;
+    protected final CacheWarmer cacheWarmer;
 
     /**
      * Constructor.
@@ -79,7 +87,6 @@ public class DruidWorkflow implements RequestWorkflowProvider {
      * @param volatileIntervalsService  Service to get volatile intervals from
      * @param mapper  JSON mapper
      */
-    @Inject
     public DruidWorkflow(
             @NotNull DataCache<?> dataCache,
             DruidWebService webService,
@@ -89,6 +96,44 @@ public class DruidWorkflow implements RequestWorkflowProvider {
             QuerySigningService<?> querySigningService,
             VolatileIntervalsService volatileIntervalsService,
             ObjectMapper mapper
+    ) {
+        this(
+                dataCache,
+                webService,
+                weightUtil,
+                physicalTableDictionary,
+                partialDataHandler,
+                querySigningService,
+                volatileIntervalsService,
+                mapper,
+                null
+        );
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param dataCache  Response cache to use for caching Druid responses
+     * @param webService  Web Service to use for UI-path queries
+     * @param weightUtil  Utility for dealing with the weight check step
+     * @param physicalTableDictionary  Collection of all physical tables
+     * @param partialDataHandler  Handler for dealing with the partial data step
+     * @param querySigningService  Service to sign a query based on it's segment metadata
+     * @param volatileIntervalsService  Service to get volatile intervals from
+     * @param mapper  JSON mapper
+     * @param cacheWarmer  Warmer keeping the cache entries of hot queries fresh, only bound if cache warming is enabled
+     */
+    @Inject
+    public DruidWorkflow(
+            @NotNull DataCache<?> dataCache,
+            DruidWebService webService,
+            QueryWeightUtil weightUtil,
+            PhysicalTableDictionary physicalTableDictionary,
+            PartialDataHandler partialDataHandler,
+            QuerySigningService<?> querySigningService,
+            VolatileIntervalsService volatileIntervalsService,
+            ObjectMapper mapper,
+            @Optional CacheWarmer cacheWarmer
     ) {
         this.dataCache = dataCache;
         this.webService = webService;
@@ -98,6 +143,7 @@ public class DruidWorkflow implements RequestWorkflowProvider {
         this.querySigningService = querySigningService;
         this.volatileIntervalsService = volatileIntervalsService;
         this.mapper = mapper;
+        this.cacheWarmer = cacheWarmer;
     }
 
     @Override
@@ -105,6 +151,12 @@ public class DruidWorkflow implements RequestWorkflowProvider {
         // The final stage of the workflow is to send a request to a druid web service
         DataRequestHandler handler = new AsyncWebServiceRequestHandler(webService, mapper);
 
+        // Identical queries in flight at the same time are only sent once. ETag responses are modified downstream, so
+        // they can't be shared between requests.
+        if (BardFeatureFlag.QUERY_COALESCING.isOn() && !CacheFeatureFlag.ETAG.isOn()) {
+            handler = new CoalescingRequestHandler(handler, mapper);
+        }
+
         // If Druid sends uncoveredIntervals, missing intervals are checked before sending the request
         if (druidUncoveredIntervalLimit > 0) {
             handler = new DruidPartialDataRequestHandler(handler);
@@ -112,9 +164,27 @@ public class DruidWorkflow implements RequestWorkflowProvider {
 
         // If query caching is enabled, the cache is checked before sending the request
         if (CacheFeatureFlag.TTL.isOn()) {
-            handler = new CacheRequestHandler(handler, dataCache, mapper);
+            handler = StaleWhileRevalidateCacheRequestHandler.SOFT_TTL_SECONDS > 0 ?
+                    new StaleWhileRevalidateCacheRequestHandler(handler, dataCache, mapper) :
+                    new CacheRequestHandler(handler, dataCache, mapper);
         } else if (CacheFeatureFlag.LOCAL_SIGNATURE.isOn()) {
-            handler = new CacheV2RequestHandler(handler, dataCache, querySigningService, mapper);
+            handler = new CacheV2RequestHandler(
+                    handler,
+                    dataCache,
+                    querySigningService,
+                    mapper,
+                    CacheValueCodec.buildConfiguredCodec(mapper),
+                    getCacheWarmer()
+            );
+        } else if (CacheFeatureFlag.BUCKET.isOn()) {
+            handler = new BucketCacheRequestHandler(
+                    handler,
+                    dataCache,
+                    querySigningService,
+                    mapper,
+                    CacheValueCodec.buildConfiguredCodec(mapper),
+                    getCacheWarmer()
+            );
         } else if (CacheFeatureFlag.ETAG.isOn()) {
             handler = new EtagCacheRequestHandler(
                     handler,
@@ -142,7 +212,7 @@ public class DruidWorkflow implements RequestWorkflowProvider {
         //The PaginationRequestHandler adds a mapper to the mapper chain that strips the result set down to just the
         //page desired. That mapper should be one of the last mappers to execute, so the handler that adds the mapper
         //to the chain needs to be one of the first handlers to execute.
-        handler = new PaginationRequestHandler(handler);
+        handler = new PaginationRequestHandler(handler, true);
 
         handler = new DateTimeSortRequestHandler(handler);
 
@@ -158,4 +228,13 @@ public class DruidWorkflow implements RequestWorkflowProvider {
 
         return handler;
     }
+
+    /**
+     * Get the cache warmer for the cache request handlers to record the requested keys with.
+     *
+     * @return the cache warmer if cache warming is enabled, null otherwise
+     */
+    protected CacheWarmer getCacheWarmer() {
+        return BardFeatureFlag.CACHE_WARMING.isOn() ? cacheWarmer : null;
+    }
 }
@@ -0,0 +1,251 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.web.responseprocessors;
+
+import static com.yahoo.bard.webservice.config.BardFeatureFlag.CACHE_PARTIAL_DATA;
+import static com.yahoo.bard.webservice.web.handlers.PartialDataRequestHandler.getPartialIntervalsWithDefault;
+import static com.yahoo.bard.webservice.web.handlers.VolatileDataRequestHandler.getVolatileIntervalsWithDefault;
+
+import com.yahoo.bard.webservice.config.SystemConfig;
+import com.yahoo.bard.webservice.config.SystemConfigProvider;
+import com.yahoo.bard.webservice.data.cache.CacheValueCodec;
+import com.yahoo.bard.webservice.data.cache.TupleDataCache;
+import com.yahoo.bard.webservice.druid.client.FailureCallback;
+import com.yahoo.bard.webservice.druid.client.HttpErrorCallback;
+import com.yahoo.bard.webservice.druid.model.query.DruidAggregationQuery;
+import com.yahoo.bard.webservice.util.SimplifiedIntervalList;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+
+import org.joda.time.DateTime;
+import org.joda.time.Interval;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.validation.constraints.NotNull;
+
+/**
+ * A response processor which stitches the response to a query for the buckets missing from the cache together with
+ * the buckets read from it, and caches the buckets it fetched if appropriate.
+ * <p>
+ * The rows of the response are assigned to buckets by their timestamp. A fetched bucket is cached under its own key
+ * and segment signature, unless it holds partial or volatile data. The stitched response holds the rows of every
+ * bucket in time order, and is processed as the response to the whole query.
+ */
+public class BucketCacheResponseProcessor implements ResponseProcessor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BucketCacheResponseProcessor.class);
+    private static final SystemConfig SYSTEM_CONFIG = SystemConfigProvider.getInstance();
+
+    private final long maxDruidResponseLengthToCache = SYSTEM_CONFIG.getLongProperty(
+            SYSTEM_CONFIG.getPackageVariableName(
+                    "druid_max_response_length_to_cache"
+            ),
+            Long.MAX_VALUE
+    );
+
+    private final ResponseProcessor next;
+    private final DruidAggregationQuery<?> druidQuery;
+    private final List<Bucket> buckets;
+    private final @NotNull TupleDataCache<String, Long, Serializable> dataCache;
+    private final @NotNull CacheValueCodec<Serializable> valueCodec;
+    private final ObjectMapper mapper;
+
+    /**
+     * A time grain bucket of a query, with the rows cached for it if any.
+     */
+    public static class Bucket {
+
+        private final Interval interval;
+        private final String cacheKey;
+        private final Long signature;
+        private final boolean cached;
+        private JsonNode rows;
+
+        /**
+         * Constructor.
+         *
+         * @param interval  The interval of the bucket
+         * @param cacheKey  The key of the bucket in the cache
+         * @param signature  The segment signature of the bucket, or null if it has none
+         * @param rows  The rows of the bucket read from the cache, or null if they are to be fetched
+         */
+        public Bucket(Interval interval, String cacheKey, Long signature, JsonNode rows) {
+            this.interval = interval;
+            this.cacheKey = cacheKey;
+            this.signature = signature;
+            this.cached = rows != null;
+            this.rows = rows;
+        }
+
+        public Interval getInterval() {
+            return interval;
+        }
+
+        public JsonNode getRows() {
+            return rows;
+        }
+
+        public boolean isCached() {
+            return cached;
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param next  Next ResponseProcessor in the chain
+     * @param druidQuery  The query for all of the buckets, whose response is stitched together
+     * @param buckets  The buckets of the query, in time order
+     * @param dataCache  The cache into which to write the fetched buckets
+     * @param valueCodec  The codec used to encode the buckets into cached values
+     * @param mapper  An object mapper to use for processing Json
+     * @param <V>  The type of the cached values
+     */
+    @SuppressWarnings("unchecked")
+    public <V extends Serializable> BucketCacheResponseProcessor(
+            ResponseProcessor next,
+            DruidAggregationQuery<?> druidQuery,
+            List<Bucket> buckets,
+            TupleDataCache<String, Long, V> dataCache,
+            CacheValueCodec<V> valueCodec,
+            ObjectMapper mapper
+    ) {
+        this.next = next;
+        this.druidQuery = druidQuery;
+        this.buckets = Collections.unmodifiableList(buckets);
+        this.dataCache = (TupleDataCache<String, Long, Serializable>) dataCache;
+        this.valueCodec = (CacheValueCodec<Serializable>) valueCodec;
+        this.mapper = mapper;
+    }
+
+    @Override
+    public ResponseContext getResponseContext() {
+        return next.getResponseContext();
+    }
+
+    @Override
+    public FailureCallback getFailureCallback(DruidAggregationQuery<?> druidQuery) {
+        return next.getFailureCallback(druidQuery);
+    }
+
+    @Override
+    public HttpErrorCallback getErrorCallback(DruidAggregationQuery<?> druidQuery) {
+        return next.getErrorCallback(druidQuery);
+    }
+
+    @Override
+    public void processResponse(JsonNode json, DruidAggregationQuery<?> query, LoggingContext metadata) {
+        if (!json.isArray()) {
+            LOG.warn("Response to bucket query is not an array of rows and is not stitched with the cached buckets");
+            next.processResponse(json, druidQuery, metadata);
+            return;
+        }
+
+        // Assign the fetched rows to their buckets
+        TreeMap<DateTime, Bucket> fetchedBuckets = new TreeMap<>();
+        for (Bucket bucket : buckets) {
+            if (!bucket.isCached()) {
+                bucket.rows = mapper.createArrayNode();
+                fetchedBuckets.put(bucket.interval.getStart(), bucket);
+            }
+        }
+        ArrayNode unmatchedRows = mapper.createArrayNode();
+        for (JsonNode row : json) {
+            Bucket bucket = findBucket(fetchedBuckets, row);
+            if (bucket == null) {
+                unmatchedRows.add(row);
+            } else {
+                ((ArrayNode) bucket.rows).add(row);
+            }
+        }
+        if (unmatchedRows.size() > 0) {
+            LOG.warn("{} rows of the response to a bucket query are not in any of its buckets", unmatchedRows.size());
+        }
+
+        SimplifiedIntervalList uncacheableIntervals = getPartialIntervalsWithDefault(getResponseContext())
+                .union(getVolatileIntervalsWithDefault(getResponseContext()));
+        ArrayNode stitched = mapper.createArrayNode();
+        for (Bucket bucket : buckets) {
+            if (!bucket.isCached() && isCacheable(bucket, uncacheableIntervals)) {
+                cache(bucket);
+            }
+            stitched.addAll((ArrayNode) bucket.rows);
+        }
+        stitched.addAll(unmatchedRows);
+
+        next.processResponse(stitched, druidQuery, metadata);
+    }
+
+    /**
+     * Find the fetched bucket a row belongs to.
+     *
+     * @param fetchedBuckets  The fetched buckets, by the start of their interval
+     * @param row  The row
+     *
+     * @return the bucket whose interval holds the timestamp of the row, or null if there is none
+     */
+    private static Bucket findBucket(TreeMap<DateTime, Bucket> fetchedBuckets, JsonNode row) {
+        JsonNode timestamp = row.get("timestamp");
+        if (timestamp == null) {
+            return null;
+        }
+        DateTime dateTime = new DateTime(timestamp.asText());
+        Map.Entry<DateTime, Bucket> entry = fetchedBuckets.floorEntry(dateTime);
+        return entry == null || !entry.getValue().interval.contains(dateTime) ? null : entry.getValue();
+    }
+
+    /**
+     * A fetched bucket is cacheable if it has a signature and, unless partial data is cached, if it holds neither
+     * partial nor volatile data.
+     *
+     * @param bucket  The fetched bucket
+     * @param uncacheableIntervals  The missing and volatile intervals of the response
+     *
+     * @return whether the bucket can be cached
+     */
+    protected boolean isCacheable(Bucket bucket, SimplifiedIntervalList uncacheableIntervals) {
+        if (bucket.signature == null) {
+            return false;
+        }
+        return CACHE_PARTIAL_DATA.isOn() || uncacheableIntervals.stream().noneMatch(bucket.interval::overlaps);
+    }
+
+    /**
+     * Write the rows of a fetched bucket to the cache.
+     *
+     * @param bucket  The bucket
+     */
+    private void cache(Bucket bucket) {
+        Serializable value = null;
+        try {
+            value = valueCodec.encode(bucket.rows);
+            long valueLength = valueCodec.getLength(value);
+            if (valueLength <= maxDruidResponseLengthToCache) {
+                dataCache.set(bucket.cacheKey, bucket.signature, value);
+            } else {
+                LOG.debug(
+                        "Bucket not cached. Length of {} exceeds max value length of {}",
+                        valueLength,
+                        maxDruidResponseLengthToCache
+                );
+            }
+        } catch (Exception e) {
+            LOG.warn(
+                    "Unable to cache bucket {} {}value of size: {}",
+                    bucket.interval,
+                    value == null ? "null " : "",
+                    value == null ? "N/A" : valueCodec.getLength(value),
+                    e
+            );
+        }
+    }
+}
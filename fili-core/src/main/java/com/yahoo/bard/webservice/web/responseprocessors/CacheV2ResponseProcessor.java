@@ -8,6 +8,8 @@ import static com.yahoo.bard.webservice.web.handlers.VolatileDataRequestHandler.
 
 import com.yahoo.bard.webservice.config.SystemConfig;
 import com.yahoo.bard.webservice.config.SystemConfigProvider;
+import com.yahoo.bard.webservice.data.cache.CacheValueCodec;
+import com.yahoo.bard.webservice.data.cache.JsonCacheValueCodec;
 import com.yahoo.bard.webservice.data.cache.TupleDataCache;
 import com.yahoo.bard.webservice.druid.client.FailureCallback;
 import com.yahoo.bard.webservice.druid.client.HttpErrorCallback;
@@ -22,6 +24,8 @@ import com.fasterxml.jackson.databind.ObjectWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Serializable;
+
 import javax.validation.constraints.NotNull;
 
 /**
@@ -41,8 +45,9 @@ public class CacheV2ResponseProcessor implements ResponseProcessor {
 
     private final ResponseProcessor next;
     private final String cacheKey;
-    private final @NotNull TupleDataCache<String, Long, String> dataCache;
+    private final @NotNull TupleDataCache<String, Long, Serializable> dataCache;
     private final @NotNull QuerySigningService<Long> querySigningService;
+    private final @NotNull CacheValueCodec<Serializable> valueCodec;
 
     protected final ObjectWriter writer;
 
@@ -61,11 +66,35 @@ public class CacheV2ResponseProcessor implements ResponseProcessor {
             TupleDataCache<String, Long, String> dataCache,
             QuerySigningService<Long> querySigningService,
             ObjectMapper mapper
+    ) {
+        this(next, cacheKey, dataCache, querySigningService, new JsonCacheValueCodec(mapper), mapper);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param next  Next ResponseProcessor in the chain
+     * @param cacheKey  Key into which to write a cache entry
+     * @param dataCache  The cache into which to write a cache entry
+     * @param querySigningService  Service to use for signing the queries in the cache key with their metadata
+     * @param valueCodec  The codec used to encode the response into the cached value
+     * @param mapper  An object mapper to use for processing Json
+     * @param <V>  The type of the cached values
+     */
+    @SuppressWarnings("unchecked")
+    public <V extends Serializable> CacheV2ResponseProcessor(
+            ResponseProcessor next,
+            String cacheKey,
+            TupleDataCache<String, Long, V> dataCache,
+            QuerySigningService<Long> querySigningService,
+            CacheValueCodec<V> valueCodec,
+            ObjectMapper mapper
     ) {
         this.next = next;
         this.cacheKey = cacheKey;
-        this.dataCache = dataCache;
+        this.dataCache = (TupleDataCache<String, Long, Serializable>) dataCache;
         this.querySigningService = querySigningService;
+        this.valueCodec = (CacheValueCodec<Serializable>) valueCodec;
         this.writer = mapper.writer();
     }
 
@@ -87,15 +116,15 @@ public class CacheV2ResponseProcessor implements ResponseProcessor {
     @Override
     public void processResponse(JsonNode json, DruidAggregationQuery<?> druidQuery, LoggingContext metadata) {
         if (CACHE_PARTIAL_DATA.isOn() || isCacheable()) {
-            String valueString = null;
+            Serializable value = null;
             try {
-                valueString = writer.writeValueAsString(json);
-                int valueLength = valueString.length();
+                value = valueCodec.encode(json);
+                long valueLength = valueCodec.getLength(value);
                 if (valueLength <= maxDruidResponseLengthToCache) {
                     dataCache.set(
                             cacheKey,
                             querySigningService.getSegmentSetId(druidQuery).orElse(null),
-                            valueString
+                            value
                     );
                 } else {
                     LOG.debug(
@@ -107,8 +136,8 @@ public class CacheV2ResponseProcessor implements ResponseProcessor {
             } catch (Exception e) {
                 LOG.warn(
                         "Unable to cache {}value of size: {}",
-                        valueString == null ? "null " : "",
-                        valueString == null ? "N/A" : valueString.length(),
+                        value == null ? "null " : "",
+                        value == null ? "N/A" : valueCodec.getLength(value),
                         e
                 );
             }
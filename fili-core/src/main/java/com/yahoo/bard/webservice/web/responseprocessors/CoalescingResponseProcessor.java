@@ -0,0 +1,238 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.web.responseprocessors;
+
+import static com.yahoo.bard.webservice.web.handlers.workflow.DruidWorkflow.REQUEST_WORKFLOW_TIMER;
+import static com.yahoo.bard.webservice.web.handlers.workflow.DruidWorkflow.RESPONSE_WORKFLOW_TIMER;
+
+import com.yahoo.bard.webservice.druid.client.FailureCallback;
+import com.yahoo.bard.webservice.druid.client.HttpErrorCallback;
+import com.yahoo.bard.webservice.druid.model.query.DruidAggregationQuery;
+import com.yahoo.bard.webservice.logging.RequestLog;
+import com.yahoo.bard.webservice.web.handlers.RequestContext;
+import com.yahoo.bard.webservice.web.handlers.SharedQueryRequestContext;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Response processor for a Druid query which other identical requests have attached themselves to.
+ * <p>
+ * The response, error or failure of the one Druid call is handed to the response processor of the request which made
+ * it, and then to the response processor of every request which joined while the call was outstanding. Requests can
+ * only join until the call completes, at which point the processor is removed from the map of in flight queries it
+ * was registered in.
+ * <p>
+ * The Druid call is made with a {@link SharedQueryRequestContext}, which every joined request shares, so that the call
+ * is only cancelled once the request which made it and every joined request are cancelled. A request can't join a
+ * call which has been cancelled.
+ * <p>
+ * All of the requests share the response json, which must therefore not be modified by the processors downstream.
+ */
+public class CoalescingResponseProcessor implements ResponseProcessor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CoalescingResponseProcessor.class);
+
+    private final ResponseProcessor next;
+    private final Map<String, CoalescingResponseProcessor> inFlight;
+    private final String key;
+    private final SharedQueryRequestContext sharedContext;
+
+    private final List<Follower> followers = new ArrayList<>();
+    private boolean completed = false;
+
+    /**
+     * Constructor.
+     *
+     * @param next  The response processor of the request making the Druid call
+     * @param inFlight  The in flight queries this processor is registered in
+     * @param key  The key this processor is registered under
+     * @param sharedContext  The context the Druid call is made with
+     */
+    public CoalescingResponseProcessor(
+            ResponseProcessor next,
+            Map<String, CoalescingResponseProcessor> inFlight,
+            String key,
+            SharedQueryRequestContext sharedContext
+    ) {
+        this.next = next;
+        this.inFlight = inFlight;
+        this.key = key;
+        this.sharedContext = sharedContext;
+    }
+
+    /**
+     * Attach a request to the outstanding Druid call, unless the call has already completed or been cancelled.
+     * <p>
+     * The joining request is treated as if its query had been sent, so the request workflow timer of the joining
+     * request is stopped once it has no other queries left to send, and its request log is taken off the current
+     * thread until the response arrives.
+     *
+     * @param context  The context of the joining request
+     * @param druidQuery  The query of the joining request
+     * @param response  The response processor of the joining request
+     *
+     * @return true if the request was attached, false if the call has already completed or been cancelled
+     */
+    public synchronized boolean join(
+            RequestContext context,
+            DruidAggregationQuery<?> druidQuery,
+            ResponseProcessor response
+    ) {
+        if (completed || sharedContext.isCancelled()) {
+            return false;
+        }
+        sharedContext.share(context);
+        if (context.getNumberOfOutgoing().decrementAndGet() == 0) {
+            RequestLog.stopTiming(REQUEST_WORKFLOW_TIMER);
+        }
+        followers.add(new Follower(context, druidQuery, response, RequestLog.dump()));
+        return true;
+    }
+
+    /**
+     * Get the number of requests attached to the Druid call, besides the one making it.
+     *
+     * @return the number of joined requests
+     */
+    public synchronized int getFollowerCount() {
+        return followers.size();
+    }
+
+    /**
+     * Fail the joined requests, and stop accepting new ones, when the Druid call could not be made at all.
+     * <p>
+     * The request which tried to make the call is left to deal with the error itself.
+     *
+     * @param error  The reason the call could not be made
+     */
+    public void abandon(Throwable error) {
+        fanOut(complete(), follower -> follower.response.getFailureCallback(follower.druidQuery).invoke(error));
+    }
+
+    @Override
+    public ResponseContext getResponseContext() {
+        return next.getResponseContext();
+    }
+
+    @Override
+    public FailureCallback getFailureCallback(DruidAggregationQuery<?> druidQuery) {
+        FailureCallback nextFail = next.getFailureCallback(druidQuery);
+        return error -> {
+            List<Follower> joined = complete();
+            nextFail.invoke(error);
+            fanOut(joined, follower -> follower.response.getFailureCallback(follower.druidQuery).invoke(error));
+        };
+    }
+
+    @Override
+    public HttpErrorCallback getErrorCallback(DruidAggregationQuery<?> druidQuery) {
+        HttpErrorCallback nextError = next.getErrorCallback(druidQuery);
+        return (statusCode, reasonPhrase, responseBody) -> {
+            List<Follower> joined = complete();
+            nextError.invoke(statusCode, reasonPhrase, responseBody);
+            fanOut(
+                    joined,
+                    follower -> follower.response.getErrorCallback(follower.druidQuery)
+                            .invoke(statusCode, reasonPhrase, responseBody)
+            );
+        };
+    }
+
+    @Override
+    public void processResponse(JsonNode json, DruidAggregationQuery<?> druidQuery, LoggingContext metadata) {
+        List<Follower> joined = complete();
+        next.processResponse(json, druidQuery, metadata);
+        fanOut(
+                joined,
+                follower -> follower.response.processResponse(
+                        json,
+                        follower.druidQuery,
+                        new LoggingContext(RequestLog.copy())
+                )
+        );
+    }
+
+    /**
+     * Stop accepting joining requests and stop being found as an in flight query.
+     *
+     * @return the requests which joined
+     */
+    private List<Follower> complete() {
+        synchronized (this) {
+            completed = true;
+        }
+        inFlight.remove(key, this);
+        return Collections.unmodifiableList(followers);
+    }
+
+    /**
+     * Hand the outcome of the Druid call to every joined request, each under its own request log.
+     * <p>
+     * A joined request whose processing throws is failed on its own, without affecting the others.
+     *
+     * @param joined  The joined requests
+     * @param delivery  Hands the outcome to one joined request
+     */
+    private void fanOut(List<Follower> joined, Consumer<Follower> delivery) {
+        if (joined.isEmpty()) {
+            return;
+        }
+        RequestLog threadLog = RequestLog.dump();
+        try {
+            for (Follower follower : joined) {
+                RequestLog.restore(follower.logCtx);
+                if (follower.context.getNumberOfIncoming().decrementAndGet() == 0) {
+                    RequestLog.startTiming(RESPONSE_WORKFLOW_TIMER);
+                }
+                try {
+                    delivery.accept(follower);
+                } catch (RuntimeException e) {
+                    LOG.error("Unable to process coalesced druid response", e);
+                    follower.response.getFailureCallback(follower.druidQuery).invoke(e);
+                }
+                RequestLog.dump();
+            }
+        } finally {
+            RequestLog.restore(threadLog);
+        }
+    }
+
+    /**
+     * A request attached to the Druid call.
+     */
+    private static class Follower {
+        private final RequestContext context;
+        private final DruidAggregationQuery<?> druidQuery;
+        private final ResponseProcessor response;
+        private final RequestLog logCtx;
+
+        /**
+         * Constructor.
+         *
+         * @param context  The context of the request
+         * @param druidQuery  The query of the request
+         * @param response  The response processor of the request
+         * @param logCtx  The request log of the request
+         */
+        Follower(
+                RequestContext context,
+                DruidAggregationQuery<?> druidQuery,
+                ResponseProcessor response,
+                RequestLog logCtx
+        ) {
+            this.context = context;
+            this.druidQuery = druidQuery;
+            this.response = response;
+            this.logCtx = logCtx;
+        }
+    }
+}
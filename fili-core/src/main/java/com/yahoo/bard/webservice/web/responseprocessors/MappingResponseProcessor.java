@@ -3,9 +3,11 @@
 package com.yahoo.bard.webservice.web.responseprocessors;
 
 import com.yahoo.bard.webservice.application.ObjectMappersSuite;
+import com.yahoo.bard.webservice.config.BardFeatureFlag;
 import com.yahoo.bard.webservice.data.ResultSet;
 import com.yahoo.bard.webservice.data.metric.LogicalMetric;
 import com.yahoo.bard.webservice.data.metric.mappers.ResultSetMapper;
+import com.yahoo.bard.webservice.data.metric.mappers.ResultSetMapperPipeline;
 import com.yahoo.bard.webservice.druid.client.FailureCallback;
 import com.yahoo.bard.webservice.druid.client.HttpErrorCallback;
 import com.yahoo.bard.webservice.druid.model.query.DruidAggregationQuery;
@@ -79,12 +81,17 @@ public abstract class MappingResponseProcessor implements ResponseProcessor {
 
     /**
      * Builds a mapped result set by running through ResultSetMappers.
+     * <p>
+     * When the result set mapper pipeline is enabled, the row-wise mappers are fused into single passes over the rows.
      *
      * @param resultSet  The result set being processed
      *
      * @return a mapped resultSet
      */
     protected ResultSet mapResultSet(ResultSet resultSet) {
+        if (BardFeatureFlag.RESULT_SET_MAPPER_PIPELINE.isOn()) {
+            return new ResultSetMapperPipeline(getMappers()).map(resultSet);
+        }
         ResultSet mappedResultSet = resultSet;
         for (ResultSetMapper resultSetMapper : getMappers()) {
             mappedResultSet = resultSetMapper.map(mappedResultSet);
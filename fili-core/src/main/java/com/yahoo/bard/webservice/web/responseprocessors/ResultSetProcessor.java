@@ -0,0 +1,91 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.web.responseprocessors;
+
+import com.yahoo.bard.webservice.data.ResultSet;
+import com.yahoo.bard.webservice.druid.model.query.DruidAggregationQuery;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import org.joda.time.DateTimeZone;
+
+import java.io.IOException;
+
+/**
+ * A response processor whose work starts by turning the Druid json into a result set, and which can be handed that
+ * result set directly.
+ * <p>
+ * This lets processors upstream of it, such as the {@link SplitQueryResponseProcessor}, parse partial responses into
+ * rows as they arrive instead of holding on to their json until the whole response can be assembled, and lets the
+ * druid web service stream the response body into a result set without ever building its json tree.
+ */
+public interface ResultSetProcessor extends ResponseProcessor {
+
+    /**
+     * Build a result set from a druid response.
+     *
+     * @param json  The json representing the druid response
+     * @param druidQuery  The druid query the response is for
+     * @param dateTimeZone  The date time zone for parsing result rows
+     *
+     * @return The result set built from the json
+     */
+    ResultSet buildResultSet(JsonNode json, DruidAggregationQuery<?> druidQuery, DateTimeZone dateTimeZone);
+
+    /**
+     * Build a result set from a druid response read off a json parser.
+     * <p>
+     * By default the response is read into a json tree and built from that. Implementations which can build the
+     * result set straight from the parser's tokens should override this.
+     *
+     * @param jsonParser  Parser over the druid response, positioned before the start of the response
+     * @param druidQuery  The druid query the response is for
+     * @param dateTimeZone  The date time zone for parsing result rows
+     *
+     * @return The result set built from the response
+     *
+     * @throws IOException if the response cannot be read
+     */
+    default ResultSet buildResultSet(
+            JsonParser jsonParser,
+            DruidAggregationQuery<?> druidQuery,
+            DateTimeZone dateTimeZone
+    ) throws IOException {
+        JsonNode json = jsonParser.readValueAsTree();
+        return buildResultSet(json, druidQuery, dateTimeZone);
+    }
+
+    /**
+     * Process a result set that has already been built from the druid response.
+     * <p>
+     * This has the same effect as {@link #processResponse} on the json the result set was built from.
+     *
+     * @param resultSet  The result set built from the druid response
+     * @param druidQuery  The query whose response the result set holds
+     * @param metadata  The LoggingContext to use in the processing
+     */
+    void processResultSet(ResultSet resultSet, DruidAggregationQuery<?> druidQuery, LoggingContext metadata);
+
+    /**
+     * Build a result set from a druid response read off a json parser, and process it.
+     * <p>
+     * By default an error reading the response is thrown to the caller. Implementations which report errors building
+     * the result set from json should override this to report errors reading the response the same way.
+     *
+     * @param jsonParser  Parser over the druid response, positioned before the start of the response
+     * @param druidQuery  The druid query the response is for
+     * @param dateTimeZone  The date time zone for parsing result rows
+     * @param metadata  The LoggingContext to use in the processing
+     *
+     * @throws IOException if the response cannot be read
+     */
+    default void processStreamedResponse(
+            JsonParser jsonParser,
+            DruidAggregationQuery<?> druidQuery,
+            DateTimeZone dateTimeZone,
+            LoggingContext metadata
+    ) throws IOException {
+        processResultSet(buildResultSet(jsonParser, druidQuery, dateTimeZone), druidQuery, metadata);
+    }
+}
@@ -8,6 +8,7 @@ import static com.yahoo.bard.webservice.web.responseprocessors.ResponseContextKe
 import static com.yahoo.bard.webservice.web.responseprocessors.ResponseContextKeys.REQUESTED_API_DIMENSION_FIELDS;
 
 import com.yahoo.bard.webservice.application.ObjectMappersSuite;
+import com.yahoo.bard.webservice.config.BardFeatureFlag;
 import com.yahoo.bard.webservice.async.ResponseException;
 import com.yahoo.bard.webservice.data.DruidResponseParser;
 import com.yahoo.bard.webservice.data.HttpResponseMaker;
@@ -15,6 +16,7 @@ import com.yahoo.bard.webservice.data.ResultSet;
 import com.yahoo.bard.webservice.data.ResultSetSchema;
 import com.yahoo.bard.webservice.data.dimension.DimensionField;
 import com.yahoo.bard.webservice.data.metric.LogicalMetric;
+import com.yahoo.bard.webservice.data.metric.mappers.ResultSetMapperPipeline;
 import com.yahoo.bard.webservice.druid.client.FailureCallback;
 import com.yahoo.bard.webservice.druid.client.HttpErrorCallback;
 import com.yahoo.bard.webservice.druid.model.query.DruidAggregationQuery;
@@ -25,6 +27,7 @@ import com.yahoo.bard.webservice.web.apirequest.DataApiRequest;
 import com.yahoo.bard.webservice.web.PageNotFoundException;
 import com.yahoo.bard.webservice.web.PreResponse;
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.JsonNode;
 
 import org.joda.time.DateTimeZone;
@@ -33,18 +36,25 @@ import org.slf4j.LoggerFactory;
 
 import rx.subjects.Subject;
 
+import java.io.IOException;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.stream.Collectors;
 
 import javax.ws.rs.core.Response.Status;
 
 /**
  * Callback handler for JSON to be processed into result sets.
+ * <p>
+ * When {@link BardFeatureFlag#STREAMING_RESPONSES} is on, the response of a request which never goes asynchronous and
+ * whose mappers all map results one at a time is streamed: its results are built and mapped as the response writer
+ * reads them, so the response starts being written before the last result is built. An error building or mapping a
+ * result then can only cut the response short, since its status has already been sent.
  */
-public class ResultSetResponseProcessor extends MappingResponseProcessor implements ResponseProcessor {
+public class ResultSetResponseProcessor extends MappingResponseProcessor implements ResultSetProcessor {
 
     private static final Logger LOG = LoggerFactory.getLogger(ResultSetResponseProcessor.class);
 
@@ -88,10 +98,50 @@ public class ResultSetResponseProcessor extends MappingResponseProcessor impleme
 
     @Override
     public void processResponse(JsonNode json, DruidAggregationQuery<?> druidQuery, LoggingContext metadata) {
+        processResultSet(() -> buildResultSet(json, druidQuery, apiRequest.getTimeZone()), druidQuery, metadata);
+    }
+
+    @Override
+    public void processResultSet(ResultSet resultSet, DruidAggregationQuery<?> druidQuery, LoggingContext metadata) {
+        processResultSet(() -> resultSet, druidQuery, metadata);
+    }
+
+    /**
+     * Build a result set from a druid response read off a json parser, and process it.
+     * <p>
+     * A response which cannot be read is reported to the response emitter, as an error building the result set from
+     * json would be.
+     *
+     * @param jsonParser  Parser over the druid response, positioned before the start of the response
+     * @param druidQuery  The druid query the response is for
+     * @param dateTimeZone  The date time zone for parsing result rows
+     * @param metadata  The LoggingContext to use in the processing
+     */
+    @Override
+    public void processStreamedResponse(
+            JsonParser jsonParser,
+            DruidAggregationQuery<?> druidQuery,
+            DateTimeZone dateTimeZone,
+            LoggingContext metadata
+    ) {
+        processResultSet(() -> buildResultSet(jsonParser, druidQuery, dateTimeZone), druidQuery, metadata);
+    }
+
+    /**
+     * Map the result set and send it, or the error raised while building or mapping it, to the response emitter.
+     *
+     * @param resultSetSupplier  Builds the unmapped result set, once the request log has been restored
+     * @param druidQuery  The druid query being processed
+     * @param metadata  The LoggingContext to use in the processing
+     */
+    protected void processResultSet(
+            Callable<ResultSet> resultSetSupplier,
+            DruidAggregationQuery<?> druidQuery,
+            LoggingContext metadata
+    ) {
         try {
             RequestLog.restore(metadata.getRequestLog());
-            ResultSet resultSet = buildResultSet(json, druidQuery, apiRequest.getTimeZone());
-            resultSet = mapResultSet(resultSet);
+            ResultSet resultSet = mapResultSet(resultSetSupplier.call());
 
             LinkedHashSet<String> apiMetricColumnNames = apiRequest.getLogicalMetrics().stream()
                     .map(LogicalMetric::getName)
@@ -139,6 +189,35 @@ public class ResultSetResponseProcessor extends MappingResponseProcessor impleme
         }
     }
 
+    /**
+     * Map the result set, lazily if the response is streamed.
+     *
+     * @param resultSet  The result set to map
+     *
+     * @return the mapped result set
+     */
+    @Override
+    protected ResultSet mapResultSet(ResultSet resultSet) {
+        if (isStreamingResponse()) {
+            return new ResultSetMapperPipeline(getMappers()).mapLazily(resultSet);
+        }
+        return super.mapResultSet(resultSet);
+    }
+
+    /**
+     * Whether the results of the response are built and mapped as they are written, rather than before.
+     * <p>
+     * A response can only be streamed if it is always answered synchronously, since an asynchronous response is
+     * stored before it is read, and if every mapper maps results one at a time.
+     *
+     * @return true if the response is streamed
+     */
+    protected boolean isStreamingResponse() {
+        return BardFeatureFlag.STREAMING_RESPONSES.isOn()
+                && apiRequest.getAsyncAfter() == DataApiRequest.SYNCHRONOUS_ASYNC_AFTER_VALUE
+                && new ResultSetMapperPipeline(getMappers()).isRowWise();
+    }
+
     /**
      * Build a result set using the api request time grain.
      *
@@ -148,13 +227,54 @@ public class ResultSetResponseProcessor extends MappingResponseProcessor impleme
      *
      * @return The initial result set from the json node.
      */
+    @Override
     public ResultSet buildResultSet(JsonNode json, DruidAggregationQuery<?> druidQuery, DateTimeZone dateTimeZone) {
+        ResultSetSchema resultSetSchema = buildResultSetSchema(druidQuery);
+        return druidResponseParser.parse(json, resultSetSchema, druidQuery.getQueryType(), dateTimeZone);
+    }
+
+    /**
+     * Build a result set using the api request time grain, streaming it straight from the response tokens.
+     * <p>
+     * If the response is streamed, the results are only built as they are read.
+     *
+     * @param jsonParser  Parser over the druid response
+     * @param druidQuery  The druid query being processed
+     * @param dateTimeZone  The date time zone for parsing result rows
+     *
+     * @return The initial result set from the response
+     *
+     * @throws IOException if the response cannot be read
+     */
+    @Override
+    public ResultSet buildResultSet(
+            JsonParser jsonParser,
+            DruidAggregationQuery<?> druidQuery,
+            DateTimeZone dateTimeZone
+    ) throws IOException {
+        ResultSetSchema resultSetSchema = buildResultSetSchema(druidQuery);
+        if (isStreamingResponse()) {
+            return druidResponseParser.parseLazily(
+                    jsonParser,
+                    resultSetSchema,
+                    druidQuery.getQueryType(),
+                    dateTimeZone
+            );
+        }
+        return druidResponseParser.parse(jsonParser, resultSetSchema, druidQuery.getQueryType(), dateTimeZone);
+    }
 
+    /**
+     * Build the schema of the result set for a druid query using the api request time grain.
+     *
+     * @param druidQuery  The druid query being processed
+     *
+     * @return The schema of the query's result set
+     */
+    protected ResultSetSchema buildResultSetSchema(DruidAggregationQuery<?> druidQuery) {
         LinkedHashSet<Column> columns = druidResponseParser.buildSchemaColumns(druidQuery)
                 .collect(Collectors.toCollection(LinkedHashSet::new));
 
-        ResultSetSchema resultSetSchema = new ResultSetSchema(granularity, columns);
-
-        return druidResponseParser.parse(json, resultSetSchema, druidQuery.getQueryType(), dateTimeZone);
+        return new ResultSetSchema(granularity, columns);
     }
 }
@@ -2,12 +2,14 @@
 // Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
 package com.yahoo.bard.webservice.web.responseprocessors;
 
+import com.yahoo.bard.webservice.data.ResultSet;
 import com.yahoo.bard.webservice.data.cache.HashDataCache.Pair;
 import com.yahoo.bard.webservice.druid.client.FailureCallback;
 import com.yahoo.bard.webservice.druid.client.HttpErrorCallback;
 import com.yahoo.bard.webservice.druid.model.query.DruidAggregationQuery;
 import com.yahoo.bard.webservice.logging.RequestLog;
 import com.yahoo.bard.webservice.web.apirequest.DataApiRequest;
+import com.yahoo.bard.webservice.web.handlers.SplitQueryDispatcher;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
@@ -18,6 +20,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -27,6 +30,15 @@ import java.util.concurrent.atomic.AtomicInteger;
  * This response processor receives a list of expected intervals.  As responses arrives, it stores the responses until
  * all expected intervals have arrived, at which point it passes the concatenated Json content from each of the calls
  * to its next processor.
+ * <p>
+ * If the next processor is a {@link ResultSetProcessor}, each response is instead parsed into result rows as soon as it
+ * arrives and its json is let go. The rows are kept in the slot of their interval, and once every expected interval
+ * has arrived the slots are concatenated, in interval order, into the result set handed to the next processor. This
+ * spreads the parsing work over the time the sub-queries are outstanding and keeps only the rows, rather than the json
+ * of every sub-query, in memory.
+ * <p>
+ * If the sub-queries are sent through a {@link SplitQueryDispatcher}, the dispatcher is told as each sub-query
+ * completes, and the sub-queries it has not sent yet are cancelled as soon as one of them fails.
  */
 public class SplitQueryResponseProcessor implements ResponseProcessor {
 
@@ -35,13 +47,17 @@ public class SplitQueryResponseProcessor implements ResponseProcessor {
     public static final String UNEXPECTED_INTERVAL_FORMAT = "Split query received an interval it wasn't expecting: %s";
 
     private final ResponseProcessor next;
+    private final ResultSetProcessor resultSetProcessor;
 
+    private final DataApiRequest request;
     private final DruidAggregationQuery<?> queryBeforeSplit;
     private final Map<Interval, AtomicInteger> expectedIntervals;
     private final List<Pair<JsonNode, LoggingContext>> completedIntervals;
+    private final List<Pair<ResultSet, LoggingContext>> completedResultSets;
     private final AtomicInteger completed;
     private final AtomicBoolean failed = new AtomicBoolean(false);
     private final RequestLog logCtx;
+    private final SplitQueryDispatcher dispatcher;
 
     /**
      * Constructor.
@@ -52,20 +68,45 @@ public class SplitQueryResponseProcessor implements ResponseProcessor {
      * @param expectedIntervals A map of expected interval status flags
      * @param logCtx  The request log logging context
      */
-    @SuppressWarnings("unchecked")
     public SplitQueryResponseProcessor(
             ResponseProcessor next,
             DataApiRequest request,
             DruidAggregationQuery<?> druidQuery,
             Map<Interval, AtomicInteger> expectedIntervals,
             RequestLog logCtx
+    ) {
+        this(next, request, druidQuery, expectedIntervals, logCtx, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param next  The next delegate response processor
+     * @param request  The request for this response
+     * @param druidQuery  The unmodified druid query for this response
+     * @param expectedIntervals A map of expected interval status flags
+     * @param logCtx  The request log logging context
+     * @param dispatcher  The dispatcher sending the sub-queries, or null if they are not sent through a dispatcher
+     */
+    @SuppressWarnings("unchecked")
+    public SplitQueryResponseProcessor(
+            ResponseProcessor next,
+            DataApiRequest request,
+            DruidAggregationQuery<?> druidQuery,
+            Map<Interval, AtomicInteger> expectedIntervals,
+            RequestLog logCtx,
+            SplitQueryDispatcher dispatcher
     ) {
         this.next = next;
+        this.resultSetProcessor = next instanceof ResultSetProcessor ? (ResultSetProcessor) next : null;
+        this.request = request;
         this.queryBeforeSplit = druidQuery;
         this.expectedIntervals = expectedIntervals;
         this.completedIntervals = Arrays.asList(new Pair[expectedIntervals.size()]);
+        this.completedResultSets = Arrays.asList(new Pair[expectedIntervals.size()]);
         this.completed = new AtomicInteger(expectedIntervals.size());
         this.logCtx = logCtx;
+        this.dispatcher = dispatcher;
     }
 
     @Override
@@ -81,8 +122,10 @@ public class SplitQueryResponseProcessor implements ResponseProcessor {
             @Override
             public void invoke(Throwable error) {
                 if (failed.compareAndSet(false, true)) {
+                    cancelPending();
                     nextFail.invoke(error);
                 }
+                completeSubQuery(druidQuery);
             }
         };
     }
@@ -95,14 +138,31 @@ public class SplitQueryResponseProcessor implements ResponseProcessor {
             @Override
             public void invoke(int statusCode, String reasonPhrase, String responseBody) {
                 if (failed.compareAndSet(false, true)) {
+                    cancelPending();
                     nextError.invoke(statusCode, reasonPhrase, responseBody);
                 }
+                completeSubQuery(druidQuery);
             }
         };
     }
 
     @Override
     public void processResponse(JsonNode json, DruidAggregationQuery<?> druidQuery, LoggingContext metadata) {
+        try {
+            collectResponse(json, druidQuery, metadata);
+        } finally {
+            completeSubQuery(druidQuery);
+        }
+    }
+
+    /**
+     * Store the response of a sub-query and, once every expected interval has arrived, pass the merged response on.
+     *
+     * @param json  The json representing the sub-query response
+     * @param druidQuery  The sub-query that the response is for
+     * @param metadata  The logging context of the sub-query
+     */
+    private void collectResponse(JsonNode json, DruidAggregationQuery<?> druidQuery, LoggingContext metadata) {
         if (failed.get()) {
             return;
         }
@@ -115,17 +175,61 @@ public class SplitQueryResponseProcessor implements ResponseProcessor {
         }
 
         int index;
-        if ((index = sharedIndex.getAndSet(-1)) < 0 || completedIntervals.get(index) != null) {
+        if ((index = sharedIndex.getAndSet(-1)) < 0
+                || completedIntervals.get(index) != null
+                || completedResultSets.get(index) != null) {
             fail(EXTRA_RETURN_FORMAT, druidQuery, interval);
             return;
         }
 
-        completedIntervals.set(index, new Pair<>(json, metadata));
+        if (resultSetProcessor == null) {
+            completedIntervals.set(index, new Pair<>(json, metadata));
+        } else {
+            ResultSet resultSet;
+            try {
+                resultSet = resultSetProcessor.buildResultSet(json, druidQuery, request.getTimeZone());
+            } catch (RuntimeException e) {
+                LOG.error("Unable to parse split query response for interval {}", interval, e);
+                getFailureCallback(druidQuery).invoke(e);
+                return;
+            }
+            completedResultSets.set(index, new Pair<>(resultSet, metadata));
+        }
 
         if (completed.decrementAndGet() == 0) {
-            Pair<JsonNode, LoggingContext> mergedResponse = mergeResponses(completedIntervals);
-            RequestLog.restore(mergedResponse.getValue().getRequestLog());
-            next.processResponse(mergedResponse.getKey(), queryBeforeSplit, mergedResponse.getValue());
+            if (resultSetProcessor == null) {
+                Pair<JsonNode, LoggingContext> mergedResponse = mergeResponses(completedIntervals);
+                RequestLog.restore(mergedResponse.getValue().getRequestLog());
+                next.processResponse(mergedResponse.getKey(), queryBeforeSplit, mergedResponse.getValue());
+            } else {
+                Pair<ResultSet, LoggingContext> mergedResultSet = mergeResultSets(completedResultSets);
+                RequestLog.restore(mergedResultSet.getValue().getRequestLog());
+                resultSetProcessor.processResultSet(
+                        mergedResultSet.getKey(),
+                        queryBeforeSplit,
+                        mergedResultSet.getValue()
+                );
+            }
+        }
+    }
+
+    /**
+     * Tell the dispatcher, if there is one, that a sub-query has completed.
+     *
+     * @param druidQuery  The sub-query that completed
+     */
+    private void completeSubQuery(DruidAggregationQuery<?> druidQuery) {
+        if (dispatcher != null && !druidQuery.getIntervals().isEmpty()) {
+            dispatcher.complete(druidQuery.getIntervals().get(0));
+        }
+    }
+
+    /**
+     * Cancel the sub-queries that the dispatcher, if there is one, has not sent yet.
+     */
+    private void cancelPending() {
+        if (dispatcher != null) {
+            dispatcher.cancel();
         }
     }
 
@@ -163,4 +267,32 @@ public class SplitQueryResponseProcessor implements ResponseProcessor {
         RequestLog updatedCtx = RequestLog.dump();
         return new Pair<>(result, new LoggingContext(updatedCtx));
     }
+
+    /**
+     * Concatenate the result sets of the sub-queries, preserving order.
+     * <p>
+     * Each slot is cleared as soon as its rows have been copied, so the rows are not held twice for longer than needed.
+     *
+     * @param resultSets  A list of pairs of the result set and response metadata of each sub-query, in interval order
+     *
+     * @return A new pair holding the merged result set and the aggregate request log context
+     */
+    private Pair<ResultSet, LoggingContext> mergeResultSets(List<Pair<ResultSet, LoggingContext>> resultSets) {
+        int size = 0;
+        for (Pair<ResultSet, LoggingContext> entry : resultSets) {
+            size += entry.getKey().size();
+        }
+
+        ResultSet merged = new ResultSet(resultSets.get(0).getKey().getSchema(), Collections.emptyList());
+        merged.ensureCapacity(size);
+        RequestLog.restore(logCtx);
+        for (int i = 0; i < resultSets.size(); i++) {
+            Pair<ResultSet, LoggingContext> entry = resultSets.get(i);
+            merged.addAll(entry.getKey());
+            RequestLog.accumulate(entry.getValue().getRequestLog());
+            resultSets.set(i, null);
+        }
+        RequestLog updatedCtx = RequestLog.dump();
+        return new Pair<>(merged, new LoggingContext(updatedCtx));
+    }
 }
@@ -0,0 +1,293 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.web.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Writes columns of values in the Apache Arrow IPC streaming format.
+ * <p>
+ * A stream is a schema message, followed by any number of record batches holding the values of each column for a
+ * batch of rows, and ended by an end of stream marker. Each message is a FlatBuffer holding its metadata, followed by
+ * a body holding the buffers of its columns. Only the few column types response data needs are supported: timestamps
+ * in milliseconds, strings, doubles and booleans, all of them nullable.
+ */
+public class ArrowStreamWriter {
+
+    private static final int CONTINUATION = 0xFFFFFFFF;
+    private static final short METADATA_VERSION_V5 = 4;
+    private static final byte MESSAGE_HEADER_SCHEMA = 1;
+    private static final byte MESSAGE_HEADER_RECORD_BATCH = 3;
+    private static final short TIME_UNIT_MILLISECOND = 1;
+    private static final short PRECISION_DOUBLE = 2;
+
+    private final OutputStream outputStream;
+    private List<Field> fields;
+
+    /**
+     * The types of column the stream supports, with their ids in the Arrow type union.
+     */
+    public enum Type {
+        TIMESTAMP(10),
+        UTF8(5),
+        FLOAT64(3),
+        BOOL(6);
+
+        private final int id;
+
+        /**
+         * Constructor.
+         *
+         * @param id  The id of the type in the Arrow type union
+         */
+        Type(int id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * A column of the stream.
+     */
+    public static class Field {
+
+        private final String name;
+        private final Type type;
+        private final String timeZone;
+
+        /**
+         * Constructor.
+         *
+         * @param name  The name of the column
+         * @param type  The type of the values of the column
+         */
+        public Field(String name, Type type) {
+            this(name, type, null);
+        }
+
+        /**
+         * Constructor.
+         *
+         * @param name  The name of the column
+         * @param type  The type of the values of the column
+         * @param timeZone  The id of the time zone of a timestamp column, or null if it has none
+         */
+        public Field(String name, Type type, String timeZone) {
+            this.name = name;
+            this.type = type;
+            this.timeZone = timeZone;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Type getType() {
+            return type;
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param outputStream  The stream to write to
+     */
+    public ArrowStreamWriter(OutputStream outputStream) {
+        this.outputStream = outputStream;
+    }
+
+    /**
+     * Write the schema message, which starts the stream.
+     *
+     * @param fields  The columns of the stream
+     *
+     * @throws IOException if the stream cannot be written
+     */
+    public void writeSchema(List<Field> fields) throws IOException {
+        this.fields = new ArrayList<>(fields);
+        List<FlatBuffer.Table> fieldTables = fields.stream().map(this::buildField).collect(Collectors.toList());
+        FlatBuffer.Table schema = new FlatBuffer.Table()
+                .addShort(0, 0)
+                .addReference(1, FlatBuffer.tables(fieldTables));
+        writeMessage(MESSAGE_HEADER_SCHEMA, schema, new byte[0]);
+    }
+
+    /**
+     * Write a record batch.
+     * <p>
+     * The values of each column are given as an array of the type of the column: numbers of milliseconds since the
+     * epoch for timestamps, numbers for doubles, {@code Boolean}s for booleans, and any object, written as its string,
+     * for strings. Null values are written as nulls.
+     *
+     * @param rowCount  The number of rows of the batch
+     * @param columns  The values of each column of the schema, in order
+     *
+     * @throws IOException if the stream cannot be written
+     */
+    public void writeBatch(int rowCount, List<Object[]> columns) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        ByteBuffer nodes = ByteBuffer.allocate(16 * fields.size()).order(ByteOrder.LITTLE_ENDIAN);
+        List<long[]> buffers = new ArrayList<>();
+
+        for (int i = 0; i < fields.size(); i++) {
+            Object[] values = columns.get(i);
+            byte[] validity = new byte[(rowCount + 7) / 8];
+            int nullCount = 0;
+            for (int row = 0; row < rowCount; row++) {
+                if (values[row] == null) {
+                    nullCount++;
+                } else {
+                    validity[row / 8] |= 1 << (row % 8);
+                }
+            }
+            nodes.putLong(rowCount).putLong(nullCount);
+            buffers.add(writeBuffer(body, validity));
+
+            switch (fields.get(i).type) {
+                case TIMESTAMP:
+                    ByteBuffer timestamps = ByteBuffer.allocate(8 * rowCount).order(ByteOrder.LITTLE_ENDIAN);
+                    for (int row = 0; row < rowCount; row++) {
+                        timestamps.putLong(values[row] == null ? 0 : ((Number) values[row]).longValue());
+                    }
+                    buffers.add(writeBuffer(body, timestamps.array()));
+                    break;
+                case FLOAT64:
+                    ByteBuffer doubles = ByteBuffer.allocate(8 * rowCount).order(ByteOrder.LITTLE_ENDIAN);
+                    for (int row = 0; row < rowCount; row++) {
+                        doubles.putDouble(values[row] == null ? 0 : ((Number) values[row]).doubleValue());
+                    }
+                    buffers.add(writeBuffer(body, doubles.array()));
+                    break;
+                case BOOL:
+                    byte[] bits = new byte[(rowCount + 7) / 8];
+                    for (int row = 0; row < rowCount; row++) {
+                        if (Boolean.TRUE.equals(values[row])) {
+                            bits[row / 8] |= 1 << (row % 8);
+                        }
+                    }
+                    buffers.add(writeBuffer(body, bits));
+                    break;
+                case UTF8:
+                    ByteBuffer offsets = ByteBuffer.allocate(4 * (rowCount + 1)).order(ByteOrder.LITTLE_ENDIAN);
+                    ByteArrayOutputStream data = new ByteArrayOutputStream();
+                    offsets.putInt(0);
+                    for (int row = 0; row < rowCount; row++) {
+                        if (values[row] != null) {
+                            byte[] value = values[row].toString().getBytes(StandardCharsets.UTF_8);
+                            data.write(value, 0, value.length);
+                        }
+                        offsets.putInt(data.size());
+                    }
+                    buffers.add(writeBuffer(body, offsets.array()));
+                    buffers.add(writeBuffer(body, data.toByteArray()));
+                    break;
+                default:
+                    throw new IllegalStateException("Unsupported arrow column type " + fields.get(i).type);
+            }
+        }
+
+        ByteBuffer bufferStructs = ByteBuffer.allocate(16 * buffers.size()).order(ByteOrder.LITTLE_ENDIAN);
+        for (long[] buffer : buffers) {
+            bufferStructs.putLong(buffer[0]).putLong(buffer[1]);
+        }
+        FlatBuffer.Table recordBatch = new FlatBuffer.Table()
+                .addLong(0, rowCount)
+                .addReference(1, FlatBuffer.structs(fields.size(), nodes.array()))
+                .addReference(2, FlatBuffer.structs(buffers.size(), bufferStructs.array()));
+        writeMessage(MESSAGE_HEADER_RECORD_BATCH, recordBatch, body.toByteArray());
+    }
+
+    /**
+     * Write the end of stream marker.
+     *
+     * @throws IOException if the stream cannot be written
+     */
+    public void writeEnd() throws IOException {
+        outputStream.write(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putInt(CONTINUATION).array());
+    }
+
+    /**
+     * Build the table describing a column.
+     *
+     * @param field  The column
+     *
+     * @return the field table
+     */
+    private FlatBuffer.Table buildField(Field field) {
+        FlatBuffer.Table type = new FlatBuffer.Table();
+        if (field.type == Type.TIMESTAMP) {
+            type.addShort(0, TIME_UNIT_MILLISECOND);
+            if (field.timeZone != null) {
+                type.addReference(1, FlatBuffer.string(field.timeZone));
+            }
+        } else if (field.type == Type.FLOAT64) {
+            type.addShort(0, PRECISION_DOUBLE);
+        }
+        return new FlatBuffer.Table()
+                .addReference(0, FlatBuffer.string(field.name))
+                .addByte(1, 1)
+                .addByte(2, field.type.id)
+                .addReference(3, type)
+                .addReference(5, FlatBuffer.tables(Collections.emptyList()));
+    }
+
+    /**
+     * Write a buffer to the body of a record batch, padded to a multiple of 8 bytes.
+     *
+     * @param body  The body being written
+     * @param buffer  The buffer
+     *
+     * @return the offset and length of the buffer in the body
+     */
+    private static long[] writeBuffer(ByteArrayOutputStream body, byte[] buffer) {
+        long[] location = {body.size(), buffer.length};
+        body.write(buffer, 0, buffer.length);
+        body.write(new byte[padding(buffer.length)], 0, padding(buffer.length));
+        return location;
+    }
+
+    /**
+     * Write a message: its metadata, padded to a multiple of 8 bytes and prefixed with its length, and then its body.
+     *
+     * @param headerType  The type of the header of the message
+     * @param header  The header of the message
+     * @param body  The body of the message, whose length is a multiple of 8
+     *
+     * @throws IOException if the stream cannot be written
+     */
+    private void writeMessage(byte headerType, FlatBuffer.Table header, byte[] body) throws IOException {
+        byte[] metadata = FlatBuffer.finish(new FlatBuffer.Table()
+                .addShort(0, METADATA_VERSION_V5)
+                .addByte(1, headerType)
+                .addReference(2, header)
+                .addLong(3, body.length));
+        int paddedLength = metadata.length + padding(metadata.length);
+        outputStream.write(ByteBuffer.allocate(8)
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(CONTINUATION)
+                .putInt(paddedLength)
+                .array());
+        outputStream.write(metadata);
+        outputStream.write(new byte[paddedLength - metadata.length]);
+        outputStream.write(body);
+    }
+
+    /**
+     * The number of bytes padding a length up to a multiple of 8.
+     *
+     * @param length  The length
+     *
+     * @return the padding
+     */
+    private static int padding(int length) {
+        return (8 - length % 8) % 8;
+    }
+}
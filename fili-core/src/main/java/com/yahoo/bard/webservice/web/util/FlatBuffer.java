@@ -0,0 +1,383 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.web.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A minimal writer of FlatBuffers, enough to write the metadata of the Arrow IPC format.
+ * <p>
+ * A buffer is described as a tree of tables, strings and vectors, and then written front to back: each table is
+ * written after its vtable and before the objects it refers to, so that every offset to an object points forward, as
+ * FlatBuffers requires. All values are little endian and aligned to their size.
+ */
+final class FlatBuffer {
+
+    private byte[] bytes = new byte[256];
+    private int size;
+
+    /**
+     * Constructor.
+     */
+    private FlatBuffer() {
+    }
+
+    /**
+     * Write a buffer whose root is the given table.
+     *
+     * @param root  The root table
+     *
+     * @return the bytes of the buffer
+     */
+    static byte[] finish(Table root) {
+        FlatBuffer buffer = new FlatBuffer();
+        buffer.grow(4);
+        buffer.putInt(0, buffer.write(root));
+        return Arrays.copyOf(buffer.bytes, buffer.size);
+    }
+
+    /**
+     * Describe a string.
+     *
+     * @param value  The string
+     *
+     * @return the string object
+     */
+    static Node string(String value) {
+        return new StringNode(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Describe a vector of structs whose largest field is a long.
+     *
+     * @param count  The number of structs
+     * @param data  The bytes of the structs, one after another
+     *
+     * @return the vector object
+     */
+    static Node structs(int count, byte[] data) {
+        return new StructVector(count, data);
+    }
+
+    /**
+     * Describe a vector of tables.
+     *
+     * @param tables  The tables
+     *
+     * @return the vector object
+     */
+    static Node tables(List<Table> tables) {
+        return new TableVector(tables);
+    }
+
+    /**
+     * Write an object and the objects it refers to.
+     *
+     * @param node  The object to write
+     *
+     * @return the position of the object
+     */
+    private int write(Node node) {
+        if (node instanceof Table) {
+            return writeTable((Table) node);
+        } else if (node instanceof StringNode) {
+            byte[] value = ((StringNode) node).value;
+            align(4);
+            int position = grow(4 + value.length + 1);
+            putInt(position, value.length);
+            System.arraycopy(value, 0, bytes, position + 4, value.length);
+            return position;
+        } else if (node instanceof StructVector) {
+            StructVector vector = (StructVector) node;
+            // The structs hold longs, so they start on a multiple of 8 right after the length
+            while (size % 8 != 4) {
+                grow(1);
+            }
+            int position = grow(4 + vector.data.length);
+            putInt(position, vector.count);
+            System.arraycopy(vector.data, 0, bytes, position + 4, vector.data.length);
+            return position;
+        } else {
+            List<Table> tables = ((TableVector) node).tables;
+            align(4);
+            int position = grow(4 + 4 * tables.size());
+            putInt(position, tables.size());
+            for (int i = 0; i < tables.size(); i++) {
+                int slot = position + 4 + 4 * i;
+                putInt(slot, writeTable(tables.get(i)) - slot);
+            }
+            return position;
+        }
+    }
+
+    /**
+     * Write a table, its vtable, and the objects it refers to.
+     *
+     * @param table  The table to write
+     *
+     * @return the position of the table
+     */
+    private int writeTable(Table table) {
+        // Lay out the fields widest first after the offset to the vtable, so that none needs padding before it
+        List<Field> fields = new ArrayList<>(table.fields);
+        fields.sort(Comparator.comparingInt((Field field) -> field.width).reversed());
+        int[] fieldOffsets = new int[table.fields.stream().mapToInt(field -> field.id + 1).max().orElse(0)];
+        int inlineSize = 4;
+        for (Field field : fields) {
+            inlineSize = (inlineSize + field.width - 1) / field.width * field.width;
+            fieldOffsets[field.id] = inlineSize;
+            inlineSize += field.width;
+        }
+
+        align(2);
+        int vtable = grow(4 + 2 * fieldOffsets.length);
+        putShort(vtable, 4 + 2 * fieldOffsets.length);
+        putShort(vtable + 2, inlineSize);
+        for (int id = 0; id < fieldOffsets.length; id++) {
+            putShort(vtable + 4 + 2 * id, fieldOffsets[id]);
+        }
+
+        align(8);
+        int position = grow(inlineSize);
+        putInt(position, position - vtable);
+        for (Field field : fields) {
+            if (field.width == 8) {
+                putLong(position + fieldOffsets[field.id], field.value);
+            } else if (field.width == 4 && field.reference == null) {
+                putInt(position + fieldOffsets[field.id], (int) field.value);
+            } else if (field.width == 2) {
+                putShort(position + fieldOffsets[field.id], (int) field.value);
+            } else if (field.width == 1) {
+                bytes[position + fieldOffsets[field.id]] = (byte) field.value;
+            }
+        }
+        for (Field field : fields) {
+            if (field.reference != null) {
+                int slot = position + fieldOffsets[field.id];
+                putInt(slot, write(field.reference) - slot);
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Pad the buffer with zeros up to a multiple of the alignment.
+     *
+     * @param alignment  The alignment
+     */
+    private void align(int alignment) {
+        grow((alignment - size % alignment) % alignment);
+    }
+
+    /**
+     * Extend the buffer with zeros.
+     *
+     * @param length  The number of bytes to add
+     *
+     * @return the position of the bytes added
+     */
+    private int grow(int length) {
+        int position = size;
+        size += length;
+        if (size > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(size, 2 * bytes.length));
+        }
+        return position;
+    }
+
+    /**
+     * Write a little endian short.
+     *
+     * @param position  Where to write it
+     * @param value  The value
+     */
+    private void putShort(int position, int value) {
+        bytes[position] = (byte) value;
+        bytes[position + 1] = (byte) (value >>> 8);
+    }
+
+    /**
+     * Write a little endian int.
+     *
+     * @param position  Where to write it
+     * @param value  The value
+     */
+    private void putInt(int position, int value) {
+        putShort(position, value);
+        putShort(position + 2, value >>> 16);
+    }
+
+    /**
+     * Write a little endian long.
+     *
+     * @param position  Where to write it
+     * @param value  The value
+     */
+    private void putLong(int position, long value) {
+        putInt(position, (int) value);
+        putInt(position + 4, (int) (value >>> 32));
+    }
+
+    /**
+     * An object of a buffer.
+     */
+    abstract static class Node {
+    }
+
+    /**
+     * A table, built up a field at a time.
+     */
+    static final class Table extends Node {
+
+        private final List<Field> fields = new ArrayList<>();
+
+        /**
+         * Add a byte field, such as a boolean or the type of a union.
+         *
+         * @param id  The id of the field
+         * @param value  The value
+         *
+         * @return this table
+         */
+        Table addByte(int id, int value) {
+            fields.add(new Field(id, 1, value, null));
+            return this;
+        }
+
+        /**
+         * Add a short field, such as an enum.
+         *
+         * @param id  The id of the field
+         * @param value  The value
+         *
+         * @return this table
+         */
+        Table addShort(int id, int value) {
+            fields.add(new Field(id, 2, value, null));
+            return this;
+        }
+
+        /**
+         * Add an int field.
+         *
+         * @param id  The id of the field
+         * @param value  The value
+         *
+         * @return this table
+         */
+        Table addInt(int id, int value) {
+            fields.add(new Field(id, 4, value, null));
+            return this;
+        }
+
+        /**
+         * Add a long field.
+         *
+         * @param id  The id of the field
+         * @param value  The value
+         *
+         * @return this table
+         */
+        Table addLong(int id, long value) {
+            fields.add(new Field(id, 8, value, null));
+            return this;
+        }
+
+        /**
+         * Add a field referring to another object.
+         *
+         * @param id  The id of the field
+         * @param reference  The object referred to
+         *
+         * @return this table
+         */
+        Table addReference(int id, Node reference) {
+            fields.add(new Field(id, 4, 0, reference));
+            return this;
+        }
+    }
+
+    /**
+     * A field of a table, holding either a scalar value or a reference to another object.
+     */
+    private static final class Field {
+
+        private final int id;
+        private final int width;
+        private final long value;
+        private final Node reference;
+
+        /**
+         * Constructor.
+         *
+         * @param id  The id of the field
+         * @param width  The number of bytes the field takes in the table
+         * @param value  The scalar value of the field
+         * @param reference  The object the field refers to, if any
+         */
+        private Field(int id, int width, long value, Node reference) {
+            this.id = id;
+            this.width = width;
+            this.value = value;
+            this.reference = reference;
+        }
+    }
+
+    /**
+     * A string.
+     */
+    private static final class StringNode extends Node {
+
+        private final byte[] value;
+
+        /**
+         * Constructor.
+         *
+         * @param value  The UTF-8 bytes of the string
+         */
+        private StringNode(byte[] value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * A vector of structs.
+     */
+    private static final class StructVector extends Node {
+
+        private final int count;
+        private final byte[] data;
+
+        /**
+         * Constructor.
+         *
+         * @param count  The number of structs
+         * @param data  The bytes of the structs
+         */
+        private StructVector(int count, byte[] data) {
+            this.count = count;
+            this.data = data;
+        }
+    }
+
+    /**
+     * A vector of tables.
+     */
+    private static final class TableVector extends Node {
+
+        private final List<Table> tables;
+
+        /**
+         * Constructor.
+         *
+         * @param tables  The tables
+         */
+        private TableVector(List<Table> tables) {
+            this.tables = tables;
+        }
+    }
+}
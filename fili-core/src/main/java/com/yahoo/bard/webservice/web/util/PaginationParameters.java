@@ -137,6 +137,15 @@ public class PaginationParameters {
         return page;
     }
 
+    /**
+     * Whether the last page is requested, whichever page number that turns out to be.
+     *
+     * @return true if the page requested is the last one
+     */
+    public boolean isLastPage() {
+        return page == LAST_PAGE;
+    }
+
     /**
      * Returns a new PaginationParameters object with the specified page value.
      *
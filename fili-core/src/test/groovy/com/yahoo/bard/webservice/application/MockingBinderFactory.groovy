@@ -14,6 +14,7 @@ public class MockingBinderFactory implements BinderFactory {
 
     public static final String INIT = "init";
     public static final String BUILD_BIND = "build_binder";
+    public static final String SHUTDOWN = "shutdown";
 
     public MockingBinderFactory() {
         getClicker().accept(INIT);
@@ -29,4 +30,9 @@ public class MockingBinderFactory implements BinderFactory {
     public void afterRegistration(ResourceConfig resourceConfig) {
         getClicker().accept(resourceConfig);
     }
+
+    @Override
+    public void shutdown() {
+        getClicker().accept(SHUTDOWN);
+    }
 }
@@ -13,6 +13,8 @@ import com.yahoo.bard.webservice.web.filters.ResponseCorsFilter
 import com.codahale.metrics.jersey2.InstrumentedResourceMethodApplicationListener
 
 import org.glassfish.hk2.utilities.Binder
+import org.glassfish.jersey.server.spi.Container
+import org.glassfish.jersey.server.spi.ContainerLifecycleListener
 
 import spock.lang.Specification
 
@@ -72,4 +74,16 @@ public class ResourceConfigSpec extends Specification {
         1 * clicker.accept(MockingBinderFactory.BUILD_BIND)
         1 * clicker.accept(_ as ResourceConfig)
     }
+
+    def "Shutting down the container shuts down the binder factory"() {
+        setup:
+        ResourceConfig config = resourceConfigClass.newInstance()
+        ContainerLifecycleListener listener = config.getInstances().find { it instanceof ContainerLifecycleListener }
+
+        when:
+        listener.onShutdown(Mock(Container))
+
+        then:
+        1 * clicker.accept(MockingBinderFactory.SHUTDOWN)
+    }
 }
@@ -40,7 +40,10 @@ class FeatureFlagRegistrySpec extends Specification {
                    "data_filter_substring_operations_enabled", "intersection_reporting_enabled",
                    "updated_metadata_collection_names_enabled", "druid_coordinator_metadata_enabled",
                    "druid_lookup_metadata_enabled", "druid_dimensions_loader_enabled",
-                   "case_sensitive_keys_enabled"] as Set
+                   "case_sensitive_keys_enabled", "result_set_mapper_pipeline_enabled",
+                   "columnar_result_sets_enabled", "streaming_responses_enabled", "cache_warming_enabled",
+                   "pagination_pushdown_enabled", "query_coalescing_enabled",
+                   "druid_response_streaming_enabled"] as Set
     }
 
     @Unroll
@@ -0,0 +1,141 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.data
+
+import static com.yahoo.bard.webservice.data.time.DefaultTimeGrain.DAY
+
+import com.yahoo.bard.webservice.data.dimension.BardDimensionField
+import com.yahoo.bard.webservice.data.dimension.Dimension
+import com.yahoo.bard.webservice.data.dimension.DimensionColumn
+import com.yahoo.bard.webservice.data.dimension.DimensionRow
+import com.yahoo.bard.webservice.data.metric.MetricColumn
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory
+
+import org.joda.time.DateTime
+import org.joda.time.DateTimeZone
+
+import spock.lang.Specification
+
+import java.util.stream.Collectors
+
+class ColumnarResultSetSpec extends Specification {
+
+    DimensionColumn gender
+    MetricColumn pageViews = new MetricColumn("pageViews")
+    MetricColumn ratio = new MetricColumn("ratio")
+    MetricColumn other = new MetricColumn("other")
+    ResultSetSchema schema
+
+    DimensionRow male = row("m")
+    DimensionRow female = row("f")
+    DateTime day1 = new DateTime("2016-01-01", DateTimeZone.UTC)
+    DateTime day2 = new DateTime("2016-01-02", DateTimeZone.UTC)
+
+    def setup() {
+        Dimension dimension = Mock(Dimension)
+        dimension.getApiName() >> "gender"
+        gender = new DimensionColumn(dimension)
+        schema = new ResultSetSchema(DAY, [gender, pageViews, ratio, other] as LinkedHashSet)
+    }
+
+    static DimensionRow row(String id) {
+        new DimensionRow(BardDimensionField.ID, [(BardDimensionField.ID): id])
+    }
+
+    Result result(DimensionRow dimensionRow, Map metrics, DateTime timeStamp = day1) {
+        new Result([(gender): dimensionRow], metrics, timeStamp)
+    }
+
+    ResultSet columnar(List<Result> results) {
+        ColumnarResultSet.Builder builder = new ColumnarResultSet.Builder(schema)
+        results.each { builder.add(it) }
+        builder.build()
+    }
+
+    def "A columnar result set holds the same results it was built from"() {
+        given:
+        List<Result> results = [
+                result(male, [(pageViews): 10G, (ratio): 0.25G, (other): "a"]),
+                result(female, [(pageViews): new BigDecimal(Long.MAX_VALUE), (ratio): 1.5G, (other): true], day2),
+                result(male, [(pageViews): null, (ratio): null, (other): JsonNodeFactory.instance.objectNode()]),
+                result(female, [(ratio): new BigDecimal("3")])
+        ]
+
+        when:
+        ResultSet resultSet = columnar(results)
+
+        then:
+        resultSet.size() == 4
+        resultSet == results
+        results == resultSet
+        resultSet.toList() == results
+        resultSet.stream().collect(Collectors.toList()) == results
+        resultSet.subList(1, 3) == results.subList(1, 3)
+
+        and: "missing metrics are left out of the row, and null ones kept"
+        !resultSet[3].metricValues.containsKey(pageViews)
+        resultSet[2].metricValues.containsKey(pageViews)
+        resultSet[3].metricValues.keySet() == [ratio] as Set
+
+        and: "metric values keep their scale"
+        resultSet[0].getMetricValueAsNumber(ratio).toString() == "0.25"
+        resultSet[3].getMetricValueAsNumber(ratio).toString() == "3"
+
+        and: "values can be read without building a row view"
+        resultSet.getTimestampMillis(1) == day2.millis
+        resultSet.getDimensionRow(2, gender).is(male)
+        resultSet.getMetricValue(1, pageViews) == new BigDecimal(Long.MAX_VALUE)
+    }
+
+    def "A numeric column keeps values a primitive cannot hold exactly"() {
+        given:
+        List<Result> results = [
+                result(male, [(pageViews): 1G, (ratio): 0.5G]),
+                result(male, [(pageViews): new BigDecimal("1.50"), (ratio): new BigDecimal("1E+400")])
+        ]
+
+        expect:
+        columnar(results) == results
+        columnar(results)[1].getMetricValueAsNumber(pageViews).toString() == "1.50"
+    }
+
+    def "Timestamps in different time zones keep their zone"() {
+        given:
+        List<Result> results = [
+                result(male, [:]),
+                result(male, [:], new DateTime("2016-01-01", DateTimeZone.forID("America/Chicago")))
+        ]
+
+        expect:
+        columnar(results) == results
+    }
+
+    def "Dimension rows are held once per distinct row"() {
+        given:
+        ResultSet resultSet = columnar((1..4).collect { result(it % 2 ? male : female, [:]) })
+
+        expect:
+        resultSet.dimensionValues[0].dictionary == [male, female]
+        resultSet.collect { it.getDimensionRow(gender) } == [male, female, male, female]
+    }
+
+    def "A columnar result set cannot be modified"() {
+        given:
+        ResultSet resultSet = columnar([result(male, [:])])
+
+        when:
+        resultSet.add(result(female, [:]))
+
+        then:
+        thrown(UnsupportedOperationException)
+    }
+
+    def "A result with a column the schema does not have is rejected"() {
+        when:
+        columnar([result(male, [(new MetricColumn("unknown")): 1G])])
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+}
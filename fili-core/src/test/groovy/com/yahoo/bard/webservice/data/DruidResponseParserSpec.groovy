@@ -5,10 +5,12 @@ package com.yahoo.bard.webservice.data
 import static com.yahoo.bard.webservice.data.time.DefaultTimeGrain.DAY
 
 import com.yahoo.bard.webservice.application.ObjectMappersSuite
+import com.yahoo.bard.webservice.config.BardFeatureFlag
 import com.yahoo.bard.webservice.data.dimension.BardDimensionField
 import com.yahoo.bard.webservice.data.dimension.DimensionColumn
 import com.yahoo.bard.webservice.data.dimension.DimensionDictionary
 import com.yahoo.bard.webservice.data.dimension.DimensionField
+import com.yahoo.bard.webservice.data.dimension.MapStore
 import com.yahoo.bard.webservice.data.dimension.MapStoreManager
 import com.yahoo.bard.webservice.data.dimension.impl.KeyValueStoreDimension
 import com.yahoo.bard.webservice.data.dimension.impl.ScanSearchProviderManager
@@ -18,8 +20,10 @@ import com.yahoo.bard.webservice.druid.model.QueryType
 import com.yahoo.bard.webservice.druid.model.query.DruidAggregationQuery
 import com.yahoo.bard.webservice.table.Column
 import com.yahoo.bard.webservice.table.Schema
+import com.yahoo.bard.webservice.util.DimensionStoreKeyUtils
 
 import com.fasterxml.jackson.core.JsonFactory
+import com.fasterxml.jackson.core.JsonParseException
 import com.fasterxml.jackson.core.JsonParser
 import com.fasterxml.jackson.databind.JsonNode
 import com.fasterxml.jackson.databind.ObjectMapper
@@ -397,6 +401,222 @@ class DruidResponseParserSpec extends Specification {
         queryType << [DefaultQueryType.GROUP_BY, DefaultQueryType.TOP_N, DefaultQueryType.TIMESERIES]
     }
 
+    def "Dimension rows are resolved once per distinct key value of a response"() {
+        given: "A dimension that records how its rows are resolved"
+        LinkedHashSet<DimensionField> dimensionFields = [BardDimensionField.ID, BardDimensionField.DESC]
+        MapStore store = Spy(MapStore)
+        KeyValueStoreDimension countingDimension = Spy(
+                KeyValueStoreDimension,
+                constructorArgs: [
+                        "counting",
+                        "counting",
+                        dimensionFields,
+                        store,
+                        ScanSearchProviderManager.getInstance("counting")
+                ]
+        )
+        countingDimension.addDimensionRow(BardDimensionField.makeDimensionRow(countingDimension, "1", "1"))
+        countingDimension.addDimensionRow(BardDimensionField.makeDimensionRow(countingDimension, "4", "4"))
+        DimensionColumn countingColumn = new DimensionColumn(countingDimension)
+
+        and: "A count of the reads of each key from the store backing the dimension"
+        Map<String, Integer> reads = [:].withDefault { 0 }
+        store.get(_) >> { String key ->
+            reads[key]++
+            callRealMethod()
+        }
+        store.getAll(_) >> { List arguments ->
+            arguments[0].each { reads[it]++ }
+            callRealMethod()
+        }
+
+        and: "A groupBy response where the same key values repeat across rows"
+        String jsonText = """
+        [
+            { "timestamp" : "2012-01-01T00:00:00.000Z", "event" : { "counting"   : "4", "pageViews" : 1 } },
+            { "timestamp" : "2012-01-02T00:00:00.000Z", "event" : { "counting"   : "4", "pageViews" : 2 } },
+            { "timestamp" : "2012-01-03T00:00:00.000Z", "event" : { "counting"   : "1", "pageViews" : 3 } },
+            { "timestamp" : "2012-01-04T00:00:00.000Z", "event" : { "counting"   : "9", "pageViews" : 4 } },
+            { "timestamp" : "2012-01-05T00:00:00.000Z", "event" : { "counting"   : "9", "pageViews" : 5 } }
+        ]
+        """
+        ResultSetSchema schema = new ResultSetSchema(DAY, [countingColumn, new MetricColumn("pageViews")].toSet())
+
+        when:
+        ResultSet resultSet = buildResultSet(jsonText, schema, DefaultQueryType.GROUP_BY)
+
+        then: "The dimension is asked for the rows of the distinct key values all at once"
+        1 * countingDimension.findAllDimensionRowsByKeyValues({ it.toList() == ["4", "1", "9"] })
+
+        and: "Each known key value is read from the store once, however many rows it appears in"
+        reads[rowKey("4")] == 1
+        reads[rowKey("1")] == 1
+
+        and: "Only the unknown value gets an empty row, and only once"
+        1 * countingDimension.createEmptyDimensionRow("9")
+        0 * countingDimension.createEmptyDimensionRow({ it != "9" })
+
+        and: "Rows sharing a key value share the hydrated dimension row"
+        resultSet*.getDimensionRow(countingColumn)*.get(BardDimensionField.ID) == ["4", "4", "1", "9", "9"]
+        resultSet*.getDimensionRow(countingColumn)*.get(BardDimensionField.DESC) == ["4", "4", "1", "", ""]
+        resultSet[0].getDimensionRow(countingColumn).is(resultSet[1].getDimensionRow(countingColumn))
+        resultSet[3].getDimensionRow(countingColumn).is(resultSet[4].getDimensionRow(countingColumn))
+    }
+
+    @Unroll
+    def "A streamed #queryType response parses to the same result set as its json tree"() {
+        given: "A response with repeated and unknown key values, and fields the schema does not ask for"
+        String druidResponse = buildResponse(
+                queryType,
+                [
+                        '"pageViews"': 1,
+                        '"time_spent"': '1.50',
+                        '"luckyNumbers"': '{"values": [1, 3, 7], "length": 3}',
+                        '"null"': null,
+                        '"true"': true,
+                        '"extra"': '{"nested": [{"deep": 1}]}'
+                ]
+        )
+        ResultSetSchema schema = buildSchema(["pageViews", "time_spent", "luckyNumbers", "null", "true", "missing"])
+
+        when:
+        ResultSet streamed = responseParser.parse(
+                MAPPER.getFactory().createParser(druidResponse),
+                schema,
+                queryType,
+                DateTimeZone.UTC
+        )
+
+        then:
+        streamed.size() == 1
+        streamed == buildResultSet(druidResponse, schema, queryType)
+
+        where:
+        queryType << [
+                DefaultQueryType.GROUP_BY,
+                DefaultQueryType.TOP_N,
+                DefaultQueryType.TIMESERIES,
+                DefaultQueryType.LOOKBACK
+        ]
+    }
+
+    @Unroll
+    def "A #queryType response parsed lazily builds the same results once they are read"() {
+        given:
+        String druidResponse = buildResponse(queryType, ['"pageViews"': 1, '"time_spent"': '1.50'])
+        ResultSetSchema schema = buildSchema(["pageViews", "time_spent"])
+
+        when:
+        StreamingResultSet lazy = responseParser.parseLazily(
+                MAPPER.getFactory().createParser(druidResponse),
+                schema,
+                queryType,
+                DateTimeZone.UTC
+        )
+
+        then:
+        lazy.schema == schema
+        lazy.iterator().toList() == buildResultSet(druidResponse, schema, queryType)
+
+        where:
+        queryType << [
+                DefaultQueryType.GROUP_BY,
+                DefaultQueryType.TOP_N,
+                DefaultQueryType.TIMESERIES,
+                DefaultQueryType.LOOKBACK
+        ]
+    }
+
+    @Unroll
+    def "A #queryType response parsed into a columnar result set holds the same results"() {
+        given:
+        String druidResponse = buildResponse(
+                queryType,
+                [
+                        '"pageViews"': 1,
+                        '"time_spent"': '1.50',
+                        '"luckyNumbers"': '{"values": [1, 3, 7], "length": 3}',
+                        '"null"': null,
+                        '"true"': true
+                ]
+        )
+        ResultSetSchema schema = buildSchema(["pageViews", "time_spent", "luckyNumbers", "null", "true", "missing"])
+        ResultSet rows = buildResultSet(druidResponse, schema, queryType)
+        BardFeatureFlag.COLUMNAR_RESULT_SETS.setOn(true)
+
+        when:
+        ResultSet columnar = buildResultSet(druidResponse, schema, queryType)
+        ResultSet streamed = responseParser.parse(
+                MAPPER.getFactory().createParser(druidResponse),
+                schema,
+                queryType,
+                DateTimeZone.UTC
+        )
+
+        then:
+        columnar instanceof ColumnarResultSet
+        streamed instanceof ColumnarResultSet
+        columnar == rows
+        streamed == rows
+
+        cleanup:
+        BardFeatureFlag.COLUMNAR_RESULT_SETS.reset()
+
+        where:
+        queryType << [
+                DefaultQueryType.GROUP_BY,
+                DefaultQueryType.TOP_N,
+                DefaultQueryType.TIMESERIES,
+                DefaultQueryType.LOOKBACK
+        ]
+    }
+
+    def "A streamed response may give the timestamp of a record after its rows"() {
+        given:
+        String jsonText = """
+        [
+            { "result" : [ { "ageBracket" : "4", "pageViews" : 1 }, { "ageBracket" : 1, "pageViews" : 2 } ],
+              "timestamp" : "2012-01-01T00:00:00.000Z" },
+            { "timestamp" : "2012-01-02T00:00:00.000Z", "result" : [ { "pageViews" : 3 } ] }
+        ]
+        """
+        ResultSetSchema schema = new ResultSetSchema(DAY, [ageColumn, new MetricColumn("pageViews")].toSet())
+
+        when:
+        ResultSet streamed = responseParser.parse(
+                MAPPER.getFactory().createParser(jsonText),
+                schema,
+                DefaultQueryType.TOP_N,
+                DateTimeZone.UTC
+        )
+
+        then:
+        streamed*.timeStamp == [
+                new DateTime("2012-01-01T00:00:00.000Z", DateTimeZone.UTC),
+                new DateTime("2012-01-01T00:00:00.000Z", DateTimeZone.UTC),
+                new DateTime("2012-01-02T00:00:00.000Z", DateTimeZone.UTC)
+        ]
+        streamed*.getDimensionRow(ageColumn)*.get(BardDimensionField.DESC) == ["4", "1", "unknown"]
+        streamed == buildResultSet(jsonText, schema, DefaultQueryType.TOP_N)
+    }
+
+    @Unroll
+    def "Streaming a response which is not an array of records fails with a parse error: #jsonText"() {
+        when:
+        responseParser.parse(
+                MAPPER.getFactory().createParser(jsonText),
+                buildSchema(["pageViews"]),
+                DefaultQueryType.GROUP_BY,
+                DateTimeZone.UTC
+        )
+
+        then:
+        thrown(JsonParseException)
+
+        where:
+        jsonText << ['{"error": "Query timeout"}', '[1, 2]', '[{"event": {"pageViews": 1}}]']
+    }
+
     def "Attempting to parse an unknown query type throws an UnsupportedOperationException"() {
         given:
         QueryType mysteryType = Mock(QueryType)
@@ -466,4 +686,8 @@ class DruidResponseParserSpec extends Specification {
         }
         new ResultSetSchema(DAY, dimensionColumns)
     }
+
+    static String rowKey(String keyValue) {
+        DimensionStoreKeyUtils.getRowKey(BardDimensionField.ID.name, keyValue)
+    }
 }
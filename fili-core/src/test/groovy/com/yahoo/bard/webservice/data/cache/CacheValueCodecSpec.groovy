@@ -0,0 +1,50 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.data.cache
+
+import com.yahoo.bard.webservice.application.ObjectMappersSuite
+
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.ObjectMapper
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class CacheValueCodecSpec extends Specification {
+
+    static final ObjectMapper MAPPER = new ObjectMappersSuite().getMapper()
+
+    JsonNode response = MAPPER.readTree("""[
+        ${(0..<200).collect { """{"version": "v1", "timestamp": "2014-06-10T00:00:00.000Z", "event": {"color": "Baz", "width": $it, "ratio": 0.25}}""" }.join(",")}
+    ]""")
+
+    @Unroll
+    def "#codec.class.simpleName decodes what it encodes"() {
+        when:
+        Serializable value = codec.encode(response)
+
+        then:
+        codec.decode(value) == response
+        codec.estimateDecodedSize(value) > 0
+
+        where:
+        codec << [new JsonCacheValueCodec(MAPPER), new SmileCacheValueCodec()]
+    }
+
+    def "Compressed Smile values are much shorter than the json text"() {
+        when:
+        String json = new JsonCacheValueCodec(MAPPER).encode(response)
+        byte[] smile = new SmileCacheValueCodec().encode(response)
+
+        then:
+        new SmileCacheValueCodec().getLength(smile) < json.length() / 4
+    }
+
+    def "A Smile value that is not valid cannot be decoded"() {
+        when:
+        new SmileCacheValueCodec().decode([0, 0, 0, 10, 1, 2, 3] as byte[])
+
+        then:
+        thrown(IOException)
+    }
+}
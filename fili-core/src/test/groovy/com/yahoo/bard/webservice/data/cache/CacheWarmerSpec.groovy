@@ -0,0 +1,227 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.data.cache
+
+import static com.yahoo.bard.webservice.data.time.DefaultTimeGrain.DAY
+import static com.yahoo.bard.webservice.web.handlers.workflow.DruidWorkflow.REQUEST_WORKFLOW_TIMER
+
+import com.yahoo.bard.webservice.application.ObjectMappersSuite
+import com.yahoo.bard.webservice.data.config.names.DataSourceName
+import com.yahoo.bard.webservice.data.metric.MetricColumn
+import com.yahoo.bard.webservice.druid.client.DruidWebService
+import com.yahoo.bard.webservice.druid.client.SuccessCallback
+import com.yahoo.bard.webservice.druid.model.datasource.TableDataSource
+import com.yahoo.bard.webservice.druid.model.filter.Filter
+import com.yahoo.bard.webservice.druid.model.query.DruidAggregationQuery
+import com.yahoo.bard.webservice.druid.model.query.TimeSeriesQuery
+import com.yahoo.bard.webservice.logging.RequestLog
+import com.yahoo.bard.webservice.metadata.QuerySigningService
+import com.yahoo.bard.webservice.metadata.SegmentIntervalsHashIdGenerator
+import com.yahoo.bard.webservice.metadata.TestDataSourceMetadataService
+import com.yahoo.bard.webservice.table.ConstrainedTable
+import com.yahoo.bard.webservice.table.TableTestUtils
+import com.yahoo.bard.webservice.util.SimplifiedIntervalList
+
+import com.fasterxml.jackson.databind.ObjectMapper
+
+import org.joda.time.DateTimeZone
+import org.joda.time.Interval
+
+import spock.lang.Specification
+
+class CacheWarmerSpec extends Specification {
+
+    static final Interval DAY_1 = Interval.parse("2014-01-01/2014-01-02")
+    static final Interval DAY_2 = Interval.parse("2014-01-02/2014-01-03")
+    static final DataSourceName DATA_SOURCE = DataSourceName.of("dataSource")
+
+    ObjectMapper mapper = new ObjectMappersSuite().getMapper()
+    CacheValueCodec<String> codec = new JsonCacheValueCodec(mapper)
+
+    DruidWebService webService = Mock(DruidWebService)
+    TupleDataCache<String, Long, String> dataCache = Mock(TupleDataCache)
+    QuerySigningService<Long> querySigningService = Mock(SegmentIntervalsHashIdGenerator)
+
+    TestDataSourceMetadataService metadataService = new TestDataSourceMetadataService(
+            ["metric": [DAY_1, DAY_2] as Set]
+    )
+    ConstrainedTable table = TableTestUtils.buildTable(
+            DATA_SOURCE.asName(),
+            DAY.buildZonedTimeGrain(DateTimeZone.UTC),
+            [new MetricColumn("metric")] as Set,
+            [:],
+            metadataService
+    )
+
+    TimeSeriesQuery day1Query = buildQuery(DAY_1)
+    TimeSeriesQuery day2Query = buildQuery(DAY_2)
+
+    TimeSeriesQuery buildQuery(Interval interval) {
+        new TimeSeriesQuery(new TableDataSource(table), DAY, (Filter) null, [], [], [interval])
+    }
+
+    CacheWarmer buildWarmer(int maxHotQueries, int maxInFlight) {
+        new CacheWarmer(webService, dataCache, querySigningService, codec, maxHotQueries, maxInFlight, -10)
+    }
+
+    def "The most frequently requested keys are kept, and a key seen once does not displace them"() {
+        given:
+        CacheWarmer warmer = buildWarmer(2, 1)
+
+        when:
+        3.times { warmer.record("a", day1Query) }
+        warmer.record("b", day1Query)
+        warmer.record("c", day1Query)
+
+        then:
+        warmer.getHotKeys() as Set == ["a", "b"] as Set
+
+        when: "a key is requested more often than the coldest hot key"
+        2.times { warmer.record("c", day1Query) }
+
+        then:
+        warmer.getHotKeys() as Set == ["a", "c"] as Set
+    }
+
+    def "Only the hot queries overlapping the changed intervals, whose cache entries are stale, are run again"() {
+        given:
+        CacheWarmer warmer = buildWarmer(10, 2)
+        warmer.record("day1", day1Query)
+        warmer.record("day2", day2Query)
+        warmer.record("current", day1Query)
+        querySigningService.getSegmentSetId(_) >> Optional.of(2L)
+        dataCache.get("day1") >> new MemTupleDataCache.DataEntry<String>("day1", 1L, "[]")
+        dataCache.get("current") >> new MemTupleDataCache.DataEntry<String>("current", 2L, "[]")
+        DruidAggregationQuery<?> warmingQuery
+        SuccessCallback success
+
+        when:
+        warmer.segmentsChanged(DATA_SOURCE, new SimplifiedIntervalList([DAY_1]))
+
+        then: "the stale entry is refreshed at low priority, and neither the current entry nor the other day is"
+        1 * webService.postDruidQuery(_, _, _, _, _) >> { arguments ->
+            success = arguments[1]
+            warmingQuery = arguments[4]
+            null
+        }
+        warmingQuery.getIntervals() == [DAY_1]
+        warmingQuery.getContext().getPriority() == -10
+        0 * dataCache.get("day2")
+
+        when:
+        success.invoke(mapper.readTree("""[{"timestamp":"2014-01-01","result":{}}]"""))
+
+        then:
+        1 * dataCache.set("day1", 2L, { mapper.readTree(it).size() == 1 })
+    }
+
+    def "A warming query is sent with a timed workflow of its own, and the caller's request log is kept"() {
+        given:
+        CacheWarmer warmer = buildWarmer(10, 1)
+        warmer.record("day1", day1Query)
+        querySigningService.getSegmentSetId(_) >> Optional.of(2L)
+        dataCache.get("day1") >> new MemTupleDataCache.DataEntry<String>("day1", 1L, "[]")
+        RequestLog.startTiming("callerPhase")
+        String callerId = RequestLog.getId()
+        boolean warmingTimed = false
+        String warmingId = null
+
+        when:
+        warmer.segmentsChanged(DATA_SOURCE, new SimplifiedIntervalList([DAY_1]))
+
+        then:
+        1 * webService.postDruidQuery(*_) >> {
+            warmingTimed = RequestLog.isRunning(REQUEST_WORKFLOW_TIMER)
+            warmingId = RequestLog.getId()
+            null
+        }
+        warmingTimed
+        warmingId != callerId
+
+        and: "the caller's request log is restored"
+        RequestLog.getId() == callerId
+        RequestLog.isRunning("callerPhase")
+        !RequestLog.isRunning(REQUEST_WORKFLOW_TIMER)
+
+        cleanup:
+        RequestLog.dump()
+    }
+
+    def "No more queries than the budget allows are in flight at once"() {
+        given:
+        CacheWarmer warmer = buildWarmer(10, 1)
+        warmer.record("first", day1Query)
+        warmer.record("second", day1Query)
+        querySigningService.getSegmentSetId(_) >> Optional.of(2L)
+        dataCache.get(_) >> { arguments -> new MemTupleDataCache.DataEntry<String>(arguments[0], 1L, "[]") }
+        List<SuccessCallback> successes = []
+
+        when:
+        warmer.segmentsChanged(DATA_SOURCE, new SimplifiedIntervalList([DAY_1]))
+
+        then:
+        1 * webService.postDruidQuery(*_) >> { arguments -> successes.add(arguments[1]); null }
+
+        when: "the query in flight completes"
+        successes[0].invoke(mapper.readTree("[]"))
+
+        then: "the waiting query is sent"
+        1 * webService.postDruidQuery(*_) >> { arguments -> successes.add(arguments[1]); null }
+    }
+
+    def "A hot query which would read partial data is only warmed once its data is available"() {
+        given: "the second day is missing when the warmer checks the query"
+        metadataService.testAvailableIntervals = ["metric": [DAY_1] as Set]
+        CacheWarmer warmer = buildWarmer(10, 1)
+        warmer.record("day2", day2Query)
+        querySigningService.getSegmentSetId(_) >> Optional.of(2L)
+        dataCache.get("day2") >> new MemTupleDataCache.DataEntry<String>("day2", 1L, "[]")
+
+        when:
+        warmer.segmentsChanged(DATA_SOURCE, new SimplifiedIntervalList([DAY_2]))
+
+        then:
+        0 * webService.postDruidQuery(*_)
+
+        when: "the second day becomes available, although the table of the query was built without it"
+        metadataService.testAvailableIntervals = ["metric": [DAY_1, DAY_2] as Set]
+        warmer.segmentsChanged(DATA_SOURCE, new SimplifiedIntervalList([DAY_2]))
+
+        then:
+        1 * webService.postDruidQuery(*_)
+    }
+
+    def "A response for which Druid reports uncovered intervals is not cached, a complete one is cached unwrapped"() {
+        given:
+        CacheWarmer warmer = buildWarmer(10, 1)
+        warmer.record("day1", day1Query)
+        querySigningService.getSegmentSetId(_) >> Optional.of(2L)
+        dataCache.get("day1") >> new MemTupleDataCache.DataEntry<String>("day1", 1L, "[]")
+        SuccessCallback success
+
+        when:
+        warmer.segmentsChanged(DATA_SOURCE, new SimplifiedIntervalList([DAY_1]))
+        success.invoke(mapper.readTree(buildResponse(uncoveredIntervals)))
+
+        then:
+        1 * webService.postDruidQuery(*_) >> { arguments -> success = arguments[1]; null }
+        cached * dataCache.set("day1", 2L, "[]")
+
+        where:
+        uncoveredIntervals   | cached
+        [DAY_1.toString()]   | 0
+        []                   | 1
+    }
+
+    static String buildResponse(List<String> uncoveredIntervals) {
+        String intervals = uncoveredIntervals.collect { "\"$it\"" }.join(",")
+        """{
+            "response": [],
+            "X-Druid-Response-Context": {
+                "uncoveredIntervals": [$intervals],
+                "uncoveredIntervalsOverflowed": false
+            },
+            "status-code": 200
+        }"""
+    }
+}
@@ -0,0 +1,38 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.data.cache
+
+import spock.lang.Specification
+
+class FrequencySketchSpec extends Specification {
+
+    def "Estimates are never lower than the number of times a key was counted"() {
+        given:
+        FrequencySketch sketch = new FrequencySketch(64)
+
+        when:
+        (1..20).each { key -> key.times { sketch.increment("key" + key) } }
+
+        then:
+        (1..20).every { key -> sketch.estimate("key" + key) >= key }
+        sketch.estimate("key20") > sketch.estimate("key1")
+        sketch.increment("key20") == sketch.estimate("key20")
+    }
+
+    def "Counters are halved once the sample size is reached"() {
+        given: "a sketch of 4 counters per row, which ages every 40 additions"
+        FrequencySketch sketch = new FrequencySketch(3)
+
+        when:
+        39.times { sketch.increment("hot") }
+
+        then:
+        sketch.estimate("hot") == 39
+
+        when:
+        sketch.increment("hot")
+
+        then:
+        sketch.estimate("hot") == 20
+    }
+}
@@ -0,0 +1,74 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.data.cache
+
+import com.yahoo.bard.webservice.application.ObjectMappersSuite
+
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.ObjectMapper
+
+import spock.lang.Specification
+
+class HeapTupleDataCacheSpec extends Specification {
+
+    ObjectMapper mapper = new ObjectMappersSuite().getMapper()
+    JsonCacheValueCodec codec = new JsonCacheValueCodec(mapper)
+    TestTupleDataCache wrapped = Spy(TestTupleDataCache)
+    HeapTupleDataCache<Long, String> cache = new HeapTupleDataCache<>(wrapped, 1024 * 1024, codec)
+
+    def "Entries read from the wrapped cache are kept on the heap, parsed once"() {
+        setup:
+        wrapped.set("key", 1234L, '[{"cow": 1}]')
+
+        when:
+        TupleDataCache.DataEntry<String, Long, String> first = cache.get("key")
+        TupleDataCache.DataEntry<String, Long, String> second = cache.get("key")
+
+        then: "the wrapped cache is only read the first time"
+        1 * wrapped.get("key")
+        first.is(second)
+        first.meta == 1234L
+
+        and: "the parsed tree is shared between reads"
+        JsonNode json = ((HeapTupleDataCache.ParsedDataEntry) first).jsonValue
+        json == mapper.readTree('[{"cow": 1}]')
+        ((HeapTupleDataCache.ParsedDataEntry) second).jsonValue.is(json)
+
+        and: "the serialized value is still available"
+        mapper.readTree(second.value) == json
+    }
+
+    def "Writes go to both tiers and replace a stale heap entry"() {
+        setup:
+        cache.set("key", 1L, '["old"]')
+
+        when: "the segment set changes and the fresh response is written back"
+        cache.set("key", 2L, '["new"]')
+
+        then:
+        cache.get("key").meta == 2L
+        ((HeapTupleDataCache.ParsedDataEntry) cache.get("key")).jsonValue == mapper.readTree('["new"]')
+        wrapped.get("key").meta == 2L
+        wrapped.get("key").value == '["new"]'
+    }
+
+    def "Misses in both tiers are misses"() {
+        expect:
+        cache.get("missing") == null
+        cache.getDataValue("missing") == null
+    }
+
+    def "The heap tier is bounded by the estimated size of its entries"() {
+        setup:
+        HeapTupleDataCache<Long, String> small = new HeapTupleDataCache<>(wrapped, 64 * 1024, codec)
+        String value = '["' + ("x" * 500) + '"]'
+
+        when:
+        (0..<100).each { small.set("key$it", 1L, value) }
+
+        then: "older entries are evicted from the heap, but not from the wrapped cache"
+        small.heapBytes > 0
+        small.heapBytes <= 64 * 1024
+        (0..<100).every { wrapped.get("key$it") != null }
+    }
+}
@@ -0,0 +1,129 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.data.cache
+
+import net.spy.memcached.MemcachedClient
+import net.spy.memcached.internal.OperationCompletionListener
+import net.spy.memcached.internal.OperationFuture
+import net.spy.memcached.ops.OperationStatus
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class MemcachedWriteBehindQueueSpec extends Specification {
+
+    PollingConditions conditions = new PollingConditions(timeout: 5)
+
+    MemcachedClient client = Mock(MemcachedClient)
+    OperationFuture<Boolean> future = Mock(OperationFuture)
+    Queue<String> written = new ConcurrentLinkedQueue<>()
+    Queue<OperationCompletionListener> listeners = new ConcurrentLinkedQueue<>()
+
+    def setup() {
+        future.addListener(_) >> {
+            listeners.add(it[0])
+            future
+        }
+    }
+
+    def "In write behind mode set returns before memcached acknowledges the write"() {
+        setup:
+        client.set(_, _, _) >> {
+            written.add(it[0])
+            future
+        }
+        MemDataCache<String> cache = new MemDataCache<>(client, 10)
+        long failedBefore = MemcachedWriteBehindQueue.FAILED.count
+
+        when:
+        boolean queued = cache.set("key", "value")
+
+        then: "the write is sent in the background, and its future is never waited on"
+        queued
+        conditions.eventually {
+            assert written.toList() == ["key"]
+            assert listeners.size() == 1
+        }
+        0 * future.get()
+        0 * future.get(_, _)
+
+        when: "memcached rejects the write"
+        OperationStatus status = Mock(OperationStatus)
+        status.isSuccess() >> false
+        OperationFuture<Boolean> completed = Mock(OperationFuture)
+        completed.getStatus() >> status
+        listeners.poll().onComplete(completed)
+
+        then:
+        MemcachedWriteBehindQueue.FAILED.count == failedBefore + 1
+    }
+
+    def "Writes which do not fit in the queue are dropped"() {
+        setup: "a memcached client that stalls on the first write"
+        CountDownLatch stalled = new CountDownLatch(1)
+        CountDownLatch release = new CountDownLatch(1)
+        client.set(_, _, _) >> {
+            written.add(it[0])
+            stalled.countDown()
+            release.await(5, TimeUnit.SECONDS)
+            future
+        }
+        MemcachedWriteBehindQueue queue = new MemcachedWriteBehindQueue(client, 3600, 1)
+        long droppedBefore = MemcachedWriteBehindQueue.DROPPED.count
+
+        when:
+        queue.offer("first", "value")
+        stalled.await(5, TimeUnit.SECONDS)
+
+        then: "the second write waits and the third is dropped"
+        queue.offer("second", "value")
+        !queue.offer("third", "value")
+        queue.size() == 1
+        MemcachedWriteBehindQueue.DROPPED.count == droppedBefore + 1
+
+        when:
+        release.countDown()
+
+        then:
+        conditions.eventually {
+            assert written.toList() == ["first", "second"]
+        }
+
+        cleanup:
+        queue.shutdown()
+    }
+
+    def "A write behind queue size of #queueSize waits for memcached to acknowledge every write"() {
+        setup:
+        MemDataCache<String> cache = new MemDataCache<>(client, queueSize)
+
+        when:
+        boolean written = cache.set("key", "value")
+
+        then:
+        written
+        1 * client.set("key", _, "value") >> future
+        1 * future.get() >> true
+
+        where:
+        queueSize << [0, MemDataCache.WRITE_BEHIND_DISABLED]
+    }
+
+    def "Once the cache is shut down its queue sends no writes"() {
+        setup:
+        MemDataCache<String> cache = new MemDataCache<>(client, 10)
+        long droppedBefore = MemcachedWriteBehindQueue.DROPPED.count
+
+        when:
+        cache.shutdown()
+        boolean queued = cache.set("key", "value")
+
+        then:
+        !queued
+        MemcachedWriteBehindQueue.DROPPED.count == droppedBefore + 1
+        0 * client.set(_, _, _)
+    }
+}
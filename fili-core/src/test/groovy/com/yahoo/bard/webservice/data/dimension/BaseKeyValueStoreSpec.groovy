@@ -174,4 +174,19 @@ abstract class BaseKeyValueStoreSpec extends Specification {
         null == previousValues.get("key2")
         "oldValue3" == previousValues.get("key3")
     }
+
+    def "getAll returns the values of the keys that exist"() {
+        given: 'some of the keys exist'
+        store1.put("key1", "value1")
+        store1.remove("key2")
+        store1.put("key3", "value3")
+
+        expect: 'only the existing keys are returned'
+        store1.getAll(["key1", "key2", "key3"]) == ["key1": "value1", "key3": "value3"]
+    }
+
+    def "getAll of no keys returns an empty map"() {
+        expect:
+        store1.getAll([]).isEmpty()
+    }
 }
@@ -0,0 +1,220 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.data.metric.mappers
+
+import static com.yahoo.bard.webservice.data.time.DefaultTimeGrain.DAY
+
+import com.yahoo.bard.webservice.application.ObjectMappersSuite
+import com.yahoo.bard.webservice.data.Result
+import com.yahoo.bard.webservice.data.ResultSet
+import com.yahoo.bard.webservice.data.ResultSetSchema
+import com.yahoo.bard.webservice.data.StreamingResultSet
+import com.yahoo.bard.webservice.data.metric.MetricColumn
+import com.yahoo.bard.webservice.druid.client.FailureCallback
+import com.yahoo.bard.webservice.druid.client.HttpErrorCallback
+import com.yahoo.bard.webservice.druid.model.orderby.SortDirection
+import com.yahoo.bard.webservice.druid.model.query.DruidAggregationQuery
+import com.yahoo.bard.webservice.web.apirequest.DataApiRequest
+import com.yahoo.bard.webservice.web.responseprocessors.LoggingContext
+import com.yahoo.bard.webservice.web.responseprocessors.MappingResponseProcessor
+import com.yahoo.bard.webservice.web.util.PaginationParameters
+
+import com.fasterxml.jackson.databind.JsonNode
+
+import org.joda.time.DateTime
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import javax.ws.rs.core.UriBuilder
+
+class ResultSetMapperPipelineSpec extends Specification {
+
+    static final MetricColumn VALUE = new MetricColumn("value")
+    static final MetricColumn DOUBLED = new MetricColumn("doubled")
+    static final DateTime START = new DateTime("2016-01-01")
+
+    List<Result> seen = []
+
+    /**
+     * A row-wise mapper dropping the rows with odd values, which records the rows it is given.
+     */
+    static class EvenMapper extends ResultSetMapper {
+        final List<Result> seen
+
+        EvenMapper(List<Result> seen = []) {
+            this.seen = seen
+        }
+
+        @Override
+        protected Result map(Result result, ResultSetSchema schema) {
+            seen.add(result)
+            result.getMetricValueAsNumber(VALUE).intValue() % 2 == 0 ? result : null
+        }
+
+        @Override
+        protected ResultSetSchema map(ResultSetSchema schema) {
+            schema
+        }
+    }
+
+    /**
+     * A row-wise mapper adding a column, which checks that it is given the schema of the rows it maps.
+     */
+    class DoublingMapper extends ResultSetMapper {
+        @Override
+        protected Result map(Result result, ResultSetSchema schema) {
+            assert !schema.getColumn(DOUBLED.name, MetricColumn).isPresent()
+            result.withMetricValue(DOUBLED, result.getMetricValueAsNumber(VALUE) * 2)
+        }
+
+        @Override
+        protected ResultSetSchema map(ResultSetSchema schema) {
+            schema.withAddColumn(DOUBLED)
+        }
+    }
+
+    ResultSet buildResultSet(int numRows) {
+        List<Result> results = (1..numRows).collect {
+            new Result([:], [(VALUE): BigDecimal.valueOf(it)], START.plusDays(it % 4))
+        }
+        new ResultSet(new ResultSetSchema(DAY, [VALUE] as Set), results)
+    }
+
+    MappingResponseProcessor buildResponseProcessor() {
+        DataApiRequest apiRequest = Mock(DataApiRequest)
+        apiRequest.getLogicalMetrics() >> Collections.emptySet()
+        new MappingResponseProcessor(apiRequest, new ObjectMappersSuite()) {
+            @Override
+            FailureCallback getFailureCallback(DruidAggregationQuery<?> query) {
+                return null
+            }
+
+            @Override
+            HttpErrorCallback getErrorCallback(DruidAggregationQuery<?> query) {
+                return null
+            }
+
+            @Override
+            void processResponse(JsonNode json, DruidAggregationQuery<?> query, LoggingContext metadata) {}
+        }
+    }
+
+    PaginationMapper buildPaginationMapper(int perPage, int page) {
+        new PaginationMapper(
+                new PaginationParameters(perPage, page),
+                buildResponseProcessor(),
+                UriBuilder.fromUri("http://example.yahoo.com:1234/network/day?metrics=value")
+        )
+    }
+
+    @Unroll
+    def "The pipeline maps #mappers to the same result set as applying each mapper in turn"() {
+        given:
+        ResultSet resultSet = buildResultSet(20)
+        List<ResultSetMapper> mapperList = mappers.collect { it() }
+        ResultSet expected = mapperList.inject(resultSet) { ResultSet mapped, mapper -> mapper.map(mapped) }
+
+        expect:
+        new ResultSetMapperPipeline(mappers.collect { it() }).map(resultSet) == expected
+
+        where:
+        mappers << [
+                [],
+                [{ new EvenMapper() }, { new DoublingMapper() }],
+                [{ new EvenMapper() }, { new TopNResultSetMapper(2) }, { new DoublingMapper() }],
+                [{ new DoublingMapper() }, { new DateTimeSortMapper(SortDirection.DESC) }, { new EvenMapper() }],
+                [{ new EvenMapper() }, { buildPaginationMapper(3, 2) }, { new DoublingMapper() }],
+                [{ new EvenMapper() }, { buildPaginationMapper(3, -1) }, { new RowNumMapper() }],
+                [{ buildPaginationMapper(4, 3) }, { new NoOpResultSetMapper() }, { new DoublingMapper() }],
+        ]
+    }
+
+    def "Rows go through all the fused mappers in one pass and only the page reaches the mappers after pagination"() {
+        given:
+        ResultSet resultSet = buildResultSet(20)
+        ResultSetMapper first = new EvenMapper(seen)
+        ResultSetMapper afterPage = new EvenMapper(seen)
+        ResultSetMapperPipeline pipeline = new ResultSetMapperPipeline(
+                [first, new DoublingMapper(), buildPaginationMapper(2, 2), afterPage]
+        )
+
+        when:
+        ResultSet mapped = pipeline.map(resultSet)
+
+        then: "Every row was filtered once, and only the 2 rows on the page were filtered again"
+        seen.size() == 22
+        seen.take(20) == resultSet.collect()
+        mapped*.getMetricValueAsNumber(VALUE) == [6, 8]
+        mapped*.getMetricValueAsNumber(DOUBLED) == [12, 16]
+        mapped.getSchema().getColumn(DOUBLED.name, MetricColumn).isPresent()
+    }
+
+    def "Mapping lazily maps nothing until the results are read, and then maps them as they are read"() {
+        given:
+        ResultSet resultSet = buildResultSet(20)
+        List<ResultSetMapper> mappers = [new EvenMapper(seen), new DoublingMapper()]
+        ResultSet expected = new ResultSetMapperPipeline(mappers).map(resultSet)
+        seen.clear()
+
+        when: "The result set is mapped lazily"
+        StreamingResultSet mapped = new ResultSetMapperPipeline(mappers).mapLazily(resultSet)
+
+        then: "Only the schema has been mapped"
+        seen.isEmpty()
+        mapped.getSchema() == expected.getSchema()
+
+        when: "The first result is read"
+        Iterator<Result> results = mapped.iterator()
+        Result first = results.next()
+
+        then: "Only the rows up to the first one kept have been mapped"
+        seen.size() == 2
+        first == expected.first()
+
+        when: "The rest are read"
+        List<Result> rest = results.collect()
+
+        then:
+        ([first] + rest) == expected.collect()
+        seen.size() == 20
+    }
+
+    def "A lazily mapped result set can only be read once"() {
+        given:
+        StreamingResultSet mapped = new ResultSetMapperPipeline([new EvenMapper()]).mapLazily(buildResultSet(4))
+        mapped.iterator().toList()
+
+        when:
+        mapped.iterator()
+
+        then:
+        thrown(IllegalStateException)
+
+        when:
+        mapped.size()
+
+        then:
+        thrown(UnsupportedOperationException)
+    }
+
+    def "Only a pipeline of row-wise mappers maps lazily"() {
+        when:
+        new ResultSetMapperPipeline([new EvenMapper(), new TopNResultSetMapper(2)]).mapLazily(buildResultSet(4))
+
+        then:
+        thrown(IllegalStateException)
+        new ResultSetMapperPipeline([new EvenMapper(), new NoOpResultSetMapper()]).isRowWise()
+        !new ResultSetMapperPipeline([new EvenMapper(), buildPaginationMapper(2, 1)]).isRowWise()
+    }
+
+    def "Row-wise mappers are those which do not override mapping the whole result set"() {
+        expect:
+        new EvenMapper().isRowWise()
+        new NoOpResultSetMapper().isRowWise()
+        !new TopNResultSetMapper(2).isRowWise()
+        !new DateTimeSortMapper(SortDirection.ASC).isRowWise()
+        !new RowNumMapper().isRowWise()
+        !buildPaginationMapper(1, 1).isRowWise()
+    }
+}
@@ -0,0 +1,164 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.druid.client.impl
+
+import static com.yahoo.bard.webservice.druid.client.impl.AdaptiveConcurrencyLimiter.NO_SAMPLE
+
+import com.yahoo.bard.webservice.application.MetricRegistryFactory
+import com.yahoo.bard.webservice.druid.client.impl.AdaptiveConcurrencyLimiter.LimitedRequest
+import com.yahoo.bard.webservice.druid.client.impl.AdaptiveConcurrencyLimiter.Permit
+
+import spock.lang.Specification
+
+import java.util.concurrent.TimeUnit
+
+class AdaptiveConcurrencyLimiterSpec extends Specification {
+
+    static final long LONG_TIMEOUT = TimeUnit.MINUTES.toNanos(1)
+    static final long FAST = TimeUnit.MILLISECONDS.toNanos(10)
+
+    List<Permit> permits = []
+    List<String> rejections = []
+
+    LimitedRequest submit(AdaptiveConcurrencyLimiter limiter, long timeout = LONG_TIMEOUT) {
+        limiter.submit(timeout, { Permit permit -> permits.add(permit) }, { String reason -> rejections.add(reason) })
+    }
+
+    def "Requests over the limit wait, and are sent in order as room frees up"() {
+        given:
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("TestLimiterQueue", 2, 1, 2, 10, 2.0)
+
+        when:
+        4.times { submit(limiter) }
+
+        then:
+        permits.size() == 2
+        limiter.inFlight == 2
+        limiter.queued == 2
+
+        when:
+        permits[0].release(FAST, false)
+
+        then:
+        permits.size() == 3
+        limiter.inFlight == 2
+        limiter.queued == 1
+        rejections.empty
+    }
+
+    def "Requests are shed when the queue is full"() {
+        given:
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("TestLimiterFull", 1, 1, 1, 1, 2.0)
+        long shed = MetricRegistryFactory.registry.meter("druid.limiter.TestLimiterFull.shed").count
+
+        when:
+        3.times { submit(limiter) }
+
+        then:
+        permits.size() == 1
+        limiter.queued == 1
+        rejections.size() == 1
+        rejections[0].contains("TestLimiterFull")
+        MetricRegistryFactory.registry.meter("druid.limiter.TestLimiterFull.shed").count == shed + 1
+    }
+
+    def "Requests whose timeout cannot be met are shed"() {
+        given: "a service that takes a second to answer"
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("TestLimiterDeadline", 1, 1, 1, 10, 2.0)
+        20.times {
+            submit(limiter)
+            permits.last().release(TimeUnit.SECONDS.toNanos(1), false)
+        }
+        submit(limiter)
+
+        when:
+        submit(limiter, TimeUnit.MILLISECONDS.toNanos(1))
+        submit(limiter)
+
+        then: "the request with a short timeout is shed, and the other waits"
+        rejections.size() == 1
+        limiter.queued == 1
+    }
+
+    def "The limit rises while answers are fast and the limit is in use, and falls on overload"() {
+        given:
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("TestLimiterAimd", 2, 1, 3, 10, 2.0)
+
+        when: "a fast answer comes back with the limit in use"
+        2.times { submit(limiter) }
+        permits[0].release(FAST, false)
+
+        then:
+        limiter.limit == 3
+
+        when: "more fast answers come back"
+        3.times { submit(limiter) }
+        permits.toList().each { it.release(FAST, false) }
+        permits.last().release(FAST, false)
+
+        then: "the limit stays at its maximum"
+        limiter.limit == 3
+        limiter.inFlight == 0
+
+        when: "the service signals overload"
+        submit(limiter)
+        permits.last().release(NO_SAMPLE, true)
+
+        then:
+        limiter.limit == 2
+
+        when: "it keeps signalling overload"
+        10.times {
+            submit(limiter)
+            permits.last().release(NO_SAMPLE, true)
+        }
+
+        then: "the limit stays at its minimum"
+        limiter.limit == 1
+    }
+
+    def "Answers much slower than the no-load latency lower the limit"() {
+        given:
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("TestLimiterSlow", 10, 1, 10, 10, 2.0)
+        20.times {
+            submit(limiter)
+            permits.last().release(FAST, false)
+        }
+
+        when:
+        submit(limiter)
+        permits.last().release(FAST * 3, false)
+
+        then:
+        limiter.limit == 9
+    }
+
+    def "A waiting request that is cancelled is never sent"() {
+        given:
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("TestLimiterCancel", 1, 1, 1, 10, 2.0)
+        submit(limiter)
+        LimitedRequest waiting = submit(limiter)
+
+        when:
+        boolean cancelled = waiting.cancel()
+        permits[0].release(FAST, false)
+
+        then:
+        cancelled
+        permits.size() == 1
+        limiter.inFlight == 0
+    }
+
+    def "Releasing a permit twice frees room once"() {
+        given:
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("TestLimiterTwice", 2, 1, 2, 10, 2.0)
+        2.times { submit(limiter) }
+
+        when:
+        permits[0].release(FAST, false)
+        permits[0].release(FAST, false)
+
+        then:
+        limiter.inFlight == 1
+    }
+}
@@ -4,14 +4,28 @@ package com.yahoo.bard.webservice.druid.client.impl
 
 import com.yahoo.bard.webservice.application.ObjectMappersSuite
 import com.yahoo.bard.webservice.druid.client.DruidClientConfigHelper
+import com.yahoo.bard.webservice.druid.client.FailureCallback
+import com.yahoo.bard.webservice.druid.model.query.GroupByQuery
 import com.yahoo.bard.webservice.druid.model.query.QueryContext
 import com.yahoo.bard.webservice.druid.model.query.WeightEvaluationQuery
+import com.yahoo.bard.webservice.web.handlers.RequestContext
 
 import com.fasterxml.jackson.databind.ObjectMapper
 
+import org.asynchttpclient.AsyncHandler
+import org.asynchttpclient.AsyncHttpClient
+import org.asynchttpclient.BoundRequestBuilder
+import org.asynchttpclient.ListenableFuture
+import org.asynchttpclient.Response
+
 import io.netty.handler.codec.http.HttpHeaders
 import spock.lang.Specification
+import spock.lang.Unroll
 
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.CancellationException
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Future
 import java.util.function.Supplier
 
 class AsyncDruidWebServiceImplSpec extends Specification {
@@ -71,4 +85,159 @@ class AsyncDruidWebServiceImplSpec extends Specification {
             assert actualHeaders.get(header.getKey()) == header.getValue()
         }
     }
+
+    def "A query for a cancelled request is not sent, and fails with a cancellation"() {
+        setup:
+        WeightEvaluationQuery weightEvaluationQuery = Mock(WeightEvaluationQuery)
+        weightEvaluationQuery.getContext() >> Mock(QueryContext)
+        FailureCallback failure = Mock(FailureCallback)
+        RequestContext context = new RequestContext(null, false)
+        context.cancel()
+
+        AsyncDruidWebServiceImplWrapper webServiceImplWrapper = new AsyncDruidWebServiceImplWrapper(
+                DruidClientConfigHelper.getServiceConfig(),
+                MAPPER,
+                { [:] } as Supplier
+        )
+
+        when:
+        webServiceImplWrapper.postDruidQuery(context, null, null, failure, weightEvaluationQuery)
+
+        then:
+        1 * failure.invoke(_ as CancellationException)
+        webServiceImplWrapper.request == null
+    }
+
+    def "A query that has completed is no longer cancelled with its request"() {
+        setup:
+        WeightEvaluationQuery weightEvaluationQuery = Mock(WeightEvaluationQuery)
+        weightEvaluationQuery.getContext() >> Mock(QueryContext)
+        RequestContext context = new RequestContext(null, false)
+
+        AsyncDruidWebServiceImplWrapper webServiceImplWrapper = new AsyncDruidWebServiceImplWrapper(
+                DruidClientConfigHelper.getServiceConfig(),
+                MAPPER,
+                { [:] } as Supplier
+        )
+
+        when: "the wrapper answers at once"
+        webServiceImplWrapper.postDruidQuery(context, null, null, null, weightEvaluationQuery)
+
+        then:
+        webServiceImplWrapper.request != null
+        context.cancelActions.empty
+    }
+
+    def "A query cancelled while waiting for the concurrency limiter fails with a cancellation and is never sent"() {
+        setup: "a limit of one, taken by a query which is never answered"
+        BoundRequestBuilder requestBuilder = Mock(BoundRequestBuilder)
+        requestBuilder.addHeader(_, _) >> requestBuilder
+        requestBuilder.setBody(_ as byte[]) >> requestBuilder
+        ListenableFuture<Response> unanswered = Mock(ListenableFuture)
+        unanswered.toCompletableFuture() >> new CompletableFuture<>()
+        requestBuilder.execute(_) >> unanswered
+        AsyncHttpClient client = Mock(AsyncHttpClient)
+        client.preparePost(_) >> requestBuilder
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("TestWebServiceCancel", 1, 1, 1, 10, 2.0)
+
+        AsyncDruidWebServiceImpl webService = new AsyncDruidWebServiceImpl(
+                DruidClientConfigHelper.getServiceConfig(),
+                client,
+                MAPPER,
+                { [:] } as Supplier,
+                AsyncDruidWebServiceImpl.DEFAULT_JSON_NODE_BUILDER_STRATEGY,
+                DruidTransport.JSON,
+                limiter
+        )
+        GroupByQuery query = Mock(GroupByQuery)
+        query.getContext() >> Mock(QueryContext)
+        webService.postDruidQuery(new RequestContext(null, false), null, null, Mock(FailureCallback), query)
+
+        and: "a second query waiting for room"
+        RequestContext context = new RequestContext(null, false)
+        FailureCallback failure = Mock(FailureCallback)
+        Future<Response> waiting = webService.postDruidQuery(context, null, null, failure, query)
+
+        when:
+        context.cancel()
+
+        then:
+        1 * failure.invoke(_ as CancellationException)
+        waiting.cancelled
+        context.numberOfIncoming.get() == 0
+        limiter.queue.empty
+        0 * requestBuilder.execute(_)
+    }
+
+    @Unroll
+    def "A query failed in flight by a #thrown.class.simpleName is metered as cancelled: #cancelled"() {
+        setup:
+        BoundRequestBuilder requestBuilder = Mock(BoundRequestBuilder)
+        requestBuilder.addHeader(_, _) >> requestBuilder
+        requestBuilder.setBody(_ as byte[]) >> requestBuilder
+        AsyncHandler<Response> handler = null
+        requestBuilder.execute(_) >> { arguments -> handler = arguments[0]; Mock(ListenableFuture) }
+        AsyncHttpClient client = Mock(AsyncHttpClient)
+        client.preparePost(_) >> requestBuilder
+
+        AsyncDruidWebServiceImpl webService = new AsyncDruidWebServiceImpl(
+                DruidClientConfigHelper.getServiceConfig(),
+                client,
+                MAPPER,
+                { [:] } as Supplier,
+                AsyncDruidWebServiceImpl.DEFAULT_JSON_NODE_BUILDER_STRATEGY,
+                DruidTransport.JSON,
+                null
+        )
+        GroupByQuery query = Mock(GroupByQuery)
+        query.getContext() >> Mock(QueryContext)
+        FailureCallback failure = Mock(FailureCallback)
+        webService.postDruidQuery(new RequestContext(null, false), null, null, failure, query)
+        long cancelledBefore = webService.cancelledMeter.count
+        long exceptionsBefore = webService.exceptionMeter.count
+
+        when:
+        handler.onThrowable(thrown)
+
+        then:
+        1 * failure.invoke(thrown)
+        webService.cancelledMeter.count - cancelledBefore == (cancelled ? 1 : 0)
+        webService.exceptionMeter.count - exceptionsBefore == (cancelled ? 0 : 1)
+
+        where:
+        thrown                        | cancelled
+        new CancellationException()   | true
+        new IOException("connection") | false
+    }
+
+    @Unroll
+    def "The #transport transport sends a #contentType query and asks for a gzipped answer: #gzip"() {
+        setup:
+        WeightEvaluationQuery weightEvaluationQuery = Mock(WeightEvaluationQuery)
+        weightEvaluationQuery.getContext() >> Mock(QueryContext)
+
+        AsyncDruidWebServiceImplWrapper webServiceImplWrapper = new AsyncDruidWebServiceImplWrapper(
+                DruidClientConfigHelper.getServiceConfig(),
+                MAPPER,
+                { [:] } as Supplier,
+                transport
+        )
+
+        when:
+        webServiceImplWrapper.postDruidQuery(null, null, null, null, weightEvaluationQuery)
+
+        then:
+        HttpHeaders headers = webServiceImplWrapper.getHeaders()
+        headers.get("Content-Type") == contentType
+        (headers.get("Accept-Encoding") == "gzip") == gzip
+        // Smile content starts with its ":)" header
+        (new String(webServiceImplWrapper.request.byteData, 0, 2, StandardCharsets.US_ASCII) == ":)") == transport.smile
+
+        where:
+        transport                      | contentType                              | gzip
+        DruidTransport.JSON            | DruidTransport.JSON_CONTENT_TYPE         | false
+        DruidTransport.JSON_GZIP       | DruidTransport.JSON_CONTENT_TYPE         | true
+        DruidTransport.SMILE           | DruidTransport.SMILE_CONTENT_TYPE        | false
+        DruidTransport.SMILE_GZIP      | DruidTransport.SMILE_CONTENT_TYPE        | true
+    }
 }
@@ -0,0 +1,90 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.druid.client.impl
+
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.ObjectMapper
+
+import org.asynchttpclient.Response
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.nio.charset.StandardCharsets
+import java.util.zip.GZIPOutputStream
+
+class DruidTransportSpec extends Specification {
+
+    static final String BODY = '[{"version":"v1","event":{"pageViews":10}}]'
+    static final ObjectMapper SMILE_MAPPER = new ObjectMapper(DruidTransport.getSmileFactory())
+
+    static byte[] gzip(byte[] bytes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream()
+        new GZIPOutputStream(out).withStream { it.write(bytes) }
+        out.toByteArray()
+    }
+
+    static byte[] smile(String json) {
+        SMILE_MAPPER.writeValueAsBytes(new ObjectMapper().readTree(json))
+    }
+
+    Response response(byte[] body, String contentType, String encoding) {
+        Response response = Mock(Response)
+        response.getResponseBodyAsStream() >> { new ByteArrayInputStream(body) }
+        response.getResponseBody() >> new String(body, StandardCharsets.ISO_8859_1)
+        response.getContentType() >> contentType
+        response.getHeader("Content-Encoding") >> encoding
+        response
+    }
+
+    @Unroll
+    def "A #contentType response with #encoding encoding is decoded"() {
+        given:
+        byte[] raw = contentType == DruidTransport.SMILE_CONTENT_TYPE ?
+                smile(BODY) :
+                BODY.getBytes(StandardCharsets.UTF_8)
+        byte[] body = encoding == "gzip" ? gzip(raw) : raw
+
+        when:
+        JsonNode node = DruidTransport.createParser(response(body, contentType, encoding)).readValueAsTree()
+
+        then:
+        node == new ObjectMapper().readTree(BODY)
+
+        where:
+        contentType                          | encoding
+        "application/json"                   | null
+        "application/json"                   | "gzip"
+        DruidTransport.SMILE_CONTENT_TYPE    | null
+        DruidTransport.SMILE_CONTENT_TYPE    | "gzip"
+        null                                 | null
+    }
+
+    def "The default json node builder decodes a gzipped Smile response"() {
+        expect:
+        AsyncDruidWebServiceImpl.DEFAULT_JSON_NODE_BUILDER_STRATEGY.apply(
+                response(gzip(smile(BODY)), DruidTransport.SMILE_CONTENT_TYPE, "gzip")
+        ) == new ObjectMapper().readTree(BODY)
+    }
+
+    def "Error bodies are decoded to text, and left as they came when they cannot be decoded"() {
+        expect:
+        DruidTransport.getResponseBodyAsString(response(gzip('{"error":"x"}'.bytes), "application/json", "gzip")) ==
+                '{"error":"x"}'
+        DruidTransport.getResponseBodyAsString(response("Bad Gateway".bytes, "text/plain", null)) == "Bad Gateway"
+    }
+
+    @Unroll
+    def "Transport #transport is smile: #smile and gzip: #gzip"() {
+        expect:
+        transport.smile == smile
+        transport.gzip == gzip
+
+        where:
+        transport                    | smile | gzip
+        DruidTransport.JSON          | false | false
+        DruidTransport.JSON_GZIP     | false | true
+        DruidTransport.SMILE         | true  | false
+        DruidTransport.SMILE_GZIP    | true  | true
+    }
+}
@@ -0,0 +1,398 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.druid.client.impl
+
+import static com.yahoo.bard.webservice.druid.client.impl.LoadBalancedDruidWebService.DISABLED
+
+import com.yahoo.bard.webservice.application.MetricRegistryFactory
+import com.yahoo.bard.webservice.druid.client.DruidServiceConfig
+import com.yahoo.bard.webservice.druid.client.DruidWebService
+import com.yahoo.bard.webservice.druid.client.FailureCallback
+import com.yahoo.bard.webservice.druid.client.HttpErrorCallback
+import com.yahoo.bard.webservice.druid.client.StreamingSuccessCallback
+import com.yahoo.bard.webservice.druid.client.SuccessCallback
+import com.yahoo.bard.webservice.druid.model.query.DruidAggregationQuery
+import com.yahoo.bard.webservice.druid.model.query.DruidQuery
+import com.yahoo.bard.webservice.web.handlers.RequestContext
+
+import com.fasterxml.jackson.core.JsonParser
+import com.fasterxml.jackson.databind.JsonNode
+
+import spock.lang.Specification
+
+import java.time.Clock
+import java.util.concurrent.Future
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
+
+class LoadBalancedDruidWebServiceSpec extends Specification {
+
+    static final long COOL_OFF = 1000
+
+    long now = 0
+    Clock clock = Mock(Clock) { millis() >> { now } }
+
+    List<DruidWebService> brokers
+    List<Map> sent = []
+
+    SuccessCallback success = Mock(SuccessCallback)
+    HttpErrorCallback error = Mock(HttpErrorCallback)
+    FailureCallback failure = Mock(FailureCallback)
+
+    List<Runnable> hedges = []
+    ScheduledExecutorService hedgeScheduler = Mock(ScheduledExecutorService) {
+        schedule(_ as Runnable, _, _) >> {
+            hedges.add(it[0])
+            Mock(ScheduledFuture)
+        }
+    }
+
+    def setup() {
+        brokers = (0..2).collect { int i ->
+            DruidWebService broker = Mock(DruidWebService)
+            broker.getServiceConfig() >> new DruidServiceConfig("TestBroker$i", "http://broker$i", 1000, 1)
+            broker.postDruidQuery(*_) >> { context, SuccessCallback s, HttpErrorCallback e, FailureCallback f, query ->
+                Future future = Mock(Future)
+                Map request = [broker: i, success: s, error: e, failure: f, future: future, cancelled: false]
+                // Register a cancel action, as the web service of a broker does for a query in flight
+                ((RequestContext) context).addCancelAction { request.cancelled = true }
+                sent.add(request)
+                future
+            }
+            broker
+        }
+    }
+
+    LoadBalancedDruidWebService buildService(List<DruidWebService> brokerList, int errors, double latencyFactor) {
+        new LoadBalancedDruidWebService(
+                new DruidServiceConfig("Broker", "http://broker", 1000, 1),
+                brokerList,
+                errors,
+                latencyFactor,
+                COOL_OFF,
+                clock
+        )
+    }
+
+    LoadBalancedDruidWebService buildHedgingService(double budgetPercent) {
+        new LoadBalancedDruidWebService(
+                new DruidServiceConfig("Broker", "http://broker", 1000, 1),
+                brokers.subList(0, 2),
+                DISABLED,
+                DISABLED,
+                COOL_OFF,
+                clock,
+                95,
+                budgetPercent,
+                hedgeScheduler
+        )
+    }
+
+    /**
+     * Answer enough aggregation queries for the service to have a hedge delay, and let the delay be computed.
+     */
+    void warmUp(LoadBalancedDruidWebService service) {
+        SuccessCallback ignored = Mock(SuccessCallback)
+        100.times {
+            RequestContext context = new RequestContext(null, false)
+            service.postDruidQuery(context, ignored, error, failure, Mock(DruidAggregationQuery))
+            sent.last().success.invoke(Mock(JsonNode))
+        }
+        sent.clear()
+        now += 1000
+    }
+
+    Map postAggregation(LoadBalancedDruidWebService service) {
+        postAggregation(service, new RequestContext(null, false))
+    }
+
+    Map postAggregation(LoadBalancedDruidWebService service, RequestContext context) {
+        service.postDruidQuery(context, success, error, failure, Mock(DruidAggregationQuery))
+        sent.last()
+    }
+
+    Map post(LoadBalancedDruidWebService service) {
+        service.postDruidQuery(Mock(RequestContext), success, error, failure, Mock(DruidQuery))
+        sent.last()
+    }
+
+    def "Requests go to the broker with the fewest outstanding requests"() {
+        given:
+        LoadBalancedDruidWebService service = buildService(brokers, 5, DISABLED)
+        JsonNode response = Mock(JsonNode)
+
+        when: "as many requests as brokers are sent"
+        List<Map> first = (0..2).collect { post(service) }
+
+        then: "each broker gets one"
+        first*.broker.sort() == [0, 1, 2]
+
+        when: "one broker answers and another request is sent"
+        first.find { it.broker == 1 }.success.invoke(response)
+        Map next = post(service)
+
+        then: "the answer is handed over, and the idle broker gets the request"
+        1 * success.invoke(response)
+        next.broker == 1
+    }
+
+    def "A broker failing too many requests in a row is ejected until its cool off passes"() {
+        given:
+        LoadBalancedDruidWebService service = buildService(brokers.subList(0, 2), 2, DISABLED)
+        RuntimeException boom = new RuntimeException("boom")
+
+        when: "broker 0 fails two requests in a row, while broker 1 answers"
+        4.times {
+            Map request = post(service)
+            if (request.broker == 0) {
+                request.failure.invoke(boom)
+            } else {
+                request.success.invoke(Mock(JsonNode))
+            }
+        }
+
+        then:
+        2 * failure.invoke(boom)
+        service.availableBrokers == [brokers[1]]
+
+        when: "requests are sent during the cool off"
+        List<Map> duringCoolOff = (0..2).collect { post(service) }
+
+        then:
+        duringCoolOff*.broker == [1, 1, 1]
+
+        when: "the cool off passes"
+        now += COOL_OFF
+
+        then:
+        service.availableBrokers == brokers.subList(0, 2)
+    }
+
+    def "Client errors do not count against a broker, but server errors do"() {
+        given:
+        LoadBalancedDruidWebService service = buildService(brokers.subList(0, 2), 2, DISABLED)
+
+        when:
+        6.times {
+            Map request = post(service)
+            request.error.invoke(request.broker == 0 ? 400 : 503, "reason", "body")
+        }
+
+        then: "broker 1 is ejected after its second server error, and broker 0 takes the rest"
+        4 * error.invoke(400, "reason", "body")
+        2 * error.invoke(503, "reason", "body")
+        service.availableBrokers == [brokers[0]]
+    }
+
+    def "The last available broker is never ejected"() {
+        given:
+        LoadBalancedDruidWebService service = buildService(brokers.subList(0, 1), 1, DISABLED)
+
+        when:
+        3.times { post(service).failure.invoke(new RuntimeException()) }
+
+        then:
+        service.availableBrokers == [brokers[0]]
+    }
+
+    def "A broker much slower than the others is ejected"() {
+        given:
+        LoadBalancedDruidWebService service = buildService(brokers.subList(0, 2), DISABLED, 3)
+
+        JsonNode response = Mock(JsonNode)
+
+        when: "broker 1 takes a while to answer every request, while broker 0 answers at once"
+        60.times {
+            Map request = post(service)
+            if (request.broker == 1) {
+                sleep(20)
+            }
+            request.success.invoke(response)
+        }
+
+        then:
+        service.availableBrokers == [brokers[0]]
+    }
+
+    def "A request that cannot be sent is not left outstanding"() {
+        given:
+        DruidWebService failing = Mock(DruidWebService)
+        failing.getServiceConfig() >> new DruidServiceConfig("TestFailingBroker", "http://failing", 1000, 1)
+        failing.postDruidQuery(*_) >> { throw new IllegalStateException("cannot serialize") }
+        LoadBalancedDruidWebService service = buildService([failing, brokers[0]], 1, DISABLED)
+
+        when: "the request that cannot be sent goes to the failing broker"
+        service.postDruidQuery(Mock(RequestContext), success, error, failure, Mock(DruidQuery))
+
+        then:
+        thrown(IllegalStateException)
+
+        and: "it neither counts against the broker nor stays outstanding"
+        service.availableBrokers == [failing, brokers[0]]
+        MetricRegistryFactory.registry.counter("druid.broker.TestFailingBroker.outstanding").count == 0
+    }
+
+    def "Streaming success callbacks stay streaming"() {
+        given:
+        LoadBalancedDruidWebService service = buildService(brokers, 5, DISABLED)
+        StreamingSuccessCallback streaming = Mock(StreamingSuccessCallback)
+        JsonParser parser = Mock(JsonParser)
+
+        when:
+        service.postDruidQuery(Mock(RequestContext), streaming, error, failure, Mock(DruidQuery))
+        SuccessCallback wrapped = sent.last().success
+
+        then:
+        wrapped instanceof StreamingSuccessCallback
+
+        when:
+        ((StreamingSuccessCallback) wrapped).invoke(parser)
+
+        then:
+        1 * streaming.invoke(parser)
+    }
+
+    def "Queries are not hedged until enough of them have been answered"() {
+        given:
+        LoadBalancedDruidWebService service = buildHedgingService(100)
+
+        when:
+        10.times { postAggregation(service).success.invoke(Mock(JsonNode)) }
+        now += 1000
+        postAggregation(service)
+
+        then:
+        hedges.empty
+    }
+
+    def "A slow query is hedged to another broker, and the first answer wins"() {
+        given:
+        LoadBalancedDruidWebService service = buildHedgingService(100)
+        warmUp(service)
+        long won = LoadBalancedDruidWebService.HEDGES_WON.count
+        JsonNode hedgeResponse = Mock(JsonNode)
+
+        when: "a query is sent and its hedge delay passes"
+        Map primary = postAggregation(service)
+        hedges.last().run()
+        Map hedge = sent.last()
+
+        then: "a copy goes to the other broker"
+        sent.size() == 2
+        hedge.broker != primary.broker
+
+        when: "the hedge answers first"
+        hedge.success.invoke(hedgeResponse)
+
+        then: "its answer is handed over and the first copy is cancelled, on its broker as well"
+        1 * success.invoke(hedgeResponse)
+        1 * primary.future.cancel(true)
+        primary.cancelled
+        !hedge.cancelled
+        LoadBalancedDruidWebService.HEDGES_WON.count == won + 1
+
+        when: "the first copy answers anyway"
+        primary.success.invoke(Mock(JsonNode))
+
+        then: "the success callback is not called again"
+        0 * success.invoke(_)
+    }
+
+    def "When the first copy wins, only the hedge is cancelled, and cancelling the request cancels both copies"() {
+        given:
+        LoadBalancedDruidWebService service = buildHedgingService(100)
+        warmUp(service)
+
+        when: "the first copy answers after the hedge is sent"
+        Map primary = postAggregation(service)
+        hedges.last().run()
+        Map hedge = sent.last()
+        primary.success.invoke(Mock(JsonNode))
+
+        then: "the hedge is cancelled on its broker"
+        hedge.cancelled
+        !primary.cancelled
+
+        when: "another hedged query is cancelled with its request"
+        RequestContext context = new RequestContext(null, false)
+        Map cancelledPrimary = postAggregation(service, context)
+        hedges.last().run()
+        Map cancelledHedge = sent.last()
+        context.cancel()
+
+        then:
+        cancelledPrimary.cancelled
+        cancelledHedge.cancelled
+    }
+
+    def "An error from one copy is held back while the other copy may still answer"() {
+        given:
+        LoadBalancedDruidWebService service = buildHedgingService(100)
+        warmUp(service)
+        JsonNode response = Mock(JsonNode)
+
+        when:
+        Map primary = postAggregation(service)
+        hedges.last().run()
+        Map hedge = sent.last()
+        primary.error.invoke(503, "reason", "body")
+
+        then:
+        0 * error.invoke(*_)
+
+        when:
+        hedge.success.invoke(response)
+
+        then:
+        1 * success.invoke(response)
+        0 * error.invoke(*_)
+    }
+
+    def "When both copies fail, the first error is delivered once"() {
+        given:
+        LoadBalancedDruidWebService service = buildHedgingService(100)
+        warmUp(service)
+
+        when:
+        Map primary = postAggregation(service)
+        hedges.last().run()
+        Map hedge = sent.last()
+        primary.error.invoke(503, "reason", "body")
+        hedge.failure.invoke(new RuntimeException("boom"))
+
+        then:
+        1 * error.invoke(503, "reason", "body")
+        0 * failure.invoke(_)
+    }
+
+    def "Failures of the winning copy after its success are still reported"() {
+        given:
+        LoadBalancedDruidWebService service = buildHedgingService(100)
+        warmUp(service)
+        RuntimeException processingError = new RuntimeException("cannot process")
+
+        when:
+        Map primary = postAggregation(service)
+        hedges.last().run()
+        primary.success.invoke(Mock(JsonNode))
+        primary.failure.invoke(processingError)
+
+        then:
+        1 * failure.invoke(processingError)
+    }
+
+    def "Hedges beyond the budget are not sent"() {
+        given:
+        LoadBalancedDruidWebService service = buildHedgingService(0)
+        warmUp(service)
+        long overBudget = LoadBalancedDruidWebService.HEDGES_OVER_BUDGET.count
+
+        when:
+        postAggregation(service)
+        hedges.last().run()
+
+        then:
+        sent.size() == 1
+        LoadBalancedDruidWebService.HEDGES_OVER_BUDGET.count == overBudget + 1
+    }
+}
@@ -0,0 +1,100 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.druid.serializers
+
+import static com.yahoo.bard.webservice.data.time.DefaultTimeGrain.DAY
+import static com.yahoo.bard.webservice.table.TableTestUtils.buildTable
+
+import com.yahoo.bard.webservice.application.ObjectMappersSuite
+import com.yahoo.bard.webservice.druid.model.aggregation.LongSumAggregation
+import com.yahoo.bard.webservice.druid.model.datasource.QueryDataSource
+import com.yahoo.bard.webservice.druid.model.datasource.TableDataSource
+import com.yahoo.bard.webservice.druid.model.query.GroupByQuery
+import com.yahoo.bard.webservice.druid.model.query.QueryContext
+import com.yahoo.bard.webservice.metadata.DataSourceMetadataService
+import com.yahoo.bard.webservice.util.Utils
+
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.databind.ObjectWriter
+
+import org.joda.time.DateTimeZone
+import org.joda.time.Interval
+
+import spock.lang.Specification
+
+import java.nio.charset.StandardCharsets
+
+class SerializedQuerySpec extends Specification {
+
+    static final ObjectMapper MAPPER = new ObjectMappersSuite().getMapper()
+    static final ObjectWriter WRITER = MAPPER.writer()
+
+    static final Interval WEEK = new Interval("2016-01-01/2016-01-08")
+    static final Interval DAY_ONE = new Interval("2016-01-01/2016-01-02")
+
+    GroupByQuery query(boolean nested) {
+        TableDataSource table = new TableDataSource(buildTable(
+                "table_name",
+                DAY.buildZonedTimeGrain(DateTimeZone.UTC),
+                [] as Set,
+                [:],
+                Mock(DataSourceMetadataService)
+        ))
+        QueryContext context = new QueryContext([:], null).withQueryId("dummy100").withPriority(10)
+        GroupByQuery inner = new GroupByQuery(
+                table, DAY, [], null, null, [new LongSumAggregation("pageViews", "pageViews")], [], [WEEK], null,
+                context, false
+        )
+        nested ?
+                new GroupByQuery(
+                        new QueryDataSource(inner), DAY, [], null, null,
+                        [new LongSumAggregation("pageViewsSum", "pageViews")], [], [WEEK], null, context, false
+                ) :
+                inner
+    }
+
+    String body(SerializedQuery serializedQuery) {
+        new String(serializedQuery.body, StandardCharsets.UTF_8)
+    }
+
+    def "A query is serialized once, to the same json it serializes to directly"() {
+        given:
+        GroupByQuery query = query(true)
+
+        when:
+        SerializedQuery serialized = SerializedQuery.of(query, WRITER)
+
+        then:
+        SerializedQuery.of(query, WRITER).is(serialized)
+        body(serialized) == MAPPER.writeValueAsString(query)
+    }
+
+    def "The key is the query without its contexts"() {
+        given:
+        GroupByQuery query = query(true)
+        JsonNode root = MAPPER.valueToTree(query)
+        Utils.omitField(root, "context", MAPPER)
+
+        expect:
+        SerializedQuery.of(query, WRITER).key == WRITER.writeValueAsString(root)
+        !SerializedQuery.of(query, WRITER).key.contains("dummy100")
+    }
+
+    def "A query derived from a template serializes as if it were serialized directly"() {
+        given:
+        GroupByQuery template = query(nested)
+        GroupByQuery subQuery = template.withAllIntervals([DAY_ONE])
+        subQuery = subQuery.withContext(subQuery.context.withPriority(5))
+
+        when:
+        SerializedQuery.registerTemplate(subQuery, template)
+
+        then:
+        body(SerializedQuery.of(subQuery, WRITER)) == MAPPER.writeValueAsString(subQuery)
+        SerializedQuery.of(subQuery, WRITER).key == SerializedQuery.of(template.withAllIntervals([DAY_ONE]), WRITER).key
+
+        where:
+        nested << [false, true]
+    }
+}
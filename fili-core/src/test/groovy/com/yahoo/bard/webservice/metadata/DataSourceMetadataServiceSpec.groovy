@@ -62,6 +62,67 @@ class DataSourceMetadataServiceSpec extends BaseDataSourceMetadataSpec {
         jtb.tearDown()
     }
 
+    def "updating the metadata service indexes the segment signatures of the data source"() {
+        setup:
+        DataSourceName dataSourceName = DataSourceName.of(tableName)
+        DataSourceMetadataService metadataService = new DataSourceMetadataService()
+
+        when:
+        metadataService.update(dataSourceName, metadata)
+        Set<SegmentSignatureIndex> indexes = metadataService.getSegmentSignatureIndexes(
+                [dataSourceName, DataSourceName.of("InvalidTable")] as Set
+        )
+        SortedMap<DateTime, Map<String, SegmentInfo>> tableSegments = metadataService.allSegmentsByTime
+                .get(dataSourceName)
+                .get()
+
+        then: "the index built by the update is returned, and only for data sources with segments"
+        indexes.size() == 1
+        indexes[0].is(metadataService.segmentSignatureIndexes.get(dataSourceName).get())
+        indexes[0].isIndexOf(tableSegments)
+        indexes[0].getSignature([intervals["interval12"]]) == tableSegments.hashCode()
+
+        when: "the segments are replaced without an update"
+        ConcurrentSkipListMap<DateTime, Map<String, SegmentInfo>> replaced = new ConcurrentSkipListMap<>(
+                tableSegments.headMap(intervals["interval2"].start)
+        )
+        metadataService.allSegmentsByTime.get(dataSourceName).set(replaced)
+        SegmentSignatureIndex rebuilt = metadataService.getSegmentSignatureIndexes([dataSourceName] as Set)[0]
+
+        then: "the index is rebuilt from the current segments"
+        rebuilt.isIndexOf(replaced)
+        rebuilt.getSignature([intervals["interval12"]]) == replaced.hashCode()
+    }
+
+    def "segment change listeners are told the intervals whose segments changed between updates"() {
+        setup:
+        DataSourceName dataSourceName = DataSourceName.of(tableName)
+        DataSourceMetadataService metadataService = new DataSourceMetadataService()
+        SegmentChangeListener listener = Mock(SegmentChangeListener)
+        metadataService.addSegmentChangeListener(listener)
+
+        when: "the first segments of a data source are loaded"
+        metadataService.update(dataSourceName, metadata)
+
+        then:
+        0 * listener.segmentsChanged(*_)
+
+        when: "the same segments are loaded again"
+        metadataService.update(dataSourceName, metadata)
+
+        then:
+        0 * listener.segmentsChanged(*_)
+
+        when: "a segment of the second interval is dropped"
+        metadataService.update(
+                dataSourceName,
+                new DataSourceMetadata(tableName, [:], [segments.segment1, segments.segment2, segments.segment3])
+        )
+
+        then:
+        1 * listener.segmentsChanged(dataSourceName, [intervals["interval2"]])
+    }
+
     def "grouping segment data by date time behave as expected"() {
         given:
         ConcurrentSkipListMap<DateTime, Map<String, SegmentInfo>> segmentByTime = DataSourceMetadataService
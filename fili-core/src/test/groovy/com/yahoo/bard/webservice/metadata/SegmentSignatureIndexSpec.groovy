@@ -0,0 +1,80 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.metadata
+
+import static org.joda.time.DateTimeZone.UTC
+
+import org.joda.time.DateTime
+import org.joda.time.Interval
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.util.concurrent.ConcurrentSkipListMap
+
+class SegmentSignatureIndexSpec extends Specification {
+
+    static final DateTime START = new DateTime(2015, 1, 1, 0, 0, UTC)
+
+    ConcurrentSkipListMap<DateTime, Map<String, SegmentInfo>> segments = new ConcurrentSkipListMap<>()
+    SegmentSignatureIndex index
+
+    def setup() {
+        // Hourly buckets for ten days, skipping every seventh hour to leave gaps
+        (0..<240).findAll { it % 7 != 3 }.each { int hour ->
+            SegmentInfo segmentInfo = Mock(SegmentInfo)
+            segmentInfo.hashCode() >> ((hour * 1000003) as int)
+            segments.put(START.plusHours(hour), [("segment_$hour".toString()): segmentInfo])
+        }
+        index = new SegmentSignatureIndex(segments)
+    }
+
+    @Unroll
+    def "The hash of the buckets in #interval is the hash code of the segment sub map"() {
+        expect:
+        index.getHash(interval) == segments.subMap(interval.start, interval.end).hashCode()
+
+        where:
+        interval << [
+                new Interval(START, START.plusDays(10)),
+                new Interval(START.minusDays(1), START.plusDays(11)),
+                new Interval(START.plusHours(3), START.plusHours(4)),
+                new Interval(START.plusHours(5), START.plusHours(70)),
+                new Interval(START.plusMinutes(30), START.plusHours(2).plusMinutes(30)),
+                new Interval(START.plusDays(20), START.plusDays(21)),
+                new Interval(START.plusHours(6), START.plusHours(6))
+        ]
+    }
+
+    def "The signature of intervals matches summing their distinct sub map hash codes"() {
+        given: "intervals where two hold exactly the same buckets, and one holds none"
+        List<Interval> intervals = [
+                new Interval(START, START.plusDays(1)),
+                new Interval(START.plusDays(2), START.plusDays(3)),
+                new Interval(START.minusHours(1), START.plusDays(1)),
+                new Interval(START.plusHours(3), START.plusHours(4))
+        ]
+
+        expect:
+        index.getSignature(intervals) == intervals
+                .collect { segments.subMap(it.start, it.end) }
+                .unique()
+                .sum { it.hashCode() as long }
+    }
+
+    def "An index only describes the map it was built from"() {
+        expect:
+        index.isIndexOf(segments)
+        !index.isIndexOf(new ConcurrentSkipListMap<>(segments))
+        index.size() == segments.size()
+    }
+
+    def "An empty segment map signs every interval with zero"() {
+        given:
+        SegmentSignatureIndex emptyIndex = new SegmentSignatureIndex(new ConcurrentSkipListMap<>())
+
+        expect:
+        emptyIndex.getSignature([new Interval(START, START.plusDays(1))]) == 0L
+        emptyIndex.getHash(new Interval(START, START.plusDays(1))) == 0
+    }
+}
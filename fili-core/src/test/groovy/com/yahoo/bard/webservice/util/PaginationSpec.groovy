@@ -147,6 +147,43 @@ class PaginationSpec extends Specification {
         10          | 7
     }
 
+    @Unroll
+    def "Paginating #size entries one at a time gets page #page as paginating them all at once does"() {
+        given: "The entries to paginate"
+        List<Integer> results = (1..size).collect()
+        PaginationParameters parameters = new PaginationParameters(ROWS_PER_PAGE, page)
+
+        when: "We paginate them from an iterator"
+        Pagination<Integer> pagination = AllPagesPagination.ofIterator(results.iterator(), parameters)
+        Pagination<Integer> expected = new AllPagesPagination<>(results, parameters)
+
+        then: "The page and the links are the same"
+        pagination.getPageOfData() == expected.getPageOfData()
+        pagination.getPage() == expected.getPage()
+        pagination.getNumResults() == size
+        pagination.getLastPage() == expected.getLastPage()
+        pagination.getNextPage() == expected.getNextPage()
+        pagination.getPreviousPage() == expected.getPreviousPage()
+
+        where:
+        size | page
+        27   | 1
+        27   | 2
+        27   | 6
+        27   | -1
+        25   | -1
+        3    | -1
+    }
+
+    def "Paginating an iterator past its last page throws a PageNotFoundException"() {
+        when:
+        AllPagesPagination.ofIterator(CONTENT.iterator(), new PaginationParameters(ROWS_PER_PAGE, NUM_PAGES + 1))
+
+        then:
+        PageNotFoundException exception = thrown(PageNotFoundException)
+        exception.getMessage() == getExpectedErrorMessage(NUM_PAGES + 1, ROWS_PER_PAGE, NUM_PAGES)
+    }
+
     String getExpectedErrorMessage(Integer page, Integer rowsPerPage, Integer numPages) {
         "Requested page '$page' with '$rowsPerPage' rows per page, but there are only '$numPages' pages."
     }
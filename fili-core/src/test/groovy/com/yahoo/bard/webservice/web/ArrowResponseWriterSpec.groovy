@@ -0,0 +1,296 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.web
+
+import com.yahoo.bard.webservice.data.ResultSet
+import com.yahoo.bard.webservice.data.metric.MetricColumn
+import com.yahoo.bard.webservice.util.Pagination
+import com.yahoo.bard.webservice.util.SimplifiedIntervalList
+import com.yahoo.bard.webservice.web.util.ArrowStreamWriter
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.charset.StandardCharsets
+
+class ArrowResponseWriterSpec extends ResponseWriterSpec {
+
+    static final List<String> COLUMN_NAMES = [
+            "dateTime",
+            "product|id",
+            "product|desc",
+            "platform|id",
+            "platform|desc",
+            "property|desc",
+            "pageViews",
+            "timeSpent"
+    ]
+
+    /**
+     * Reads an Arrow IPC stream back, following the offsets of its FlatBuffers as the format describes them.
+     */
+    static class ArrowStreamReader {
+
+        List<Map> fields = []
+        List<List<List>> batches = []
+
+        ArrowStreamReader(byte[] stream) {
+            ByteBuffer buffer = ByteBuffer.wrap(stream).order(ByteOrder.LITTLE_ENDIAN)
+            while (true) {
+                assert buffer.getInt() == -1
+                int metadataLength = buffer.getInt()
+                if (metadataLength == 0) {
+                    break
+                }
+                assert metadataLength % 8 == 0
+                ByteBuffer metadata = slice(buffer, metadataLength)
+                int message = metadata.getInt(0)
+                int headerType = metadata.get(field(metadata, message, 1))
+                int header = reference(metadata, message, 2)
+                ByteBuffer body = slice(buffer, (int) int64(metadata, message, 3))
+                if (headerType == 1) {
+                    readSchema(metadata, header)
+                } else {
+                    assert headerType == 3
+                    batches << readBatch(metadata, header, body)
+                }
+            }
+            assert !buffer.hasRemaining()
+        }
+
+        static ByteBuffer slice(ByteBuffer buffer, int length) {
+            ByteBuffer slice = buffer.slice().order(ByteOrder.LITTLE_ENDIAN)
+            slice.limit(length)
+            buffer.position(buffer.position() + length)
+            slice
+        }
+
+        static int field(ByteBuffer b, int table, int id) {
+            int vtable = table - b.getInt(table)
+            int offset = 4 + 2 * id < b.getShort(vtable) ? b.getShort(vtable + 4 + 2 * id) : 0
+            offset == 0 ? -1 : table + offset
+        }
+
+        static int reference(ByteBuffer b, int table, int id) {
+            int slot = field(b, table, id)
+            slot + b.getInt(slot)
+        }
+
+        static short int16(ByteBuffer b, int table, int id) {
+            int slot = field(b, table, id)
+            slot == -1 ? 0 : b.getShort(slot)
+        }
+
+        static long int64(ByteBuffer b, int table, int id) {
+            int slot = field(b, table, id)
+            slot == -1 ? 0 : b.getLong(slot)
+        }
+
+        static String string(ByteBuffer b, int position) {
+            byte[] bytes = new byte[b.getInt(position)]
+            (0..<bytes.length).each { bytes[it] = b.get(position + 4 + it) }
+            new String(bytes, StandardCharsets.UTF_8)
+        }
+
+        void readSchema(ByteBuffer b, int schema) {
+            int vector = reference(b, schema, 1)
+            (0..<b.getInt(vector)).each {
+                int slot = vector + 4 + 4 * it
+                int fieldTable = slot + b.getInt(slot)
+                int typeTable = reference(b, fieldTable, 3)
+                Map description = [
+                        name: string(b, reference(b, fieldTable, 0)),
+                        type: b.get(field(b, fieldTable, 2)) as int
+                ]
+                if (description.type == 10) {
+                    description.unit = int16(b, typeTable, 0)
+                    description.timeZone = string(b, reference(b, typeTable, 1))
+                } else if (description.type == 3) {
+                    description.precision = int16(b, typeTable, 0)
+                }
+                fields << description
+            }
+        }
+
+        List<List> readBatch(ByteBuffer b, int batch, ByteBuffer body) {
+            int rows = (int) int64(b, batch, 0)
+            int buffers = reference(b, batch, 2) + 4
+            int nextBuffer = 0
+            Closure<Integer> bufferOffset = { b.getLong(buffers + 16 * nextBuffer++) as int }
+            fields.collect { Map description ->
+                int validity = bufferOffset()
+                Closure<Boolean> valid = { int row -> (body.get(validity + row.intdiv(8)) >> (row % 8) & 1) == 1 }
+                int values = bufferOffset()
+                List column
+                switch (description.type) {
+                    case 10:
+                        column = (0..<rows).collect { body.getLong(values + 8 * it) }
+                        break
+                    case 3:
+                        column = (0..<rows).collect { body.getDouble(values + 8 * it) }
+                        break
+                    case 5:
+                        int data = bufferOffset()
+                        column = (0..<rows).collect {
+                            int start = body.getInt(values + 4 * it)
+                            byte[] bytes = new byte[body.getInt(values + 4 * it + 4) - start]
+                            (0..<bytes.length).each { i -> bytes[i] = body.get(data + start + i) }
+                            new String(bytes, StandardCharsets.UTF_8)
+                        }
+                        break
+                    default:
+                        column = (0..<rows).collect { (body.get(values + it.intdiv(8)) >> (it % 8) & 1) == 1 }
+                }
+                (0..<rows).collect { valid(it) ? column[it] : null }
+            }
+        }
+    }
+
+    def "The columns of the CSV format are written as a typed record batch"() {
+        when:
+        new ArrowResponseWriter().write(apiRequest, response, os)
+        ArrowStreamReader stream = new ArrowStreamReader(os.toByteArray())
+
+        then:
+        stream.fields*.name == COLUMN_NAMES
+        stream.fields*.type == [10, 5, 5, 5, 5, 5, 3, 3]
+        stream.fields[0].timeZone == dateTime.zone.ID
+        stream.batches.size() == 1
+        stream.batches[0] == [
+                [dateTime.millis, dateTime.millis],
+                ["ymail", "ysports"],
+                ["yahoo, mail", "yahoo sports"],
+                ["mob", "desk"],
+                ["mobile \" desc..", "desktop ,\" desc.."],
+                ["United States", "India"],
+                [10d, 10d],
+                [10d, 10d]
+        ]
+    }
+
+    def "Rows are written in batches of the given size, and metrics which are not numbers as strings"() {
+        given:
+        Map<MetricColumn, Object> metricValues = [
+                (new MetricColumn("pageViews")): 10,
+                (new MetricColumn("timeSpent")): "ten"
+        ]
+        ResultSet resultSet = buildTestResultSet(metricValues, defaultRequestedMetrics)
+        ResponseData responseData = new ResponseData(
+                resultSet,
+                apiRequest,
+                new SimplifiedIntervalList(),
+                volatileIntervals,
+                (Pagination) null,
+                [:]
+        )
+
+        when:
+        new ArrowResponseWriter(1).write(apiRequest, responseData, os)
+        ArrowStreamReader stream = new ArrowStreamReader(os.toByteArray())
+
+        then:
+        stream.fields*.type == [10, 5, 5, 5, 5, 5, 3, 5]
+        stream.batches.size() == 2
+        stream.batches*.getAt(1) == [["ymail"], ["ysports"]]
+        stream.batches*.getAt(7) == [["ten"], ["ten"]]
+    }
+
+    def "An empty result set is written as a schema and the end of the stream"() {
+        given:
+        ResultSet empty = new ResultSet(response.getResultSet().getSchema(), [])
+        ResponseData responseData = new ResponseData(
+                empty,
+                apiRequest,
+                new SimplifiedIntervalList(),
+                volatileIntervals,
+                (Pagination) null,
+                [:]
+        )
+
+        when:
+        new ArrowResponseWriter().write(apiRequest, responseData, os)
+        ArrowStreamReader stream = new ArrowStreamReader(os.toByteArray())
+
+        then:
+        stream.fields*.name == COLUMN_NAMES
+        stream.batches.isEmpty()
+    }
+
+    def "A metric value which does not fit the type of its column fails the request"() {
+        given: "A numeric metric column whose value in the second batch is a string"
+        MetricColumn pageViews = new MetricColumn("pageViews")
+        ResultSet resultSet = response.getResultSet()
+        resultSet[1] = resultSet[1].withMetricValue(pageViews, "ten")
+        ResponseData responseData = new ResponseData(
+                resultSet,
+                apiRequest,
+                new SimplifiedIntervalList(),
+                volatileIntervals,
+                (Pagination) null,
+                [:]
+        )
+
+        when:
+        new ArrowResponseWriter(1).write(apiRequest, responseData, os)
+
+        then:
+        IOException exception = thrown()
+        exception.message.contains("pageViews")
+    }
+
+    def "A record batch size of #batchSize is rejected"() {
+        when:
+        new ArrowResponseWriter(batchSize)
+
+        then:
+        thrown(IllegalArgumentException)
+
+        where:
+        batchSize << [0, -1]
+    }
+
+    def "A stream written by the Arrow Java library reads back as the same stream written by the Arrow stream writer"() {
+        given: "A stream written by Apache Arrow Java 12.0.1, in two batches, with a null in each nullable column"
+        byte[] golden = getClass().getResourceAsStream("/arrowFilesTesting/goldenStream.arrows").bytes
+        List<ArrowStreamWriter.Field> fields = [
+                new ArrowStreamWriter.Field("dateTime", ArrowStreamWriter.Type.TIMESTAMP, "UTC"),
+                new ArrowStreamWriter.Field("product|id", ArrowStreamWriter.Type.UTF8),
+                new ArrowStreamWriter.Field("pageViews", ArrowStreamWriter.Type.FLOAT64),
+                new ArrowStreamWriter.Field("isActive", ArrowStreamWriter.Type.BOOL)
+        ]
+
+        when: "The same columns and values are written by the Arrow stream writer"
+        ArrowStreamWriter writer = new ArrowStreamWriter(os)
+        writer.writeSchema(fields)
+        writer.writeBatch(3, [
+                [1420070400000L, 1420156800000L, 1420243200000L] as Object[],
+                ["ymail", null, "yahoo, sports \u00e9"] as Object[],
+                [10.5d, -2d, null] as Object[],
+                [null, true, false] as Object[]
+        ])
+        writer.writeBatch(1, [[1420329600000L] as Object[], [""] as Object[], [0d] as Object[], [true] as Object[]])
+        writer.writeEnd()
+        ArrowStreamReader expected = new ArrowStreamReader(golden)
+        ArrowStreamReader stream = new ArrowStreamReader(os.toByteArray())
+
+        then: "The golden stream reads as the values it was written with"
+        expected.fields == [
+                [name: "dateTime", type: 10, unit: 1, timeZone: "UTC"],
+                [name: "product|id", type: 5],
+                [name: "pageViews", type: 3, precision: 2],
+                [name: "isActive", type: 6]
+        ]
+        expected.batches == [
+                [
+                        [1420070400000L, 1420156800000L, 1420243200000L],
+                        ["ymail", null, "yahoo, sports \u00e9"],
+                        [10.5d, -2d, null],
+                        [null, true, false]
+                ],
+                [[1420329600000L], [""], [0d], [true]]
+        ]
+
+        and: "The stream of the Arrow stream writer reads the same"
+        stream.fields == expected.fields
+        stream.batches == expected.batches
+    }
+}
@@ -61,6 +61,7 @@ class ResponseWriterSelectorSpec extends Specification {
         "JSON"    | JsonResponseWriter    | ResponseFormatType.JSON
         "CSV"     | CsvResponseWriter     | ResponseFormatType.CSV
         "JsonApi" | JsonApiResponseWriter | ResponseFormatType.JSONAPI
+        "Arrow"   | ArrowResponseWriter   | ResponseFormatType.ARROW
     }
 
 
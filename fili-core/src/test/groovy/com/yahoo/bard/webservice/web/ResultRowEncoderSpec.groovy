@@ -0,0 +1,90 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.web
+
+import com.yahoo.bard.webservice.data.Result
+import com.yahoo.bard.webservice.data.metric.MetricColumn
+import com.yahoo.bard.webservice.util.Pagination
+import com.yahoo.bard.webservice.util.SimplifiedIntervalList
+
+import com.fasterxml.jackson.core.JsonGenerator
+import com.fasterxml.jackson.databind.JsonNode
+
+class ResultRowEncoderSpec extends ResponseWriterSpec {
+
+    String encode(ResponseData responseData) {
+        ResultRowEncoder encoder = new ResultRowEncoder(responseData)
+        JsonGenerator generator = MAPPERS.getMapper().getFactory().createGenerator(os)
+        generator.writeStartArray()
+        responseData.getResultSet().each { encoder.writeRow(it, generator) }
+        generator.writeEndArray()
+        generator.close()
+        os.toString("UTF-8")
+    }
+
+    def "Rows are written as the maps buildResultRow builds"() {
+        expect:
+        encode(response) == MAPPERS.getMapper().writeValueAsString(response.getResultSet().collect {
+            response.buildResultRow(it)
+        })
+    }
+
+    def "Each distinct timestamp is formatted once"() {
+        given:
+        ResultRowEncoder encoder = new ResultRowEncoder(response)
+
+        expect:
+        encoder.formatDateTime(dateTime) == dateTime.toString(getDefaultFormat())
+        encoder.formatDateTime(dateTime).is(encoder.formatDateTime(dateTime))
+    }
+
+    def "The rows of response data which builds its own rows are written as it builds them"() {
+        given:
+        ResponseData custom = new ResponseData(
+                response.getResultSet(),
+                apiRequest,
+                new SimplifiedIntervalList(),
+                volatileIntervals,
+                (Pagination) null,
+                [:]
+        ) {
+            @Override
+            Map<String, Object> buildResultRow(Result result) {
+                [custom: result.getTimeStamp().getMillis()]
+            }
+        }
+
+        expect:
+        encode(custom) == """[{"custom":${dateTime.millis}},{"custom":${dateTime.millis}}]"""
+    }
+
+    def "A metric named like #name is written once, with the last value written under the name"() {
+        given:
+        metricColumnsMap = [
+                (new MetricColumn("pageViews")): 10,
+                (new MetricColumn(name)): 7
+        ]
+        ResponseData responseData = new ResponseData(
+                buildTestResultSet(metricColumnsMap, metricColumnsMap.keySet()),
+                apiRequest,
+                new SimplifiedIntervalList(),
+                volatileIntervals,
+                (Pagination) null,
+                [:]
+        )
+
+        when:
+        String encoded = encode(responseData)
+        JsonNode rows = MAPPERS.getMapper().readTree(encoded)
+
+        then:
+        encoded == MAPPERS.getMapper().writeValueAsString(responseData.getResultSet().collect {
+            responseData.buildResultRow(it)
+        })
+        rows.every { row -> row.fieldNames().findAll { it == name }.size() == 1 }
+        rows*.get(name)*.asInt() == [7, 7]
+
+        where:
+        name << ["dateTime", "product|id"]
+    }
+}
@@ -2,7 +2,9 @@
 // Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
 package com.yahoo.bard.webservice.web.handlers
 
+import com.yahoo.bard.webservice.config.BardFeatureFlag
 import com.yahoo.bard.webservice.druid.client.DruidWebService
+import com.yahoo.bard.webservice.druid.client.StreamingSuccessCallback
 import com.yahoo.bard.webservice.druid.client.SuccessCallback
 import com.yahoo.bard.webservice.druid.model.query.GroupByQuery
 import com.yahoo.bard.webservice.logging.blocks.BardQueryInfo
@@ -10,11 +12,15 @@ import com.yahoo.bard.webservice.logging.blocks.BardQueryInfoUtils
 import com.yahoo.bard.webservice.web.apirequest.DataApiRequest
 import com.yahoo.bard.webservice.web.responseprocessors.LoggingContext
 import com.yahoo.bard.webservice.web.responseprocessors.ResponseProcessor
+import com.yahoo.bard.webservice.web.responseprocessors.ResultSetProcessor
 
+import com.fasterxml.jackson.core.JsonParser
 import com.fasterxml.jackson.databind.JsonNode
 import com.fasterxml.jackson.databind.ObjectMapper
 import com.fasterxml.jackson.databind.ObjectWriter
 
+import org.joda.time.DateTimeZone
+
 import spock.lang.Specification
 
 import java.util.concurrent.Future
@@ -29,6 +35,7 @@ class AsyncWebServiceRequestHandlerSpec extends Specification {
 
     def cleanup() {
         BardQueryInfoUtils.resetBardQueryInfo()
+        BardFeatureFlag.DRUID_RESPONSE_STREAMING.reset()
     }
 
     def "Test handle request invokes asynch call"() {
@@ -71,4 +78,55 @@ class AsyncWebServiceRequestHandlerSpec extends Specification {
         then:
         1 * response.processResponse(rootNode, groupByQuery, _ as LoggingContext)
     }
+
+    def "With streaming on, a result set processor is handed a result set streamed from the response"() {
+        setup:
+        BardFeatureFlag.DRUID_RESPONSE_STREAMING.setOn(true)
+        DruidWebService dws = Mock(DruidWebService)
+        RequestContext rc = Mock(RequestContext)
+        DataApiRequest request = Mock(DataApiRequest)
+        request.getTimeZone() >> DateTimeZone.UTC
+        GroupByQuery groupByQuery = Mock(GroupByQuery)
+        ResultSetProcessor response = Mock(ResultSetProcessor)
+        JsonParser parser = Mock(JsonParser)
+
+        AsyncWebServiceRequestHandler handler = new AsyncWebServiceRequestHandler(dws, new ObjectMapper())
+        SuccessCallback sc = null
+
+        when:
+        handler.handleRequest(rc, request, groupByQuery, response)
+
+        then:
+        1 * dws.postDruidQuery(rc, _, _, _, groupByQuery) >> { a0, a1, a2, a3, a4 ->
+            sc = a1
+            return Mock(Future)
+        }
+        sc instanceof StreamingSuccessCallback
+
+        when:
+        ((StreamingSuccessCallback) sc).invoke(parser)
+
+        then:
+        1 * response.processStreamedResponse(parser, groupByQuery, DateTimeZone.UTC, _ as LoggingContext)
+        0 * response.processResponse(*_)
+    }
+
+    def "With streaming off, a result set processor is handed the response json"() {
+        setup:
+        DruidWebService dws = Mock(DruidWebService)
+        ResultSetProcessor response = Mock(ResultSetProcessor)
+        GroupByQuery groupByQuery = Mock(GroupByQuery)
+        AsyncWebServiceRequestHandler handler = new AsyncWebServiceRequestHandler(dws, new ObjectMapper())
+        SuccessCallback sc = null
+
+        when:
+        handler.handleRequest(Mock(RequestContext), Mock(DataApiRequest), groupByQuery, response)
+
+        then:
+        1 * dws.postDruidQuery(_, _, _, _, groupByQuery) >> { a0, a1, a2, a3, a4 ->
+            sc = a1
+            return Mock(Future)
+        }
+        !(sc instanceof StreamingSuccessCallback)
+    }
 }
@@ -0,0 +1,165 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.web.handlers
+
+import static com.yahoo.bard.webservice.web.responseprocessors.ResponseContextKeys.VOLATILE_INTERVALS_CONTEXT_KEY
+
+import com.yahoo.bard.webservice.application.ObjectMappersSuite
+import com.yahoo.bard.webservice.data.cache.MemTupleDataCache
+import com.yahoo.bard.webservice.data.cache.TupleDataCache
+import com.yahoo.bard.webservice.druid.model.orderby.LimitSpec
+import com.yahoo.bard.webservice.druid.model.query.DruidAggregationQuery
+import com.yahoo.bard.webservice.druid.model.query.GroupByQuery
+import com.yahoo.bard.webservice.druid.model.query.TimeSeriesQuery
+import com.yahoo.bard.webservice.logging.blocks.BardQueryInfoUtils
+import com.yahoo.bard.webservice.metadata.QuerySigningService
+import com.yahoo.bard.webservice.metadata.SegmentIntervalsHashIdGenerator
+import com.yahoo.bard.webservice.util.SimplifiedIntervalList
+import com.yahoo.bard.webservice.web.RequestUtils
+import com.yahoo.bard.webservice.web.apirequest.DataApiRequest
+import com.yahoo.bard.webservice.web.responseprocessors.BucketCacheResponseProcessor
+import com.yahoo.bard.webservice.web.responseprocessors.CacheV2ResponseProcessor
+import com.yahoo.bard.webservice.web.responseprocessors.LoggingContext
+import com.yahoo.bard.webservice.web.responseprocessors.ResponseContext
+import com.yahoo.bard.webservice.web.responseprocessors.ResponseProcessor
+
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.ObjectMapper
+
+import org.joda.time.DateTime
+import org.joda.time.DateTimeZone
+import org.joda.time.Interval
+
+import spock.lang.Specification
+
+import javax.ws.rs.container.ContainerRequestContext
+import javax.ws.rs.core.MultivaluedHashMap
+
+class BucketCacheRequestHandlerSpec extends Specification {
+
+    static final Interval DAY_1 = new Interval(
+            new DateTime(2014, 1, 1, 0, 0, DateTimeZone.UTC),
+            new DateTime(2014, 1, 2, 0, 0, DateTimeZone.UTC)
+    )
+    static final Interval DAY_2 = new Interval(DAY_1.getEnd(), DAY_1.getEnd().plusDays(1))
+
+    ObjectMapper mapper = new ObjectMappersSuite().getMapper()
+
+    TimeSeriesQuery query = RequestUtils.buildTimeSeriesQuery().withAllIntervals([DAY_1.withEnd(DAY_2.getEnd())])
+
+    DataRequestHandler next = Mock(DataRequestHandler)
+    TupleDataCache<String, Long, String> dataCache = Mock(TupleDataCache)
+    QuerySigningService<Long> querySigningService = Mock(SegmentIntervalsHashIdGenerator)
+    DataApiRequest apiRequest = Mock(DataApiRequest)
+    ResponseContext responseContext = new ResponseContext()
+    ResponseProcessor response = Mock(ResponseProcessor) { getResponseContext() >> responseContext }
+
+    RequestContext requestContext
+    BucketCacheRequestHandler handler
+    DateTimeZone originalTimeZone = DateTimeZone.getDefault()
+
+    def setup() {
+        // Buckets are sliced in the default time zone
+        DateTimeZone.setDefault(DateTimeZone.UTC)
+        querySigningService.getSegmentSetId(_) >> Optional.of(1234L)
+        handler = new BucketCacheRequestHandler(next, dataCache, querySigningService, mapper)
+        ContainerRequestContext containerRequestContext = Mock(ContainerRequestContext)
+        containerRequestContext.getHeaders() >> (["Bard-Testing": "###BYPASS###", "ClientId": "UI"] as
+                MultivaluedHashMap<String, String>)
+        requestContext = new RequestContext(containerRequestContext, true)
+        BardQueryInfoUtils.initializeBardQueryInfo()
+    }
+
+    def cleanup() {
+        BardQueryInfoUtils.resetBardQueryInfo()
+        DateTimeZone.setDefault(originalTimeZone)
+    }
+
+    String keyOf(Interval bucket) {
+        handler.getKey(query.withAllIntervals([bucket]))
+    }
+
+    static String rows(Interval bucket, int value) {
+        """[{"timestamp":"${bucket.getStart()}","result":{"count":$value}}]"""
+    }
+
+    def "A query whose buckets are all cached is answered from the cache, stitched in time order"() {
+        given:
+        dataCache.get(keyOf(DAY_1)) >> new MemTupleDataCache.DataEntry<String>(keyOf(DAY_1), 1234L, rows(DAY_1, 1))
+        dataCache.get(keyOf(DAY_2)) >> new MemTupleDataCache.DataEntry<String>(keyOf(DAY_2), 1234L, rows(DAY_2, 2))
+        JsonNode stitched
+
+        when:
+        boolean handled = handler.handleRequest(requestContext, apiRequest, query, response)
+
+        then:
+        handled
+        0 * next.handleRequest(*_)
+        1 * response.processResponse(_, query, _) >> { arguments -> stitched = arguments[0] }
+        stitched*.get("result")*.get("count")*.asInt() == [1, 2]
+    }
+
+    def "Only the buckets which are missing or stale are queried, and they are cached and stitched on response"() {
+        given:
+        dataCache.get(keyOf(DAY_1)) >> new MemTupleDataCache.DataEntry<String>(keyOf(DAY_1), 1234L, rows(DAY_1, 1))
+        dataCache.get(keyOf(DAY_2)) >> new MemTupleDataCache.DataEntry<String>(keyOf(DAY_2), 5678L, rows(DAY_2, 0))
+        DruidAggregationQuery<?> deltaQuery
+        ResponseProcessor bucketResponse
+        JsonNode stitched
+
+        when:
+        handler.handleRequest(requestContext, apiRequest, query, response)
+
+        then:
+        1 * next.handleRequest(requestContext, apiRequest, _, _ as BucketCacheResponseProcessor) >> {
+            arguments -> deltaQuery = arguments[2]; bucketResponse = arguments[3]; true
+        }
+        deltaQuery.getIntervals() == [DAY_2]
+
+        when:
+        bucketResponse.processResponse(mapper.readTree(rows(DAY_2, 2)), deltaQuery, Mock(LoggingContext))
+
+        then:
+        1 * dataCache.set(keyOf(DAY_2), 1234L, { mapper.readTree(it) == mapper.readTree(rows(DAY_2, 2)) })
+        0 * dataCache.set(keyOf(DAY_1), _, _)
+        1 * response.processResponse(_, query, _) >> { arguments -> stitched = arguments[0] }
+        stitched*.get("result")*.get("count")*.asInt() == [1, 2]
+    }
+
+    def "Volatile buckets are neither read from nor written to the cache"() {
+        given:
+        responseContext.put(VOLATILE_INTERVALS_CONTEXT_KEY.getName(), new SimplifiedIntervalList([DAY_2]))
+        dataCache.get(keyOf(DAY_1)) >> new MemTupleDataCache.DataEntry<String>(keyOf(DAY_1), 1234L, rows(DAY_1, 1))
+        ResponseProcessor bucketResponse
+
+        when:
+        handler.handleRequest(requestContext, apiRequest, query, response)
+
+        then:
+        0 * dataCache.get(keyOf(DAY_2))
+        1 * next.handleRequest(_, _, { it.getIntervals() == [DAY_2] }, _) >> {
+            arguments -> bucketResponse = arguments[3]; true
+        }
+
+        when:
+        bucketResponse.processResponse(mapper.readTree(rows(DAY_2, 2)), query, Mock(LoggingContext))
+
+        then:
+        0 * dataCache.set(*_)
+        1 * response.processResponse(_, query, _)
+    }
+
+    def "Queries whose limit spec spans all buckets are cached whole"() {
+        given:
+        GroupByQuery limited = RequestUtils.buildGroupByQuery()
+                .withAllIntervals([DAY_1.withEnd(DAY_2.getEnd())])
+                .withLimitSpec(new LimitSpec([] as LinkedHashSet, OptionalInt.of(10)))
+
+        when:
+        handler.handleRequest(requestContext, apiRequest, limited, response)
+
+        then:
+        1 * dataCache.get(_) >> null
+        1 * next.handleRequest(requestContext, apiRequest, limited, _ as CacheV2ResponseProcessor)
+    }
+}
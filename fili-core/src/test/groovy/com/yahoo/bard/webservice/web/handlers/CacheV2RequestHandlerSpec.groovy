@@ -222,7 +222,11 @@ class CacheV2RequestHandlerSpec extends Specification {
         requestProcessed
 
         and: "The count of fact query cache hit is not incremented"
-        bardQueryInfo.queryCounter.get(BardQueryInfo.FACT_QUERY_CACHE_HIT).get() == 1
+        bardQueryInfo.queryCounter.get(BardQueryInfo.FACT_QUERY_CACHE_HIT).get() == 0
+
+        and: "The request is still outstanding for the next handler"
+        requestContext.numberOfOutgoing.get() == 1
+        requestContext.numberOfIncoming.get() == 1
     }
 
     def "Test handle request key parse error delegates to next handler with original processor"() {
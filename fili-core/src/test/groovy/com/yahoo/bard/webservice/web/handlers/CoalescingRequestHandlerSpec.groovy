@@ -0,0 +1,189 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.web.handlers
+
+import com.yahoo.bard.webservice.application.ObjectMappersSuite
+import com.yahoo.bard.webservice.druid.client.FailureCallback
+import com.yahoo.bard.webservice.druid.client.HttpErrorCallback
+import com.yahoo.bard.webservice.druid.model.query.GroupByQuery
+import com.yahoo.bard.webservice.logging.RequestLog
+import com.yahoo.bard.webservice.web.RequestUtils
+import com.yahoo.bard.webservice.web.apirequest.DataApiRequest
+import com.yahoo.bard.webservice.web.responseprocessors.LoggingContext
+import com.yahoo.bard.webservice.web.responseprocessors.ResponseProcessor
+
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.node.JsonNodeFactory
+
+import spock.lang.Specification
+
+import javax.ws.rs.container.ContainerRequestContext
+import javax.ws.rs.core.MultivaluedHashMap
+
+class CoalescingRequestHandlerSpec extends Specification {
+
+    DataRequestHandler next = Mock(DataRequestHandler)
+    CoalescingRequestHandler handler = new CoalescingRequestHandler(next, new ObjectMappersSuite().getMapper())
+
+    DataApiRequest apiRequest = Mock(DataApiRequest)
+    JsonNode json = new JsonNodeFactory().arrayNode()
+
+    ResponseProcessor leaderResponse = Mock(ResponseProcessor)
+    ResponseProcessor followerResponse = Mock(ResponseProcessor)
+    GroupByQuery leaderQuery = RequestUtils.buildGroupByQuery()
+    GroupByQuery followerQuery = RequestUtils.buildGroupByQuery()
+
+    RequestContext sentContext
+    ResponseProcessor sentResponse
+
+    def setup() {
+        next.handleRequest(_, apiRequest, leaderQuery, _) >> {
+            sentContext = it[0]
+            sentResponse = it[3]
+            true
+        }
+    }
+
+    RequestContext buildContext() {
+        ContainerRequestContext containerRequestContext = Mock(ContainerRequestContext)
+        containerRequestContext.getHeaders() >> (["ClientId": "UI"] as MultivaluedHashMap<String, String>)
+        new RequestContext(containerRequestContext, true)
+    }
+
+    def "An identical query sent while another is in flight waits for the response of the first"() {
+        given:
+        RequestContext followerContext = buildContext()
+
+        when:
+        handler.handleRequest(buildContext(), apiRequest, leaderQuery, leaderResponse)
+        handler.handleRequest(followerContext, apiRequest, followerQuery, followerResponse)
+
+        then: "only the first query is sent"
+        0 * next.handleRequest(_, _, followerQuery, _)
+        handler.inFlightCount == 1
+        followerContext.numberOfOutgoing.get() == 0
+
+        when: "the response arrives"
+        sentResponse.processResponse(json, leaderQuery, new LoggingContext(RequestLog.dump()))
+
+        then: "it is given to both requests, each with its own query"
+        1 * leaderResponse.processResponse(json, leaderQuery, _)
+        1 * followerResponse.processResponse(json, followerQuery, _)
+        handler.inFlightCount == 0
+        followerContext.numberOfIncoming.get() == 0
+    }
+
+    def "A query sent after the response of an identical one arrived is sent again"() {
+        given:
+        handler.handleRequest(buildContext(), apiRequest, leaderQuery, leaderResponse)
+        sentResponse.processResponse(json, leaderQuery, new LoggingContext(RequestLog.dump()))
+
+        when:
+        handler.handleRequest(buildContext(), apiRequest, followerQuery, followerResponse)
+
+        then:
+        1 * next.handleRequest(_, apiRequest, followerQuery, _) >> true
+        0 * followerResponse.processResponse(*_)
+    }
+
+    def "Different queries are not coalesced"() {
+        given:
+        GroupByQuery otherQuery = RequestUtils.buildGroupByQuery("otherDataSource")
+
+        when:
+        handler.handleRequest(buildContext(), apiRequest, leaderQuery, leaderResponse)
+        handler.handleRequest(buildContext(), apiRequest, otherQuery, followerResponse)
+
+        then:
+        1 * next.handleRequest(_, apiRequest, otherQuery, _) >> true
+        handler.inFlightCount == 2
+    }
+
+    def "Errors and failures are given to every waiting request"() {
+        given:
+        HttpErrorCallback leaderError = Mock(HttpErrorCallback)
+        HttpErrorCallback followerError = Mock(HttpErrorCallback)
+        leaderResponse.getErrorCallback(leaderQuery) >> leaderError
+        followerResponse.getErrorCallback(followerQuery) >> followerError
+
+        handler.handleRequest(buildContext(), apiRequest, leaderQuery, leaderResponse)
+        handler.handleRequest(buildContext(), apiRequest, followerQuery, followerResponse)
+
+        when:
+        sentResponse.getErrorCallback(leaderQuery).invoke(500, "reason", "body")
+
+        then:
+        1 * leaderError.invoke(500, "reason", "body")
+        1 * followerError.invoke(500, "reason", "body")
+        handler.inFlightCount == 0
+    }
+
+    def "Waiting requests fail if the query cannot be sent"() {
+        given:
+        FailureCallback followerFailure = Mock(FailureCallback)
+        followerResponse.getFailureCallback(followerQuery) >> followerFailure
+        RuntimeException error = new RuntimeException("boom")
+        DataRequestHandler joiningNext = Mock(DataRequestHandler)
+        CoalescingRequestHandler joiningHandler = new CoalescingRequestHandler(
+                joiningNext,
+                new ObjectMappersSuite().getMapper()
+        )
+
+        and: "an identical query arrives while the first is being sent"
+        joiningNext.handleRequest(_, apiRequest, leaderQuery, _) >> {
+            joiningHandler.handleRequest(buildContext(), apiRequest, followerQuery, followerResponse)
+            throw error
+        }
+
+        when:
+        joiningHandler.handleRequest(buildContext(), apiRequest, leaderQuery, leaderResponse)
+
+        then:
+        RuntimeException thrown = thrown()
+        thrown.is(error)
+        1 * followerFailure.invoke(error)
+        joiningHandler.inFlightCount == 0
+    }
+
+    def "A coalesced query is only cancelled once every request waiting for it is cancelled"() {
+        given:
+        RequestContext leaderContext = buildContext()
+        RequestContext followerContext = buildContext()
+        Runnable cancelQuery = Mock(Runnable)
+
+        handler.handleRequest(leaderContext, apiRequest, leaderQuery, leaderResponse)
+        handler.handleRequest(followerContext, apiRequest, followerQuery, followerResponse)
+        sentContext.addCancelAction(cancelQuery)
+
+        expect: "the query is sent with the query counts of the request sending it"
+        sentContext.numberOfOutgoing.is(leaderContext.numberOfOutgoing)
+        sentContext.numberOfIncoming.is(leaderContext.numberOfIncoming)
+
+        when: "the request which sent the query is cancelled"
+        leaderContext.cancel()
+
+        then: "the query keeps running for the request still waiting for it"
+        0 * cancelQuery.run()
+        !sentContext.cancelled
+
+        when:
+        followerContext.cancel()
+
+        then:
+        1 * cancelQuery.run()
+        sentContext.cancelled
+    }
+
+    def "A query identical to a cancelled one is sent again"() {
+        given:
+        RequestContext leaderContext = buildContext()
+        handler.handleRequest(leaderContext, apiRequest, leaderQuery, leaderResponse)
+        leaderContext.cancel()
+
+        when:
+        handler.handleRequest(buildContext(), apiRequest, followerQuery, followerResponse)
+
+        then:
+        1 * next.handleRequest(_, apiRequest, followerQuery, _) >> true
+    }
+}
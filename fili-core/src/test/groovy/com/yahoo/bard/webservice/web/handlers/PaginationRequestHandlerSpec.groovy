@@ -0,0 +1,209 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.web.handlers
+
+import static com.yahoo.bard.webservice.config.BardFeatureFlag.PAGINATION_PUSHDOWN
+import static com.yahoo.bard.webservice.data.time.DefaultTimeGrain.DAY
+import static com.yahoo.bard.webservice.table.TableTestUtils.buildTable
+
+import com.yahoo.bard.webservice.application.ObjectMappersSuite
+import com.yahoo.bard.webservice.data.dimension.Dimension
+import com.yahoo.bard.webservice.data.metric.mappers.NoOpResultSetMapper
+import com.yahoo.bard.webservice.data.metric.mappers.PaginationMapper
+import com.yahoo.bard.webservice.data.metric.mappers.PartialDataResultSetMapper
+import com.yahoo.bard.webservice.data.metric.mappers.ResultSetMapper
+import com.yahoo.bard.webservice.druid.client.HttpErrorCallback
+import com.yahoo.bard.webservice.druid.model.aggregation.LongSumAggregation
+import com.yahoo.bard.webservice.druid.model.datasource.TableDataSource
+import com.yahoo.bard.webservice.druid.model.orderby.LimitSpec
+import com.yahoo.bard.webservice.druid.model.orderby.OrderByColumn
+import com.yahoo.bard.webservice.druid.model.orderby.SortDirection
+import com.yahoo.bard.webservice.druid.model.query.GroupByQuery
+import com.yahoo.bard.webservice.druid.model.query.RowCountQuery
+import com.yahoo.bard.webservice.metadata.DataSourceMetadataService
+import com.yahoo.bard.webservice.util.SimplifiedIntervalList
+import com.yahoo.bard.webservice.web.apirequest.DataApiRequest
+import com.yahoo.bard.webservice.web.responseprocessors.LoggingContext
+import com.yahoo.bard.webservice.web.responseprocessors.MappingResponseProcessor
+import com.yahoo.bard.webservice.web.responseprocessors.ResponseProcessor
+import com.yahoo.bard.webservice.web.util.PaginationParameters
+
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.ObjectMapper
+
+import org.joda.time.DateTimeZone
+import org.joda.time.Interval
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import javax.ws.rs.core.UriBuilder
+import javax.ws.rs.core.UriInfo
+
+class PaginationRequestHandlerSpec extends Specification {
+
+    static final ObjectMapper MAPPER = new ObjectMappersSuite().getMapper()
+
+    static boolean paginationPushdown = PAGINATION_PUSHDOWN.isOn()
+
+    DataRequestHandler next = Mock(DataRequestHandler)
+    RequestContext context = new RequestContext(null, false)
+    DataApiRequest request = Mock(DataApiRequest)
+    MappingResponseProcessor response = Mock(MappingResponseProcessor)
+    List<ResultSetMapper> mappers = [new NoOpResultSetMapper()]
+
+    GroupByQuery groupByQuery
+
+    PaginationRequestHandler handler = new PaginationRequestHandler(next, true)
+
+    def setup() {
+        Dimension gender = Mock(Dimension)
+        gender.getApiName() >> "gender"
+        TableDataSource table = new TableDataSource(buildTable(
+                "table_name",
+                DAY.buildZonedTimeGrain(DateTimeZone.UTC),
+                [] as Set,
+                [:],
+                Mock(DataSourceMetadataService)
+        ))
+        groupByQuery = new GroupByQuery(
+                table,
+                DAY,
+                [gender],
+                null,
+                null,
+                [new LongSumAggregation("pageViews", "pageViews")],
+                [],
+                [new Interval("2016-01-01/2016-01-08")],
+                new LimitSpec([new OrderByColumn("pageViews", SortDirection.DESC)] as LinkedHashSet)
+        )
+
+        UriInfo uriInfo = Mock(UriInfo)
+        uriInfo.getRequestUriBuilder() >> UriBuilder.fromUri("http://localhost:9998/data/table/day/gender")
+        request.getUriInfo() >> uriInfo
+        request.getTopN() >> OptionalInt.empty()
+        request.getCount() >> OptionalInt.empty()
+        response.getMappers() >> mappers
+    }
+
+    def cleanup() {
+        PAGINATION_PUSHDOWN.setOn(paginationPushdown)
+    }
+
+    def "Without pushdown, the page is cut from all the results"() {
+        given:
+        PAGINATION_PUSHDOWN.setOn(false)
+        request.getPaginationParameters() >> Optional.of(new PaginationParameters(5, 2))
+
+        when:
+        boolean handled = handler.handleRequest(context, request, groupByQuery, response)
+
+        then:
+        handled
+        1 * next.handleRequest(context, request, groupByQuery, response) >> true
+        0 * next.handleRequest(*_)
+        mappers.last() instanceof PaginationMapper
+    }
+
+    def "With pushdown, results are counted and then Druid is asked for a totally sorted page"() {
+        given:
+        PAGINATION_PUSHDOWN.setOn(true)
+        request.getPaginationParameters() >> Optional.of(new PaginationParameters(5, 2))
+        RowCountQuery countQuery = null
+        ResponseProcessor countResponse = null
+        GroupByQuery pageQuery = null
+
+        when: "The request is handled"
+        boolean handled = handler.handleRequest(context, request, groupByQuery, response)
+
+        then: "Only the count query is sent down the workflow, and both queries are counted for the request"
+        handled
+        1 * next.handleRequest(context, request, _ as RowCountQuery, _) >> {
+            countQuery = it[2]
+            countResponse = it[3]
+            true
+        }
+        0 * next.handleRequest(*_)
+        mappers.size() == 1
+        context.numberOfOutgoing.get() == 2
+        context.numberOfIncoming.get() == 2
+
+        when: "The count comes back"
+        JsonNode count = MAPPER.readTree('[{"version": "v1", "event": {"count": 12}}]')
+        countResponse.processResponse(count, countQuery, Mock(LoggingContext))
+
+        then: "The page is asked for with an offset and limit, sorted on every grouping dimension"
+        1 * next.handleRequest(context, request, _ as GroupByQuery, response) >> {
+            pageQuery = it[2]
+            true
+        }
+        pageQuery.limitSpec.offset == OptionalInt.of(5)
+        pageQuery.limitSpec.limit == OptionalInt.of(5)
+        pageQuery.limitSpec.columns*.dimension == ["pageViews", "gender"]
+        pageQuery.limitSpec.columns*.direction == [SortDirection.DESC, SortDirection.ASC]
+        mappers.last() instanceof PaginationMapper
+    }
+
+    def "An error counting the results is the error of the request"() {
+        given:
+        PAGINATION_PUSHDOWN.setOn(true)
+        request.getPaginationParameters() >> Optional.of(new PaginationParameters(5, 2))
+        HttpErrorCallback error = Mock(HttpErrorCallback)
+        response.getErrorCallback(_) >> error
+        ResponseProcessor countResponse = null
+        next.handleRequest(context, request, _ as RowCountQuery, _) >> {
+            countResponse = it[3]
+            true
+        }
+        handler.handleRequest(context, request, groupByQuery, response)
+
+        when:
+        countResponse.getErrorCallback(groupByQuery).invoke(500, "reason", "body")
+
+        then:
+        1 * error.invoke(500, "reason", "body")
+        0 * next.handleRequest(_, _, _ as GroupByQuery, response)
+    }
+
+    def "The count query counts the rows of the query without its limit spec"() {
+        when:
+        RowCountQuery countQuery = new RowCountQuery(groupByQuery)
+        GroupByQuery counted = countQuery.getInnerQuery().get() as GroupByQuery
+
+        then:
+        counted.limitSpec == null
+        counted.dimensions as List == groupByQuery.dimensions as List
+        countQuery.dimensions.isEmpty()
+        countQuery.aggregations*.name == [RowCountQuery.COUNT]
+        countQuery.intervals == groupByQuery.intervals
+    }
+
+    @Unroll
+    def "Pages are not pushed down #reason"() {
+        given:
+        PAGINATION_PUSHDOWN.setOn(true)
+        request.getPaginationParameters() >> Optional.of(new PaginationParameters(5, page))
+        mappers.addAll(extraMappers)
+
+        when:
+        handler.handleRequest(context, request, groupByQuery, response)
+
+        then:
+        1 * next.handleRequest(context, request, groupByQuery, response) >> true
+        0 * next.handleRequest(*_)
+
+        where:
+        page | extraMappers                                                         | reason
+        -1   | []                                                                   | "for the last page"
+        2    | [new PartialDataResultSetMapper(new SimplifiedIntervalList(), { })] | "when rows may be dropped"
+    }
+
+    def "A limit spec with an offset serializes it, and one without does not"() {
+        given:
+        LinkedHashSet<OrderByColumn> columns = [new OrderByColumn("pageViews", SortDirection.DESC)]
+
+        expect:
+        MAPPER.valueToTree(new LimitSpec(columns, OptionalInt.of(5), OptionalInt.of(10))).get("offset").asInt() == 10
+        !MAPPER.valueToTree(new LimitSpec(columns, OptionalInt.of(5))).has("offset")
+    }
+}
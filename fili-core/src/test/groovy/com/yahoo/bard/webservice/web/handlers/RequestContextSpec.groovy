@@ -41,4 +41,71 @@ class RequestContextSpec extends Specification {
         "bard-testing" | "###BYPASS###"
         "clientid"     | "UI"
     }
+
+    def "Cancelling runs each registered cancel action once"() {
+        setup:
+        RequestContext context = new RequestContext(null, true)
+        Runnable first = Mock(Runnable)
+        Runnable removed = Mock(Runnable)
+        context.addCancelAction(first)
+        context.addCancelAction(removed)
+        context.removeCancelAction(removed)
+
+        when:
+        boolean cancelled = context.cancel()
+        boolean cancelledAgain = context.cancel()
+
+        then:
+        cancelled
+        !cancelledAgain
+        context.cancelled
+        1 * first.run()
+        0 * removed.run()
+    }
+
+    def "A cancel action added after cancelling runs at once"() {
+        setup:
+        RequestContext context = new RequestContext(null, true)
+        Runnable late = Mock(Runnable)
+        context.cancel()
+
+        when:
+        context.addCancelAction(late)
+
+        then:
+        1 * late.run()
+    }
+
+    def "A failing cancel action does not stop the others"() {
+        setup:
+        RequestContext context = new RequestContext(null, true)
+        Runnable failing = Mock(Runnable) { run() >> { throw new IllegalStateException() } }
+        Runnable other = Mock(Runnable)
+        context.addCancelAction(failing)
+        context.addCancelAction(other)
+
+        when:
+        context.cancel()
+
+        then:
+        1 * other.run()
+    }
+
+    def "A context for a duplicate query shares cancellation, but not query counts"() {
+        setup:
+        RequestContext context = new RequestContext(null, true)
+        Runnable action = Mock(Runnable)
+
+        when:
+        RequestContext duplicate = context.forDuplicateQuery()
+        duplicate.addCancelAction(action)
+        context.cancel()
+
+        then:
+        1 * action.run()
+        duplicate.cancelled
+        duplicate.numberOfOutgoing.get() == 0
+        duplicate.numberOfIncoming.get() == 1
+        context.numberOfOutgoing.get() == 1
+    }
 }
@@ -0,0 +1,163 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.web.handlers
+
+import com.yahoo.bard.webservice.druid.client.FailureCallback
+import com.yahoo.bard.webservice.druid.model.query.DruidAggregationQuery
+import com.yahoo.bard.webservice.druid.model.query.GroupByQuery
+import com.yahoo.bard.webservice.logging.RequestLog
+import com.yahoo.bard.webservice.web.apirequest.DataApiRequest
+import com.yahoo.bard.webservice.web.responseprocessors.ResponseProcessor
+
+import org.joda.time.DateTime
+import org.joda.time.Interval
+
+import spock.lang.Specification
+
+class SplitQueryDispatcherSpec extends Specification {
+
+    DataRequestHandler next = Mock(DataRequestHandler)
+    RequestContext context = Mock(RequestContext)
+    DataApiRequest request = Mock(DataApiRequest)
+    ResponseProcessor response = Mock(ResponseProcessor)
+
+    List<Interval> intervals
+    List<DruidAggregationQuery<?>> queries
+    List<Interval> sent = []
+
+    def setup() {
+        DateTime start = new DateTime(2015, 1, 1, 0, 0)
+        intervals = (0..4).collect { new Interval(start.plusDays(it), start.plusDays(it + 1)) }
+        queries = intervals.collect { Interval interval ->
+            GroupByQuery query = Mock(GroupByQuery)
+            query.getIntervals() >> [interval]
+            query
+        }
+        next.handleRequest(context, request, _, response) >> {
+            sent.add(it[2].intervals[0])
+            true
+        }
+    }
+
+    SplitQueryDispatcher buildDispatcher(int maxInFlight) {
+        new SplitQueryDispatcher(next, context, request, queries, RequestLog.dump(), maxInFlight)
+    }
+
+    def "Without a limit (#maxInFlight) every sub-query is sent at once, in order"() {
+        given:
+        SplitQueryDispatcher dispatcher = buildDispatcher(maxInFlight)
+
+        when:
+        dispatcher.dispatch(response)
+
+        then:
+        sent == intervals
+        dispatcher.inFlightCount == 5
+        dispatcher.pendingCount == 0
+
+        where:
+        maxInFlight << [SplitQueryDispatcher.DISABLED_LIMIT, 0, -5]
+    }
+
+    def "With a limit, sub-queries are sent as earlier ones complete"() {
+        given:
+        SplitQueryDispatcher dispatcher = buildDispatcher(2)
+
+        when:
+        dispatcher.dispatch(response)
+
+        then:
+        sent == intervals[0..1]
+        dispatcher.pendingCount == 3
+
+        when: "a sub-query completes"
+        dispatcher.complete(intervals[1])
+
+        then: "the next bucket is sent"
+        sent == intervals[0..2]
+
+        when: "the same sub-query is reported complete again"
+        dispatcher.complete(intervals[1])
+
+        then: "nothing more is sent"
+        sent == intervals[0..2]
+
+        when: "the remaining in flight sub-queries complete"
+        dispatcher.complete(intervals[0])
+        dispatcher.complete(intervals[2])
+
+        then:
+        sent == intervals
+        dispatcher.inFlightCount == 2
+        dispatcher.pendingCount == 0
+    }
+
+    def "Sub-queries completing while they are being sent do not recurse"() {
+        given: "a next handler that answers every sub-query synchronously"
+        DataRequestHandler synchronousNext = Mock(DataRequestHandler)
+        SplitQueryDispatcher dispatcher = new SplitQueryDispatcher(
+                synchronousNext,
+                context,
+                request,
+                queries,
+                RequestLog.dump(),
+                1
+        )
+        int depth = 0
+        int maxDepth = 0
+        synchronousNext.handleRequest(context, request, _, response) >> {
+            depth++
+            maxDepth = Math.max(depth, maxDepth)
+            sent.add(it[2].intervals[0])
+            dispatcher.complete(it[2].intervals[0])
+            depth--
+            true
+        }
+
+        when:
+        dispatcher.dispatch(response)
+
+        then:
+        sent == intervals
+        maxDepth == 1
+    }
+
+    def "Cancelling drops the sub-queries which were not sent yet"() {
+        given:
+        SplitQueryDispatcher dispatcher = buildDispatcher(2)
+        dispatcher.dispatch(response)
+
+        when:
+        dispatcher.cancel()
+        dispatcher.complete(intervals[0])
+        dispatcher.complete(intervals[1])
+
+        then:
+        sent == intervals[0..1]
+        dispatcher.pendingCount == 0
+        dispatcher.inFlightCount == 0
+    }
+
+    def "A sub-query that fails to send is reported through the failure callback"() {
+        given:
+        FailureCallback failureCallback = Mock(FailureCallback)
+        DataRequestHandler failingNext = Mock(DataRequestHandler)
+        RuntimeException error = new RuntimeException("boom")
+        SplitQueryDispatcher dispatcher = new SplitQueryDispatcher(
+                failingNext,
+                context,
+                request,
+                queries.subList(0, 1),
+                RequestLog.dump(),
+                SplitQueryDispatcher.DISABLED_LIMIT
+        )
+
+        when:
+        dispatcher.dispatch(response)
+
+        then:
+        1 * failingNext.handleRequest(context, request, queries[0], response) >> { throw error }
+        1 * response.getFailureCallback(queries[0]) >> failureCallback
+        1 * failureCallback.invoke(error)
+    }
+}
@@ -8,6 +8,7 @@ import static com.yahoo.bard.webservice.data.time.AllGranularity.INSTANCE
 
 import com.yahoo.bard.webservice.druid.client.HttpErrorCallback
 import com.yahoo.bard.webservice.druid.model.query.GroupByQuery
+import com.yahoo.bard.webservice.druid.model.query.QueryContext
 import com.yahoo.bard.webservice.data.time.Granularity
 import com.yahoo.bard.webservice.util.SimplifiedIntervalList
 import com.yahoo.bard.webservice.web.apirequest.DataApiRequest
@@ -47,6 +48,7 @@ class SplitQueryRequestHandlerSpec extends Specification {
     def setup() {
         groupByQuery.getInnermostQuery() >> groupByQuery
         groupByQuerySplit.getInnermostQuery() >> groupByQuerySplit
+        groupByQuerySplit.getIntervals() >> [week]
     }
 
     @Unroll
@@ -93,6 +95,42 @@ class SplitQueryRequestHandlerSpec extends Specification {
 
     }
 
+    def "Handler spreads the Druid priority of the sub-queries from the earliest bucket to the latest"() {
+        setup:
+        SplitQueryRequestHandler spreadingHandler = new SplitQueryRequestHandler(
+                next,
+                SplitQueryDispatcher.DISABLED_LIMIT,
+                100
+        )
+        groupByQuery.granularity >> DAY
+        groupByQuery.intervals >> [new Interval(startInstant, Duration.standardDays(5))]
+        groupByQuery.withAllIntervals(_) >> { List<Collection<Interval>> args ->
+            GroupByQuery subQuery = Mock(GroupByQuery)
+            subQuery.getIntervals() >> (args[0] as List)
+            subQuery.getContext() >> new QueryContext([(QueryContext.Param.PRIORITY): 10])
+            subQuery.withContext(_) >> { List<QueryContext> contextArgs ->
+                GroupByQuery prioritized = Mock(GroupByQuery)
+                prioritized.getIntervals() >> (args[0] as List)
+                prioritized.getContext() >> contextArgs[0]
+                prioritized
+            }
+            subQuery
+        }
+        rc.numberOfIncoming >> new AtomicLong(1)
+        rc.numberOfOutgoing >> new AtomicLong(1)
+        List<Integer> priorities = []
+
+        when:
+        spreadingHandler.handleRequest(rc, apiRequest, groupByQuery, response)
+
+        then:
+        5 * next.handleRequest(rc, apiRequest, _, _ as SplitQueryResponseProcessor) >> {
+            priorities.add(it[2].context.priority)
+            true
+        }
+        priorities == [10, -15, -40, -65, -90]
+    }
+
     def "Handler sends error on no duration request"() {
         setup:
         Interval none = new Interval(startInstant, startInstant)
@@ -104,6 +142,7 @@ class SplitQueryRequestHandlerSpec extends Specification {
         then:
         groupByQuery.granularity >> DAY
         groupByQuery.intervals >> [none]
+        groupByQuery.limitSpec >> null
         response.getErrorCallback(groupByQuery) >> hec
         apiRequest.getIntervals() >> [none]
         1 * hec.dispatch(400, _ as String, _ as String)
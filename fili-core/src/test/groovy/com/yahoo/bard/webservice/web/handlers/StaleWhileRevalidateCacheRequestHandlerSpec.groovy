@@ -0,0 +1,208 @@
+// Copyright 2018 Yahoo Inc.
+// Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
+package com.yahoo.bard.webservice.web.handlers
+
+import static com.yahoo.bard.webservice.web.handlers.workflow.DruidWorkflow.REQUEST_WORKFLOW_TIMER
+import static com.yahoo.bard.webservice.web.responseprocessors.ResponseContextKeys.VOLATILE_INTERVALS_CONTEXT_KEY
+
+import com.yahoo.bard.webservice.application.ObjectMappersSuite
+import com.yahoo.bard.webservice.data.cache.MemTupleDataCache
+import com.yahoo.bard.webservice.data.cache.TupleDataCache
+import com.yahoo.bard.webservice.druid.model.query.GroupByQuery
+import com.yahoo.bard.webservice.logging.RequestLog
+import com.yahoo.bard.webservice.logging.blocks.BardQueryInfoUtils
+import com.yahoo.bard.webservice.util.SimplifiedIntervalList
+import com.yahoo.bard.webservice.web.RequestUtils
+import com.yahoo.bard.webservice.web.apirequest.DataApiRequest
+import com.yahoo.bard.webservice.web.responseprocessors.LoggingContext
+import com.yahoo.bard.webservice.web.responseprocessors.ResponseContext
+import com.yahoo.bard.webservice.web.responseprocessors.ResponseProcessor
+import com.yahoo.bard.webservice.web.responseprocessors.TimestampedCachingResponseProcessor
+
+import com.fasterxml.jackson.databind.ObjectMapper
+
+import org.joda.time.Interval
+
+import spock.lang.Specification
+
+import java.time.Clock
+import java.time.Instant
+import java.time.ZoneOffset
+
+import javax.ws.rs.container.ContainerRequestContext
+import javax.ws.rs.core.MultivaluedHashMap
+
+class StaleWhileRevalidateCacheRequestHandlerSpec extends Specification {
+
+    static final long NOW = 1_000_000_000L
+    static final long SOFT_TTL_SECONDS = 60
+
+    ObjectMapper mapper = new ObjectMappersSuite().getMapper()
+    Clock clock = Clock.fixed(Instant.ofEpochMilli(NOW), ZoneOffset.UTC)
+
+    GroupByQuery groupByQuery = RequestUtils.buildGroupByQuery()
+
+    DataRequestHandler next = Mock(DataRequestHandler)
+    TupleDataCache<String, Long, String> dataCache = Mock(TupleDataCache)
+    DataApiRequest apiRequest = Mock(DataApiRequest)
+    ResponseContext responseContext = new ResponseContext()
+    ResponseProcessor response = Mock(ResponseProcessor) { getResponseContext() >> responseContext }
+
+    RequestContext requestContext
+    StaleWhileRevalidateCacheRequestHandler handler
+    String cacheKey
+
+    def setup() {
+        handler = new StaleWhileRevalidateCacheRequestHandler(next, dataCache, mapper, SOFT_TTL_SECONDS, clock)
+        requestContext = startRequest()
+        cacheKey = handler.getKey(groupByQuery)
+    }
+
+    def cleanup() {
+        BardQueryInfoUtils.resetBardQueryInfo()
+    }
+
+    /**
+     * Start the workflow of a new request on this thread, as the data servlet does.
+     *
+     * @return the context of the request
+     */
+    RequestContext startRequest() {
+        BardQueryInfoUtils.initializeBardQueryInfo()
+        RequestLog.startTiming(REQUEST_WORKFLOW_TIMER)
+        ContainerRequestContext containerRequestContext = Mock(ContainerRequestContext)
+        containerRequestContext.getHeaders() >> (["Bard-Testing": "###BYPASS###", "ClientId": "UI"] as
+                MultivaluedHashMap<String, String>)
+        new RequestContext(containerRequestContext, true)
+    }
+
+    TupleDataCache.DataEntry<String, Long, String> entryAged(long seconds) {
+        new MemTupleDataCache.DataEntry<String>(cacheKey, NOW - seconds * 1000, "[]")
+    }
+
+    def "An entry younger than the soft TTL is served without a refresh"() {
+        given:
+        dataCache.get(cacheKey) >> entryAged(SOFT_TTL_SECONDS - 1)
+
+        when:
+        boolean handled = handler.handleRequest(requestContext, apiRequest, groupByQuery, response)
+
+        then:
+        handled
+        1 * response.processResponse(mapper.readTree("[]"), groupByQuery, _)
+        0 * next.handleRequest(*_)
+    }
+
+    def "A stale entry is served right away, and refreshed once however many requests find it stale"() {
+        given:
+        dataCache.get(cacheKey) >> entryAged(SOFT_TTL_SECONDS + 1)
+        ResponseProcessor refreshResponse
+        boolean refreshTimed = false
+
+        when:
+        handler.handleRequest(requestContext, apiRequest, groupByQuery, response)
+        handler.handleRequest(startRequest(), apiRequest, groupByQuery, response)
+
+        then: "both requests are answered from the cache"
+        2 * response.processResponse(mapper.readTree("[]"), groupByQuery, _)
+
+        and: "a single refresh is sent, with a context and a timed workflow of its own"
+        1 * next.handleRequest(
+                { it != requestContext },
+                apiRequest,
+                groupByQuery,
+                _ as TimestampedCachingResponseProcessor
+        ) >> { arguments ->
+            refreshResponse = arguments[3]
+            refreshTimed = RequestLog.isRunning(REQUEST_WORKFLOW_TIMER)
+            true
+        }
+        refreshTimed
+
+        when: "the refresh completes"
+        refreshResponse.processResponse(mapper.readTree("[{}]"), groupByQuery, Mock(LoggingContext))
+
+        then: "the entry is replaced with the time of the refresh"
+        1 * dataCache.set(cacheKey, NOW, "[{}]")
+
+        when: "the entry is found stale again"
+        handler.handleRequest(startRequest(), apiRequest, groupByQuery, response)
+
+        then: "it may be refreshed again"
+        1 * next.handleRequest(*_)
+    }
+
+    def "A failed refresh lets the entry be refreshed again"() {
+        given:
+        dataCache.get(cacheKey) >> entryAged(SOFT_TTL_SECONDS + 1)
+        ResponseProcessor refreshResponse
+
+        when:
+        handler.handleRequest(requestContext, apiRequest, groupByQuery, response)
+
+        then:
+        1 * next.handleRequest(*_) >> { arguments -> refreshResponse = arguments[3]; true }
+
+        when:
+        refreshResponse.getErrorCallback(groupByQuery).invoke(500, "Internal Server Error", "")
+        handler.handleRequest(startRequest(), apiRequest, groupByQuery, response)
+
+        then:
+        0 * dataCache.set(*_)
+        1 * next.handleRequest(*_)
+    }
+
+    def "A refresh which no handler accepts lets the entry be refreshed again"() {
+        given:
+        dataCache.get(cacheKey) >> entryAged(SOFT_TTL_SECONDS + 1)
+
+        when:
+        handler.handleRequest(requestContext, apiRequest, groupByQuery, response)
+
+        then:
+        1 * next.handleRequest(*_) >> false
+
+        when:
+        handler.handleRequest(startRequest(), apiRequest, groupByQuery, response)
+
+        then:
+        1 * next.handleRequest(*_)
+    }
+
+    def "A stale entry is not served to a request whose response would not be cached"() {
+        given:
+        dataCache.get(cacheKey) >> entryAged(SOFT_TTL_SECONDS + 1)
+        responseContext.put(
+                VOLATILE_INTERVALS_CONTEXT_KEY.getName(),
+                new SimplifiedIntervalList([Interval.parse("2014-01-01/2014-01-02")])
+        )
+
+        when:
+        handler.handleRequest(requestContext, apiRequest, groupByQuery, response)
+
+        then:
+        0 * response.processResponse(*_)
+        1 * next.handleRequest(requestContext, apiRequest, groupByQuery, _ as TimestampedCachingResponseProcessor)
+    }
+
+    def "A miss is cached with the time it was written"() {
+        given:
+        ResponseProcessor nextResponse
+
+        when:
+        handler.handleRequest(requestContext, apiRequest, groupByQuery, response)
+
+        then:
+        1 * dataCache.get(cacheKey) >> null
+        1 * next.handleRequest(requestContext, apiRequest, groupByQuery, _) >> { arguments ->
+            nextResponse = arguments[3]; true
+        }
+
+        when:
+        nextResponse.processResponse(mapper.readTree("[]"), groupByQuery, Mock(LoggingContext))
+
+        then:
+        1 * dataCache.set(cacheKey, NOW, "[]")
+        1 * response.processResponse(_, groupByQuery, _)
+    }
+}
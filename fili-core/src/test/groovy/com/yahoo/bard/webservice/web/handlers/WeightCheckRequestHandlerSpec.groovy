@@ -20,6 +20,7 @@ import com.yahoo.bard.webservice.web.responseprocessors.WeightCheckResponseProce
 import com.yahoo.bard.webservice.web.util.QueryWeightUtil
 
 import com.fasterxml.jackson.core.JsonFactory
+import com.fasterxml.jackson.core.JsonGenerator
 import com.fasterxml.jackson.core.JsonParser
 import com.fasterxml.jackson.core.JsonProcessingException
 import com.fasterxml.jackson.databind.JsonNode
@@ -128,7 +129,9 @@ class WeightCheckRequestHandlerSpec extends Specification {
         1 * queryWeightUtil.skipWeightCheckQuery(groupByQuery) >> false
         0 * next.handleRequest(context, request, groupByQuery, response) >> true
         1 * queryWeightUtil.getQueryWeightThreshold(DAY) >> 5
-        1 * writer.writeValueAsString(weightQuery) >> "Weight query"
+        1 * writer.writeValue(_ as JsonGenerator, weightQuery)
+        writer.getFactory() >> new JsonFactory()
+        0 * writer.writeValueAsString(_)
         1 * webService.postDruidQuery(context, success, null, null, weightQuery)
         1 * response.getErrorCallback(groupByQuery)
         1 * response.getFailureCallback(groupByQuery)
@@ -169,7 +172,7 @@ class WeightCheckRequestHandlerSpec extends Specification {
         1 * queryWeightUtil.skipWeightCheckQuery(groupByQuery) >> false
         0 * next.handleRequest(context, request, groupByQuery, response) >> true
         1 * queryWeightUtil.getQueryWeightThreshold(DAY) >> 5
-        1 * writer.writeValueAsString(weightQuery) >> { throw new JsonProcessingException("word") }
+        1 * writer.writeValue(_ as JsonGenerator, weightQuery) >> { throw new JsonProcessingException("word") }
         1 * webService.postDruidQuery(context, success, null, null, weightQuery)
         1 * response.getErrorCallback(groupByQuery)
         1 * response.getFailureCallback(groupByQuery)
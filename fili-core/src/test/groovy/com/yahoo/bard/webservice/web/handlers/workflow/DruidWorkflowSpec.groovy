@@ -19,6 +19,7 @@ import com.yahoo.bard.webservice.metadata.QuerySigningService
 import com.yahoo.bard.webservice.metadata.SegmentIntervalsHashIdGenerator
 import com.yahoo.bard.webservice.table.PhysicalTableDictionary
 import com.yahoo.bard.webservice.web.handlers.AsyncWebServiceRequestHandler
+import com.yahoo.bard.webservice.web.handlers.BucketCacheRequestHandler
 import com.yahoo.bard.webservice.web.handlers.CacheRequestHandler
 import com.yahoo.bard.webservice.web.handlers.CacheV2RequestHandler
 import com.yahoo.bard.webservice.web.handlers.DataRequestHandler
@@ -128,7 +129,7 @@ class DruidWorkflowSpec extends Specification {
 
         when:
         dw = new DruidWorkflow(
-                "LocalSignature".equals(etagConfigValue) || "ETag".equals(etagConfigValue)
+                ["LocalSignature", "ETag", "Bucket"].contains(etagConfigValue)
                         ? Mock(TupleDataCache)
                         : Mock(DataCache),
                 webService,
@@ -154,16 +155,18 @@ class DruidWorkflowSpec extends Specification {
         (handlers.find(byClass(CacheRequestHandler)) != null) == isCaching
         (handlers.find(byClass(CacheV2RequestHandler)) != null) == isCachingV2
         (handlers.find(byClass(EtagCacheRequestHandler)) != null) == isEtagCaching
+        (handlers.find(byClass(BucketCacheRequestHandler)) != null) == isBucketCaching
 
         cleanup:
         SYSTEM_CONFIG.clearProperty(ETAG_CACHE_CONFIG_KEY)
 
         where:
-        etagConfigValue  | isCaching | isCachingV2 | isEtagCaching
-        "Ttl"            | true      | false       | false
-        "LocalSignature" | false     | true        | false
-        "ETag"           | false     | false       | true
-        "NoCache"        | false     | false       | false
+        etagConfigValue  | isCaching | isCachingV2 | isEtagCaching | isBucketCaching
+        "Ttl"            | true      | false       | false         | false
+        "LocalSignature" | false     | true        | false         | false
+        "ETag"           | false     | false       | true          | false
+        "Bucket"         | false     | false       | false         | true
+        "NoCache"        | false     | false       | false         | false
     }
 
     def "Test workflow contains standard handlers"() {
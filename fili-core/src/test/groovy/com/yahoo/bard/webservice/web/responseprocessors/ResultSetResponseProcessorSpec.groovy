@@ -6,18 +6,22 @@ import static com.yahoo.bard.webservice.data.time.DefaultTimeGrain.DAY
 import static com.yahoo.bard.webservice.druid.model.DefaultQueryType.GROUP_BY
 
 import com.yahoo.bard.webservice.application.ObjectMappersSuite
+import com.yahoo.bard.webservice.config.BardFeatureFlag
 import com.yahoo.bard.webservice.data.DruidResponseParser
 import com.yahoo.bard.webservice.data.HttpResponseChannel
 import com.yahoo.bard.webservice.data.HttpResponseMaker
 import com.yahoo.bard.webservice.data.ResultSet
 import com.yahoo.bard.webservice.data.ResultSetSchema
+import com.yahoo.bard.webservice.data.StreamingResultSet
 import com.yahoo.bard.webservice.data.dimension.BardDimensionField
 import com.yahoo.bard.webservice.data.dimension.Dimension
 import com.yahoo.bard.webservice.data.dimension.DimensionColumn
 import com.yahoo.bard.webservice.data.dimension.DimensionDictionary
 import com.yahoo.bard.webservice.data.metric.LogicalMetric
 import com.yahoo.bard.webservice.data.metric.MetricColumn
+import com.yahoo.bard.webservice.data.metric.mappers.NoOpResultSetMapper
 import com.yahoo.bard.webservice.data.metric.mappers.ResultSetMapper
+import com.yahoo.bard.webservice.data.metric.mappers.TopNResultSetMapper
 import com.yahoo.bard.webservice.druid.client.FailureCallback
 import com.yahoo.bard.webservice.druid.client.HttpErrorCallback
 import com.yahoo.bard.webservice.druid.model.DefaultQueryType
@@ -37,6 +41,7 @@ import com.yahoo.bard.webservice.web.JsonResponseWriter
 import com.yahoo.bard.webservice.web.ResponseFormatType
 import com.yahoo.bard.webservice.web.ResponseWriter
 
+import com.fasterxml.jackson.core.JsonParser
 import com.fasterxml.jackson.databind.JsonNode
 import com.fasterxml.jackson.databind.ObjectMapper
 import com.google.common.collect.Sets
@@ -46,6 +51,7 @@ import org.joda.time.DateTimeZone
 import rx.subjects.PublishSubject
 import rx.subjects.Subject
 import spock.lang.Specification
+import spock.lang.Unroll
 
 import javax.ws.rs.container.AsyncResponse
 import javax.ws.rs.core.MultivaluedMap
@@ -273,6 +279,37 @@ class ResultSetResponseProcessorSpec extends Specification {
         2 * resultSetMock.getSchema()
     }
 
+    def "A streamed response which cannot be read is reported as an error building the result set"() {
+        setup:
+        ResultSetResponseProcessor resultSetResponseProcessor = new ResultSetResponseProcessor(
+                apiRequest,
+                responseEmitter,
+                druidResponseParser,
+                MAPPERS,
+                httpResponseMaker
+        )
+        JsonParser parser = Mock(JsonParser)
+        druidResponseParser.buildSchemaColumns(groupByQuery) >> { [].stream() }
+        druidResponseParser.parse(parser, _, _, _) >> { throw new IOException("Unexpected end-of-input") }
+        RequestLog.startTiming("streamedResponse")
+        String requestId = RequestLog.getId()
+        LoggingContext loggingContext = new LoggingContext(RequestLog.dump())
+        Response responseCaptor = null
+
+        when:
+        resultSetResponseProcessor.processStreamedResponse(parser, groupByQuery, DateTimeZone.UTC, loggingContext)
+        String entity = responseCaptor.entity
+
+        then: "the error goes to the response emitter, under the request's log"
+        1 * httpResponseChannel.asyncResponse.resume(_) >> { Response r -> responseCaptor = r }
+        responseCaptor.status == 500
+        entity.contains("Unexpected end-of-input")
+        RequestLog.getId() == requestId
+
+        cleanup:
+        RequestLog.dump()
+    }
+
     def "Test failure callback"() {
         setup:
         def resultSetResponseProcessor = new ResultSetResponseProcessor(
@@ -352,4 +389,40 @@ class ResultSetResponseProcessorSpec extends Specification {
                 [new DimensionColumn(dim), new MetricColumn(metric1Name), new MetricColumn(metric2Name)]
         )
     }
+
+    @Unroll
+    def "The result set is #mapped when streaming is #streaming, asyncAfter is #asyncAfter and mappers are #mappers"() {
+        setup:
+        BardFeatureFlag.STREAMING_RESPONSES.setOn(streaming)
+        DataApiRequest request = Mock(DataApiRequest)
+        request.getLogicalMetrics() >> Collections.emptySet()
+        request.getAsyncAfter() >> asyncAfter
+        List<ResultSetMapper> requestMappers = mappers
+        ResultSetResponseProcessor processor = new ResultSetResponseProcessor(
+                request,
+                responseEmitter,
+                druidResponseParser,
+                MAPPERS,
+                httpResponseMaker
+        ) {
+            @Override
+            List<ResultSetMapper> getMappers() {
+                requestMappers
+            }
+        }
+        ResultSet resultSet = new ResultSet(new ResultSetSchema(DAY, []), [])
+
+        expect:
+        (processor.mapResultSet(resultSet) instanceof StreamingResultSet) == (mapped == "streamed")
+
+        cleanup:
+        BardFeatureFlag.STREAMING_RESPONSES.reset()
+
+        where:
+        streaming | asyncAfter                                   | mappers                           | mapped
+        true      | DataApiRequest.SYNCHRONOUS_ASYNC_AFTER_VALUE | [new NoOpResultSetMapper()]       | "streamed"
+        false     | DataApiRequest.SYNCHRONOUS_ASYNC_AFTER_VALUE | [new NoOpResultSetMapper()]       | "materialized"
+        true      | 1000                                         | [new NoOpResultSetMapper()]       | "materialized"
+        true      | DataApiRequest.SYNCHRONOUS_ASYNC_AFTER_VALUE | [new TopNResultSetMapper(2)]      | "materialized"
+    }
 }
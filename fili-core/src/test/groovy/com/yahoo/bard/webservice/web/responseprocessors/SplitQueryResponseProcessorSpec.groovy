@@ -2,7 +2,12 @@
 // Licensed under the terms of the Apache license. Please see LICENSE.md file distributed with this work for terms.
 package com.yahoo.bard.webservice.web.responseprocessors
 
+import static com.yahoo.bard.webservice.data.time.DefaultTimeGrain.DAY
+
 import com.yahoo.bard.webservice.application.ObjectMappersSuite
+import com.yahoo.bard.webservice.data.Result
+import com.yahoo.bard.webservice.data.ResultSet
+import com.yahoo.bard.webservice.data.ResultSetSchema
 import com.yahoo.bard.webservice.data.cache.HashDataCache.Pair
 import com.yahoo.bard.webservice.druid.client.FailureCallback
 import com.yahoo.bard.webservice.druid.client.HttpErrorCallback
@@ -188,4 +193,66 @@ public class SplitQueryResponseProcessorSpec extends Specification {
         1 * nextFail.invoke() { it -> captureT = it }
         captureT.getMessage() == expectedError
     }
+
+    def "Responses are parsed as they arrive and handed on as one result set when the next processor takes rows"() {
+        setup:
+        ResultSetProcessor resultSetNext = Mock(ResultSetProcessor)
+        sqrp = new SplitQueryResponseProcessor(
+                resultSetNext,
+                apiRequest,
+                groupByQuery1,
+                expectedIntervals,
+                RequestLog.dump()
+        )
+        ResultSetSchema schema = new ResultSetSchema(DAY, [])
+        Result cow = Mock(Result)
+        Result dog = Mock(Result)
+        Result elephant = Mock(Result)
+        groupByQuery2.getIntervals() >> [interval2] >> [interval1]
+        ResultSet mergedResultSet = null
+
+        when: "the later interval arrives first"
+        sqrp.processResponse(node2, groupByQuery2, new LoggingContext(RequestLog.dump()))
+
+        then: "it is parsed right away"
+        1 * resultSetNext.buildResultSet(node2, groupByQuery2, DateTimeZone.UTC) >> new ResultSet(schema, [elephant])
+        sqrp.completedResultSets[1].key == [elephant]
+        sqrp.completedIntervals[1] == null
+        0 * resultSetNext.processResultSet(_, _, _)
+
+        when:
+        sqrp.processResponse(node1, groupByQuery2, new LoggingContext(RequestLog.dump()))
+
+        then: "the rows are concatenated in interval order"
+        1 * resultSetNext.buildResultSet(node1, groupByQuery2, DateTimeZone.UTC) >> new ResultSet(schema, [cow, dog])
+        1 * resultSetNext.processResultSet(_, groupByQuery1, _) >> { mergedResultSet = it[0] }
+        0 * resultSetNext.processResponse(_, _, _)
+        mergedResultSet == [cow, dog, elephant]
+        mergedResultSet.schema == schema
+        !sqrp.failed.get()
+    }
+
+    def "A response which cannot be parsed fails the request"() {
+        setup:
+        ResultSetProcessor resultSetNext = Mock(ResultSetProcessor)
+        sqrp = new SplitQueryResponseProcessor(
+                resultSetNext,
+                apiRequest,
+                groupByQuery1,
+                expectedIntervals,
+                RequestLog.dump()
+        )
+        RuntimeException error = new RuntimeException("unparseable")
+        groupByQuery2.getIntervals() >> [interval1]
+
+        when:
+        sqrp.processResponse(node1, groupByQuery2, new LoggingContext(RequestLog.dump()))
+
+        then:
+        1 * resultSetNext.buildResultSet(node1, groupByQuery2, DateTimeZone.UTC) >> { throw error }
+        1 * resultSetNext.getFailureCallback(groupByQuery2) >> nextFail
+        1 * nextFail.invoke(error)
+        sqrp.failed.get()
+        0 * resultSetNext.processResultSet(_, _, _)
+    }
 }
@@ -11,6 +11,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 
 import org.apache.commons.lang3.concurrent.ConcurrentUtils;
 import org.asynchttpclient.BoundRequestBuilder;
+import org.asynchttpclient.DefaultAsyncHttpClient;
 import org.asynchttpclient.Request;
 import org.asynchttpclient.Response;
 
@@ -42,6 +43,30 @@ public class AsyncDruidWebServiceImplWrapper extends AsyncDruidWebServiceImpl {
         super(serviceConfig, mapper, headersToAppend);
     }
 
+    /**
+     * Constructor wrapper with a transport.
+     *
+     * @param serviceConfig Service config
+     * @param mapper Mapper
+     * @param headersToAppend Headers
+     * @param transport Transport
+     */
+    public AsyncDruidWebServiceImplWrapper(
+            DruidServiceConfig serviceConfig,
+            ObjectMapper mapper,
+            Supplier<Map<String, String>> headersToAppend,
+            DruidTransport transport
+    ) {
+        super(
+                serviceConfig,
+                new DefaultAsyncHttpClient(),
+                mapper,
+                headersToAppend,
+                DEFAULT_JSON_NODE_BUILDER_STRATEGY,
+                transport
+        );
+    }
+
     /**
      * Capture arguments to test for expected values.
      * Since there is no response, the future will hold a null value.
@@ -52,6 +77,7 @@ public class AsyncDruidWebServiceImplWrapper extends AsyncDruidWebServiceImpl {
      * @param requestBuilder  The bound request builder for the request to be sent.
      * @param timerName  The name that distinguishes this request as part of a druid query or segment metadata request
      * @param outstanding  The counter that keeps track of the outstanding (in flight) requests for the top level query
+     * @param timeout  How long the request may take in all, in milliseconds
      *
      * @return a future with a null response.
      */
@@ -62,7 +88,8 @@ public class AsyncDruidWebServiceImplWrapper extends AsyncDruidWebServiceImpl {
             final FailureCallback failure,
             final BoundRequestBuilder requestBuilder,
             final String timerName,
-            final AtomicLong outstanding
+            final AtomicLong outstanding,
+            final Integer timeout
     ) {
         this.request = requestBuilder.build();
         return ConcurrentUtils.constantFuture(null);